@@ -0,0 +1,81 @@
+package jedistools.benchmarks;
+
+import java.io.IOException;
+import java.util.Random;
+
+import jedistools.JedisClient;
+import jedistools.RedisStandIn;
+
+/**
+ * Where the benchmarks connect to, set with the system properties
+ * <code>jedistools.host</code> and <code>jedistools.port</code>
+ * (localhost:6379 by default). With <code>jedistools.standin=true</code>
+ * they run against an in-process {@link RedisStandIn} instead, whose
+ * reply latency and jitter are set in microseconds with
+ * <code>jedistools.standin.latency</code> and
+ * <code>jedistools.standin.jitter</code>.
+ *
+ * @author Hisham Mardam-Bey
+ *
+ */
+public class BenchmarkServer
+{
+	/**
+	 * Connections of every benchmark's pool, more than the highest
+	 * thread count so the pool is not what is measured.
+	 */
+	public static final int POOL_SIZE = Integer.getInteger("jedistools.pool", 128);
+
+	protected static final RedisStandIn m_standIn = startStandIn();
+
+	public static final String HOST = (m_standIn != null) ? m_standIn.getHost() : System.getProperty("jedistools.host", "localhost");
+
+	public static final int PORT = (m_standIn != null) ? m_standIn.getPort() : Integer.getInteger("jedistools.port", 6379);
+
+	private BenchmarkServer()
+	{
+		super();
+	}
+
+	protected static RedisStandIn startStandIn()
+	{
+		if (!Boolean.getBoolean("jedistools.standin"))
+		{
+			return null;
+		}
+
+		try
+		{
+			RedisStandIn standIn = new RedisStandIn().start();
+			standIn.setLatency(Long.getLong("jedistools.standin.latency", 0));
+			standIn.setJitter(Long.getLong("jedistools.standin.jitter", 0));
+
+			return standIn;
+		}
+		catch (IOException e)
+		{
+			throw new IllegalStateException("Could not start the Redis stand-in.", e);
+		}
+	}
+
+	public static JedisClient createClient(String strName)
+	{
+		return new JedisClient(strName, HOST, PORT, POOL_SIZE);
+	}
+
+	/**
+	 * @return a printable string of the given length
+	 */
+	public static String value(int iSize)
+	{
+		Random r = new Random(iSize);
+		StringBuilder sb = new StringBuilder(iSize);
+
+		for (int i = 0; i < iSize; i++)
+		{
+			sb.append((char) ('a' + r.nextInt(26)));
+		}
+
+		return sb.toString();
+	}
+}
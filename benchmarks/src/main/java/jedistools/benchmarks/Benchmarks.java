@@ -0,0 +1,43 @@
+package jedistools.benchmarks;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks once per thread count of the system property
+ * <code>jedistools.threads</code> (1,8,32 by default) and writes the
+ * results of every run as JSON to
+ * <code>target/jmh-result-t&lt;threads&gt;.json</code>. Any other
+ * argument is handed to JMH, e.g. a benchmark name pattern.
+ * <pre>
+ * java -Djedistools.port=6379 -jar target/benchmarks.jar RedisMap
+ * </pre>
+ *
+ * @author Hisham Mardam-Bey
+ *
+ */
+public class Benchmarks
+{
+	public static void main(String[] args) throws Exception
+	{
+		CommandLineOptions cmd = new CommandLineOptions(args);
+		String[] threads = System.getProperty("jedistools.threads", "1,8,32").split(",");
+
+		for (String strThreads : threads)
+		{
+			int iThreads = Integer.parseInt(strThreads.trim());
+
+			Options opts = new OptionsBuilder()
+				.parent(cmd)
+				.threads(iThreads)
+				.resultFormat(ResultFormatType.JSON)
+				.result("target/jmh-result-t" + iThreads + ".json")
+				.build();
+
+			new Runner(opts).run();
+		}
+	}
+}
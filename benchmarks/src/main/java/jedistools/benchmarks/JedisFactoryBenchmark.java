@@ -0,0 +1,76 @@
+package jedistools.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import redis.clients.jedis.Jedis;
+
+import jedistools.JedisClient;
+import jedistools.JedisFactory.JWork;
+
+/**
+ * The cost of borrowing and returning a connection, with the PING the
+ * pool sends on every borrow, next to a full call doing a PING of its
+ * own through withJedisDo.
+ *
+ * @author Hisham Mardam-Bey
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class JedisFactoryBenchmark
+{
+	protected JedisClient m_client;
+
+	protected final JWork<String> m_ping = new JWork<String>()
+	{
+		@Override
+		public String work(Jedis j)
+		{
+			return j.ping();
+		}
+	};
+
+	@Setup(Level.Trial)
+	public void setUp()
+	{
+		m_client = BenchmarkServer.createClient("bench-pool");
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown()
+	{
+		m_client.shutdown();
+	}
+
+	@Benchmark
+	public Jedis borrowReturn()
+	{
+		Jedis j = m_client.getRes();
+		m_client.returnRes(j);
+
+		return j;
+	}
+
+	@Benchmark
+	public String withJedisDo()
+	{
+		return m_client.withJedisDo(m_ping);
+	}
+}
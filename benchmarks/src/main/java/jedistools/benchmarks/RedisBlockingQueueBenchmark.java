@@ -0,0 +1,87 @@
+package jedistools.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import jedistools.JedisClient;
+import jedistools.RedisBlockingQueue;
+
+/**
+ * {@link RedisBlockingQueue} producers and consumers running side by
+ * side on one queue. Consumers poll without blocking so an empty queue
+ * shows up as fast null polls rather than stalls.
+ *
+ * @author Hisham Mardam-Bey
+ *
+ */
+@State(Scope.Group)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class RedisBlockingQueueBenchmark
+{
+	@Param({ "16", "256", "4096" })
+	public int valueSize;
+
+	protected JedisClient m_client;
+
+	protected RedisBlockingQueue m_queue;
+
+	protected String m_strValue;
+
+	@Setup(Level.Trial)
+	public void setUp()
+	{
+		m_client = BenchmarkServer.createClient("bench-queue");
+		m_strValue = BenchmarkServer.value(valueSize);
+		m_queue = new RedisBlockingQueue(m_client)
+		{
+			@Override
+			protected String getKey()
+			{
+				return "bench:queue:" + valueSize;
+			}
+		};
+		m_queue.clear();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown()
+	{
+		m_queue.clear();
+		m_client.shutdown();
+	}
+
+	@Benchmark
+	@Group("queue")
+	@GroupThreads(1)
+	public boolean produce()
+	{
+		return m_queue.add(m_strValue);
+	}
+
+	@Benchmark
+	@Group("queue")
+	@GroupThreads(1)
+	public String consume()
+	{
+		return m_queue.poll();
+	}
+}
@@ -0,0 +1,107 @@
+package jedistools.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import jedistools.JedisClient;
+import jedistools.RedisMap;
+
+/**
+ * {@link RedisMap} get, put and increment on a map of
+ * {@link RedisMapBenchmark#FIELDS} fields.
+ *
+ * @author Hisham Mardam-Bey
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class RedisMapBenchmark
+{
+	public static final int FIELDS = 1024;
+
+	@Param({ "16", "256", "4096" })
+	public int valueSize;
+
+	protected JedisClient m_client;
+
+	protected RedisMap m_map;
+
+	protected String m_strValue;
+
+	/**
+	 * The field each thread uses next.
+	 */
+	@State(Scope.Thread)
+	public static class Cursor
+	{
+		protected int m_i = 0;
+
+		protected String next()
+		{
+			m_i = (m_i + 1) % FIELDS;
+			return "f" + m_i;
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setUp()
+	{
+		m_client = BenchmarkServer.createClient("bench-map");
+		m_strValue = BenchmarkServer.value(valueSize);
+		m_map = new RedisMap(m_client)
+		{
+			@Override
+			protected String getKey()
+			{
+				return "bench:map:" + valueSize;
+			}
+		};
+
+		for (int i = 0; i < FIELDS; i++)
+		{
+			m_map.put("f" + i, m_strValue);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown()
+	{
+		m_map.clear();
+		m_client.shutdown();
+	}
+
+	@Benchmark
+	public String get(Cursor c)
+	{
+		return m_map.get(c.next());
+	}
+
+	@Benchmark
+	public String put(Cursor c)
+	{
+		return m_map.put(c.next(), m_strValue);
+	}
+
+	@Benchmark
+	public Long increment(Cursor c)
+	{
+		return m_map.increment("n" + c.next(), 1L);
+	}
+}
@@ -0,0 +1,116 @@
+package jedistools.benchmarks;
+
+import java.util.Iterator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import redis.clients.jedis.Tuple;
+
+import jedistools.ColumnarRange;
+import jedistools.JedisClient;
+import jedistools.RedisSortedSet;
+
+/**
+ * {@link RedisSortedSet} add, range and iteration on a set of
+ * <code>members</code> members.
+ *
+ * @author Hisham Mardam-Bey
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class RedisSortedSetBenchmark
+{
+	/**
+	 * Length of the members.
+	 */
+	@Param({ "16", "256" })
+	public int valueSize;
+
+	@Param({ "100", "10000" })
+	public int members;
+
+	protected JedisClient m_client;
+
+	protected RedisSortedSet m_set;
+
+	protected String m_strPrefix;
+
+	@Setup(Level.Trial)
+	public void setUp()
+	{
+		m_client = BenchmarkServer.createClient("bench-zset");
+		m_strPrefix = BenchmarkServer.value(Math.max(0, valueSize - 8));
+		m_set = new RedisSortedSet(m_client)
+		{
+			@Override
+			protected String getKey()
+			{
+				return "bench:zset:" + valueSize + ":" + members;
+			}
+		};
+
+		for (int i = 0; i < members; i++)
+		{
+			m_set.add(new Tuple(member(i), (double) i));
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown()
+	{
+		m_set.clear();
+		m_client.shutdown();
+	}
+
+	protected String member(int i)
+	{
+		return m_strPrefix + String.format("%08d", i);
+	}
+
+	/**
+	 * Re-scores an existing member so the set keeps its size.
+	 */
+	@Benchmark
+	public boolean add()
+	{
+		int i = ThreadLocalRandom.current().nextInt(members);
+		return m_set.add(new Tuple(member(i), ThreadLocalRandom.current().nextDouble() * members));
+	}
+
+	@Benchmark
+	public ColumnarRange range()
+	{
+		return m_set.rangeColumns(0, 99);
+	}
+
+	@Benchmark
+	public void iterate(Blackhole bh)
+	{
+		Iterator<Tuple> iter = m_set.iterator();
+
+		while (iter.hasNext())
+		{
+			bh.consume(iter.next());
+		}
+	}
+}
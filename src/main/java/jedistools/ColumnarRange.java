@@ -0,0 +1,122 @@
+package jedistools;
+
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import redis.clients.jedis.Tuple;
+import redis.clients.util.SafeEncoder;
+
+/**
+ * An ordered range of sorted set members held as parallel arrays of
+ * member bytes and primitive scores instead of a {@link java.util.Set} of
+ * {@link Tuple}s. Range queries that only need to walk the results
+ * can consume it through a {@link ScoreVisitor} without boxing a
+ * single score.
+ * <p>
+ * With read coalescing on (see {@link JedisFactory#setCoalesceReads(boolean)})
+ * the same range can be handed to several callers, its arrays must not
+ * be modified.
+ *
+ * @author Hisham Mardam-Bey
+ *
+ */
+public class ColumnarRange
+{
+	/**
+	 * Callback for {@link ColumnarRange#foreach(ScoreVisitor)}.
+	 */
+	public interface ScoreVisitor
+	{
+		/**
+		 * @return <code>false</code> to stop the iteration
+		 */
+		public boolean visit(byte[] member, double score);
+	}
+
+	protected final byte[][] m_members;
+
+	protected final double[] m_scores;
+
+	public ColumnarRange(byte[][] members, double[] scores)
+	{
+		m_members = members;
+		m_scores = scores;
+	}
+
+	/**
+	 * Builds a range from a raw WITHSCORES multi bulk reply, which
+	 * alternates member and score.
+	 *
+	 * @param reply the reply as returned by the connection
+	 * @return the {@link ColumnarRange}
+	 */
+	public static ColumnarRange fromReply(List<byte[]> reply)
+	{
+		int n = (reply == null) ? 0 : reply.size() / 2;
+		byte[][] members = new byte[n][];
+		double[] scores = new double[n];
+
+		for (int i = 0; i < n; i++)
+		{
+			members[i] = reply.get(2 * i);
+			scores[i] = Double.parseDouble(SafeEncoder.encode(reply.get(2 * i + 1)));
+		}
+
+		return new ColumnarRange(members, scores);
+	}
+
+	public int size()
+	{
+		return m_scores.length;
+	}
+
+	public boolean isEmpty()
+	{
+		return size() == 0;
+	}
+
+	public byte[] getBinaryMember(int i)
+	{
+		return m_members[i];
+	}
+
+	public String getMember(int i)
+	{
+		return SafeEncoder.encode(m_members[i]);
+	}
+
+	public double getScore(int i)
+	{
+		return m_scores[i];
+	}
+
+	/**
+	 * Runs the given {@link ScoreVisitor} on every member in order, stopping
+	 * as soon as it returns <code>false</code>.
+	 *
+	 * @param visitor the {@link ScoreVisitor} to run
+	 */
+	public void foreach(ScoreVisitor visitor)
+	{
+		for (int i = 0; i < m_scores.length; i++)
+		{
+			if (!visitor.visit(m_members[i], m_scores[i])) return;
+		}
+	}
+
+	/**
+	 * @return the range as a {@link SortedSet} of {@link Tuple}s
+	 */
+	public SortedSet<Tuple> toSortedSet()
+	{
+		TreeSet<Tuple> ret = new TreeSet<Tuple>();
+
+		for (int i = 0; i < m_scores.length; i++)
+		{
+			ret.add(new Tuple(m_members[i], m_scores[i]));
+		}
+
+		return ret;
+	}
+}
@@ -0,0 +1,27 @@
+package jedistools;
+
+import redis.clients.jedis.exceptions.JedisConnectionException;
+
+/**
+ * Thrown when a call made within
+ * {@link JedisFactory#withDeadline(long, java.util.function.Supplier)}
+ * runs out of time, whether waiting for a connection or for Redis' reply.
+ * The connection it was using is discarded.
+ *
+ * @author Hisham Mardam-Bey
+ *
+ */
+public class DeadlineExceededException extends JedisConnectionException
+{
+	private static final long serialVersionUID = 1L;
+
+	public DeadlineExceededException(String message)
+	{
+		super(message);
+	}
+
+	public DeadlineExceededException(String message, Throwable cause)
+	{
+		super(message, cause);
+	}
+}
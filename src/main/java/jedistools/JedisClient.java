@@ -0,0 +1,301 @@
+package jedistools;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.apache.commons.pool.impl.GenericObjectPool;
+import org.apache.log4j.Logger;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+
+import jedistools.JedisFactory.JWork;
+
+/**
+ * A connection pool to one Redis instance with its own configuration,
+ * for objects that should not share {@link JedisFactory}'s pool. Give it
+ * to a {@link RedisBaseObject} through its constructor or
+ * {@link RedisBaseObject#setClient(JedisClient)} and every call of that
+ * object runs on this pool, so latency critical objects can get a pool
+ * of their own that batch work can not starve, or objects can live on
+ * another Redis instance altogether.
+ * <pre>
+ * JedisClient hot = new JedisClient("hot", "localhost", 6379, 8);
+ * RedisMap sessions = new RedisMap(hot) { ... };
+ * </pre>
+ * Objects with a client of their own are not sharded and read from the
+ * client's instance only, see {@link ShardedJedisFactory} and
+ * {@link JedisFactory#setReplicas(String...)}. Connections are borrowed,
+ * handed back and reported to the {@link JedisPoolMetrics} exactly like
+ * {@link JedisFactory}'s, under the pool name <code>client:&lt;name&gt;</code>;
+ * further clients with a name already in use get
+ * <code>client:&lt;name&gt;#2</code>, <code>#3</code> and so on, so the
+ * pools of two clients are never mixed up in the metrics. Deadlines set
+ * with {@link JedisFactory#withDeadline(long, Supplier)} bound the
+ * borrow and the reply, and reads are retried like
+ * {@link JedisFactory}'s, but are not hedged.
+ *
+ * @author Hisham Mardam-Bey
+ *
+ */
+public class JedisClient
+{
+	protected static Logger m_logger = Logger.getLogger(JedisClient.class.getName());
+
+	/**
+	 * How many clients were created with each name.
+	 */
+	protected static final ConcurrentMap<String, AtomicInteger> m_names = new ConcurrentHashMap<String, AtomicInteger>();
+
+	protected final String m_strName;
+
+	protected final String m_strPoolName;
+
+	protected final String m_strHost;
+
+	protected final int m_iPort;
+
+	protected final GenericObjectPool.Config m_config;
+
+	/**
+	 * The pool, created on first use.
+	 */
+	protected volatile JedisPool m_pool;
+
+	private final Object objSync = new Object();
+
+	/**
+	 * Creates a client configured like {@link JedisFactory}'s pool.
+	 *
+	 * @param strName the name of the client in the pool metrics
+	 * @param strHost the Redis host
+	 * @param iPort the Redis port
+	 */
+	public JedisClient(String strName, String strHost, int iPort)
+	{
+		this(strName, strHost, iPort, JedisFactory.createPoolConfig());
+	}
+
+	/**
+	 * Creates a client configured like {@link JedisFactory}'s pool but
+	 * with the given number of connections.
+	 *
+	 * @param strName the name of the client in the pool metrics
+	 * @param strHost the Redis host
+	 * @param iPort the Redis port
+	 * @param iMaxActive the maximum number of connections
+	 */
+	public JedisClient(String strName, String strHost, int iPort, int iMaxActive)
+	{
+		this(strName, strHost, iPort, sized(iMaxActive));
+	}
+
+	/**
+	 * @param strName the name of the client in the pool metrics
+	 * @param strHost the Redis host
+	 * @param iPort the Redis port
+	 * @param config the pool configuration
+	 */
+	public JedisClient(String strName, String strHost, int iPort, GenericObjectPool.Config config)
+	{
+		m_strName = strName;
+		m_strPoolName = poolName(strName);
+		m_strHost = strHost;
+		m_iPort = iPort;
+		m_config = config;
+	}
+
+	protected static String poolName(String strName)
+	{
+		AtomicInteger count = m_names.get(strName);
+
+		if (count == null)
+		{
+			AtomicInteger newCount = new AtomicInteger();
+			count = m_names.putIfAbsent(strName, newCount);
+
+			if (count == null)
+			{
+				count = newCount;
+			}
+		}
+
+		int iNumber = count.incrementAndGet();
+
+		return (iNumber == 1) ? "client:" + strName : "client:" + strName + "#" + iNumber;
+	}
+
+	protected static GenericObjectPool.Config sized(int iMaxActive)
+	{
+		GenericObjectPool.Config config = JedisFactory.createPoolConfig();
+		config.maxActive = iMaxActive;
+		config.minIdle = Math.min(config.minIdle, iMaxActive);
+		config.maxIdle = Math.min(config.maxIdle, iMaxActive);
+
+		return config;
+	}
+
+	public String getName()
+	{
+		return m_strName;
+	}
+
+	public String getHost()
+	{
+		return m_strHost;
+	}
+
+	public int getPort()
+	{
+		return m_iPort;
+	}
+
+	/**
+	 * @return the name of the pool in the {@link JedisPoolMetrics} events,
+	 * unique to this client
+	 */
+	public String getPoolName()
+	{
+		return m_strPoolName;
+	}
+
+	protected JedisPool getPool()
+	{
+		JedisPool pool = m_pool;
+
+		if (pool == null)
+		{
+			synchronized (objSync)
+			{
+				if (m_pool == null)
+				{
+					m_pool = JedisFactory.createPool(m_config, m_strHost, m_iPort);
+					JedisFactory.getPoolMetrics().poolCreated(getPoolName(), m_pool);
+				}
+
+				pool = m_pool;
+			}
+		}
+
+		return pool;
+	}
+
+	/**
+	 * Borrows a connection, it must be handed back with
+	 * {@link JedisClient#returnRes(Jedis)}.
+	 *
+	 * @return the connection
+	 */
+	public Jedis getRes()
+	{
+		return JedisFactory.borrow(getPoolName(), getPool());
+	}
+
+	public void returnRes(Jedis res)
+	{
+		JedisFactory.release(res, false);
+	}
+
+	/**
+	 * Runs the given {@link JWork} on a connection of this client, see
+	 * {@link JedisFactory#withJedisDo(JWork)}.
+	 *
+	 * @param work the {@link JWork} to run
+	 * @return the result of the work
+	 */
+	public <T> T withJedisDo(JWork<T> work)
+	{
+		return withJedisDo(null, work);
+	}
+
+	/**
+	 * Same as {@link JedisClient#withJedisDo(JWork)}, the key is only used
+	 * to tag the call's latency.
+	 */
+	public <T> T withJedisDo(String strKey, JWork<T> work)
+	{
+		return JedisFactory.runAndRelease(getRes(), strKey, work);
+	}
+
+	/**
+	 * Same as {@link JedisClient#withJedisDo(String, JWork)} for read only
+	 * work, which is retried when Redis can not be reached like
+	 * {@link JedisFactory#withJedisRead(String, boolean, JWork)} does. Reads
+	 * on a client are not hedged.
+	 */
+	public <T> T withJedisRead(final String strKey, final JWork<T> work)
+	{
+		return JedisFactory.withRetries(strKey, new Supplier<T>()
+		{
+			@Override
+			public T get()
+			{
+				return withJedisDo(strKey, work);
+			}
+		});
+	}
+
+	/**
+	 * Same as {@link JedisClient#withJedisRead(String, JWork)}, coalesced
+	 * with identical concurrent reads on this client when read coalescing
+	 * is on, see {@link JedisFactory#withJedisDoShared(List, String, JWork)}.
+	 */
+	public <T> T withJedisDoShared(List<?> command, final String strKey, final JWork<T> work)
+	{
+		if (!JedisFactory.m_bCoalesceReads)
+		{
+			return withJedisRead(strKey, work);
+		}
+
+		return JedisFactory.shared(Arrays.asList(this, strKey, command, work.getClass()), new Supplier<T>()
+		{
+			@Override
+			public T get()
+			{
+				return withJedisRead(strKey, work);
+			}
+		});
+	}
+
+	/**
+	 * Same as {@link JedisClient#withJedisDo(JWork)} but runs on
+	 * {@link JedisFactory#getAsyncExecutor()}.
+	 */
+	public <T> CompletableFuture<T> withJedisDoAsync(final JWork<T> work)
+	{
+		return JedisFactory.async(new Supplier<T>()
+		{
+			@Override
+			public T get()
+			{
+				return withJedisDo(work);
+			}
+		});
+	}
+
+	/**
+	 * Closes all connections of this client, it reconnects on next use.
+	 */
+	public void shutdown()
+	{
+		synchronized (objSync)
+		{
+			if (m_pool != null)
+			{
+				JedisFactory.destroyPool(getPoolName(), m_pool);
+				m_pool = null;
+			}
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		return getPoolName() + "@" + m_strHost + ":" + m_iPort;
+	}
+}
@@ -0,0 +1,452 @@
+package jedistools;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+import jedistools.JedisFactory.JWork;
+
+/**
+ * Latency histograms of the calls made through
+ * {@link JedisFactory#withJedisDo(JWork)} and friends, per call site and
+ * key prefix, plus a bounded log of the slowest calls. A call site is the
+ * collection type and method the {@link JWork} was written in, such as
+ * <code>RedisMap.get</code>, and the key prefix is the key with every run
+ * of digits replaced by <code>#</code>, such as <code>rs:#:conv:#</code>.
+ * <p>
+ * Turned on with {@link JedisFactory#setCommandStats(JedisCommandStats)}
+ * and published as the MXBean <code>jedistools:type=JedisCommandStats</code>.
+ * Recording a call costs two clock reads, one map lookup and one
+ * histogram increment and allocates nothing once its call site and key
+ * prefix were seen: every call site caches its histograms by the hash
+ * of the key prefix, which is computed and compared without building it.
+ *
+ * @author Hisham Mardam-Bey
+ *
+ */
+public class JedisCommandStats implements JedisCommandStatsMXBean
+{
+	protected static Logger m_logger = Logger.getLogger(JedisCommandStats.class.getName());
+
+	/**
+	 * Calls slower than this many microseconds go to the slow log.
+	 */
+	protected static long REDIS_SLOW_CALL_MICROS = 10000;
+
+	/**
+	 * Number of calls the slow log keeps.
+	 */
+	protected static int REDIS_SLOW_LOG_SIZE = 128;
+
+	/**
+	 * Maximum number of call site and key prefix pairs tracked, calls
+	 * beyond it are counted under <code>other</code> which is not
+	 * counted against it. The cap is exact, concurrent new tags reserve
+	 * their place before being added.
+	 */
+	protected static int REDIS_MAX_COMMAND_TAGS = 1024;
+
+	/**
+	 * Number of key prefixes every call site caches, a power of 2.
+	 */
+	protected static int REDIS_SITE_CACHE_SIZE = 16;
+
+	/**
+	 * A call in the slow log.
+	 */
+	public static class SlowCall
+	{
+		public final long m_lTimestamp;
+
+		public final String m_strTag;
+
+		public final String m_strKey;
+
+		public final long m_lMicros;
+
+		public final int m_iReplySize;
+
+		protected SlowCall(String strTag, String strKey, long lMicros, int iReplySize)
+		{
+			m_lTimestamp = System.currentTimeMillis();
+			m_strTag = strTag;
+			m_strKey = strKey;
+			m_lMicros = lMicros;
+			m_iReplySize = iReplySize;
+		}
+
+		@Override
+		public String toString()
+		{
+			return m_lTimestamp + " " + m_strTag + " " + m_strKey + " " + m_lMicros + "us reply=" + m_iReplySize;
+		}
+	}
+
+	/**
+	 * A call site and the histograms of the key prefixes it used last.
+	 */
+	protected static class Site
+	{
+		protected final String m_strName;
+
+		protected final AtomicReferenceArray<Tag> m_tags = new AtomicReferenceArray<Tag>(REDIS_SITE_CACHE_SIZE);
+
+		protected Site(String strName)
+		{
+			m_strName = strName;
+		}
+	}
+
+	/**
+	 * A call site and key prefix pair along with its histogram.
+	 */
+	protected static class Tag
+	{
+		protected final String m_strPrefix;
+
+		protected final String m_strTag;
+
+		protected final LatencyHistogram m_histogram;
+
+		protected Tag(String strPrefix, String strTag, LatencyHistogram histogram)
+		{
+			m_strPrefix = strPrefix;
+			m_strTag = strTag;
+			m_histogram = histogram;
+		}
+	}
+
+	protected final ConcurrentMap<Class<?>, Site> m_sites = new ConcurrentHashMap<Class<?>, Site>();
+
+	protected final ConcurrentMap<String, LatencyHistogram> m_latencies = new ConcurrentHashMap<String, LatencyHistogram>();
+
+	/**
+	 * Number of tags in {@link JedisCommandStats#m_latencies} other than
+	 * <code>other</code>, including the ones being added.
+	 */
+	protected final AtomicInteger m_iTags = new AtomicInteger();
+
+	protected final AtomicReferenceArray<SlowCall> m_slowLog = new AtomicReferenceArray<SlowCall>(REDIS_SLOW_LOG_SIZE);
+
+	protected final AtomicLong m_lSlowCalls = new AtomicLong();
+
+	protected volatile long m_lSlowNanos = TimeUnit.MICROSECONDS.toNanos(REDIS_SLOW_CALL_MICROS);
+
+	/**
+	 * Publishes these stats over JMX, replacing any stats published before.
+	 */
+	public void register()
+	{
+		try
+		{
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName("jedistools:type=JedisCommandStats");
+
+			if (server.isRegistered(name))
+			{
+				server.unregisterMBean(name);
+			}
+
+			server.registerMBean(this, name);
+		}
+		catch (Exception e)
+		{
+			m_logger.warn("Could not publish the command stats over JMX.", e);
+		}
+	}
+
+	/**
+	 * Records a call.
+	 *
+	 * @param work the work that ran
+	 * @param strKey the key it ran on, null if unknown
+	 * @param lNanos how long it took
+	 * @param ret what it returned
+	 */
+	public void record(JWork<?> work, String strKey, long lNanos, Object ret)
+	{
+		Site site = getSite(work.getClass());
+		int iSlot = prefixHash(strKey) & (site.m_tags.length() - 1);
+		Tag tag = site.m_tags.get(iSlot);
+
+		if (tag == null || !hasPrefix(strKey, tag.m_strPrefix))
+		{
+			tag = getTag(site.m_strName, keyPrefix(strKey));
+			site.m_tags.set(iSlot, tag);
+		}
+
+		tag.m_histogram.record(lNanos);
+
+		if (lNanos >= m_lSlowNanos)
+		{
+			int i = (int) (m_lSlowCalls.getAndIncrement() % m_slowLog.length());
+			m_slowLog.set(i, new SlowCall(tag.m_strTag, strKey, TimeUnit.NANOSECONDS.toMicros(lNanos), replySize(ret)));
+		}
+	}
+
+	/**
+	 * @return the class and method the given anonymous work was written in
+	 */
+	protected Site getSite(Class<?> c)
+	{
+		Site ret = m_sites.get(c);
+
+		if (ret == null)
+		{
+			Class<?> outer = c.getEnclosingClass();
+			Method m = c.getEnclosingMethod();
+			ret = new Site(((outer == null) ? c.getSimpleName() : outer.getSimpleName()) + "." + ((m == null) ? "?" : m.getName()));
+			m_sites.put(c, ret);
+		}
+
+		return ret;
+	}
+
+	/**
+	 * Returns the tag of the given call site and key prefix, creating
+	 * its histogram unless {@link JedisCommandStats#REDIS_MAX_COMMAND_TAGS}
+	 * are tracked already.
+	 */
+	protected Tag getTag(String strSite, String strPrefix)
+	{
+		String strTag = strSite + " " + strPrefix;
+		LatencyHistogram h = m_latencies.get(strTag);
+
+		if (h != null)
+		{
+			return new Tag(strPrefix, strTag, h);
+		}
+
+		if (m_iTags.incrementAndGet() > REDIS_MAX_COMMAND_TAGS)
+		{
+			m_iTags.decrementAndGet();
+			strTag = "other";
+		}
+
+		LatencyHistogram created = new LatencyHistogram();
+		h = m_latencies.putIfAbsent(strTag, created);
+
+		if (h == null)
+		{
+			h = created;
+		}
+		else if (!"other".equals(strTag))
+		{
+			// added by another thread meanwhile, give back the place
+			m_iTags.decrementAndGet();
+		}
+
+		return new Tag(strPrefix, strTag, h);
+	}
+
+	/**
+	 * @return the {@link String#hashCode()} of the key's prefix, see
+	 * {@link JedisCommandStats#keyPrefix(String)}, without building it
+	 */
+	protected static int prefixHash(String strKey)
+	{
+		if (strKey == null)
+		{
+			return '-';
+		}
+
+		int h = 0;
+		boolean bDigits = false;
+
+		for (int i = 0; i < strKey.length(); i++)
+		{
+			char c = strKey.charAt(i);
+
+			if (c >= '0' && c <= '9')
+			{
+				if (!bDigits) h = 31 * h + '#';
+				bDigits = true;
+			}
+			else
+			{
+				h = 31 * h + c;
+				bDigits = false;
+			}
+		}
+
+		return h;
+	}
+
+	/**
+	 * @return whether the prefix of the given key is the given prefix,
+	 * without building it
+	 */
+	protected static boolean hasPrefix(String strKey, String strPrefix)
+	{
+		if (strKey == null)
+		{
+			return "-".equals(strPrefix);
+		}
+
+		int j = 0;
+		boolean bDigits = false;
+
+		for (int i = 0; i < strKey.length(); i++)
+		{
+			char c = strKey.charAt(i);
+
+			if (c >= '0' && c <= '9')
+			{
+				if (!bDigits && (j >= strPrefix.length() || strPrefix.charAt(j++) != '#')) return false;
+				bDigits = true;
+			}
+			else
+			{
+				if (j >= strPrefix.length() || strPrefix.charAt(j++) != c) return false;
+				bDigits = false;
+			}
+		}
+
+		return j == strPrefix.length();
+	}
+
+	protected static String keyPrefix(String strKey)
+	{
+		if (strKey == null)
+		{
+			return "-";
+		}
+
+		StringBuilder sb = new StringBuilder(strKey.length());
+		boolean bDigits = false;
+
+		for (int i = 0; i < strKey.length(); i++)
+		{
+			char c = strKey.charAt(i);
+
+			if (c >= '0' && c <= '9')
+			{
+				if (!bDigits) sb.append('#');
+				bDigits = true;
+			}
+			else
+			{
+				sb.append(c);
+				bDigits = false;
+			}
+		}
+
+		return sb.toString();
+	}
+
+	/**
+	 * @return the number of elements or bytes of a reply, -1 if unknown
+	 */
+	protected static int replySize(Object ret)
+	{
+		if (ret instanceof Collection) return ((Collection<?>) ret).size();
+		if (ret instanceof Map) return ((Map<?, ?>) ret).size();
+		if (ret instanceof String) return ((String) ret).length();
+		if (ret instanceof byte[]) return ((byte[]) ret).length;
+		if (ret instanceof ColumnarRange) return ((ColumnarRange) ret).size();
+		if (ret instanceof Object[]) return ((Object[]) ret).length;
+		return -1;
+	}
+
+	/**
+	 * @return the histogram of every tag seen so far
+	 */
+	public Map<String, LatencyHistogram> getHistograms()
+	{
+		return m_latencies;
+	}
+
+	/**
+	 * @return the slow log, most recent first
+	 */
+	public List<SlowCall> getSlowCalls()
+	{
+		List<SlowCall> ret = new ArrayList<SlowCall>();
+		long lLast = m_lSlowCalls.get();
+
+		for (long i = lLast - 1; i >= 0 && i >= lLast - m_slowLog.length(); i--)
+		{
+			SlowCall c = m_slowLog.get((int) (i % m_slowLog.length()));
+
+			if (c != null)
+			{
+				ret.add(c);
+			}
+		}
+
+		return ret;
+	}
+
+	@Override
+	public String[] getLatencies()
+	{
+		List<String> ret = new ArrayList<String>();
+
+		for (Map.Entry<String, LatencyHistogram> e : m_latencies.entrySet())
+		{
+			LatencyHistogram h = e.getValue();
+			ret.add(e.getKey() + " count=" + h.getCount() +
+				" p50=" + TimeUnit.NANOSECONDS.toMicros(h.getPercentile(0.5)) +
+				" p99=" + TimeUnit.NANOSECONDS.toMicros(h.getPercentile(0.99)) +
+				" p999=" + TimeUnit.NANOSECONDS.toMicros(h.getPercentile(0.999)) +
+				" max=" + TimeUnit.NANOSECONDS.toMicros(h.getMax()));
+		}
+
+		return ret.toArray(new String[]{});
+	}
+
+	@Override
+	public String[] getSlowLog()
+	{
+		List<String> ret = new ArrayList<String>();
+
+		for (SlowCall c : getSlowCalls())
+		{
+			ret.add(c.toString());
+		}
+
+		return ret.toArray(new String[]{});
+	}
+
+	@Override
+	public long getSlowThresholdMicros()
+	{
+		return TimeUnit.NANOSECONDS.toMicros(m_lSlowNanos);
+	}
+
+	@Override
+	public void setSlowThresholdMicros(long lMicros)
+	{
+		m_lSlowNanos = TimeUnit.MICROSECONDS.toNanos(lMicros);
+	}
+
+	@Override
+	public void reset()
+	{
+		// the sites cache histograms of the cleared tags
+		m_sites.clear();
+		m_latencies.clear();
+		m_iTags.set(0);
+
+		for (int i = 0; i < m_slowLog.length(); i++)
+		{
+			m_slowLog.set(i, null);
+		}
+
+		m_lSlowCalls.set(0);
+	}
+}
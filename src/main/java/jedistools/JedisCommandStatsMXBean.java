@@ -0,0 +1,26 @@
+package jedistools;
+
+/**
+ * The JMX view of {@link JedisCommandStats}, times are in microseconds.
+ *
+ * @author Hisham Mardam-Bey
+ *
+ */
+public interface JedisCommandStatsMXBean
+{
+	/**
+	 * @return one line per tag: tag, count, p50, p99, p999 and max
+	 */
+	public String[] getLatencies();
+
+	/**
+	 * @return the slow log, most recent first
+	 */
+	public String[] getSlowLog();
+
+	public long getSlowThresholdMicros();
+
+	public void setSlowThresholdMicros(long lMicros);
+
+	public void reset();
+}
@@ -1,10 +1,39 @@
 package jedistools;
 
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
 import org.apache.commons.pool.impl.GenericObjectPool;
 import org.apache.log4j.Logger;
 
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
 
 /**
  * A simple factory that returns a {@link Jedis} object back 
@@ -70,16 +99,402 @@ public class JedisFactory
 	 */
 	protected static int REDIS_RECONNECT_RETRY_WAITTIME = 5000;
 	
+	/**
+	 * Whether connections are tested with a PING every time they are 
+	 * borrowed. Idle connections are tested in the background either way.
+	 */
+	protected static boolean REDIS_POOL_TEST_ON_BORROW = true;
+	
+	/**
+	 * Number of milliseconds between two background tests of the idle 
+	 * connections of a pool.
+	 */
+	protected static int REDIS_POOL_VALIDATE_INTERVAL = 30000;
+	
+	/**
+	 * Number of milliseconds a borrow waits for a free connection before 
+	 * failing, 0 waits for as long as it takes.
+	 */
+	protected static int REDIS_POOL_MAX_WAIT = 0;
+	
+	/**
+	 * Number of times a read failing to reach Redis is retried.
+	 */
+	protected static int REDIS_READ_RETRY_COUNT = 2;
+	
+	/**
+	 * Number of milliseconds the first retry of a read waits at most, 
+	 * doubled for every further retry. The actual wait is random.
+	 */
+	protected static int REDIS_READ_RETRY_BACKOFF = 20;
+	
+	/**
+	 * Number of reads of a call site before its hedging delay is trusted.
+	 */
+	protected static int REDIS_HEDGE_MIN_SAMPLES = 100;
+	
+	/**
+	 * Number of reads of a call site per latency window. The hedging 
+	 * delay comes from the last full window, so it follows the current 
+	 * latency without starting over from no samples.
+	 */
+	protected static int REDIS_HEDGE_WINDOW = 10000;
+	
+	/**
+	 * Minimum number of microseconds before a read is hedged.
+	 */
+	protected static int REDIS_HEDGE_MIN_DELAY = 500;
+	
 	/**
 	 * The connection pool.
 	 */
-	protected static JedisPool m_jedisPool;
+	protected static volatile JedisPool m_jedisPool;
+	
+	/**
+	 * Bumped every time the master's pool is created, so callers that 
+	 * waited for a rebuild know one happened.
+	 */
+	protected static volatile long m_lPoolGeneration = 0;
+	
+	/**
+	 * Name of the master's pool in the {@link JedisPoolMetrics} events.
+	 */
+	public static final String MASTER_POOL = "master";
+	
+	/**
+	 * Receives the pool events.
+	 */
+	protected static volatile JedisPoolMetrics m_poolMetrics = new JedisPoolStats();
+	
+	/**
+	 * Latencies of the calls, null while they are not recorded.
+	 */
+	protected static volatile JedisCommandStats m_commandStats;
+	
+	/**
+	 * How long a connection can be borrowed before it is reported as 
+	 * leaked, 0 turns leak detection off.
+	 */
+	protected static volatile long m_lLeakThresholdMillis = 0;
+	
+	/**
+	 * Looks for leaked connections while leak detection is on.
+	 */
+	protected static ScheduledExecutorService m_leakScanner;
+	
+	/**
+	 * Number of connections reported as leaked.
+	 */
+	protected static final AtomicLong m_lLeaks = new AtomicLong();
+	
+	/**
+	 * A borrowed connection, where it came from and when.
+	 */
+	protected static class Borrow
+	{
+		protected final String m_strPool;
+		
+		protected final JedisPool m_pool;
+		
+		protected final Semaphore m_permits;
+		
+		protected final long m_lNanos = System.nanoTime();
+		
+		/**
+		 * Where the connection was borrowed, only kept while leak detection is on.
+		 */
+		protected final Throwable m_site;
+		
+		protected volatile boolean m_bReported = false;
+		
+		/**
+		 * Whether the connection is pinned to a thread, so meant to be held.
+		 */
+		protected volatile boolean m_bPinned = false;
+		
+		protected Borrow(String strPool, JedisPool pool, Semaphore permits)
+		{
+			m_strPool = strPool;
+			m_pool = pool;
+			m_permits = permits;
+			m_site = (m_lLeakThresholdMillis > 0) ? new Throwable("Borrowed from pool " + strPool + " by thread " + Thread.currentThread().getName()) : null;
+		}
+	}
+	
+	/**
+	 * The connections currently borrowed from any pool.
+	 */
+	protected static final ConcurrentMap<Jedis, Borrow> m_borrowed = new ConcurrentHashMap<Jedis, Borrow>();
+	
+	/**
+	 * A weak key of {@link JedisFactory#m_connectionBirth} comparing 
+	 * connections by identity, so connections the pool closes on its 
+	 * own (e.g. idle ones evicted) are forgotten once collected.
+	 */
+	protected static class ConnectionKey extends WeakReference<Jedis>
+	{
+		protected final int m_iHash;
+		
+		protected ConnectionKey(Jedis j, ReferenceQueue<Jedis> queue)
+		{
+			super(j, queue);
+			m_iHash = System.identityHashCode(j);
+		}
+		
+		@Override
+		public int hashCode()
+		{
+			return m_iHash;
+		}
+		
+		@Override
+		public boolean equals(Object o)
+		{
+			if (o == this)
+			{
+				return true;
+			}
+			
+			if (!(o instanceof ConnectionKey))
+			{
+				return false;
+			}
+			
+			Jedis j = get();
+			return j != null && j == ((ConnectionKey) o).get();
+		}
+	}
+	
+	/**
+	 * When every live connection was first borrowed. A concurrent map 
+	 * rather than a locked WeakHashMap since every borrow and release 
+	 * goes through it.
+	 */
+	protected static final ConcurrentMap<ConnectionKey, Long> m_connectionBirth = new ConcurrentHashMap<ConnectionKey, Long>();
+	
+	/**
+	 * The keys of the collected connections, to be removed from 
+	 * {@link JedisFactory#m_connectionBirth}.
+	 */
+	protected static final ReferenceQueue<Jedis> m_collectedConnections = new ReferenceQueue<Jedis>();
+	
+	/**
+	 * The connections left to borrow per pool instance, sized like the 
+	 * pool when it is created. Borrowers wait here rather than in the 
+	 * pool, whose waits hold a monitor that pins virtual threads to 
+	 * their carrier.
+	 */
+	protected static final ConcurrentMap<JedisPool, Semaphore> m_permits = new ConcurrentHashMap<JedisPool, Semaphore>();
+	
+	/**
+	 * The executor the asynchronous variants run on.
+	 */
+	protected static volatile Executor m_asyncExecutor;
+	
+	/**
+	 * The executor hedged reads run their attempts on. It is never the 
+	 * async executor: a read made from an async task waits for its 
+	 * attempts, which would starve a bounded async pool.
+	 */
+	protected static volatile Executor m_hedgeExecutor;
+	
+	/**
+	 * Starts the hedge of a read once its hedging delay has passed.
+	 */
+	protected static volatile ScheduledExecutorService m_hedgeTimer;
+	
+	/**
+	 * Whether concurrent identical reads share one request, see 
+	 * {@link JedisFactory#withJedisDoShared(List, String, JWork)}.
+	 */
+	protected static volatile boolean m_bCoalesceReads = false;
+	
+	/**
+	 * The shared reads in flight by where they read from, key, command 
+	 * and arguments.
+	 */
+	protected static final ConcurrentMap<List<?>, CompletableFuture<Object>> m_inflightReads = new ConcurrentHashMap<List<?>, CompletableFuture<Object>>();
+	
+	/**
+	 * How reads pick a replica.
+	 */
+	public enum ReadPolicy
+	{
+		/**
+		 * Every replica in turn.
+		 */
+		ROUND_ROBIN,
+		
+		/**
+		 * The replica with the fewest reads in flight from this client.
+		 */
+		LEAST_LOADED
+	}
+	
+	/**
+	 * A read replica of the master and its connection pool.
+	 */
+	/**
+	 * The read latencies of a call site over its current and its last 
+	 * full window of {@link JedisFactory#REDIS_HEDGE_WINDOW} reads.
+	 */
+	protected static class ReadLatencies
+	{
+		protected final AtomicReference<LatencyHistogram> m_current = new AtomicReference<LatencyHistogram>(new LatencyHistogram());
+		
+		protected volatile LatencyHistogram m_previous;
+		
+		public void record(long lNanos)
+		{
+			LatencyHistogram current = m_current.get();
+			current.record(lNanos);
+			
+			if (current.getCount() >= REDIS_HEDGE_WINDOW && m_current.compareAndSet(current, new LatencyHistogram()))
+			{
+				m_previous = current;
+			}
+		}
+		
+		/**
+		 * @return the number of nanoseconds before a read is hedged, 
+		 * -1 while there are too few samples to tell
+		 */
+		public long getHedgeDelay()
+		{
+			LatencyHistogram latencies = m_previous;
+			
+			if (latencies == null)
+			{
+				latencies = m_current.get();
+				
+				if (latencies.getCount() < REDIS_HEDGE_MIN_SAMPLES)
+				{
+					return -1;
+				}
+			}
+			
+			return Math.max(latencies.getPercentile(0.95), TimeUnit.MICROSECONDS.toNanos(REDIS_HEDGE_MIN_DELAY));
+		}
+	}
+	
+	/**
+	 * The primary attempt of a hedged read, run on the caller's thread. 
+	 * When the hedge answers first the connection the attempt is 
+	 * waiting on is closed, so the caller stops waiting for it.
+	 */
+	protected static class Attempt
+	{
+		protected static final Object ABANDONED = new Object();
+		
+		/**
+		 * The connection in use, null between commands or ABANDONED.
+		 */
+		protected final AtomicReference<Object> m_state = new AtomicReference<Object>();
+		
+		protected void begin(Jedis j)
+		{
+			if (!m_state.compareAndSet(null, j))
+			{
+				throw new JedisConnectionException("Read abandoned, its hedge answered first.");
+			}
+		}
+		
+		/**
+		 * @return false if the attempt was abandoned while using the 
+		 * connection, which is then closed and must be discarded
+		 */
+		protected boolean end(Jedis j)
+		{
+			return m_state.compareAndSet(j, null);
+		}
+		
+		protected void abandon()
+		{
+			Object state = m_state.getAndSet(ABANDONED);
+			
+			if (state instanceof Jedis)
+			{
+				try
+				{
+					((Jedis) state).getClient().getSocket().close();
+				}
+				catch (Exception e)
+				{
+					// closed already
+				}
+			}
+		}
+		
+		protected boolean isAbandoned()
+		{
+			return m_state.get() == ABANDONED;
+		}
+	}
+	
+	protected static class Replica
+	{
+		protected final String m_strName;
+		
+		protected final JedisPool m_pool;
+		
+		protected final AtomicInteger m_iInFlight = new AtomicInteger();
+		
+		protected Replica(String strHost, int iPort)
+		{
+			m_strName = strHost + ":" + iPort;
+			m_pool = createPool(strHost, iPort);
+		}
+		
+		protected String getPoolName()
+		{
+			return "replica:" + m_strName;
+		}
+	}
+	
+	/**
+	 * The read replicas of the master, empty if reads go to the master.
+	 */
+	protected static volatile Replica[] m_replicas = new Replica[0];
+	
+	protected static volatile ReadPolicy m_readPolicy = ReadPolicy.ROUND_ROBIN;
+	
+	protected static final AtomicInteger m_iNextReplica = new AtomicInteger();
+	
+	/**
+	 * Set while the current thread runs {@link JedisFactory#fromMaster(Supplier)}.
+	 */
+	protected static final ThreadLocal<Boolean> m_readFromMaster = new ThreadLocal<Boolean>();
+	
+	/**
+	 * The current thread's deadline as a {@link System#nanoTime()}, set 
+	 * while it runs {@link JedisFactory#withDeadline(long, Supplier)}.
+	 */
+	protected static final ThreadLocal<Long> m_deadline = new ThreadLocal<Long>();
+	
+	/**
+	 * Whether reads slower than usual are sent a second time.
+	 */
+	protected static volatile boolean m_bHedgeReads = false;
+	
+	/**
+	 * Latencies of the reads per call site, for the hedging delay.
+	 */
+	protected static final ConcurrentMap<Class<?>, ReadLatencies> m_readLatencies = new ConcurrentHashMap<Class<?>, ReadLatencies>();
+	
+	/**
+	 * The primary attempt of the hedged read the current thread runs.
+	 */
+	protected static final ThreadLocal<Attempt> m_attempt = new ThreadLocal<Attempt>();
+	
+	protected static final AtomicLong m_lHedges = new AtomicLong();
+	
+	protected static final AtomicLong m_lHedgesWon = new AtomicLong();
 	  	
 	/**
-	 * Need the following object to synchronize
-	 * a block
+	 * Guards pool creation and recovery, a lock rather than a monitor 
+	 * so virtual threads waiting on it do not pin their carrier.
 	 */
-	private static Object objSync = new Object();
+	private static final Lock objLock = new ReentrantLock();
 
 	/**
 	 *  Prevent direct access to the constructor 
@@ -104,15 +519,95 @@ public class JedisFactory
 	{		
 		if (m_jedisPool == null) 
 		{						
-			GenericObjectPool.Config poolConfig = new GenericObjectPool.Config();					
-			poolConfig.minIdle = REDIS_POOL_MIN_IDLE;
-			poolConfig.maxIdle = REDIS_POOL_MIN_IDLE;
-			poolConfig.maxActive = REDIS_POOL_MAX_ACTIVE;
-			poolConfig.testOnBorrow = true;
-						
-			m_jedisPool = new JedisPool(poolConfig, REDIS_HOST, REDIS_PORT);
+			m_lPoolGeneration++;
+			m_jedisPool = createPool(REDIS_HOST, REDIS_PORT);
+			m_poolMetrics.poolCreated(MASTER_POOL, m_jedisPool);
 		}    	
 	}
+	
+	/**
+	 * Points the master's pool at another Redis, {@link JedisFactory#REDIS_HOST}
+	 * and {@link JedisFactory#REDIS_PORT} by default. The connections to the 
+	 * previous one are closed and the pool is recreated on next use.
+	 * 
+	 * @param strHost the Redis host
+	 * @param iPort the Redis port
+	 */
+	public static void setMaster(String strHost, int iPort)
+	{
+		objLock.lock();
+		
+		try
+		{
+			REDIS_HOST = strHost;
+			REDIS_PORT = iPort;
+			shutdownPool();
+		}
+		finally
+		{
+			objLock.unlock();
+		}
+	}
+	
+	/**
+	 * Creates a pool to the given node configured like the master's.
+	 */
+	protected static JedisPool createPool(String strHost, int iPort)
+	{
+		return createPool(createPoolConfig(), strHost, iPort);
+	}
+	
+	/**
+	 * Creates a pool with the given configuration along with the 
+	 * semaphore its borrowers wait on. Pools created here must be 
+	 * destroyed with {@link JedisFactory#destroyPool(String, JedisPool)}.
+	 */
+	protected static JedisPool createPool(GenericObjectPool.Config config, String strHost, int iPort)
+	{
+		JedisPool pool = new JedisPool(config, strHost, iPort);
+		m_permits.put(pool, new Semaphore((config.maxActive > 0) ? config.maxActive : Integer.MAX_VALUE, true));
+		return pool;
+	}
+	
+	/**
+	 * Destroys a pool and forgets its semaphore, connections still out
+	 * give their permit back to it when handed back.
+	 */
+	protected static void destroyPool(JedisPool pool)
+	{
+		m_permits.remove(pool);
+		pool.destroy();
+	}
+	
+	/**
+	 * Destroys a pool that is not coming back and reports it to the 
+	 * {@link JedisPoolMetrics}, so they drop what they keep about it.
+	 * 
+	 * @param strPool the pool's name
+	 * @param pool the pool
+	 */
+	protected static void destroyPool(String strPool, JedisPool pool)
+	{
+		destroyPool(pool);
+		m_poolMetrics.poolDestroyed(strPool, pool);
+	}
+	
+	/**
+	 * @return the configuration of the master's pool, a new copy every call
+	 */
+	public static GenericObjectPool.Config createPoolConfig()
+	{
+		GenericObjectPool.Config poolConfig = new GenericObjectPool.Config();					
+		poolConfig.minIdle = REDIS_POOL_MIN_IDLE;
+		poolConfig.maxIdle = REDIS_POOL_MIN_IDLE;
+		poolConfig.maxActive = REDIS_POOL_MAX_ACTIVE;
+		poolConfig.testOnBorrow = REDIS_POOL_TEST_ON_BORROW;
+		poolConfig.testWhileIdle = true;
+		poolConfig.timeBetweenEvictionRunsMillis = REDIS_POOL_VALIDATE_INTERVAL;
+		poolConfig.numTestsPerEvictionRun = REDIS_POOL_MAX_ACTIVE;
+		
+		return poolConfig;
+	}
 		
 	public static Jedis maybeInitAndGet()
 	{
@@ -121,12 +616,20 @@ public class JedisFactory
 	    // thread could be immediately swapped out				
 	    if (m_jedisPool == null) 
 	    {
-	    	synchronized(objSync) 
+	    	lockWithinDeadline();
+	    	
+	    	try
 	    	{
 	    		createAndConnectPool();
 	    	}
+	    	finally
+	    	{
+	    		objLock.unlock();
+	    	}
 	    }
 	    
+	    long lGeneration = m_lPoolGeneration;
+	    
 	    // get a working resource or null otherwise
 	    Jedis j = getWorkingResource();
 	    
@@ -137,15 +640,31 @@ public class JedisFactory
 	    
 	    // at this point we could not find any resources to hand back or half our pool 
 	    // is not connected, re-establish the connections
-    	synchronized(objSync) 
+	    lockWithinDeadline();
+	    
+    	try
     	{	  
+    		// someone else rebuilt the pool while we were waiting for the lock
+    		if (m_lPoolGeneration != lGeneration && m_jedisPool != null)
+    		{
+    			Jedis jd = getWorkingResource();
+    			
+    			if (jd != null)
+    			{
+    				return jd;
+    			}
+    		}
+    		
     		m_logger.info("Could not find a working resource or more than 50% of the pool is dead, recreating pool and restablishing connections.");
     		
-    		// TODO: when this happens everyone using the pool will get an NPE until we're back
+    		// everyone using the pool gets a JedisConnectionException until we're back
     		m_jedisPool = null;
     		
     		for (int i = 0; i < REDIS_RECONNECT_RETRY_COUNT; i++)
     		{	    		
+    			// throws once the caller's deadline passed
+    			long lBudget = remainingMillis();
+    			
     			shutdownPool();
 	    		createAndConnectPool();
 	    		
@@ -155,6 +674,7 @@ public class JedisFactory
 	    			
 	    			if (jd != null)
 	    			{
+	    				m_poolMetrics.rebuilt(MASTER_POOL, i + 1, true);
 	    				return jd;
 	    			}	    				    			
 	    		}
@@ -162,14 +682,49 @@ public class JedisFactory
 	    		// wait before we trying again, except for the last attempt
 	    		if (i < REDIS_RECONNECT_RETRY_COUNT - 1)
 	    		{
-	    			try { Thread.sleep(REDIS_RECONNECT_RETRY_WAITTIME); } catch (Exception e) {}
+	    			long lSleep = (lBudget < 0) ? REDIS_RECONNECT_RETRY_WAITTIME : Math.min(REDIS_RECONNECT_RETRY_WAITTIME, lBudget);
+	    			try { Thread.sleep(lSleep); } catch (Exception e) {}
 	    		}
 	    	}
+    		
+    		m_poolMetrics.rebuilt(MASTER_POOL, REDIS_RECONNECT_RETRY_COUNT, false);
 	    }
+    	finally
+    	{
+    		objLock.unlock();
+    	}
     			    
 	    return null;
 	}
 	  
+	/**
+	 * Takes {@link JedisFactory#objLock}, giving up once the current 
+	 * thread's deadline passes since a pool rebuild holds it for a while.
+	 */
+	protected static void lockWithinDeadline()
+	{
+		long lBudget = remainingMillis();
+		
+		if (lBudget < 0)
+		{
+			objLock.lock();
+			return;
+		}
+		
+		try
+		{
+			if (!objLock.tryLock(lBudget, TimeUnit.MILLISECONDS))
+			{
+				throw new DeadlineExceededException("Deadline exceeded waiting for the pool to be rebuilt.");
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new JedisConnectionException("Interrupted while waiting for the pool to be rebuilt.", e);
+		}
+	}
+	
 	protected static void shutdownPool()
 	{
 		if (m_jedisPool == null)
@@ -177,7 +732,7 @@ public class JedisFactory
 			return;			
 		}
 		
-		m_jedisPool.destroy();
+		destroyPool(m_jedisPool);
 		m_jedisPool = null;
 	}
 	
@@ -191,7 +746,7 @@ public class JedisFactory
 		// try to find a working resource
 	    for (int i = 0; i < REDIS_FAILED_RESOURCES_BEFORE_RECONNECT; i++)
 	    {
-	    	Jedis j = m_jedisPool.getResource();
+	    	Jedis j = borrow(MASTER_POOL, m_jedisPool);
 	    
 	    	if (j.isConnected())				
 	    	{
@@ -199,7 +754,7 @@ public class JedisFactory
 	    	}
 	    	else 
 	    	{
-	    		m_jedisPool.returnBrokenResource(j);	    		
+	    		release(j, true);	    		
 	    	}
 	    }
 	    
@@ -213,28 +768,1293 @@ public class JedisFactory
 	 */
     public static void returnRes(Jedis res)
     {
-    	if (m_jedisPool != null)
-    	{
-    		m_jedisPool.returnResource(res);
-    	}
+    	release(res, false);
     }
     
+    /**
+     * Runs the given {@link JWork} on a connection to the master. The 
+     * connection always goes back to the pool, or is discarded if the work 
+     * failed. Failures are thrown: 
+     * a {@link JedisConnectionException} if Redis could not be reached, a 
+     * {@link JedisDataException} if it answered with an error, and 
+     * whatever the work itself threw.
+     * 
+     * @param work the {@link JWork} to run
+     * @return the result of the work
+     */
     public static <T>  T withJedisDo(JWork<T> work)
     {
-    	// catch exception and gracefully fall back.    	
-    	try 
+    	return withMasterDo(null, work);
+    }
+    
+    /**
+     * Runs the given {@link JWork} on the master, the key is only used to 
+     * tag the call's latency.
+     */
+    protected static <T> T withMasterDo(String strKey, JWork<T> work)
+    {
+    	PinnedJedisFactory.Pinned p = PinnedJedisFactory.acquire();
+    	
+    	if (p != null)
+    	{
+    		return PinnedJedisFactory.run(p, strKey, work);
+    	}
+    	
+    	Jedis j = getRes();
+    	
+    	if (j == null)
     	{
-    		Jedis j = getRes();
-    		T ret = work.work(j);
-    		returnRes(j);
+    		throw new JedisConnectionException("No working connection to " + REDIS_HOST + ":" + REDIS_PORT);
+    	}
+    	
+    	return runAndRelease(j, strKey, work);
+    }
+    
+    /**
+     * Runs the given {@link JWork} on a borrowed connection and hands the 
+     * connection back whatever happens. It is only kept if the work 
+     * succeeded: an error reply in the middle of a pipeline or a MULTI 
+     * throws with the remaining replies still unread on the socket, so 
+     * any failure discards the connection.
+     * 
+     * @param j the connection, borrowed with {@link JedisFactory#borrow(String, JedisPool)}
+     * @param strKey the key the work is about, null if unknown
+     * @param work the {@link JWork} to run
+     * @return the result of the work
+     */
+    protected static <T> T runAndRelease(Jedis j, String strKey, JWork<T> work)
+    {
+    	boolean bBroken = true;
     	
+    	try
+    	{
+    		T ret = run(j, strKey, work);
+    		bBroken = false;
+    		
     		return ret;
     	}
-    	catch (Exception e)
+    	finally
+    	{
+    		release(j, bBroken);
+    	}
+    }
+    
+    /**
+     * Borrows a connection from the given pool and reports the borrow to 
+     * the {@link JedisPoolMetrics}. It must be handed back with 
+     * {@link JedisFactory#release(Jedis, boolean)}.
+     * 
+     * @param strPool the pool's name
+     * @param pool the pool
+     * @return the connection
+     */
+    protected static Jedis borrow(String strPool, JedisPool pool)
+    {
+    	if (pool == null)
+    	{
+    		throw new JedisConnectionException("Pool " + strPool + " is being rebuilt.");
+    	}
+    	
+    	Semaphore permits = m_permits.get(pool);
+    	
+    	if (permits == null)
+    	{
+    		// destroyed meanwhile, borrowing fails the same way
+    		throw new JedisConnectionException("Pool " + strPool + " was shut down.");
+    	}
+    	
+    	boolean bExhausted = permits.availablePermits() == 0;
+    	long lStart = System.nanoTime();
+    	
+    	acquire(strPool, permits);
+    	
+    	Jedis j;
+    	
+    	try
+    	{
+    		j = pool.getResource();
+    	}
+    	catch (RuntimeException e)
+    	{
+    		permits.release();
+    		throw e;
+    	}
+    	
+    	long lNow = System.nanoTime();
+    	m_borrowed.put(j, new Borrow(strPool, pool, permits));
+    	
+    	Reference<? extends Jedis> collected;
+    	
+    	while ((collected = m_collectedConnections.poll()) != null)
     	{
-    		return null;
+    		m_connectionBirth.remove(collected);
     	}
-    }        
+    	
+    	ConnectionKey key = new ConnectionKey(j, m_collectedConnections);
+    	
+    	if (!m_connectionBirth.containsKey(key))
+    	{
+    		m_connectionBirth.putIfAbsent(key, System.currentTimeMillis());
+    	}
+    	
+    	m_poolMetrics.borrowed(strPool, lNow - lStart, bExhausted);
+    	return j;
+    }
+    
+    protected static void acquire(String strPool, Semaphore permits)
+    {
+    	long lBudget = remainingMillis();
+    	long lWait = (lBudget < 0) ? REDIS_POOL_MAX_WAIT : (REDIS_POOL_MAX_WAIT <= 0) ? lBudget : Math.min(lBudget, REDIS_POOL_MAX_WAIT);
+    	
+    	try
+    	{
+    		if (lWait <= 0)
+    		{
+    			permits.acquire();
+    		}
+    		else if (!permits.tryAcquire(lWait, TimeUnit.MILLISECONDS))
+    		{
+    			String strMessage = "Timed out waiting for a connection of pool " + strPool;
+    			throw (lWait == lBudget) ? new DeadlineExceededException(strMessage) : new JedisConnectionException(strMessage);
+    		}
+    	}
+    	catch (InterruptedException e)
+    	{
+    		Thread.currentThread().interrupt();
+    		throw new JedisConnectionException("Interrupted while waiting for a connection of pool " + strPool, e);
+    	}
+    }
+    
+    /**
+     * Hands a connection back to the pool it was borrowed from, or 
+     * discards it if it is broken. Connections that are not borrowed, 
+     * e.g. already handed back, are ignored.
+     * 
+     * @param j the connection
+     * @param bBroken whether the connection is broken
+     */
+    protected static void release(Jedis j, boolean bBroken)
+    {
+    	Borrow b = (j == null) ? null : m_borrowed.remove(j);
+    	
+    	if (b == null)
+    	{
+    		return;
+    	}
+    	
+    	ConnectionKey key = new ConnectionKey(j, null);
+    	Long lBirth = bBroken ? m_connectionBirth.remove(key) : m_connectionBirth.get(key);
+    	
+    	// a destroyed pool's stats are gone, they must not be brought back
+    	boolean bLive = m_permits.containsKey(b.m_pool);
+    	
+    	try
+    	{
+    		if (bBroken)
+    		{
+    			b.m_pool.returnBrokenResource(j);
+    			
+    			if (bLive)
+    			{
+    				m_poolMetrics.discarded(b.m_strPool);
+    			}
+    		}
+    		else
+    		{
+    			b.m_pool.returnResource(j);
+    			
+    			if (bLive)
+    			{
+    				m_poolMetrics.returned(b.m_strPool, System.nanoTime() - b.m_lNanos, 
+    						(lBirth == null) ? 0 : System.currentTimeMillis() - lBirth);
+    			}
+    		}
+    	}
+    	catch (Exception e)
+    	{
+    		// the pool was destroyed while the connection was out
+    		m_logger.debug("Could not hand a connection back to pool " + b.m_strPool, e);
+    	}
+    	finally
+    	{
+    		b.m_permits.release();
+    	}
+    }
+    
+    /**
+     * Turns leak detection on or off. While it is on the site every 
+     * connection is borrowed from is kept, and connections borrowed for 
+     * longer than the given time are logged once with that site. Keeping 
+     * the site costs a stack trace per borrow.
+     * 
+     * @param lThresholdMillis how long a connection can be borrowed before it is reported, 0 turns leak detection off
+     */
+    public static void setLeakDetection(long lThresholdMillis)
+    {
+    	objLock.lock();
+    	
+    	try
+    	{
+    		m_lLeakThresholdMillis = lThresholdMillis;
+    		
+    		if (m_leakScanner != null)
+    		{
+    			m_leakScanner.shutdown();
+    			m_leakScanner = null;
+    		}
+    		
+    		if (lThresholdMillis <= 0)
+    		{
+    			return;
+    		}
+    		
+    		m_leakScanner = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+    		{
+    			@Override
+    			public Thread newThread(Runnable r)
+    			{
+    				Thread t = new Thread(r, "JedisFactory-leaks");
+    				t.setDaemon(true);
+    				return t;
+    			}
+    		});
+    		
+    		long lPeriod = Math.max(1, lThresholdMillis / 2);
+    		
+    		m_leakScanner.scheduleWithFixedDelay(new Runnable()
+    		{
+    			@Override
+    			public void run()
+    			{
+    				findLeaks();
+    			}
+    		}, lPeriod, lPeriod, TimeUnit.MILLISECONDS);
+    	}
+    	finally
+    	{
+    		objLock.unlock();
+    	}
+    }
+    
+    /**
+     * Logs the connections borrowed for longer than the leak threshold 
+     * that were not reported yet.
+     */
+    protected static void findLeaks()
+    {
+    	long lThreshold = TimeUnit.MILLISECONDS.toNanos(m_lLeakThresholdMillis);
+    	long lNow = System.nanoTime();
+    	
+    	for (Borrow b : m_borrowed.values())
+    	{
+    		long lHeld = lNow - b.m_lNanos;
+    		
+    		if (b.m_bReported || b.m_bPinned || b.m_site == null || lHeld < lThreshold)
+    		{
+    			continue;
+    		}
+    		
+    		b.m_bReported = true;
+    		m_lLeaks.incrementAndGet();
+    		m_logger.warn("Connection of pool " + b.m_strPool + " borrowed " + TimeUnit.NANOSECONDS.toMillis(lHeld) + "ms ago was not handed back.", b.m_site);
+    	}
+    }
+    
+    /**
+     * Marks a borrowed connection as pinned to a thread, it is not 
+     * reported as leaked.
+     */
+    protected static void markPinned(Jedis j)
+    {
+    	Borrow b = m_borrowed.get(j);
+    	
+    	if (b != null)
+    	{
+    		b.m_bPinned = true;
+    	}
+    }
+    
+    /**
+     * @return the number of connections reported as leaked so far
+     */
+    public static long getLeakCount()
+    {
+    	return m_lLeaks.get();
+    }
+    
+    /**
+     * Sets the {@link JedisPoolMetrics} receiving the pool events, a 
+     * {@link JedisPoolStats} by default.
+     * 
+     * @param metrics the metrics
+     */
+    public static void setPoolMetrics(JedisPoolMetrics metrics)
+    {
+    	m_poolMetrics = metrics;
+    }
+    
+    public static JedisPoolMetrics getPoolMetrics()
+    {
+    	return m_poolMetrics;
+    }
+    
+    /**
+     * Same as {@link JedisFactory#withJedisDo(JWork)} but runs on the node 
+     * owning the given key when {@link ShardedJedisFactory} has nodes.
+     * 
+     * @param strKey the key the work is about
+     * @param work the {@link JWork} to run
+     * @return the result of the work
+     */
+    public static <T> T withJedisDo(String strKey, JWork<T> work)
+    {
+    	if (ShardedJedisFactory.isSharded())
+    	{
+    		return ShardedJedisFactory.withJedisDo(strKey, work);
+    	}
+    	
+    	return withMasterDo(strKey, work);
+    }
+    
+    /**
+     * Runs the given {@link JWork} on the given connection, recording its 
+     * latency when {@link JedisCommandStats} are set.
+     * 
+     * @param j the connection
+     * @param strKey the key the work is about, null if unknown
+     * @param work the {@link JWork} to run
+     * @return the result of the work
+     */
+    protected static <T> T run(Jedis j, String strKey, JWork<T> work)
+    {
+    	Attempt attempt = m_attempt.get();
+    	
+    	if (attempt == null)
+    	{
+    		return runWithin(j, strKey, work);
+    	}
+    	
+    	attempt.begin(j);
+    	T ret;
+    	
+    	try
+    	{
+    		ret = runWithin(j, strKey, work);
+    	}
+    	catch (RuntimeException e)
+    	{
+    		attempt.end(j);
+    		throw e;
+    	}
+    	
+    	if (!attempt.end(j))
+    	{
+    		throw new JedisConnectionException("Read on " + strKey + " abandoned, its hedge answered first.");
+    	}
+    	
+    	return ret;
+    }
+    
+    /**
+     * Runs the given {@link JWork} within what is left of the current 
+     * thread's deadline.
+     */
+    protected static <T> T runWithin(Jedis j, String strKey, JWork<T> work)
+    {
+    	long lBudget = remainingMillis();
+    	
+    	if (lBudget < 0)
+    	{
+    		return timed(j, strKey, work);
+    	}
+    	
+    	// the reply must come within what is left of the deadline
+    	try
+    	{
+    		j.getClient().getSocket().setSoTimeout((int) Math.min(lBudget, Integer.MAX_VALUE));
+    	}
+    	catch (Exception e)
+    	{
+    		throw new JedisConnectionException(e);
+    	}
+    	
+    	try
+    	{
+    		return timed(j, strKey, work);
+    	}
+    	catch (JedisConnectionException e)
+    	{
+    		Long lDeadline = m_deadline.get();
+    		
+    		if (lDeadline != null && lDeadline - System.nanoTime() <= 0 && !(e instanceof DeadlineExceededException))
+    		{
+    			throw new DeadlineExceededException("Deadline exceeded waiting for a reply on " + strKey, e);
+    		}
+    		
+    		throw e;
+    	}
+    	finally
+    	{
+    		try
+    		{
+    			j.getClient().rollbackTimeout();
+    		}
+    		catch (Exception e)
+    		{
+    			// the connection is closed, it is discarded anyway
+    		}
+    	}
+    }
+    
+    protected static <T> T timed(Jedis j, String strKey, JWork<T> work)
+    {
+    	JedisCommandStats stats = m_commandStats;
+    	
+    	if (stats == null)
+    	{
+    		return work.work(j);
+    	}
+    	
+    	long lStart = System.nanoTime();
+    	T ret = null;
+    	
+    	try
+    	{
+    		ret = work.work(j);
+    		return ret;
+    	}
+    	finally
+    	{
+    		stats.record(work, strKey, System.nanoTime() - lStart, ret);
+    	}
+    }
+    
+    /**
+     * Runs the given call with a deadline: every call it makes through 
+     * {@link JedisFactory} and the collections waits for a connection and 
+     * for Redis' reply only as long as is left of the deadline, and 
+     * throws a {@link DeadlineExceededException} once it has passed. A 
+     * deadline nested in another one can only shorten it.
+     * 
+     * @param lMillis the number of milliseconds the call has
+     * @param call the call to run
+     * @return the result of the call
+     */
+    public static <T> T withDeadline(long lMillis, Supplier<T> call)
+    {
+    	Long outer = m_deadline.get();
+    	long lDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(lMillis);
+    	
+    	return withDeadlineAt((outer != null && outer - lDeadline < 0) ? outer : lDeadline, call);
+    }
+    
+    /**
+     * Runs the given call with the given deadline, null for none.
+     */
+    protected static <T> T withDeadlineAt(Long lDeadline, Supplier<T> call)
+    {
+    	Long outer = m_deadline.get();
+    	
+    	if (lDeadline == null)
+    	{
+    		m_deadline.remove();
+    	}
+    	else
+    	{
+    		m_deadline.set(lDeadline);
+    	}
+    	
+    	try
+    	{
+    		return call.get();
+    	}
+    	finally
+    	{
+    		if (outer == null)
+    		{
+    			m_deadline.remove();
+    		}
+    		else
+    		{
+    			m_deadline.set(outer);
+    		}
+    	}
+    }
+    
+    /**
+     * @return the milliseconds left before the current thread's deadline, -1 if it has none
+     * @throws DeadlineExceededException if the deadline has passed
+     */
+    protected static long remainingMillis()
+    {
+    	Long lDeadline = m_deadline.get();
+    	
+    	if (lDeadline == null)
+    	{
+    		return -1;
+    	}
+    	
+    	long lLeft = TimeUnit.NANOSECONDS.toMillis(lDeadline - System.nanoTime());
+    	
+    	if (lLeft <= 0)
+    	{
+    		throw new DeadlineExceededException("Deadline exceeded.");
+    	}
+    	
+    	return lLeft;
+    }
+    
+    /**
+     * Sets the {@link JedisCommandStats} recording the latency of every 
+     * call and publishes them over JMX, null turns recording off, which 
+     * is the default.
+     * 
+     * @param stats the stats
+     */
+    public static void setCommandStats(JedisCommandStats stats)
+    {
+    	if (stats != null)
+    	{
+    		stats.register();
+    	}
+    	
+    	m_commandStats = stats;
+    }
+    
+    public static JedisCommandStats getCommandStats()
+    {
+    	return m_commandStats;
+    }
+    
+    /**
+     * Same as {@link JedisFactory#withJedisDo(String, JWork)} for read only work. 
+     * When read coalescing is on, callers running the same command on 
+     * the same key while a request for it is in flight wait for that 
+     * request and get its result instead of sending their own, so a 
+     * burst of identical reads on a hot key costs one round trip. Only 
+     * reads with equal commands and the same {@link JWork} class are 
+     * shared. The result is shared between the callers and must not 
+     * be modified.
+     * 
+     * @param command the command the work sends followed by any arguments that change its result, compared with equals()
+     * @param strKey the key the work reads
+     * @param work the {@link JWork} to run
+     * @return the result of the work
+     */
+    public static <T> T withJedisDoShared(List<?> command, String strKey, JWork<T> work)
+    {
+    	return withJedisDoShared(command, strKey, false, work);
+    }
+    
+    /**
+     * Same as {@link JedisFactory#withJedisDoShared(List, String, JWork)} 
+     * but reads from the master if <code>bFromMaster</code> is set, see 
+     * {@link JedisFactory#withJedisRead(String, boolean, JWork)}.
+     */
+    public static <T> T withJedisDoShared(List<?> command, final String strKey, boolean bFromMaster, final JWork<T> work)
+    {
+    	final boolean bMaster = bFromMaster || isReadingFromMaster();
+    	
+    	if (!m_bCoalesceReads)
+    	{
+    		return withJedisRead(strKey, bMaster, work);
+    	}
+    	
+    	// reads pinned to the master must not get a replica's answer, the
+    	// work's class keeps reads returning different types apart
+    	return shared(Arrays.asList(bMaster, strKey, command, work.getClass()), new Supplier<T>()
+    	{
+    		@Override
+    		public T get()
+    		{
+    			return withJedisRead(strKey, bMaster, work);
+    		}
+    	});
+    }
+    
+    /**
+     * Runs the given read unless a read with the same <code>flight</code> 
+     * is in flight, in which case it waits for that one and returns its 
+     * result.
+     * 
+     * @param flight what identifies identical reads
+     * @param read the read
+     * @return the result of the read
+     */
+    @SuppressWarnings("unchecked")
+    protected static <T> T shared(List<?> flight, Supplier<T> read)
+    {
+    	CompletableFuture<Object> mine = new CompletableFuture<Object>();
+    	CompletableFuture<Object> other = m_inflightReads.putIfAbsent(flight, mine);
+    	
+    	if (other != null)
+    	{
+    		try
+    		{
+    			return (T) other.join();
+    		}
+    		catch (CompletionException e)
+    		{
+    			// the request we waited for failed, fail the same way
+    			throw (e.getCause() instanceof RuntimeException) ? (RuntimeException) e.getCause() : e;
+    		}
+    	}
+    	
+    	try
+    	{
+    		T ret = read.get();
+    		m_inflightReads.remove(flight, mine);
+    		mine.complete(ret);
+    		
+    		return ret;
+    	}
+    	catch (RuntimeException e)
+    	{
+    		m_inflightReads.remove(flight, mine);
+    		mine.completeExceptionally(e);
+    		throw e;
+    	}
+    }
+    
+    /**
+     * Runs the given read only {@link JWork} on a replica of the master 
+     * when replicas are set, unless <code>bFromMaster</code> is set or the 
+     * current thread is in {@link JedisFactory#fromMaster(Supplier)}. 
+     * Replicas lag behind the master so reads that must see the caller's 
+     * own writes should go to the master. A read failing on a replica is 
+     * retried on the master. Replicas only apply to the master of 
+     * {@link JedisFactory}, sharded reads go to the node owning the key.
+     * <p>
+     * Reads failing to reach Redis are retried, see 
+     * {@link JedisFactory#readWithRetries(String, boolean, JWork)}, and 
+     * hedged when {@link JedisFactory#setHedgeReads(boolean)} is on.
+     * 
+     * @param strKey the key the work reads
+     * @param bFromMaster whether the read must go to the master
+     * @param work the {@link JWork} to run
+     * @return the result of the work
+     */
+    public static <T> T withJedisRead(String strKey, boolean bFromMaster, JWork<T> work)
+    {
+    	bFromMaster |= isReadingFromMaster();
+    	
+    	if (m_bHedgeReads)
+    	{
+    		return hedgedRead(strKey, bFromMaster, work);
+    	}
+    	
+    	return readWithRetries(strKey, bFromMaster, work);
+    }
+    
+    /**
+     * Runs a read, retrying it up to {@link JedisFactory#REDIS_READ_RETRY_COUNT} 
+     * times when Redis can not be reached. Every retry waits a random 
+     * time up to an exponentially growing bound, so a burst of failing 
+     * readers do not retry in lock step, and is only made if the 
+     * deadline leaves time for it.
+     */
+    protected static <T> T readWithRetries(final String strKey, final boolean bFromMaster, final JWork<T> work)
+    {
+    	return withRetries(strKey, new Supplier<T>()
+    	{
+    		@Override
+    		public T get()
+    		{
+    			return readOnce(strKey, bFromMaster, work);
+    		}
+    	});
+    }
+    
+    /**
+     * Runs the given read with the retries of 
+     * {@link JedisFactory#readWithRetries(String, boolean, JWork)}.
+     * 
+     * @param strKey the key the read is about, for logging
+     * @param read one attempt of the read
+     * @return the result of the read
+     */
+    protected static <T> T withRetries(String strKey, Supplier<T> read)
+    {
+    	for (int i = 0; ; i++)
+    	{
+    		try
+    		{
+    			return read.get();
+    		}
+    		catch (DeadlineExceededException e)
+    		{
+    			throw e;
+    		}
+    		catch (JedisConnectionException e)
+    		{
+    			Attempt attempt = m_attempt.get();
+    			
+    			if (i >= REDIS_READ_RETRY_COUNT || (attempt != null && attempt.isAbandoned()))
+    			{
+    				throw e;
+    			}
+    			
+    			long lBackoff = ThreadLocalRandom.current().nextLong((long) REDIS_READ_RETRY_BACKOFF << i) + 1;
+    			long lBudget = remainingMillis();
+    			
+    			if (lBudget >= 0 && lBudget <= lBackoff)
+    			{
+    				throw e;
+    			}
+    			
+    			m_logger.debug("Read on " + strKey + " failed, retrying in " + lBackoff + "ms.", e);
+    			
+    			try
+    			{
+    				Thread.sleep(lBackoff);
+    			}
+    			catch (InterruptedException ie)
+    			{
+    				Thread.currentThread().interrupt();
+    				throw e;
+    			}
+    		}
+    	}
+    }
+    
+    /**
+     * Runs a read on the caller's thread and, if it takes longer than the 
+     * 95th percentile of its call site's reads, sends it again on the 
+     * hedge executor (on another connection or replica) and returns 
+     * whichever answers first. Reads of call sites with too few samples 
+     * are not hedged.
+     */
+    protected static <T> T hedgedRead(final String strKey, final boolean bFromMaster, final JWork<T> work)
+    {
+    	ReadLatencies latencies = m_readLatencies.get(work.getClass());
+    	
+    	if (latencies == null)
+    	{
+    		m_readLatencies.putIfAbsent(work.getClass(), new ReadLatencies());
+    		latencies = m_readLatencies.get(work.getClass());
+    	}
+    	
+    	long lDelay = latencies.getHedgeDelay();
+    	long lStart = System.nanoTime();
+    	
+    	if (lDelay < 0)
+    	{
+    		T ret = readWithRetries(strKey, bFromMaster, work);
+    		latencies.record(System.nanoTime() - lStart);
+    		
+    		return ret;
+    	}
+    	
+    	final Attempt primary = new Attempt();
+    	final CompletableFuture<T> hedge = new CompletableFuture<T>();
+    	final Supplier<T> read = inCallerScope(timedRead(strKey, bFromMaster, work, latencies));
+    	
+    	ScheduledFuture<?> timer = getHedgeTimer().schedule(new Runnable()
+    	{
+    		@Override
+    		public void run()
+    		{
+    			m_lHedges.incrementAndGet();
+    			
+    			CompletableFuture.supplyAsync(read, getHedgeExecutor()).whenComplete(new BiConsumer<T, Throwable>()
+    			{
+    				@Override
+    				public void accept(T ret, Throwable t)
+    				{
+    					if (t != null)
+    					{
+    						hedge.completeExceptionally(t);
+    					}
+    					else if (hedge.complete(ret))
+    					{
+    						primary.abandon();
+    					}
+    				}
+    			});
+    		}
+    	}, lDelay, TimeUnit.NANOSECONDS);
+    	
+    	m_attempt.set(primary);
+    	
+    	try
+    	{
+    		T ret = readWithRetries(strKey, bFromMaster, work);
+    		latencies.record(System.nanoTime() - lStart);
+    		
+    		return ret;
+    	}
+    	catch (RuntimeException e)
+    	{
+    		if (!primary.isAbandoned() && timer.cancel(false))
+    		{
+    			// failed before it was hedged
+    			throw e;
+    		}
+    		
+    		try
+    		{
+    			T ret = hedge.get();
+    			
+    			latencies.record(System.nanoTime() - lStart);
+    			m_lHedgesWon.incrementAndGet();
+    			
+    			return ret;
+    		}
+    		catch (Exception he)
+    		{
+    			// the hedge failed too, report the primary's failure
+    			throw e;
+    		}
+    	}
+    	finally
+    	{
+    		m_attempt.remove();
+    		timer.cancel(false);
+    	}
+    }
+    
+    protected static <T> Supplier<T> timedRead(final String strKey, final boolean bFromMaster, final JWork<T> work, final ReadLatencies latencies)
+    {
+    	return new Supplier<T>()
+    	{
+    		@Override
+    		public T get()
+    		{
+    			long lStart = System.nanoTime();
+    			T ret = readWithRetries(strKey, bFromMaster, work);
+    			latencies.record(System.nanoTime() - lStart);
+    			
+    			return ret;
+    		}
+    	};
+    }
+    
+    /**
+     * Wraps the given call so it runs with the current thread's deadline 
+     * and {@link JedisFactory#fromMaster(Supplier)} scope on whichever 
+     * thread it runs.
+     */
+    protected static <T> Supplier<T> inCallerScope(final Supplier<T> call)
+    {
+    	final Long lDeadline = m_deadline.get();
+    	final boolean bFromMaster = isReadingFromMaster();
+    	
+    	return new Supplier<T>()
+    	{
+    		@Override
+    		public T get()
+    		{
+    			if (!bFromMaster)
+    			{
+    				return withDeadlineAt(lDeadline, call);
+    			}
+    			
+    			return withDeadlineAt(lDeadline, new Supplier<T>()
+    			{
+    				@Override
+    				public T get()
+    				{
+    					return fromMaster(call);
+    				}
+    			});
+    		}
+    	};
+    }
+    
+    /**
+     * @return the timer starting the hedges, a single daemon thread that 
+     * hands every hedge to the hedge executor
+     */
+    protected static ScheduledExecutorService getHedgeTimer()
+    {
+    	if (m_hedgeTimer == null)
+    	{
+    		objLock.lock();
+    		
+    		try
+    		{
+    			if (m_hedgeTimer == null)
+    			{
+    				ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory()
+    				{
+    					@Override
+    					public Thread newThread(Runnable r)
+    					{
+    						Thread t = new Thread(r, "JedisFactory-hedge-timer");
+    						t.setDaemon(true);
+    						return t;
+    					}
+    				});
+    				
+    				// most reads are not hedged, drop their timers right away
+    				timer.setRemoveOnCancelPolicy(true);
+    				m_hedgeTimer = timer;
+    			}
+    		}
+    		finally
+    		{
+    			objLock.unlock();
+    		}
+    	}
+    	
+    	return m_hedgeTimer;
+    }
+    
+    /**
+     * @return the executor of the hedged reads' attempts, virtual threads 
+     * when the JVM has them and otherwise daemon threads created as needed
+     */
+    protected static Executor getHedgeExecutor()
+    {
+    	if (m_hedgeExecutor == null)
+    	{
+    		objLock.lock();
+    		
+    		try
+    		{
+    			if (m_hedgeExecutor == null)
+    			{
+    				m_hedgeExecutor = createHedgeExecutor();
+    			}
+    		}
+    		finally
+    		{
+    			objLock.unlock();
+    		}
+    	}
+    	
+    	return m_hedgeExecutor;
+    }
+    
+    protected static Executor createHedgeExecutor()
+    {
+    	try
+    	{
+    		return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    	}
+    	catch (Exception e)
+    	{
+    		// unbounded so an attempt never queues behind the read waiting for it, 
+    		// the connection pool bounds how many run at once
+    		return Executors.newCachedThreadPool(new ThreadFactory()
+    		{
+    			@Override
+    			public Thread newThread(Runnable r)
+    			{
+    				Thread t = new Thread(r, "JedisFactory-hedge");
+    				t.setDaemon(true);
+    				return t;
+    			}
+    		});
+    	}
+    }
+    
+    protected static RuntimeException unwrap(Exception e)
+    {
+    	if (e instanceof InterruptedException)
+    	{
+    		Thread.currentThread().interrupt();
+    		return new JedisConnectionException("Interrupted while waiting for a read.", e);
+    	}
+    	
+    	Throwable t = e;
+    	
+    	while ((t instanceof ExecutionException || t instanceof CompletionException) && t.getCause() != null)
+    	{
+    		t = t.getCause();
+    	}
+    	
+    	return (t instanceof RuntimeException) ? (RuntimeException) t : new JedisConnectionException(t);
+    }
+    
+    /**
+     * Turns hedged reads on or off, they are off by default. A hedged 
+     * read runs on the caller's thread and is sent a second time, on the 
+     * hedge executor, when it is slower than 95% of the recent reads of 
+     * the same call site. The first answer wins: when the hedge answers 
+     * first the connection of the first attempt is closed and discarded. 
+     * This trades a few percent more reads for a shorter tail.
+     * 
+     * @param bHedge whether slow reads are hedged
+     */
+    public static void setHedgeReads(boolean bHedge)
+    {
+    	m_bHedgeReads = bHedge;
+    }
+    
+    /**
+     * @return the number of reads hedged so far
+     */
+    public static long getHedgeCount()
+    {
+    	return m_lHedges.get();
+    }
+    
+    /**
+     * @return the number of hedged reads the hedge answered first
+     */
+    public static long getHedgeWinCount()
+    {
+    	return m_lHedgesWon.get();
+    }
+    
+    /**
+     * Runs a read once on a replica, falling back to the master, see 
+     * {@link JedisFactory#withJedisRead(String, boolean, JWork)}.
+     */
+    protected static <T> T readOnce(String strKey, boolean bFromMaster, JWork<T> work)
+    {
+    	Replica[] replicas = m_replicas;
+    	
+    	if (bFromMaster || replicas.length == 0 || ShardedJedisFactory.isSharded() || isReadingFromMaster())
+    	{
+    		return withJedisDo(strKey, work);
+    	}
+    	
+    	Replica r = pickReplica(replicas);
+    	r.m_iInFlight.incrementAndGet();
+    	
+    	try
+    	{
+    		return runAndRelease(borrow(r.getPoolName(), r.m_pool), strKey, work);
+    	}
+    	catch (DeadlineExceededException e)
+    	{
+    		throw e;
+    	}
+    	catch (JedisConnectionException e)
+    	{
+    		m_logger.debug("Read on replica " + r.m_strName + " failed, reading from the master.", e);
+    	}
+    	finally
+    	{
+    		r.m_iInFlight.decrementAndGet();
+    	}
+    	
+    	return withJedisDo(strKey, work);
+    }
+    
+    protected static Replica pickReplica(Replica[] replicas)
+    {
+    	int iStart = (m_iNextReplica.getAndIncrement() & Integer.MAX_VALUE) % replicas.length;
+    	
+    	if (m_readPolicy == ReadPolicy.ROUND_ROBIN)
+    	{
+    		return replicas[iStart];
+    	}
+    	
+    	// start at a rotating replica so ties are spread
+    	Replica ret = replicas[iStart];
+    	
+    	for (int i = 1; i < replicas.length; i++)
+    	{
+    		Replica r = replicas[(iStart + i) % replicas.length];
+    		
+    		if (r.m_iInFlight.get() < ret.m_iInFlight.get())
+    		{
+    			ret = r;
+    		}
+    	}
+    	
+    	return ret;
+    }
+    
+    /**
+     * Sets the read replicas of the master, each given as <code>host:port</code>. 
+     * Setting none sends all reads back to the master.
+     * 
+     * @param replicas the replicas
+     */
+    public static void setReplicas(String... replicas)
+    {
+    	Replica[] next = new Replica[replicas.length];
+    	
+    	for (int i = 0; i < replicas.length; i++)
+    	{
+    		String[] parts = replicas[i].split(":");
+    		
+    		if (parts.length != 2)
+    		{
+    			throw new IllegalArgumentException("Expected host:port but got " + replicas[i]);
+    		}
+    		
+    		next[i] = new Replica(parts[0], Integer.parseInt(parts[1]));
+    	}
+    	
+    	Replica[] old;
+    	
+    	objLock.lock();
+    	
+    	try
+    	{
+    		old = m_replicas;
+    		m_replicas = next;
+    	}
+    	finally
+    	{
+    		objLock.unlock();
+    	}
+    	
+    	for (Replica r : next)
+    	{
+    		m_poolMetrics.poolCreated(r.getPoolName(), r.m_pool);
+    	}
+    	
+    	for (Replica r : old)
+    	{
+    		destroyPool(r.getPoolName(), r.m_pool);
+    	}
+    }
+    
+    /**
+     * Sets how reads pick a replica, {@link ReadPolicy#ROUND_ROBIN} by default.
+     * 
+     * @param policy the policy
+     */
+    public static void setReadPolicy(ReadPolicy policy)
+    {
+    	m_readPolicy = policy;
+    }
+    
+    /**
+     * Runs the given call with all its reads going to the master, for 
+     * reads that must see writes made just before.
+     * 
+     * @param call the call to run
+     * @return the result of the call
+     */
+    public static <T> T fromMaster(Supplier<T> call)
+    {
+    	Boolean prev = m_readFromMaster.get();
+    	m_readFromMaster.set(Boolean.TRUE);
+    	
+    	try
+    	{
+    		return call.get();
+    	}
+    	finally
+    	{
+    		if (prev == null)
+    		{
+    			m_readFromMaster.remove();
+    		}
+    		else
+    		{
+    			m_readFromMaster.set(prev);
+    		}
+    	}
+    }
+    
+    protected static boolean isReadingFromMaster()
+    {
+    	return Boolean.TRUE.equals(m_readFromMaster.get());
+    }
+    
+    /**
+     * Turns read coalescing on or off, it is off by default.
+     * 
+     * @param bCoalesce whether concurrent identical reads share one request
+     */
+    public static void setCoalesceReads(boolean bCoalesce)
+    {
+    	m_bCoalesceReads = bCoalesce;
+    }
+    
+    /**
+     * Runs the given {@link JWork} through {@link JedisFactory#withJedisDo(JWork)} 
+     * on the asynchronous executor.
+     * 
+     * @param work the {@link JWork} to run
+     * @return a future completed with the result of the work
+     */
+    public static <T> CompletableFuture<T> withJedisDoAsync(final JWork<T> work)
+    {
+    	return async(new Supplier<T>()
+    	{
+			@Override
+			public T get()
+			{
+				return withJedisDo(work);
+			}
+    	});
+    }
+    
+    /**
+     * Runs the given blocking call on the asynchronous executor, the 
+     * collections' async variants go through here. The call keeps the 
+     * caller's {@link JedisFactory#withDeadline(long, Supplier)} and 
+     * {@link JedisFactory#fromMaster(Supplier)} scopes.
+     * 
+     * @param call the call to run
+     * @return a future completed with the result of the call
+     */
+    public static <T> CompletableFuture<T> async(Supplier<T> call)
+    {
+    	return CompletableFuture.supplyAsync(inCallerScope(call), getAsyncExecutor());
+    }
+    
+    /**
+     * Sets the executor the asynchronous variants run on.
+     * 
+     * @param executor the executor
+     */
+    public static void setAsyncExecutor(Executor executor)
+    {
+    	m_asyncExecutor = executor;
+    }
+    
+    /**
+     * Returns the executor the asynchronous variants run on. Unless one 
+     * was set this is a virtual thread per task executor when the JVM 
+     * has them and otherwise a pool of daemon threads as large as the 
+     * connection pool, since every call holds a connection anyway.
+     * 
+     * @return the executor
+     */
+    public static Executor getAsyncExecutor()
+    {
+    	if (m_asyncExecutor == null)
+    	{
+    		objLock.lock();
+    		
+    		try
+    		{
+    			if (m_asyncExecutor == null)
+    			{
+    				m_asyncExecutor = createAsyncExecutor();
+    			}
+    		}
+    		finally
+    		{
+    			objLock.unlock();
+    		}
+    	}
+    	
+    	return m_asyncExecutor;
+    }
+    
+    protected static Executor createAsyncExecutor()
+    {
+    	try
+    	{
+    		return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    	}
+    	catch (Exception e)
+    	{
+    		m_logger.info("Virtual threads are not available, running async calls on a thread pool.");
+    	}
+    	
+    	return Executors.newFixedThreadPool(REDIS_POOL_MAX_ACTIVE, new ThreadFactory()
+    	{
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r, "JedisFactory-async");
+				t.setDaemon(true);
+				return t;
+			}
+    	});
+    }
     
     public interface Work<Return, Param>
     {
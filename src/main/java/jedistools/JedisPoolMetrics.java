@@ -0,0 +1,71 @@
+package jedistools;
+
+import redis.clients.jedis.JedisPool;
+
+/**
+ * Receives the events of the connection pools {@link JedisFactory},
+ * its replicas and {@link ShardedJedisFactory} borrow from. Set an
+ * implementation with {@link JedisFactory#setPoolMetrics(JedisPoolMetrics)}
+ * to feed them into a metrics system, {@link JedisPoolStats} is used by
+ * default and publishes them over JMX.
+ * <p>
+ * The callbacks run on the I/O path and must not block.
+ *
+ * @author Hisham Mardam-Bey
+ *
+ */
+public interface JedisPoolMetrics
+{
+	/**
+	 * A pool was created, or recreated after its connections were lost.
+	 *
+	 * @param strPool the pool's name, <code>master</code>, <code>replica:host:port</code> or <code>shard:host:port</code>
+	 * @param pool the pool
+	 */
+	public void poolCreated(String strPool, JedisPool pool);
+
+	/**
+	 * A pool was shut down for good, e.g. by {@link JedisClient#shutdown()}
+	 * or when a replica or shard was dropped. A pool rebuilt under the
+	 * same name is not destroyed.
+	 *
+	 * @param strPool the pool's name
+	 * @param pool the pool, a pool created since under the same name is kept
+	 */
+	public void poolDestroyed(String strPool, JedisPool pool);
+
+	/**
+	 * A connection was borrowed.
+	 *
+	 * @param strPool the pool's name
+	 * @param lWaitNanos how long the borrow took
+	 * @param bExhausted whether all connections were in use when the borrow started
+	 */
+	public void borrowed(String strPool, long lWaitNanos, boolean bExhausted);
+
+	/**
+	 * A connection was returned to the pool.
+	 *
+	 * @param strPool the pool's name
+	 * @param lHeldNanos how long the connection was borrowed for
+	 * @param lAgeMillis how long ago the connection was first borrowed
+	 */
+	public void returned(String strPool, long lHeldNanos, long lAgeMillis);
+
+	/**
+	 * A broken connection was discarded.
+	 *
+	 * @param strPool the pool's name
+	 */
+	public void discarded(String strPool);
+
+	/**
+	 * The pool was torn down and rebuilt because no working connection
+	 * could be found.
+	 *
+	 * @param strPool the pool's name
+	 * @param iAttempts the number of reconnect attempts made
+	 * @param bRecovered whether a working connection was found in the end
+	 */
+	public void rebuilt(String strPool, int iAttempts, boolean bRecovered);
+}
@@ -0,0 +1,384 @@
+package jedistools;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.pool.impl.GenericObjectPool;
+import org.apache.log4j.Logger;
+
+import redis.clients.jedis.JedisPool;
+import redis.clients.util.Pool;
+
+/**
+ * The default {@link JedisPoolMetrics}, keeps counters and histograms
+ * per pool and publishes every pool as an MXBean named
+ * <code>jedistools:type=JedisPool,name="&lt;pool&gt;"</code>.
+ *
+ * @author Hisham Mardam-Bey
+ *
+ */
+public class JedisPoolStats implements JedisPoolMetrics
+{
+	protected static Logger m_logger = Logger.getLogger(JedisPoolStats.class.getName());
+
+	/**
+	 * Whether the pools are published over JMX.
+	 */
+	protected static boolean REDIS_POOL_JMX_ENABLED = true;
+
+	/**
+	 * The JMX view of a pool, times are in microseconds.
+	 */
+	public interface PoolStatsMXBean
+	{
+		public String getName();
+
+		public int getActive();
+
+		public int getIdle();
+
+		public int getMaxActive();
+
+		public long getBorrows();
+
+		public long getBorrowWaitP50();
+
+		public long getBorrowWaitP99();
+
+		public long getBorrowWaitP999();
+
+		public long getBorrowWaitMax();
+
+		public long getExhaustions();
+
+		public long getDiscarded();
+
+		public long getRebuilds();
+
+		public long getFailedRebuilds();
+
+		public long getHeldP99();
+
+		public long getConnectionAgeP50Millis();
+
+		public long getConnectionAgeMaxMillis();
+
+		public void reset();
+	}
+
+	public static class PoolStats implements PoolStatsMXBean
+	{
+		protected final String m_strName;
+
+		protected volatile GenericObjectPool m_pool;
+
+		/**
+		 * The pool these stats are about, to tell it from a pool created
+		 * since under the same name.
+		 */
+		protected volatile JedisPool m_owner;
+
+		protected final LatencyHistogram m_borrowWait = new LatencyHistogram();
+
+		protected final LatencyHistogram m_held = new LatencyHistogram();
+
+		protected final LatencyHistogram m_age = new LatencyHistogram();
+
+		protected final AtomicLong m_lExhaustions = new AtomicLong();
+
+		protected final AtomicLong m_lDiscarded = new AtomicLong();
+
+		protected final AtomicLong m_lRebuilds = new AtomicLong();
+
+		protected final AtomicLong m_lFailedRebuilds = new AtomicLong();
+
+		protected PoolStats(String strName)
+		{
+			m_strName = strName;
+		}
+
+		@Override
+		public String getName()
+		{
+			return m_strName;
+		}
+
+		@Override
+		public int getActive()
+		{
+			GenericObjectPool pool = m_pool;
+			return (pool == null) ? 0 : pool.getNumActive();
+		}
+
+		@Override
+		public int getIdle()
+		{
+			GenericObjectPool pool = m_pool;
+			return (pool == null) ? 0 : pool.getNumIdle();
+		}
+
+		@Override
+		public int getMaxActive()
+		{
+			GenericObjectPool pool = m_pool;
+			return (pool == null) ? 0 : pool.getMaxActive();
+		}
+
+		@Override
+		public long getBorrows()
+		{
+			return m_borrowWait.getCount();
+		}
+
+		@Override
+		public long getBorrowWaitP50()
+		{
+			return micros(m_borrowWait.getPercentile(0.5));
+		}
+
+		@Override
+		public long getBorrowWaitP99()
+		{
+			return micros(m_borrowWait.getPercentile(0.99));
+		}
+
+		@Override
+		public long getBorrowWaitP999()
+		{
+			return micros(m_borrowWait.getPercentile(0.999));
+		}
+
+		@Override
+		public long getBorrowWaitMax()
+		{
+			return micros(m_borrowWait.getMax());
+		}
+
+		@Override
+		public long getExhaustions()
+		{
+			return m_lExhaustions.get();
+		}
+
+		@Override
+		public long getDiscarded()
+		{
+			return m_lDiscarded.get();
+		}
+
+		@Override
+		public long getRebuilds()
+		{
+			return m_lRebuilds.get();
+		}
+
+		@Override
+		public long getFailedRebuilds()
+		{
+			return m_lFailedRebuilds.get();
+		}
+
+		@Override
+		public long getHeldP99()
+		{
+			return micros(m_held.getPercentile(0.99));
+		}
+
+		@Override
+		public long getConnectionAgeP50Millis()
+		{
+			return m_age.getPercentile(0.5);
+		}
+
+		@Override
+		public long getConnectionAgeMaxMillis()
+		{
+			return m_age.getMax();
+		}
+
+		@Override
+		public void reset()
+		{
+			m_borrowWait.reset();
+			m_held.reset();
+			m_age.reset();
+			m_lExhaustions.set(0);
+			m_lDiscarded.set(0);
+			m_lRebuilds.set(0);
+			m_lFailedRebuilds.set(0);
+		}
+
+		private static long micros(long lNanos)
+		{
+			return TimeUnit.NANOSECONDS.toMicros(lNanos);
+		}
+	}
+
+	protected final ConcurrentMap<String, PoolStats> m_pools = new ConcurrentHashMap<String, PoolStats>();
+
+	/**
+	 * @return the stats of the given pool, created on first use
+	 */
+	public PoolStats getPool(String strPool)
+	{
+		PoolStats stats = m_pools.get(strPool);
+
+		if (stats == null)
+		{
+			PoolStats created = new PoolStats(strPool);
+			stats = m_pools.putIfAbsent(strPool, created);
+
+			if (stats == null)
+			{
+				stats = created;
+				register(created);
+			}
+		}
+
+		return stats;
+	}
+
+	public Collection<PoolStats> getPools()
+	{
+		return m_pools.values();
+	}
+
+	protected void register(PoolStats stats)
+	{
+		if (!REDIS_POOL_JMX_ENABLED)
+		{
+			return;
+		}
+
+		try
+		{
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = objectName(stats.getName());
+
+			if (!server.isRegistered(name))
+			{
+				server.registerMBean(stats, name);
+			}
+		}
+		catch (Exception e)
+		{
+			m_logger.warn("Could not publish the stats of pool " + stats.getName() + " over JMX.", e);
+		}
+	}
+
+	protected void unregister(PoolStats stats)
+	{
+		if (!REDIS_POOL_JMX_ENABLED)
+		{
+			return;
+		}
+
+		try
+		{
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = objectName(stats.getName());
+
+			if (server.isRegistered(name))
+			{
+				server.unregisterMBean(name);
+			}
+		}
+		catch (Exception e)
+		{
+			m_logger.warn("Could not unpublish the stats of pool " + stats.getName() + " from JMX.", e);
+		}
+	}
+
+	protected static ObjectName objectName(String strPool) throws Exception
+	{
+		return new ObjectName("jedistools:type=JedisPool,name=" + ObjectName.quote(strPool));
+	}
+
+	/**
+	 * Jedis keeps its commons pool private, it is needed for the active
+	 * and idle counts.
+	 */
+	protected static GenericObjectPool internalPool(JedisPool pool)
+	{
+		try
+		{
+			Field f = Pool.class.getDeclaredField("internalPool");
+			f.setAccessible(true);
+			return (GenericObjectPool) f.get(pool);
+		}
+		catch (Exception e)
+		{
+			m_logger.debug("Could not get at the internal pool, active and idle counts are not available.", e);
+			return null;
+		}
+	}
+
+	@Override
+	public void poolCreated(String strPool, JedisPool pool)
+	{
+		PoolStats stats = getPool(strPool);
+		stats.m_pool = internalPool(pool);
+		stats.m_owner = pool;
+	}
+
+	/**
+	 * Forgets the stats of the pool and unpublishes them, unless a new
+	 * pool took the name meanwhile.
+	 */
+	@Override
+	public void poolDestroyed(String strPool, JedisPool pool)
+	{
+		PoolStats stats = m_pools.get(strPool);
+
+		if (stats != null && stats.m_owner == pool && m_pools.remove(strPool, stats))
+		{
+			unregister(stats);
+		}
+	}
+
+	@Override
+	public void borrowed(String strPool, long lWaitNanos, boolean bExhausted)
+	{
+		PoolStats stats = getPool(strPool);
+		stats.m_borrowWait.record(lWaitNanos);
+
+		if (bExhausted)
+		{
+			stats.m_lExhaustions.incrementAndGet();
+		}
+	}
+
+	@Override
+	public void returned(String strPool, long lHeldNanos, long lAgeMillis)
+	{
+		PoolStats stats = getPool(strPool);
+		stats.m_held.record(lHeldNanos);
+		stats.m_age.record(lAgeMillis);
+	}
+
+	@Override
+	public void discarded(String strPool)
+	{
+		getPool(strPool).m_lDiscarded.incrementAndGet();
+	}
+
+	@Override
+	public void rebuilt(String strPool, int iAttempts, boolean bRecovered)
+	{
+		PoolStats stats = getPool(strPool);
+		stats.m_lRebuilds.incrementAndGet();
+
+		if (!bRecovered)
+		{
+			stats.m_lFailedRebuilds.incrementAndGet();
+		}
+	}
+}
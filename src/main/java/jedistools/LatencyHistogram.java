@@ -0,0 +1,136 @@
+package jedistools;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock free histogram of non negative values, usually latencies in
+ * nanoseconds. Values are counted in log linear buckets, 8 per power of
+ * two, so percentiles are exact to within 12.5% at any magnitude and
+ * recording a value is a couple of shifts and one atomic increment.
+ *
+ * @author Hisham Mardam-Bey
+ *
+ */
+public class LatencyHistogram
+{
+	private static final int SUB_BITS = 3;
+
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+	private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+	protected final AtomicLongArray m_counts = new AtomicLongArray(BUCKETS);
+
+	protected final AtomicLong m_lCount = new AtomicLong();
+
+	protected final AtomicLong m_lSum = new AtomicLong();
+
+	protected final AtomicLong m_lMax = new AtomicLong();
+
+	protected static int bucketOf(long lValue)
+	{
+		if (lValue < SUB_BUCKETS)
+		{
+			return (int) Math.max(0, lValue);
+		}
+
+		int iExp = 63 - Long.numberOfLeadingZeros(lValue);
+		int iSub = (int) (lValue >>> (iExp - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return (iExp - SUB_BITS + 1) * SUB_BUCKETS + iSub;
+	}
+
+	/**
+	 * @return the highest value counted in the given bucket
+	 */
+	protected static long valueOf(int iBucket)
+	{
+		if (iBucket < SUB_BUCKETS)
+		{
+			return iBucket;
+		}
+
+		int iExp = iBucket / SUB_BUCKETS + SUB_BITS - 1;
+		int iSub = iBucket % SUB_BUCKETS;
+		long lLow = (long) (SUB_BUCKETS + iSub) << (iExp - SUB_BITS);
+		return lLow + (1L << (iExp - SUB_BITS)) - 1;
+	}
+
+	public void record(long lValue)
+	{
+		m_counts.incrementAndGet(bucketOf(lValue));
+		m_lCount.incrementAndGet();
+		m_lSum.addAndGet(lValue);
+
+		long lMax;
+
+		while (lValue > (lMax = m_lMax.get()))
+		{
+			if (m_lMax.compareAndSet(lMax, lValue)) break;
+		}
+	}
+
+	public long getCount()
+	{
+		return m_lCount.get();
+	}
+
+	public long getMax()
+	{
+		return m_lMax.get();
+	}
+
+	public double getMean()
+	{
+		long lCount = m_lCount.get();
+		return (lCount == 0) ? 0d : (double) m_lSum.get() / lCount;
+	}
+
+	/**
+	 * Returns the value below which the given fraction of the recorded
+	 * values fall, rounded up to the bucket's upper bound.
+	 *
+	 * @param dFraction the fraction, 0.99 for the 99th percentile
+	 * @return the value or 0 if nothing was recorded
+	 */
+	public long getPercentile(double dFraction)
+	{
+		long lCount = m_lCount.get();
+
+		if (lCount == 0)
+		{
+			return 0;
+		}
+
+		long lRank = (long) Math.ceil(dFraction * lCount);
+		long lSeen = 0;
+
+		for (int i = 0; i < BUCKETS; i++)
+		{
+			lSeen += m_counts.get(i);
+
+			if (lSeen >= lRank)
+			{
+				return Math.min(valueOf(i), m_lMax.get());
+			}
+		}
+
+		return m_lMax.get();
+	}
+
+	/**
+	 * Clears the histogram. Values recorded while it is cleared may be
+	 * partly kept.
+	 */
+	public void reset()
+	{
+		for (int i = 0; i < BUCKETS; i++)
+		{
+			m_counts.set(i, 0);
+		}
+
+		m_lCount.set(0);
+		m_lSum.set(0);
+		m_lMax.set(0);
+	}
+}
@@ -0,0 +1,437 @@
+package jedistools;
+
+import java.lang.ref.WeakReference;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.apache.log4j.Logger;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+
+import jedistools.JedisFactory.JWork;
+
+/**
+ * Pins a connection of {@link JedisFactory}'s pool to a thread so the
+ * thread's calls skip the pool: no borrow, no return and no PING to test
+ * the connection, one round trip per call. Connections are pinned for
+ * the duration of {@link PinnedJedisFactory#withPinnedConnection(Supplier)}
+ * or, once {@link PinnedJedisFactory#setPinThreads(boolean)} is on, for
+ * the lifetime of threads that opted in with
+ * {@link PinnedJedisFactory#pinCurrentThread()} or were created by
+ * {@link PinnedJedisFactory#pinning(ThreadFactory)}. Other threads, such
+ * as the async and hedge executors' short lived ones, borrow per call.
+ * <p>
+ * A pinned connection is validated in the background: connections idle
+ * for {@link PinnedJedisFactory#REDIS_PIN_VALIDATE_INTERVAL} are pinged
+ * and dropped if the ping fails, and connections of threads that died
+ * go back to the pool. A thread finding its connection being validated
+ * or dropped simply borrows from the pool for that call.
+ * <p>
+ * Each pinned thread holds a connection, pinning threads for their
+ * lifetime is meant for fixed worker pools smaller than the connection
+ * pool, only opt those in. Only calls on the master are pinned, shards, replicas and
+ * {@link JedisClient}s still borrow per call.
+ *
+ * @author Hisham Mardam-Bey
+ *
+ */
+public class PinnedJedisFactory
+{
+	protected static Logger m_logger = Logger.getLogger(PinnedJedisFactory.class.getName());
+
+	/**
+	 * Number of milliseconds a pinned connection is idle before it is
+	 * validated.
+	 */
+	protected static int REDIS_PIN_VALIDATE_INTERVAL = 5000;
+
+	/**
+	 * A connection pinned to a thread.
+	 */
+	protected static class Pinned
+	{
+		protected static final int IDLE = 0;
+
+		protected static final int IN_USE = 1;
+
+		/**
+		 * Being validated, or dropped if the pin was released.
+		 */
+		protected static final int TAKEN = 2;
+
+		protected final Jedis m_jedis;
+
+		protected final WeakReference<Thread> m_owner = new WeakReference<Thread>(Thread.currentThread());
+
+		protected final boolean m_bScoped;
+
+		protected final AtomicInteger m_iState = new AtomicInteger(IDLE);
+
+		protected final AtomicBoolean m_bReleased = new AtomicBoolean(false);
+
+		/**
+		 * Set once the scope of a scoped pin ended.
+		 */
+		protected volatile boolean m_bEnded = false;
+
+		protected volatile long m_lLastUsed = System.nanoTime();
+
+		protected Pinned(Jedis j, boolean bScoped)
+		{
+			m_jedis = j;
+			m_bScoped = bScoped;
+		}
+
+		protected boolean isOwnerAlive()
+		{
+			Thread t = m_owner.get();
+			return t != null && t.isAlive();
+		}
+	}
+
+	protected static final ThreadLocal<Pinned> m_pinned = new ThreadLocal<Pinned>();
+
+	/**
+	 * Whether the current thread keeps a connection for its lifetime 
+	 * while threads are pinned.
+	 */
+	protected static final ThreadLocal<Boolean> m_optedIn = new ThreadLocal<Boolean>();
+
+	protected static final Set<Pinned> m_allPinned = ConcurrentHashMap.newKeySet();
+
+	protected static volatile boolean m_bPinThreads = false;
+
+	protected static volatile ScheduledExecutorService m_validator;
+
+	private static Object objSync = new Object();
+
+	/**
+	 *  Prevent direct access to the constructor
+	 */
+	private PinnedJedisFactory()
+	{
+		super();
+	}
+
+	/**
+	 * Pins a connection to every opted in thread using 
+	 * {@link JedisFactory} for the thread's lifetime, or stops doing so.
+	 * Connections pinned this way go back to the pool once their thread
+	 * dies or this is turned off.
+	 *
+	 * @param bPin whether opted in threads keep a connection
+	 */
+	public static void setPinThreads(boolean bPin)
+	{
+		m_bPinThreads = bPin;
+
+		if (bPin)
+		{
+			startValidator();
+		}
+	}
+
+	public static boolean isPinningThreads()
+	{
+		return m_bPinThreads;
+	}
+
+	/**
+	 * Opts the current thread in to keeping a connection for its 
+	 * lifetime while {@link PinnedJedisFactory#setPinThreads(boolean)} 
+	 * is on. The connection is pinned on the thread's next call.
+	 */
+	public static void pinCurrentThread()
+	{
+		m_optedIn.set(Boolean.TRUE);
+	}
+
+	/**
+	 * Wraps the given factory so the threads it creates opt in with
+	 * {@link PinnedJedisFactory#pinCurrentThread()}, e.g. for the fixed
+	 * worker pool of an executor.
+	 *
+	 * @param factory the factory creating the threads
+	 * @return a factory creating opted in threads
+	 */
+	public static ThreadFactory pinning(final ThreadFactory factory)
+	{
+		return new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(final Runnable r)
+			{
+				return factory.newThread(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						pinCurrentThread();
+						r.run();
+					}
+				});
+			}
+		};
+	}
+
+	/**
+	 * Runs the given call with a connection pinned to the current thread,
+	 * so all the calls it makes on {@link JedisFactory} share it instead
+	 * of borrowing one each. The connection goes back to the pool once
+	 * the call returns. Nested calls use the outer call's connection.
+	 *
+	 * @param call the call to run
+	 * @return the result of the call
+	 */
+	public static <T> T withPinnedConnection(Supplier<T> call)
+	{
+		Pinned p = m_pinned.get();
+
+		if (p != null && !p.m_bReleased.get())
+		{
+			return call.get();
+		}
+
+		p = pin(true);
+
+		try
+		{
+			return call.get();
+		}
+		finally
+		{
+			if (p != null)
+			{
+				m_pinned.remove();
+				end(p);
+			}
+		}
+	}
+
+	/**
+	 * Ends the scope of a scoped pin without waiting for a validation in
+	 * progress: the validator then hands the connection back once its
+	 * PING is answered.
+	 */
+	protected static void end(Pinned p)
+	{
+		p.m_bEnded = true;
+
+		if (p.m_iState.compareAndSet(Pinned.IDLE, Pinned.TAKEN))
+		{
+			unpin(p, false);
+		}
+	}
+
+	/**
+	 * Returns the connection pinned to the current thread marked as in
+	 * use, pinning one first when threads are pinned.
+	 *
+	 * @return the pinned connection or null if the call must borrow one
+	 */
+	protected static Pinned acquire()
+	{
+		Pinned p = m_pinned.get();
+
+		if (p != null && p.m_bReleased.get())
+		{
+			m_pinned.remove();
+			p = null;
+		}
+
+		if (p == null)
+		{
+			if (!m_bPinThreads || m_optedIn.get() == null || (p = pin(false)) == null)
+			{
+				return null;
+			}
+		}
+
+		// in use by an outer call of the same thread or being validated
+		return p.m_iState.compareAndSet(Pinned.IDLE, Pinned.IN_USE) ? p : null;
+	}
+
+	/**
+	 * Runs the given {@link JWork} on an acquired pinned connection, see
+	 * {@link JedisFactory#runAndRelease(Jedis, String, JWork)}. A
+	 * connection whose work failed is unpinned and discarded.
+	 */
+	protected static <T> T run(Pinned p, String strKey, JWork<T> work)
+	{
+		boolean bBroken = true;
+
+		try
+		{
+			T ret = JedisFactory.run(p.m_jedis, strKey, work);
+			bBroken = false;
+
+			return ret;
+		}
+		finally
+		{
+			p.m_lLastUsed = System.nanoTime();
+
+			if (bBroken)
+			{
+				unpin(p, true);
+			}
+			else
+			{
+				p.m_iState.set(Pinned.IDLE);
+			}
+		}
+	}
+
+	protected static Pinned pin(boolean bScoped)
+	{
+		Jedis j = JedisFactory.getRes();
+
+		if (j == null)
+		{
+			return null;
+		}
+
+		JedisFactory.markPinned(j);
+
+		Pinned p = new Pinned(j, bScoped);
+		m_allPinned.add(p);
+		m_pinned.set(p);
+		startValidator();
+
+		return p;
+	}
+
+	/**
+	 * Hands a pinned connection back to the pool, the first call wins.
+	 * The owner finds it released on its next call.
+	 */
+	protected static void unpin(Pinned p, boolean bBroken)
+	{
+		if (!p.m_bReleased.compareAndSet(false, true))
+		{
+			return;
+		}
+
+		m_allPinned.remove(p);
+		JedisFactory.release(p.m_jedis, bBroken);
+
+		if (m_pinned.get() == p)
+		{
+			m_pinned.remove();
+		}
+	}
+
+	protected static void startValidator()
+	{
+		if (m_validator != null)
+		{
+			return;
+		}
+
+		synchronized (objSync)
+		{
+			if (m_validator != null)
+			{
+				return;
+			}
+
+			m_validator = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+			{
+				@Override
+				public Thread newThread(Runnable r)
+				{
+					Thread t = new Thread(r, "PinnedJedisFactory-validator");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+			long lPeriod = Math.max(1, REDIS_PIN_VALIDATE_INTERVAL / 2);
+
+			m_validator.scheduleWithFixedDelay(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						validate();
+					}
+					catch (Exception e)
+					{
+						m_logger.warn("Could not validate the pinned connections.", e);
+					}
+				}
+			}, lPeriod, lPeriod, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Releases the connections of dead threads, and of threads no longer
+	 * pinned, and pings the ones that were idle for a while.
+	 */
+	protected static void validate()
+	{
+		long lIdle = TimeUnit.MILLISECONDS.toNanos(REDIS_PIN_VALIDATE_INTERVAL);
+
+		for (Pinned p : m_allPinned)
+		{
+			boolean bDrop = !p.isOwnerAlive() || (!p.m_bScoped && !m_bPinThreads);
+
+			if (!bDrop && System.nanoTime() - p.m_lLastUsed < lIdle)
+			{
+				continue;
+			}
+
+			if (!p.m_iState.compareAndSet(Pinned.IDLE, Pinned.TAKEN))
+			{
+				// in use, so not idle
+				continue;
+			}
+
+			if (bDrop)
+			{
+				unpin(p, false);
+				continue;
+			}
+
+			try
+			{
+				if (!"PONG".equals(p.m_jedis.ping()))
+				{
+					throw new JedisConnectionException("Unexpected reply to PING");
+				}
+
+				p.m_lLastUsed = System.nanoTime();
+				p.m_iState.set(Pinned.IDLE);
+
+				// the scope ended during the PING
+				if (p.m_bEnded)
+				{
+					end(p);
+				}
+			}
+			catch (Exception e)
+			{
+				m_logger.debug("Pinned connection failed validation, dropping it.", e);
+				unpin(p, true);
+			}
+		}
+	}
+
+	/**
+	 * @return the number of connections currently pinned
+	 */
+	public static int getPinnedCount()
+	{
+		return m_allPinned.size();
+	}
+}
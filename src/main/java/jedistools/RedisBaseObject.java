@@ -1,5 +1,9 @@
 package jedistools;
 
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import jedistools.JedisFactory.JWork;
 
 /**
  * Base class for Java objects that wrap Redis data 
@@ -25,6 +29,29 @@ public abstract class RedisBaseObject
 	
 	protected String m_strFullKey;
 	
+	/**
+	 * Whether reads of this object skip the replicas.
+	 */
+	protected boolean m_bReadFromMaster = false;
+	
+	/**
+	 * The client this object's calls run on, null for {@link JedisFactory}.
+	 */
+	protected volatile JedisClient m_client;
+	
+	protected RedisBaseObject()
+	{
+		this(null);
+	}
+	
+	/**
+	 * @param client the client this object's calls run on, null for {@link JedisFactory}
+	 */
+	protected RedisBaseObject(JedisClient client)
+	{
+		m_client = client;
+	}
+	
 	protected String getFullKey()
 	{
 		if (m_strFullKey == null)
@@ -33,5 +60,98 @@ public abstract class RedisBaseObject
 		}
 		
 		return m_strFullKey; 
-	}		
+	}
+	
+	/**
+	 * Runs the given {@link JWork} on a connection to the node holding 
+	 * this object, see {@link JedisFactory#withJedisDo(String, JWork)}, 
+	 * or on this object's {@link JedisClient} if it has one. The keys an 
+	 * object derives from its own key live on the same node.
+	 * 
+	 * @param work the {@link JWork} to run
+	 * @return the result of the work
+	 */
+	protected <T> T withJedisDo(JWork<T> work)
+	{
+		JedisClient client = m_client;
+		return (client == null) ? JedisFactory.withJedisDo(getFullKey(), work) : client.withJedisDo(getFullKey(), work);
+	}
+	
+	/**
+	 * Runs the given read only {@link JWork} on a replica if there are 
+	 * any, see {@link JedisFactory#withJedisRead(String, boolean, JWork)}.
+	 * 
+	 * @param work the {@link JWork} to run
+	 * @return the result of the work
+	 */
+	protected <T> T withJedisRead(JWork<T> work)
+	{
+		JedisClient client = m_client;
+		return (client == null) ? JedisFactory.withJedisRead(getFullKey(), m_bReadFromMaster, work) : client.withJedisRead(getFullKey(), work);
+	}
+	
+	/**
+	 * Same as {@link RedisBaseObject#withJedisRead(JWork)} with identical 
+	 * concurrent reads coalesced, see 
+	 * {@link JedisFactory#withJedisDoShared(List, String, boolean, JWork)}
+	 * and {@link JedisClient#withJedisDoShared(List, String, JWork)}.
+	 * 
+	 * @param command the command the work sends followed by any arguments that change its result
+	 * @param work the {@link JWork} to run
+	 * @return the result of the work
+	 */
+	protected <T> T withJedisReadShared(List<?> command, JWork<T> work)
+	{
+		JedisClient client = m_client;
+		return (client == null) ? JedisFactory.withJedisDoShared(command, getFullKey(), m_bReadFromMaster, work) : client.withJedisDoShared(command, getFullKey(), work);
+	}
+	
+	/**
+	 * Makes all reads of this object go to the master instead of the 
+	 * replicas, for objects whose readers must see the latest writes.
+	 * 
+	 * @param bReadFromMaster whether reads skip the replicas
+	 */
+	public void setReadFromMaster(boolean bReadFromMaster)
+	{
+		m_bReadFromMaster = bReadFromMaster;
+	}
+	
+	public boolean isReadFromMaster()
+	{
+		return m_bReadFromMaster;
+	}
+	
+	/**
+	 * Makes this object's calls run on the given client instead of 
+	 * {@link JedisFactory}, objects with a client are neither sharded 
+	 * nor read from replicas, and their reads are not hedged.
+	 * 
+	 * @param client the client, null for {@link JedisFactory}
+	 */
+	public void setClient(JedisClient client)
+	{
+		m_client = client;
+	}
+	
+	/**
+	 * @return the client this object's calls run on, null for {@link JedisFactory}
+	 */
+	public JedisClient getClient()
+	{
+		return m_client;
+	}
+	
+	/**
+	 * Returns the given positive timeout in whole seconds, rounded up, 
+	 * for the blocking commands which only take whole seconds.
+	 */
+	protected static int toSeconds(long timeout, TimeUnit unit)
+	{
+		long lMillis = unit.toMillis(timeout);
+		
+		long lSeconds = lMillis / 1000 + ((lMillis % 1000 == 0) ? 0 : 1);
+		
+		return (int) Math.min(Integer.MAX_VALUE, Math.max(1, lSeconds));
+	}
 }
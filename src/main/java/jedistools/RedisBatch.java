@@ -0,0 +1,485 @@
+package jedistools;
+
+import static jedistools.JedisFactory.async;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+import org.apache.log4j.Logger;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.Transaction;
+import redis.clients.jedis.Tuple;
+import redis.clients.jedis.exceptions.JedisException;
+
+import jedistools.JedisFactory.JWork;
+import jedistools.JedisFactory.Work;
+
+/**
+ * Queues reads and writes on any number of {@link RedisMap}s,
+ * {@link RedisSortedSet}s and {@link RedisBlockingQueue}s and sends them
+ * all in a single pipeline when {@link RedisBatch#execute()} is called.
+ * Every queued call returns a {@link Deferred} that holds its result once
+ * the batch was executed, so loading N collections costs one round trip
+ * instead of N.
+ * <pre>
+ * RedisBatch batch = new RedisBatch();
+ * List&lt;Deferred&lt;Set&lt;Tuple&gt;&gt;&gt; convs = ...;
+ * for (Conversation c : conversations) convs.add(batch.range(c, 0, -1));
+ * batch.execute();
+ * </pre>
+ * A batch is not thread safe and can be reused once executed. The calls
+ * are pipelined, not run in a transaction, except for increments of
+ * sets with a change channel: those and their notifications run in one
+ * MULTI/EXEC after the pipeline, so a {@link RedisSortedSetMirror} 
+ * never sees an increment apart from its notification.
+ *
+ * @author Hisham Mardam-Bey
+ *
+ */
+public class RedisBatch
+{
+	protected static Logger m_logger = Logger.getLogger(RedisBatch.class.getName());
+
+	/**
+	 * The result of a call queued in a {@link RedisBatch}, available once
+	 * the batch was executed.
+	 */
+	public static class Deferred<T>
+	{
+		protected final RedisBaseObject m_object;
+
+		protected final Work<Response<T>, Pipeline> m_op;
+
+		/**
+		 * Set instead of <code>m_op</code> for calls run in the batch's
+		 * transaction.
+		 */
+		protected final Work<Response<T>, Transaction> m_txOp;
+
+		protected Response<T> m_response;
+
+		protected volatile boolean m_bDone;
+
+		protected Deferred(RedisBaseObject o, Work<Response<T>, Pipeline> op)
+		{
+			this(o, op, null);
+		}
+
+		protected Deferred(RedisBaseObject o, Work<Response<T>, Pipeline> op, Work<Response<T>, Transaction> txOp)
+		{
+			m_object = o;
+			m_op = op;
+			m_txOp = txOp;
+		}
+
+		public boolean isDone()
+		{
+			return m_bDone;
+		}
+
+		/**
+		 * @return the result of the call
+		 * @throws IllegalStateException if the batch was not executed or failed
+		 */
+		public T get()
+		{
+			if (!m_bDone)
+			{
+				throw new IllegalStateException("The batch this call belongs to was not executed or failed.");
+			}
+
+			return m_response.get();
+		}
+	}
+
+	protected List<Deferred<?>> m_pending = new ArrayList<Deferred<?>>();
+
+	protected <T> Deferred<T> queue(RedisBaseObject o, Work<Response<T>, Pipeline> op)
+	{
+		Deferred<T> d = new Deferred<T>(o, op);
+		m_pending.add(d);
+		return d;
+	}
+
+	protected <T> Deferred<T> queueTransacted(RedisBaseObject o, Work<Response<T>, Transaction> op)
+	{
+		Deferred<T> d = new Deferred<T>(o, null, op);
+		m_pending.add(d);
+		return d;
+	}
+
+	/**
+	 * @return the number of calls waiting to be executed
+	 */
+	public int size()
+	{
+		return m_pending.size();
+	}
+
+	/**
+	 * Sends all queued calls in one pipeline and fills their
+	 * {@link Deferred}s. With {@link ShardedJedisFactory} or objects on
+	 * their own {@link JedisClient}s there is one pipeline per node or
+	 * client involved.
+	 *
+	 * @return true if the batch was executed, false if any pipeline failed
+	 */
+	public boolean execute()
+	{
+		List<Deferred<?>> ops = m_pending;
+		m_pending = new ArrayList<Deferred<?>>();
+
+		Map<Object, List<Deferred<?>>> byNode = new LinkedHashMap<Object, List<Deferred<?>>>();
+
+		for (Deferred<?> d : ops)
+		{
+			JedisClient client = d.m_object.getClient();
+			String strNode = ShardedJedisFactory.getNodeName(d.m_object.getFullKey());
+			Object where = (client != null) ? client : (strNode != null) ? strNode : JedisFactory.MASTER_POOL;
+			List<Deferred<?>> node = byNode.get(where);
+
+			if (node == null)
+			{
+				node = new ArrayList<Deferred<?>>();
+				byNode.put(where, node);
+			}
+
+			node.add(d);
+		}
+
+		boolean bOk = true;
+
+		for (List<Deferred<?>> node : byNode.values())
+		{
+			bOk &= execute(node);
+		}
+
+		return bOk;
+	}
+
+	protected boolean execute(final List<Deferred<?>> ops)
+	{
+		if (ops.isEmpty())
+		{
+			return true;
+		}
+
+		try
+		{
+			ops.get(0).m_object.withJedisDo(new JWork<Boolean>()
+			{
+				@Override
+				public Boolean work(Jedis j)
+				{
+					Pipeline p = j.pipelined();
+					List<Deferred<?>> transacted = new ArrayList<Deferred<?>>();
+
+					for (Deferred<?> d : ops)
+					{
+						if (d.m_op == null)
+						{
+							transacted.add(d);
+						}
+						else
+						{
+							run(d, p);
+						}
+					}
+
+					p.sync();
+
+					if (!transacted.isEmpty())
+					{
+						Transaction t = j.multi();
+
+						for (Deferred<?> d : transacted)
+						{
+							run(d, t);
+						}
+
+						t.exec();
+					}
+
+					return true;
+				}
+			});
+		}
+		catch (JedisException e)
+		{
+			m_logger.warn("Could not execute a batch of " + ops.size() + " calls.", e);
+			return false;
+		}
+
+		for (Deferred<?> d : ops)
+		{
+			d.m_bDone = true;
+		}
+
+		return true;
+	}
+
+	private static <T> void run(Deferred<T> d, Pipeline p)
+	{
+		d.m_response = d.m_op.work(p);
+	}
+
+	private static <T> void run(Deferred<T> d, Transaction t)
+	{
+		d.m_response = d.m_txOp.work(t);
+	}
+
+	/**
+	 * Same as {@link RedisBatch#execute()} but runs on the executor of
+	 * {@link JedisFactory#getAsyncExecutor()}.
+	 */
+	public CompletableFuture<Boolean> executeAsync()
+	{
+		return async(new Supplier<Boolean>()
+		{
+			@Override
+			public Boolean get()
+			{
+				return execute();
+			}
+		});
+	}
+
+	/*
+	 * RedisMap
+	 */
+
+	public Deferred<String> get(final RedisMap map, final String key)
+	{
+		return queue(map, new Work<Response<String>, Pipeline>()
+		{
+			@Override
+			public Response<String> work(Pipeline p)
+			{
+				return p.hget(map.getFullKey(), key);
+			}
+		});
+	}
+
+	public Deferred<List<String>> getAll(final RedisMap map, final Collection<? extends String> keys)
+	{
+		return queue(map, new Work<Response<List<String>>, Pipeline>()
+		{
+			@Override
+			public Response<List<String>> work(Pipeline p)
+			{
+				return p.hmget(map.getFullKey(), keys.toArray(new String[]{}));
+			}
+		});
+	}
+
+	public Deferred<Map<String, String>> entries(final RedisMap map)
+	{
+		return queue(map, new Work<Response<Map<String, String>>, Pipeline>()
+		{
+			@Override
+			public Response<Map<String, String>> work(Pipeline p)
+			{
+				return p.hgetAll(map.getFullKey());
+			}
+		});
+	}
+
+	public Deferred<Long> put(final RedisMap map, final String key, final String value)
+	{
+		return queue(map, new Work<Response<Long>, Pipeline>()
+		{
+			@Override
+			public Response<Long> work(Pipeline p)
+			{
+				return p.hset(map.getFullKey(), key, value);
+			}
+		});
+	}
+
+	public Deferred<Long> increment(final RedisMap map, final String key, final long lBy)
+	{
+		return queue(map, new Work<Response<Long>, Pipeline>()
+		{
+			@Override
+			public Response<Long> work(Pipeline p)
+			{
+				return p.hincrBy(map.getFullKey(), key, lBy);
+			}
+		});
+	}
+
+	/*
+	 * RedisSortedSet
+	 */
+
+	/**
+	 * @return the members ranked <code>iStart</code> to <code>iEnd</code> in order
+	 */
+	public Deferred<Set<Tuple>> range(final RedisSortedSet set, final int iStart, final int iEnd)
+	{
+		return queue(set, new Work<Response<Set<Tuple>>, Pipeline>()
+		{
+			@Override
+			public Response<Set<Tuple>> work(Pipeline p)
+			{
+				return p.zrangeWithScores(set.getFullKey(), iStart, iEnd);
+			}
+		});
+	}
+
+	/**
+	 * @return the members scored <code>dMin</code> to <code>dMax</code>, inclusive, in order
+	 */
+	public Deferred<Set<Tuple>> rangeByScore(final RedisSortedSet set, final double dMin, final double dMax)
+	{
+		return queue(set, new Work<Response<Set<Tuple>>, Pipeline>()
+		{
+			@Override
+			public Response<Set<Tuple>> work(Pipeline p)
+			{
+				return p.zrangeByScoreWithScores(set.getFullKey(), dMin, dMax);
+			}
+		});
+	}
+
+	public Deferred<Double> score(final RedisSortedSet set, final String strMember)
+	{
+		return queue(set, new Work<Response<Double>, Pipeline>()
+		{
+			@Override
+			public Response<Double> work(Pipeline p)
+			{
+				return p.zscore(set.getFullKey(), strMember);
+			}
+		});
+	}
+
+	public Deferred<Long> size(final RedisSortedSet set)
+	{
+		return queue(set, new Work<Response<Long>, Pipeline>()
+		{
+			@Override
+			public Response<Long> work(Pipeline p)
+			{
+				return p.zcard(set.getFullKey());
+			}
+		});
+	}
+
+	public Deferred<Long> add(final RedisSortedSet set, final Tuple e)
+	{
+		return queue(set, new Work<Response<Long>, Pipeline>()
+		{
+			@Override
+			public Response<Long> work(Pipeline p)
+			{
+				Response<Long> ret = p.zadd(set.getFullKey(), e.getScore(), e.getElement());
+
+				if (set.getChangeChannel() != null)
+				{
+					p.publish(set.getChangeChannel(), RedisSortedSetMirror.upserted(e.getScore(), e.getElement()));
+				}
+
+				return ret;
+			}
+		});
+	}
+
+	public Deferred<Long> remove(final RedisSortedSet set, final String strMember)
+	{
+		return queue(set, new Work<Response<Long>, Pipeline>()
+		{
+			@Override
+			public Response<Long> work(Pipeline p)
+			{
+				Response<Long> ret = p.zrem(set.getFullKey(), strMember);
+
+				if (set.getChangeChannel() != null)
+				{
+					p.publish(set.getChangeChannel(), RedisSortedSetMirror.removed(strMember));
+				}
+
+				return ret;
+			}
+		});
+	}
+
+	public Deferred<Double> incrementScore(final RedisSortedSet set, final String strMember, final double dBy)
+	{
+		if (set.getChangeChannel() == null)
+		{
+			return queue(set, new Work<Response<Double>, Pipeline>()
+			{
+				@Override
+				public Response<Double> work(Pipeline p)
+				{
+					return p.zincrby(set.getFullKey(), dBy, strMember);
+				}
+			});
+		}
+
+		return queueTransacted(set, new Work<Response<Double>, Transaction>()
+		{
+			@Override
+			public Response<Double> work(Transaction t)
+			{
+				Response<Double> ret = t.zincrby(set.getFullKey(), dBy, strMember);
+				t.publish(set.getChangeChannel(), RedisSortedSetMirror.incremented(dBy, strMember));
+				return ret;
+			}
+		});
+	}
+
+	/*
+	 * RedisBlockingQueue, these read and write the queue's single list so
+	 * they do not apply to a RedisShardedBlockingQueue
+	 */
+
+	/**
+	 * @return the elements of the queue, the oldest last
+	 */
+	public Deferred<List<String>> elements(final RedisBlockingQueue queue)
+	{
+		return queue(queue, new Work<Response<List<String>>, Pipeline>()
+		{
+			@Override
+			public Response<List<String>> work(Pipeline p)
+			{
+				return p.lrange(queue.getFullKey(), 0, -1);
+			}
+		});
+	}
+
+	public Deferred<Long> size(final RedisBlockingQueue queue)
+	{
+		return queue(queue, new Work<Response<Long>, Pipeline>()
+		{
+			@Override
+			public Response<Long> work(Pipeline p)
+			{
+				return p.llen(queue.getFullKey());
+			}
+		});
+	}
+
+	public Deferred<Long> add(final RedisBlockingQueue queue, final String e)
+	{
+		return queue(queue, new Work<Response<Long>, Pipeline>()
+		{
+			@Override
+			public Response<Long> work(Pipeline p)
+			{
+				return p.lpush(queue.getFullKey(), e);
+			}
+		});
+	}
+}
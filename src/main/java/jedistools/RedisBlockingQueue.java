@@ -1,13 +1,16 @@
 package jedistools;
 
-import static jedistools.JedisFactory.withJedisDo;
+import static jedistools.JedisFactory.async;
 
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.Response;
@@ -28,6 +31,19 @@ import jedistools.JedisFactory.Work;
  */
 public abstract class RedisBlockingQueue extends RedisBaseObject implements BlockingQueue<String>
 {	
+	protected RedisBlockingQueue()
+	{
+		super();
+	}
+
+	/**
+	 * @param client the client this object's calls run on, null for {@link JedisFactory}
+	 */
+	protected RedisBlockingQueue(JedisClient client)
+	{
+		super(client);
+	}
+
 	@Override
 	public String poll()
 	{
@@ -211,7 +227,7 @@ public abstract class RedisBlockingQueue extends RedisBaseObject implements Bloc
 			{
 				List<String> ret = j.brpop(0, getFullKey());
 				
-				if (ret.size() != 2)
+				if (ret == null || ret.size() != 2)
 				{
 					return null;
 				}
@@ -232,7 +248,7 @@ public abstract class RedisBlockingQueue extends RedisBaseObject implements Bloc
 				Long t = TimeUnit.SECONDS.convert(timeout, unit);
 				List<String> ret = j.brpop(t.intValue(), getFullKey());
 				
-				if (ret.size() != 2)
+				if (ret == null || ret.size() != 2)
 				{
 					return null;
 				}
@@ -273,6 +289,11 @@ public abstract class RedisBlockingQueue extends RedisBaseObject implements Bloc
 	@Override
 	public int drainTo(final Collection<? super String> c)
 	{
+		if (c == null)
+		{
+			throw new NullPointerException("Specified collection can not be null.");
+		}
+		
 		return withJedisDo(new JWork<Integer>() 
 		{
 			@Override
@@ -290,11 +311,6 @@ public abstract class RedisBlockingQueue extends RedisBaseObject implements Bloc
 					return 0;
 				}
 				
-				if (c == null)
-				{
-					throw new NullPointerException("Specified collection can not be null.");
-				}
-				
 				c.addAll(ret);				
 				return ret.size();				
 			}			
@@ -304,14 +320,26 @@ public abstract class RedisBlockingQueue extends RedisBaseObject implements Bloc
 	@Override
 	public int drainTo(final Collection<? super String> c, final int maxElements)
 	{
+		if (c == null)
+		{
+			throw new NullPointerException("Specified collection can not be null.");
+		}
+		
+		// LRANGE -0 -1 would copy the whole list and LTRIM 0 -1 keep it
+		if (maxElements <= 0)
+		{
+			return 0;
+		}
+		
 		return withJedisDo(new JWork<Integer>() 
 		{
 			@Override
 			public Integer work(Jedis j)
 			{
+				// the oldest elements are at the tail of the list
 				Transaction t = j.multi();
-				Response<List<String>> resp = t.lrange(getFullKey(), 0, maxElements - 1);
-				t.ltrim(getFullKey(), 0, maxElements - 1);
+				Response<List<String>> resp = t.lrange(getFullKey(), -maxElements, -1);
+				t.ltrim(getFullKey(), 0, -maxElements - 1);
 				t.exec();
 				
 				List<String> ret = resp.get();
@@ -321,12 +349,11 @@ public abstract class RedisBlockingQueue extends RedisBaseObject implements Bloc
 					return 0;
 				}
 				
-				if (c == null)
+				for (int i = ret.size() - 1; i >= 0; i--)
 				{
-					throw new NullPointerException("Specified collection can not be null.");
+					c.add(ret.get(i));
 				}
 				
-				c.addAll(ret);				
 				return ret.size();				
 			}			
 		});
@@ -376,4 +403,81 @@ public abstract class RedisBlockingQueue extends RedisBaseObject implements Bloc
 	{
 		throw new UnsupportedOperationException("Not implemented yet");
 	}
+	
+	/**
+	 * Asynchronous variant of {@link RedisBlockingQueue#add(String)}, runs 
+	 * on the executor of {@link JedisFactory#getAsyncExecutor()}.
+	 */
+	public CompletableFuture<Boolean> addAsync(final String e)
+	{
+		return async(new Supplier<Boolean>()
+		{
+			@Override
+			public Boolean get()
+			{
+				return add(e);
+			}
+		});
+	}
+	
+	/**
+	 * Asynchronous variant of {@link RedisBlockingQueue#take()}. The 
+	 * executor thread and a connection are held until an element 
+	 * arrives.
+	 */
+	public CompletableFuture<String> takeAsync()
+	{
+		return async(new Supplier<String>()
+		{
+			@Override
+			public String get()
+			{
+				try
+				{
+					return take();
+				}
+				catch (InterruptedException e)
+				{
+					throw new CompletionException(e);
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Asynchronous variant of {@link RedisBlockingQueue#poll(long, TimeUnit)}.
+	 */
+	public CompletableFuture<String> pollAsync(final long timeout, final TimeUnit unit)
+	{
+		return async(new Supplier<String>()
+		{
+			@Override
+			public String get()
+			{
+				try
+				{
+					return poll(timeout, unit);
+				}
+				catch (InterruptedException e)
+				{
+					throw new CompletionException(e);
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Asynchronous variant of {@link RedisBlockingQueue#size()}.
+	 */
+	public CompletableFuture<Integer> sizeAsync()
+	{
+		return async(new Supplier<Integer>()
+		{
+			@Override
+			public Integer get()
+			{
+				return size();
+			}
+		});
+	}
 }
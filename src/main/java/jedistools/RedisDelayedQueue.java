@@ -0,0 +1,447 @@
+package jedistools;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Transaction;
+import redis.clients.jedis.Tuple;
+
+import jedistools.JedisFactory.JWork;
+
+/**
+ * A {@link RedisBlockingQueue} whose elements can be scheduled for
+ * delivery at a later time. Scheduled elements wait in a Redis sorted
+ * set scored by their due time and are moved in batches into the
+ * queue's list once due, after which consumers see them through the
+ * regular {@link BlockingQueue} API. Promotion only ever reads the
+ * due end of the sorted set so its cost does not depend on how many
+ * elements are scheduled.
+ * <p>
+ * Due elements are promoted by consumers before they take, poll, peek
+ * or drain and, if {@link RedisDelayedQueue#startPromoter(long)} was
+ * called, by a background thread. Each element is removed from the
+ * sorted set and pushed onto the list in one MULTI/EXEC so it is never
+ * lost or delivered twice. Due times use the client's clock.
+ *
+ * @author Hisham Mardam-Bey
+ *
+ */
+public abstract class RedisDelayedQueue extends RedisBlockingQueue
+{
+	protected static Logger m_logger = Logger.getLogger(RedisDelayedQueue.class.getName());
+
+	/**
+	 * Maximum number of due elements moved per promotion round trip.
+	 */
+	protected static int REDIS_PROMOTE_BATCH_SIZE = 256;
+
+	/**
+	 * Number of times a promotion is attempted when other promoters 
+	 * keep moving due elements first.
+	 */
+	protected static int REDIS_PROMOTE_RETRY_COUNT = 8;
+
+	/**
+	 * Maximum number of seconds a consumer blocks before checking for
+	 * due elements again.
+	 */
+	protected static int REDIS_DELAYED_MAX_WAIT = 5;
+
+	/**
+	 * Makes scheduled members unique so the same element can be
+	 * scheduled more than once.
+	 */
+	private static final String NODE = Integer.toHexString(new Random().nextInt());
+
+	private static final AtomicLong SEQ = new AtomicLong();
+
+	protected ScheduledExecutorService m_promoter;
+
+	protected RedisDelayedQueue()
+	{
+		super();
+	}
+
+	/**
+	 * @param client the client this object's calls run on, null for {@link JedisFactory}
+	 */
+	protected RedisDelayedQueue(JedisClient client)
+	{
+		super(client);
+	}
+
+	protected String getDelayedKey()
+	{
+		return getFullKey() + ":delayed";
+	}
+
+	/**
+	 * Incremented by every promotion and watched by the others, so 
+	 * scheduling elements does not abort promotions.
+	 */
+	protected String getPromotionKey()
+	{
+		return getFullKey() + ":promotions";
+	}
+
+	/**
+	 * Schedules the given element to be delivered at the given time.
+	 *
+	 * @param e the element
+	 * @param lDueMillis the delivery time in milliseconds since the epoch
+	 */
+	public void putAt(final String e, final long lDueMillis)
+	{
+		withJedisDo(new JWork<Boolean>()
+		{
+			@Override
+			public Boolean work(Jedis j)
+			{
+				j.zadd(getDelayedKey(), lDueMillis, NODE + "." + SEQ.incrementAndGet() + ":" + e);
+				return true;
+			}
+		});
+	}
+
+	/**
+	 * Schedules the given element to be delivered after the given delay.
+	 *
+	 * @param e the element
+	 * @param lDelay the delay
+	 * @param unit the unit of the delay
+	 */
+	public void putDelayed(String e, long lDelay, TimeUnit unit)
+	{
+		putAt(e, System.currentTimeMillis() + unit.toMillis(lDelay));
+	}
+
+	/**
+	 * @return the number of scheduled elements that are not in the queue yet
+	 */
+	public int delayedSize()
+	{
+		return withJedisDo(new JWork<Integer>()
+		{
+			@Override
+			public Integer work(Jedis j)
+			{
+				return j.zcard(getDelayedKey()).intValue();
+			}
+		});
+	}
+
+	/**
+	 * Moves due elements into the queue, at most
+	 * {@link RedisDelayedQueue#REDIS_PROMOTE_BATCH_SIZE} per round trip,
+	 * until none are left.
+	 *
+	 * @return the number of elements moved
+	 */
+	public int promoteDue()
+	{
+		int iTotal = 0;
+
+		while (true)
+		{
+			Integer moved = withJedisDo(new JWork<Integer>()
+			{
+				@Override
+				public Integer work(Jedis j)
+				{
+					return promoteBatch(j);
+				}
+			});
+
+			if (moved == null || moved == 0)
+			{
+				return iTotal;
+			}
+
+			iTotal += moved;
+
+			if (moved < REDIS_PROMOTE_BATCH_SIZE)
+			{
+				return iTotal;
+			}
+		}
+	}
+
+	/**
+	 * Moves a batch of due elements in one MULTI/EXEC, ZREM and LPUSH of
+	 * each element together. Only promoters remove from the sorted set 
+	 * and each of them bumps the watched promotion key, so a batch read 
+	 * here is still scheduled when the transaction runs or the 
+	 * transaction is aborted and retried. An abort means another 
+	 * promoter moved elements, so giving up after 
+	 * {@link RedisDelayedQueue#REDIS_PROMOTE_RETRY_COUNT} attempts leaves 
+	 * nothing behind for long.
+	 */
+	protected int promoteBatch(Jedis j)
+	{
+		for (int i = 0; i < REDIS_PROMOTE_RETRY_COUNT; i++)
+		{
+			j.watch(getPromotionKey());
+			Set<String> due = j.zrangeByScore(getDelayedKey(), Double.NEGATIVE_INFINITY, System.currentTimeMillis(), 0, REDIS_PROMOTE_BATCH_SIZE);
+
+			if (due.isEmpty())
+			{
+				j.unwatch();
+				return 0;
+			}
+
+			Transaction t = j.multi();
+			t.incr(getPromotionKey());
+
+			for (String s : due)
+			{
+				t.zrem(getDelayedKey(), s);
+				t.lpush(getFullKey(), s.substring(s.indexOf(':') + 1));
+			}
+
+			if (t.exec() != null)
+			{
+				return due.size();
+			}
+		}
+
+		m_logger.debug("Other promoters kept moving due elements of " + getFullKey() + " first, giving up.");
+		return 0;
+	}
+
+	/**
+	 * Returns how many seconds a consumer can block before the next
+	 * scheduled element is due, between 1 and
+	 * {@link RedisDelayedQueue#REDIS_DELAYED_MAX_WAIT}.
+	 */
+	protected int secondsUntilNextDue()
+	{
+		Integer wait = withJedisDo(new JWork<Integer>()
+		{
+			@Override
+			public Integer work(Jedis j)
+			{
+				Set<Tuple> next = j.zrangeWithScores(getDelayedKey(), 0, 0);
+
+				if (next == null || next.isEmpty())
+				{
+					return REDIS_DELAYED_MAX_WAIT;
+				}
+
+				long lMillis = (long) next.iterator().next().getScore() - System.currentTimeMillis();
+				return (int) Math.max(1, Math.min(REDIS_DELAYED_MAX_WAIT, (lMillis + 999) / 1000));
+			}
+		});
+
+		return (wait == null) ? REDIS_DELAYED_MAX_WAIT : wait;
+	}
+
+	@Override
+	public String take() throws InterruptedException
+	{
+		while (true)
+		{
+			String ret = pollOnce(secondsUntilNextDue());
+
+			if (ret != null)
+			{
+				return ret;
+			}
+
+			if (Thread.interrupted())
+			{
+				throw new InterruptedException();
+			}
+		}
+	}
+
+	/**
+	 * A timeout of 0 or less does not block.
+	 */
+	@Override
+	public String poll(long timeout, TimeUnit unit) throws InterruptedException
+	{
+		if (timeout <= 0)
+		{
+			return pollNow();
+		}
+
+		long lDeadline = System.currentTimeMillis() + unit.toMillis(timeout);
+
+		while (true)
+		{
+			long lLeft = lDeadline - System.currentTimeMillis();
+			int iWait = (int) Math.min(secondsUntilNextDue(), Math.max(1, (lLeft + 999) / 1000));
+			String ret = pollOnce(iWait);
+
+			if (ret != null || System.currentTimeMillis() >= lDeadline)
+			{
+				return ret;
+			}
+
+			if (Thread.interrupted())
+			{
+				throw new InterruptedException();
+			}
+		}
+	}
+
+	/**
+	 * Does not block, unlike {@link RedisBlockingQueue#poll()}.
+	 */
+	@Override
+	public String poll()
+	{
+		return pollNow();
+	}
+
+	@Override
+	public String peek()
+	{
+		promoteDue();
+		return super.peek();
+	}
+
+	@Override
+	public String element()
+	{
+		promoteDue();
+		return super.element();
+	}
+
+	@Override
+	public int drainTo(Collection<? super String> c)
+	{
+		promoteDue();
+		return super.drainTo(c);
+	}
+
+	@Override
+	public int drainTo(Collection<? super String> c, int maxElements)
+	{
+		promoteDue();
+		return super.drainTo(c, maxElements);
+	}
+
+	/**
+	 * Promotes due elements then pops one without blocking.
+	 */
+	protected String pollNow()
+	{
+		promoteDue();
+
+		return withJedisDo(new JWork<String>()
+		{
+			@Override
+			public String work(Jedis j)
+			{
+				return j.rpop(getFullKey());
+			}
+		});
+	}
+
+	protected String pollOnce(final int iWaitSeconds)
+	{
+		promoteDue();
+
+		return withJedisDo(new JWork<String>()
+		{
+			@Override
+			public String work(Jedis j)
+			{
+				List<String> ret = j.brpop(iWaitSeconds, getFullKey());
+
+				if (ret == null || ret.size() != 2)
+				{
+					return null;
+				}
+
+				return ret.get(1);
+			}
+		});
+	}
+
+	/**
+	 * Starts a background thread that promotes due elements every
+	 * <code>lIntervalMs</code> milliseconds so blocked consumers are
+	 * woken up as soon as elements are due.
+	 *
+	 * @param lIntervalMs the promotion interval
+	 */
+	public synchronized void startPromoter(long lIntervalMs)
+	{
+		if (m_promoter != null)
+		{
+			return;
+		}
+
+		m_promoter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r, "RedisDelayedQueue-" + getFullKey());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+		m_promoter.scheduleWithFixedDelay(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					promoteDue();
+				}
+				catch (Exception e)
+				{
+					m_logger.warn("Could not promote due elements of " + getFullKey(), e);
+				}
+			}
+		}, 0, lIntervalMs, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops the background promoter, if any.
+	 */
+	public synchronized void stopPromoter()
+	{
+		if (m_promoter != null)
+		{
+			m_promoter.shutdown();
+			m_promoter = null;
+		}
+	}
+
+	@Override
+	public void clear()
+	{
+		super.clear();
+
+		withJedisDo(new JWork<Boolean>()
+		{
+			@Override
+			public Boolean work(Jedis j)
+			{
+				// bumped so a promotion that read the cleared set aborts
+				Transaction t = j.multi();
+				t.del(getDelayedKey());
+				t.incr(getPromotionKey());
+				t.exec();
+				return true;
+			}
+		});
+	}
+}
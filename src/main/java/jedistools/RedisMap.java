@@ -1,11 +1,17 @@
 package jedistools;
 
-import static jedistools.JedisFactory.withJedisDo;
+import static jedistools.JedisFactory.async;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
 
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.Tuple;
@@ -24,10 +30,23 @@ import jedistools.JedisFactory.Work;
  */
 public abstract class RedisMap extends RedisBaseObject implements Map<String, String>
 {	
+	protected RedisMap()
+	{
+		super();
+	}
+
+	/**
+	 * @param client the client this object's calls run on, null for {@link JedisFactory}
+	 */
+	protected RedisMap(JedisClient client)
+	{
+		super(client);
+	}
+
 	@Override
 	public int size()
 	{
-		return withJedisDo(new JWork<Integer>() 
+		return withJedisReadShared(Arrays.asList("HLEN"), new JWork<Integer>() 
 		{
 			@Override
 			public Integer work(Jedis j)
@@ -46,7 +65,7 @@ public abstract class RedisMap extends RedisBaseObject implements Map<String, St
 	@Override
 	public boolean containsKey(final Object key)
 	{
-		return withJedisDo(new JWork<Boolean>() 
+		return withJedisRead(new JWork<Boolean>() 
 		{
 			@Override
 			public Boolean work(Jedis j)
@@ -63,7 +82,7 @@ public abstract class RedisMap extends RedisBaseObject implements Map<String, St
 	@Override
 	public boolean containsValue(final Object value)
 	{
-		return withJedisDo(new JWork<Boolean>() 
+		return withJedisRead(new JWork<Boolean>() 
 		{
 			@Override
 			public Boolean work(Jedis j)
@@ -76,7 +95,7 @@ public abstract class RedisMap extends RedisBaseObject implements Map<String, St
 	@Override
 	public String get(final Object key)
 	{
-		return withJedisDo(new JWork<String>() 
+		return withJedisReadShared(Arrays.asList("HGET", key), new JWork<String>() 
 		{
 			@Override
 			public String work(Jedis j)
@@ -153,7 +172,7 @@ public abstract class RedisMap extends RedisBaseObject implements Map<String, St
 	@Override
 	public Set<String> keySet()
 	{
-		return withJedisDo(new JWork<Set<String>>() 
+		Set<String> ret = withJedisReadShared(Arrays.asList("HKEYS"), new JWork<Set<String>>() 
 		{
 			@Override
 			public Set<String> work(Jedis j)
@@ -161,12 +180,14 @@ public abstract class RedisMap extends RedisBaseObject implements Map<String, St
 				return j.hkeys(getFullKey());				
 			}			
 		});
+		
+		return (ret == null) ? null : new HashSet<String>(ret);
 	}
 
 	@Override
 	public Collection<String> values()
 	{
-		return withJedisDo(new JWork<Collection<String>>() 
+		Collection<String> ret = withJedisReadShared(Arrays.asList("HVALS"), new JWork<Collection<String>>() 
 		{
 			@Override
 			public Collection<String> work(Jedis j)
@@ -174,19 +195,24 @@ public abstract class RedisMap extends RedisBaseObject implements Map<String, St
 				return j.hvals(getFullKey());				
 			}			
 		});
+		
+		return (ret == null) ? null : new ArrayList<String>(ret);
 	}
 
 	@Override
 	public Set<java.util.Map.Entry<String, String>> entrySet()
 	{
-		return withJedisDo(new JWork<Set<java.util.Map.Entry<String, String>>>() 
+		// every caller gets its own copy of a shared read
+		Map<String, String> ret = withJedisReadShared(Arrays.asList("HGETALL"), new JWork<Map<String, String>>() 
 		{
 			@Override
-			public Set<java.util.Map.Entry<String, String>> work(Jedis j)
+			public Map<String, String> work(Jedis j)
 			{
-				return j.hgetAll(getFullKey()).entrySet();
+				return j.hgetAll(getFullKey());
 			}			
 		});
+		
+		return (ret == null) ? null : new HashMap<String, String>(ret).entrySet();
 	}	
 	
 	/**
@@ -200,7 +226,7 @@ public abstract class RedisMap extends RedisBaseObject implements Map<String, St
 	 */
 	public Collection<String> getAll(final Collection<? extends String> c)
 	{
-		return withJedisDo(new JWork<Collection<String>>() 
+		return withJedisRead(new JWork<Collection<String>>() 
 		{			
 			@Override
 			public Collection<String> work(Jedis j)
@@ -239,4 +265,110 @@ public abstract class RedisMap extends RedisBaseObject implements Map<String, St
 			}			
 		});
 	}
+	
+	/**
+	 * Asynchronous variant of {@link RedisMap#get(Object)}, runs on the
+	 * executor of {@link JedisFactory#getAsyncExecutor()}.
+	 */
+	public CompletableFuture<String> getAsync(final Object key)
+	{
+		return async(new Supplier<String>()
+		{
+			@Override
+			public String get()
+			{
+				return RedisMap.this.get(key);
+			}
+		});
+	}
+	
+	/**
+	 * Asynchronous variant of {@link RedisMap#getAll(Collection)}.
+	 */
+	public CompletableFuture<Collection<String>> getAllAsync(final Collection<? extends String> c)
+	{
+		return async(new Supplier<Collection<String>>()
+		{
+			@Override
+			public Collection<String> get()
+			{
+				return getAll(c);
+			}
+		});
+	}
+	
+	/**
+	 * Asynchronous variant of {@link RedisMap#containsKey(Object)}.
+	 */
+	public CompletableFuture<Boolean> containsKeyAsync(final Object key)
+	{
+		return async(new Supplier<Boolean>()
+		{
+			@Override
+			public Boolean get()
+			{
+				return containsKey(key);
+			}
+		});
+	}
+	
+	/**
+	 * Asynchronous variant of {@link RedisMap#put(String, String)}.
+	 */
+	public CompletableFuture<String> putAsync(final String key, final String value)
+	{
+		return async(new Supplier<String>()
+		{
+			@Override
+			public String get()
+			{
+				return put(key, value);
+			}
+		});
+	}
+	
+	/**
+	 * Asynchronous variant of {@link RedisMap#remove(Object)}.
+	 */
+	public CompletableFuture<String> removeAsync(final Object key)
+	{
+		return async(new Supplier<String>()
+		{
+			@Override
+			public String get()
+			{
+				return remove(key);
+			}
+		});
+	}
+	
+	/**
+	 * Asynchronous variant of {@link RedisMap#increment(String, Long)}.
+	 */
+	public CompletableFuture<Long> incrementAsync(final String strKey, final Long intBy)
+	{
+		return async(new Supplier<Long>()
+		{
+			@Override
+			public Long get()
+			{
+				return increment(strKey, intBy);
+			}
+		});
+	}
+	
+	/**
+	 * Asynchronous variant of {@link RedisMap#size()}.
+	 */
+	public CompletableFuture<Integer> sizeAsync()
+	{
+		return async(new Supplier<Integer>()
+		{
+			@Override
+			public Integer get()
+			{
+				return size();
+			}
+		});
+	}
 }
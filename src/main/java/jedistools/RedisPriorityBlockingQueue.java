@@ -0,0 +1,577 @@
+package jedistools;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.Transaction;
+
+import jedistools.JedisFactory.JWork;
+import jedistools.JedisFactory.Work;
+
+/**
+ * Implements a {@link BlockingQueue} ordered by priority over a Redis
+ * sorted set, in the spirit of
+ * {@link java.util.concurrent.PriorityBlockingQueue}. The lowest
+ * priority value is taken first and elements of equal priority are
+ * taken in the order they were added, so urgent work overtakes bulk
+ * work in a single queue.
+ * <p>
+ * Every element is stored with a sequence number from a Redis counter
+ * in front of it; Redis orders equal scores by member so the sequence
+ * gives FIFO order within a priority. Elements are popped atomically
+ * by a MULTI of ZRANGE and ZREMRANGEBYRANK. Blocked consumers wait on
+ * a signal list producers push a token to, each consumer that pops an
+ * element passes the token on while elements remain.
+ *
+ * @author Hisham Mardam-Bey
+ *
+ */
+public abstract class RedisPriorityBlockingQueue extends RedisBaseObject implements BlockingQueue<String>
+{
+	/**
+	 * Priority given to elements added through the plain
+	 * {@link BlockingQueue} methods.
+	 */
+	protected static double REDIS_DEFAULT_PRIORITY = 0d;
+
+	/**
+	 * Maximum number of seconds a consumer blocks on the signal list
+	 * before looking at the set again.
+	 */
+	protected static int REDIS_PRIORITY_MAX_WAIT = 1;
+
+	protected RedisPriorityBlockingQueue()
+	{
+		super();
+	}
+
+	/**
+	 * @param client the client this object's calls run on, null for {@link JedisFactory}
+	 */
+	protected RedisPriorityBlockingQueue(JedisClient client)
+	{
+		super(client);
+	}
+
+	protected String getSeqKey()
+	{
+		return getFullKey() + ":seq";
+	}
+
+	protected String getSignalKey()
+	{
+		return getFullKey() + ":signal";
+	}
+
+	private static String strip(String strMember)
+	{
+		return strMember.substring(strMember.indexOf(':') + 1);
+	}
+
+	private static List<String> strip(Collection<String> members)
+	{
+		List<String> ret = new ArrayList<String>(members.size());
+
+		for (String s : members)
+		{
+			ret.add(strip(s));
+		}
+
+		return ret;
+	}
+
+	/**
+	 * Adds the given element with the given priority, lower values are
+	 * taken first.
+	 *
+	 * @param e the element
+	 * @param dPriority the priority
+	 * @return true
+	 */
+	public boolean add(String e, double dPriority)
+	{
+		return addAll(Collections.singletonList(e), dPriority);
+	}
+
+	/**
+	 * Same as {@link RedisPriorityBlockingQueue#add(String, double)}.
+	 */
+	public void put(String e, double dPriority)
+	{
+		add(e, dPriority);
+	}
+
+	/**
+	 * Adds all the given elements with the same priority in two round
+	 * trips, they will be taken in the order given.
+	 *
+	 * @param c the elements
+	 * @param dPriority the priority
+	 * @return true
+	 */
+	public boolean addAll(final Collection<? extends String> c, final double dPriority)
+	{
+		if (c.isEmpty())
+		{
+			return false;
+		}
+
+		return withJedisDo(new JWork<Boolean>()
+		{
+			@Override
+			public Boolean work(Jedis j)
+			{
+				long lSeq = j.incrBy(getSeqKey(), c.size()) - c.size();
+				Transaction t = j.multi();
+
+				for (String s : c)
+				{
+					t.zadd(getFullKey(), dPriority, String.format("%016x", ++lSeq) + ":" + s);
+				}
+
+				t.lpush(getSignalKey(), "1");
+				t.ltrim(getSignalKey(), 0, 0);
+				t.exec();
+				return true;
+			}
+		});
+	}
+
+	/**
+	 * Atomically removes and returns up to <code>iMax</code> elements
+	 * in priority order without blocking.
+	 *
+	 * @param iMax the maximum number of elements to take, {@link Integer#MAX_VALUE} for all
+	 * @return the elements, possibly none
+	 */
+	public List<String> pollBatch(final int iMax)
+	{
+		if (iMax <= 0)
+		{
+			return Collections.emptyList();
+		}
+
+		return withJedisDo(new JWork<List<String>>()
+		{
+			@Override
+			public List<String> work(Jedis j)
+			{
+				Transaction t = j.multi();
+				Response<Set<String>> popped = t.zrange(getFullKey(), 0, iMax - 1);
+				t.zremrangeByRank(getFullKey(), 0, iMax - 1);
+				Response<Long> left = t.zcard(getFullKey());
+				t.exec();
+
+				// pass the wake up on to the next blocked consumer
+				if (!popped.get().isEmpty() && left.get() > 0)
+				{
+					Transaction s = j.multi();
+					s.lpush(getSignalKey(), "1");
+					s.ltrim(getSignalKey(), 0, 0);
+					s.exec();
+				}
+
+				return strip(popped.get());
+			}
+		});
+	}
+
+	/**
+	 * Removes and returns between 1 and <code>iMax</code> elements in
+	 * priority order, waiting for one to become available if needed.
+	 *
+	 * @param iMax the maximum number of elements to take
+	 * @return the elements
+	 */
+	public List<String> takeBatch(int iMax) throws InterruptedException
+	{
+		while (true)
+		{
+			List<String> ret = pollBatch(iMax);
+
+			if (ret != null && !ret.isEmpty())
+			{
+				return ret;
+			}
+
+			awaitSignal(REDIS_PRIORITY_MAX_WAIT);
+
+			if (Thread.interrupted())
+			{
+				throw new InterruptedException();
+			}
+		}
+	}
+
+	protected void awaitSignal(final int iSeconds)
+	{
+		withJedisDo(new JWork<Boolean>()
+		{
+			@Override
+			public Boolean work(Jedis j)
+			{
+				j.brpop(iSeconds, getSignalKey());
+				return true;
+			}
+		});
+	}
+
+	@Override
+	public String take() throws InterruptedException
+	{
+		return takeBatch(1).get(0);
+	}
+
+	/**
+	 * Waits for an element at most the given time, each wait on the 
+	 * signal list is bounded by the time left rounded up to whole 
+	 * seconds, so the call returns less than a second past its timeout.
+	 */
+	@Override
+	public String poll(long timeout, TimeUnit unit) throws InterruptedException
+	{
+		if (timeout <= 0)
+		{
+			return poll();
+		}
+
+		long lDeadline = System.nanoTime() + unit.toNanos(timeout);
+
+		while (true)
+		{
+			String ret = poll();
+			long lLeft = lDeadline - System.nanoTime();
+
+			if (ret != null || lLeft <= 0)
+			{
+				return ret;
+			}
+
+			awaitSignal(Math.min(REDIS_PRIORITY_MAX_WAIT, toSeconds(lLeft, TimeUnit.NANOSECONDS)));
+
+			if (Thread.interrupted())
+			{
+				throw new InterruptedException();
+			}
+		}
+	}
+
+	@Override
+	public String poll()
+	{
+		List<String> ret = pollBatch(1);
+		return (ret == null || ret.isEmpty()) ? null : ret.get(0);
+	}
+
+	@Override
+	public String remove()
+	{
+		String ret = poll();
+
+		if (ret == null)
+		{
+			throw new NoSuchElementException("The Redis sorted set is either empty or an error occured.");
+		}
+
+		return ret;
+	}
+
+	@Override
+	public String peek()
+	{
+		return withJedisDo(new JWork<String>()
+		{
+			@Override
+			public String work(Jedis j)
+			{
+				Set<String> ret = j.zrange(getFullKey(), 0, 0);
+
+				if (ret == null || ret.size() != 1)
+				{
+					return null;
+				}
+
+				return strip(ret.iterator().next());
+			}
+		});
+	}
+
+	@Override
+	public String element()
+	{
+		String ret = peek();
+
+		if (ret == null)
+		{
+			throw new NoSuchElementException("The Redis sorted set is either empty or an error occured.");
+		}
+
+		return ret;
+	}
+
+	@Override
+	public boolean add(String e)
+	{
+		return add(e, REDIS_DEFAULT_PRIORITY);
+	}
+
+	@Override
+	public boolean offer(String e)
+	{
+		return add(e);
+	}
+
+	@Override
+	public boolean offer(String e, long timeout, TimeUnit unit) throws InterruptedException
+	{
+		return add(e);
+	}
+
+	@Override
+	public void put(String e) throws InterruptedException
+	{
+		add(e);
+	}
+
+	@Override
+	public boolean addAll(Collection<? extends String> c)
+	{
+		return addAll(c, REDIS_DEFAULT_PRIORITY);
+	}
+
+	@Override
+	public int size()
+	{
+		return withJedisDo(new JWork<Integer>()
+		{
+			@Override
+			public Integer work(Jedis j)
+			{
+				return j.zcard(getFullKey()).intValue();
+			}
+		});
+	}
+
+	@Override
+	public boolean isEmpty()
+	{
+		return size() == 0;
+	}
+
+	@Override
+	public int remainingCapacity()
+	{
+		return Integer.MAX_VALUE;
+	}
+
+	@Override
+	public Iterator<String> iterator()
+	{
+		return withJedisDo(new JWork<Iterator<String>>()
+		{
+			@Override
+			public Iterator<String> work(Jedis j)
+			{
+				return strip(j.zrange(getFullKey(), 0, -1)).iterator();
+			}
+		});
+	}
+
+	@Override
+	public Object[] toArray()
+	{
+		return withJedisDo(new JWork<Object[]>()
+		{
+			@Override
+			public Object[] work(Jedis j)
+			{
+				return strip(j.zrange(getFullKey(), 0, -1)).toArray();
+			}
+		});
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public <T> T[] toArray(T[] a)
+	{
+		return (T[]) toArray();
+	}
+
+	/**
+	 * This is an expensive operation because it has to fetch all the
+	 * elements to find the one to remove.
+	 */
+	@Override
+	public boolean remove(final Object o)
+	{
+		return withJedisDo(new JWork<Boolean>()
+		{
+			@Override
+			public Boolean work(Jedis j)
+			{
+				for (String s : j.zrange(getFullKey(), 0, -1))
+				{
+					if (strip(s).equals(o))
+					{
+						return j.zrem(getFullKey(), s) == 1;
+					}
+				}
+
+				return false;
+			}
+		});
+	}
+
+	@Override
+	public void clear()
+	{
+		withJedisDo(new JWork<Boolean>()
+		{
+			@Override
+			public Boolean work(Jedis j)
+			{
+				j.del(getFullKey(), getSignalKey());
+				return true;
+			}
+		});
+	}
+
+	@Override
+	public int drainTo(Collection<? super String> c)
+	{
+		return drainTo(c, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public int drainTo(Collection<? super String> c, int maxElements)
+	{
+		if (c == null)
+		{
+			throw new NullPointerException("Specified collection can not be null.");
+		}
+
+		if (maxElements <= 0)
+		{
+			return 0;
+		}
+
+		List<String> ret = pollBatch(maxElements);
+
+		if (ret == null)
+		{
+			return 0;
+		}
+
+		c.addAll(ret);
+		return ret.size();
+	}
+
+	/**
+	 * Iterates over all elements in priority order and runs the supplied
+	 * {@link Work} on each element. If work returns <code>false</code>
+	 * at any time the iteration process will abort.
+	 *
+	 * @param work the {@link Work} to perform in every value
+	 */
+	public void foreach(Work<Boolean, String> work)
+	{
+		Iterator<String> iter = iterator();
+
+		while (iter.hasNext())
+		{
+			if (!work.work(iter.next())) return;
+		}
+	}
+
+	/**
+	 * This is an expensive operation because it has to fetch all the
+	 * elements.
+	 */
+	@Override
+	public boolean contains(Object o)
+	{
+		return containsAll(Collections.singleton(o));
+	}
+
+	/**
+	 * This is an expensive operation because it has to fetch all the
+	 * elements.
+	 */
+	@Override
+	public boolean removeAll(Collection<?> c)
+	{
+		return removeIf(c, true);
+	}
+
+	/**
+	 * This is an expensive operation because it has to fetch all the
+	 * elements.
+	 */
+	@Override
+	public boolean retainAll(Collection<?> c)
+	{
+		return removeIf(c, false);
+	}
+
+	/**
+	 * This is an expensive operation because it has to fetch all the
+	 * elements.
+	 */
+	@Override
+	public boolean containsAll(Collection<?> c)
+	{
+		List<String> all = new ArrayList<String>();
+		Iterator<String> iter = iterator();
+
+		while (iter.hasNext())
+		{
+			all.add(iter.next());
+		}
+
+		return all.containsAll(c);
+	}
+
+	/**
+	 * Removes the elements that are (or are not) in the given collection
+	 * in one round trip after fetching all of them.
+	 */
+	protected boolean removeIf(final Collection<?> c, final boolean bIn)
+	{
+		return withJedisDo(new JWork<Boolean>()
+		{
+			@Override
+			public Boolean work(Jedis j)
+			{
+				Pipeline p = j.pipelined();
+				List<Response<Long>> removed = new ArrayList<Response<Long>>();
+
+				for (String s : j.zrange(getFullKey(), 0, -1))
+				{
+					if (c.contains(strip(s)) == bIn)
+					{
+						removed.add(p.zrem(getFullKey(), s));
+					}
+				}
+
+				p.sync();
+
+				for (Response<Long> r : removed)
+				{
+					if (r.get() == 1) return true;
+				}
+
+				return false;
+			}
+		});
+	}
+}
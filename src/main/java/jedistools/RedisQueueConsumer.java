@@ -0,0 +1,594 @@
+package jedistools;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import redis.clients.jedis.exceptions.JedisException;
+
+import jedistools.JedisFactory.Work;
+
+/**
+ * Runs a pool of workers that take batches of elements from a Redis
+ * backed {@link BlockingQueue} ({@link RedisBlockingQueue} and friends)
+ * and hand them to a {@link Work}. Every worker blocks for the first
+ * element of a batch and drains up to the batch size more in a single
+ * round trip.
+ * <p>
+ * The number of workers is scaled between a minimum and a maximum:
+ * every sample interval the queue's depth is read and multiplied by the
+ * measured processing time per element, a worker is added while that
+ * backlog takes longer than the target drain time to work through and
+ * one is retired when the queue is empty and the workers are mostly
+ * idle. Every worker holds a connection while it blocks so the maximum
+ * should stay below the pool size.
+ * <p>
+ * Batches the {@link Work} returns <code>false</code> for, or throws on,
+ * are put back in the queue. {@link RedisQueueConsumer#shutdown(long, TimeUnit)}
+ * stops taking new batches and waits for the ones in flight.
+ *
+ * @author Hisham Mardam-Bey
+ *
+ */
+public class RedisQueueConsumer
+{
+	protected static Logger m_logger = Logger.getLogger(RedisQueueConsumer.class.getName());
+
+	/**
+	 * Number of seconds a worker blocks on an empty queue before looking
+	 * at whether it should stop.
+	 */
+	protected static int REDIS_CONSUMER_POLL_WAIT = 1;
+
+	/**
+	 * Number of milliseconds between two samples of the queue depth.
+	 */
+	protected static int REDIS_CONSUMER_SAMPLE_INTERVAL = 1000;
+
+	/**
+	 * Number of milliseconds the current backlog should take to work
+	 * through, more workers are added above it.
+	 */
+	protected static int REDIS_CONSUMER_TARGET_DRAIN_TIME = 1000;
+
+	/**
+	 * Number of milliseconds a worker waits after the queue failed before
+	 * trying again.
+	 */
+	protected static int REDIS_CONSUMER_ERROR_WAITTIME = 1000;
+
+	/**
+	 * Number of times a worker tries to put a failed batch back on the
+	 * queue, waiting twice as long after every failure, before logging
+	 * the batch as lost.
+	 */
+	protected static int REDIS_CONSUMER_PUT_BACK_RETRY_COUNT = 5;
+
+	/**
+	 * Number of retired workers whose metrics are kept.
+	 */
+	protected static int REDIS_CONSUMER_RETIRED_METRICS = 64;
+
+	/**
+	 * Throughput counters of a single worker.
+	 */
+	public static class WorkerMetrics
+	{
+		protected final String m_strName;
+
+		protected final long m_lStarted = System.currentTimeMillis();
+
+		protected final AtomicLong m_lBatches = new AtomicLong();
+
+		protected final AtomicLong m_lProcessed = new AtomicLong();
+
+		protected final AtomicLong m_lFailed = new AtomicLong();
+
+		protected final AtomicLong m_lBusyNanos = new AtomicLong();
+
+		protected WorkerMetrics(String strName)
+		{
+			m_strName = strName;
+		}
+
+		public String getName()
+		{
+			return m_strName;
+		}
+
+		public long getBatches()
+		{
+			return m_lBatches.get();
+		}
+
+		public long getProcessed()
+		{
+			return m_lProcessed.get();
+		}
+
+		public long getFailed()
+		{
+			return m_lFailed.get();
+		}
+
+		/**
+		 * @return the number of milliseconds spent in the {@link Work}
+		 */
+		public long getBusyMillis()
+		{
+			return TimeUnit.NANOSECONDS.toMillis(m_lBusyNanos.get());
+		}
+
+		/**
+		 * @return the elements processed per second since the worker started
+		 */
+		public double getThroughput()
+		{
+			long lElapsed = Math.max(1, System.currentTimeMillis() - m_lStarted);
+			return m_lProcessed.get() * 1000d / lElapsed;
+		}
+
+		@Override
+		public String toString()
+		{
+			return m_strName + " processed=" + getProcessed() + " failed=" + getFailed() +
+				" batches=" + getBatches() + " busy=" + getBusyMillis() + "ms" +
+				" throughput=" + String.format("%.1f", getThroughput()) + "/s";
+		}
+	}
+
+	protected class Worker implements Runnable
+	{
+		protected final WorkerMetrics m_metrics;
+
+		protected volatile boolean m_bRetired;
+
+		protected Thread m_thread;
+
+		protected Worker(String strName)
+		{
+			m_metrics = new WorkerMetrics(strName);
+		}
+
+		@Override
+		public void run()
+		{
+			try
+			{
+				while (!m_bStopping && !m_bRetired)
+				{
+					List<String> batch;
+
+					try
+					{
+						batch = takeBatch();
+					}
+					catch (RuntimeException e)
+					{
+						m_logger.warn("Could not take a batch from the queue.", e);
+						batch = null;
+					}
+
+					if (batch == null)
+					{
+						Thread.sleep(REDIS_CONSUMER_ERROR_WAITTIME);
+					}
+					else if (!batch.isEmpty())
+					{
+						process(this, batch);
+					}
+				}
+			}
+			catch (InterruptedException e)
+			{
+				// asked to stop
+			}
+			finally
+			{
+				m_workers.remove(this);
+				m_retired.add(m_metrics);
+
+				while (m_retired.size() > REDIS_CONSUMER_RETIRED_METRICS)
+				{
+					m_retired.remove(0);
+				}
+			}
+		}
+	}
+
+	protected final BlockingQueue<String> m_queue;
+
+	protected final Work<Boolean, List<String>> m_work;
+
+	protected final int m_iMinWorkers;
+
+	protected final int m_iMaxWorkers;
+
+	protected final int m_iBatchSize;
+
+	protected final ThreadFactory m_threadFactory;
+
+	protected final List<Worker> m_workers = new CopyOnWriteArrayList<Worker>();
+
+	protected final List<WorkerMetrics> m_retired = new CopyOnWriteArrayList<WorkerMetrics>();
+
+	protected final AtomicInteger m_iWorkerSeq = new AtomicInteger();
+
+	protected final AtomicLong m_lProcessed = new AtomicLong();
+
+	protected final AtomicLong m_lBusyNanos = new AtomicLong();
+
+	protected final AtomicLong m_lSampledProcessed = new AtomicLong();
+
+	protected final AtomicLong m_lSampledBusyNanos = new AtomicLong();
+
+	protected ScheduledExecutorService m_sampler;
+
+	protected volatile boolean m_bStopping;
+
+	/**
+	 * Creates a consumer running on platform threads.
+	 *
+	 * @param queue the queue to consume
+	 * @param work the {@link Work} to run on every batch, returns <code>false</code> to put the batch back
+	 * @param iMinWorkers the minimum number of workers
+	 * @param iMaxWorkers the maximum number of workers
+	 * @param iBatchSize the maximum number of elements per batch
+	 */
+	public RedisQueueConsumer(BlockingQueue<String> queue, Work<Boolean, List<String>> work, int iMinWorkers, int iMaxWorkers, int iBatchSize)
+	{
+		this(queue, work, iMinWorkers, iMaxWorkers, iBatchSize, false);
+	}
+
+	/**
+	 * Creates a consumer, on virtual threads if <code>bVirtual</code> is
+	 * set and the JVM supports them.
+	 */
+	public RedisQueueConsumer(BlockingQueue<String> queue, Work<Boolean, List<String>> work, int iMinWorkers, int iMaxWorkers, int iBatchSize, boolean bVirtual)
+	{
+		if (iMinWorkers < 1 || iMaxWorkers < iMinWorkers || iBatchSize < 1)
+		{
+			throw new IllegalArgumentException("Need 1 <= min workers <= max workers and a positive batch size.");
+		}
+
+		m_queue = queue;
+		m_work = work;
+		m_iMinWorkers = iMinWorkers;
+		m_iMaxWorkers = iMaxWorkers;
+		m_iBatchSize = iBatchSize;
+
+		ThreadFactory factory = bVirtual ? virtualThreadFactory() : null;
+		m_threadFactory = (factory != null) ? factory : new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				return new Thread(r);
+			}
+		};
+	}
+
+	/**
+	 * Looks up <code>Thread.ofVirtual().factory()</code> reflectively so
+	 * this class still runs on JVMs without virtual threads.
+	 *
+	 * @return the virtual {@link ThreadFactory} or null if there is none
+	 */
+	protected static ThreadFactory virtualThreadFactory()
+	{
+		try
+		{
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+		}
+		catch (Exception e)
+		{
+			m_logger.info("Virtual threads are not available, using platform threads.");
+			return null;
+		}
+	}
+
+	/**
+	 * Starts the minimum number of workers and the sampler that scales
+	 * them.
+	 */
+	public synchronized void start()
+	{
+		if (m_sampler != null)
+		{
+			return;
+		}
+
+		m_bStopping = false;
+
+		for (int i = 0; i < m_iMinWorkers; i++)
+		{
+			addWorker();
+		}
+
+		m_sampler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r, "RedisQueueConsumer-sampler");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+		m_sampler.scheduleWithFixedDelay(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					scale();
+				}
+				catch (Exception e)
+				{
+					m_logger.warn("Could not scale the consumer's workers.", e);
+				}
+			}
+		}, REDIS_CONSUMER_SAMPLE_INTERVAL, REDIS_CONSUMER_SAMPLE_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops taking new batches and waits up to the given time for the
+	 * batches in flight to be processed.
+	 *
+	 * @return true if all workers stopped in time
+	 */
+	public boolean shutdown(long lTimeout, TimeUnit unit) throws InterruptedException
+	{
+		synchronized (this)
+		{
+			m_bStopping = true;
+
+			if (m_sampler != null)
+			{
+				m_sampler.shutdown();
+				m_sampler = null;
+			}
+		}
+
+		long lDeadline = System.currentTimeMillis() + unit.toMillis(lTimeout);
+
+		for (Worker w : m_workers)
+		{
+			long lLeft = lDeadline - System.currentTimeMillis();
+
+			if (lLeft > 0)
+			{
+				w.m_thread.join(lLeft);
+			}
+		}
+
+		return m_workers.isEmpty();
+	}
+
+	/**
+	 * @return the number of running workers
+	 */
+	public int getWorkerCount()
+	{
+		return m_workers.size();
+	}
+
+	/**
+	 * @return the metrics of the running workers followed by the most recently retired ones
+	 */
+	public List<WorkerMetrics> getMetrics()
+	{
+		List<WorkerMetrics> ret = new ArrayList<WorkerMetrics>();
+
+		for (Worker w : m_workers)
+		{
+			ret.add(w.m_metrics);
+		}
+
+		ret.addAll(m_retired);
+		return ret;
+	}
+
+	protected synchronized void addWorker()
+	{
+		if (m_bStopping)
+		{
+			return;
+		}
+
+		Worker w = new Worker("RedisQueueConsumer-worker-" + m_iWorkerSeq.incrementAndGet());
+		w.m_thread = m_threadFactory.newThread(w);
+		w.m_thread.setName(w.m_metrics.getName());
+		m_workers.add(w);
+		w.m_thread.start();
+	}
+
+	protected synchronized void retireWorker()
+	{
+		for (Worker w : m_workers)
+		{
+			if (!w.m_bRetired)
+			{
+				w.m_bRetired = true;
+				return;
+			}
+		}
+	}
+
+	protected int getActiveWorkerCount()
+	{
+		int n = 0;
+
+		for (Worker w : m_workers)
+		{
+			if (!w.m_bRetired) n++;
+		}
+
+		return n;
+	}
+
+	/**
+	 * Samples the queue depth and the processing time per element since
+	 * the last sample and adds or retires a worker.
+	 */
+	protected void scale()
+	{
+		int iDepth = m_queue.size();
+		int iWorkers = getActiveWorkerCount();
+
+		long lProcessed = m_lProcessed.get();
+		long lBusyNanos = m_lBusyNanos.get();
+		long lDeltaProcessed = lProcessed - m_lSampledProcessed.getAndSet(lProcessed);
+		long lDeltaBusy = lBusyNanos - m_lSampledBusyNanos.getAndSet(lBusyNanos);
+
+		// how long the current workers need for the backlog, and how busy they were
+		double dNanosPerElement = (lDeltaProcessed > 0) ? (double) lDeltaBusy / lDeltaProcessed : 0d;
+		double dDrainMillis = iDepth * dNanosPerElement / 1000000d / Math.max(1, iWorkers);
+		double dUtilization = lDeltaBusy / (REDIS_CONSUMER_SAMPLE_INTERVAL * 1000000d * Math.max(1, iWorkers));
+
+		if (iWorkers < m_iMinWorkers)
+		{
+			addWorker();
+		}
+		else if (iWorkers < m_iMaxWorkers && iDepth > 0 && (dDrainMillis > REDIS_CONSUMER_TARGET_DRAIN_TIME || lDeltaProcessed == 0))
+		{
+			m_logger.debug("Adding a worker, depth=" + iDepth + " drain=" + (long) dDrainMillis + "ms");
+			addWorker();
+		}
+		else if (iWorkers > m_iMinWorkers && iDepth == 0 && dUtilization < 0.5)
+		{
+			m_logger.debug("Retiring a worker, utilization=" + String.format("%.2f", dUtilization));
+			retireWorker();
+		}
+	}
+
+	/**
+	 * Blocks for the first element then drains up to the batch size.
+	 *
+	 * @return the batch, empty if the queue stayed empty or null if it failed
+	 */
+	protected List<String> takeBatch() throws InterruptedException
+	{
+		List<String> batch = new ArrayList<String>(m_iBatchSize);
+		String first;
+
+		try
+		{
+			first = m_queue.poll(REDIS_CONSUMER_POLL_WAIT, TimeUnit.SECONDS);
+		}
+		catch (JedisException e)
+		{
+			m_logger.debug("Could not poll the queue.", e);
+			return null;
+		}
+
+		if (first == null)
+		{
+			return batch;
+		}
+
+		batch.add(first);
+
+		try
+		{
+			if (m_iBatchSize > 1)
+			{
+				m_queue.drainTo(batch, m_iBatchSize - 1);
+			}
+		}
+		catch (JedisException e)
+		{
+			// go on with what was taken so far
+			m_logger.debug("Could not drain the queue.", e);
+		}
+
+		return batch;
+	}
+
+	protected void process(Worker w, List<String> batch)
+	{
+		long lStart = System.nanoTime();
+		boolean bDone = false;
+
+		try
+		{
+			Boolean ret = m_work.work(batch);
+			bDone = (ret == null || ret);
+		}
+		catch (Exception e)
+		{
+			m_logger.warn("Could not process a batch of " + batch.size() + " elements, putting it back.", e);
+		}
+
+		long lBusy = System.nanoTime() - lStart;
+		w.m_metrics.m_lBusyNanos.addAndGet(lBusy);
+		w.m_metrics.m_lBatches.incrementAndGet();
+		m_lBusyNanos.addAndGet(lBusy);
+
+		if (bDone)
+		{
+			w.m_metrics.m_lProcessed.addAndGet(batch.size());
+			m_lProcessed.addAndGet(batch.size());
+		}
+		else
+		{
+			w.m_metrics.m_lFailed.addAndGet(batch.size());
+			putBack(batch);
+		}
+	}
+
+	/**
+	 * Puts a batch the work failed on back on the queue, retrying with a
+	 * growing wait while the queue fails. An interrupted worker keeps
+	 * trying without waiting and stops once the batch is back or lost.
+	 */
+	protected void putBack(List<String> batch)
+	{
+		long lWait = REDIS_CONSUMER_ERROR_WAITTIME;
+
+		for (int i = 1; ; i++)
+		{
+			try
+			{
+				m_queue.addAll(batch);
+				return;
+			}
+			catch (JedisException e)
+			{
+				if (i >= REDIS_CONSUMER_PUT_BACK_RETRY_COUNT)
+				{
+					m_logger.error("Could not put a batch of " + batch.size() + " elements back, lost " + batch, e);
+					return;
+				}
+
+				m_logger.warn("Could not put a batch of " + batch.size() + " elements back, retrying in " + lWait + "ms.", e);
+			}
+
+			if (!Thread.currentThread().isInterrupted())
+			{
+				try
+				{
+					Thread.sleep(lWait);
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+				}
+
+				lWait *= 2;
+			}
+		}
+	}
+}
@@ -0,0 +1,330 @@
+package jedistools;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import redis.clients.jedis.exceptions.JedisException;
+
+/**
+ * Adapts a Redis backed {@link BlockingQueue} ({@link RedisBlockingQueue}
+ * and friends) to a {@link Flow.Publisher}. Every subscription pops
+ * elements only while its subscriber has outstanding demand, at most
+ * that demand per round trip, so backpressure reaches Redis: elements a
+ * slow subscriber has not asked for stay in the queue for other
+ * consumers.
+ * <p>
+ * A subscription only uses a thread of the executor while it has demand,
+ * blocking on the queue for at most
+ * {@link RedisQueuePublisher#REDIS_PUBLISHER_POLL_WAIT} seconds at a
+ * time. If that poll comes back empty the thread (and its connection)
+ * is given back and the subscription polls again
+ * {@link RedisQueuePublisher#REDIS_PUBLISHER_IDLE_WAITTIME} milliseconds
+ * later. Elements popped for a subscription that gets cancelled before
+ * they are delivered are put back in the queue.
+ *
+ * @author Hisham Mardam-Bey
+ *
+ */
+public class RedisQueuePublisher implements Flow.Publisher<String>
+{
+	protected static Logger m_logger = Logger.getLogger(RedisQueuePublisher.class.getName());
+
+	/**
+	 * Number of seconds a subscription blocks on an empty queue before
+	 * looking at whether it was cancelled.
+	 */
+	protected static int REDIS_PUBLISHER_POLL_WAIT = 1;
+
+	/**
+	 * Number of milliseconds a subscription waits after the queue failed
+	 * before trying again.
+	 */
+	protected static int REDIS_PUBLISHER_ERROR_WAITTIME = 1000;
+
+	/**
+	 * Number of milliseconds a subscription with demand waits after an
+	 * empty poll before polling again, without holding a thread.
+	 */
+	protected static int REDIS_PUBLISHER_IDLE_WAITTIME = 100;
+
+	/**
+	 * Hands subscriptions waiting to poll again back to their executor.
+	 */
+	protected static final ScheduledExecutorService m_retries = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+	{
+		@Override
+		public Thread newThread(Runnable r)
+		{
+			Thread t = new Thread(r, "RedisQueuePublisher-retry");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	protected final BlockingQueue<String> m_queue;
+
+	protected final int m_iMaxBatch;
+
+	protected final Executor m_executor;
+
+	/**
+	 * Creates a publisher running on {@link JedisFactory#getAsyncExecutor()}.
+	 *
+	 * @param queue the queue to pop from
+	 * @param iMaxBatch the maximum number of elements popped per round trip
+	 */
+	public RedisQueuePublisher(BlockingQueue<String> queue, int iMaxBatch)
+	{
+		this(queue, iMaxBatch, JedisFactory.getAsyncExecutor());
+	}
+
+	public RedisQueuePublisher(BlockingQueue<String> queue, int iMaxBatch, Executor executor)
+	{
+		if (iMaxBatch < 1)
+		{
+			throw new IllegalArgumentException("The batch size must be positive.");
+		}
+
+		m_queue = queue;
+		m_iMaxBatch = iMaxBatch;
+		m_executor = executor;
+	}
+
+	@Override
+	public void subscribe(Flow.Subscriber<? super String> subscriber)
+	{
+		QueueSubscription s = new QueueSubscription(subscriber);
+		subscriber.onSubscribe(s);
+	}
+
+	protected class QueueSubscription implements Flow.Subscription, Runnable
+	{
+		protected final Flow.Subscriber<? super String> m_subscriber;
+
+		protected final AtomicLong m_lDemand = new AtomicLong();
+
+		/**
+		 * Non zero while a drain loop runs, bumped by every request so the
+		 * loop does not miss demand that arrives as it exits.
+		 */
+		protected final AtomicInteger m_iWip = new AtomicInteger();
+
+		protected volatile boolean m_bCancelled;
+
+		/** an invalid request, signalled by the drain loop */
+		protected volatile Throwable m_error;
+
+		protected QueueSubscription(Flow.Subscriber<? super String> subscriber)
+		{
+			m_subscriber = subscriber;
+		}
+
+		@Override
+		public void request(long n)
+		{
+			if (n <= 0)
+			{
+				m_error = new IllegalArgumentException("Demand must be positive, got " + n + ".");
+				drain();
+				return;
+			}
+
+			// add capping at Long.MAX_VALUE, which means unbounded
+			long lCur;
+			long lNext;
+
+			do
+			{
+				lCur = m_lDemand.get();
+				lNext = (lCur + n < 0) ? Long.MAX_VALUE : lCur + n;
+			}
+			while (!m_lDemand.compareAndSet(lCur, lNext));
+
+			drain();
+		}
+
+		protected void drain()
+		{
+			if (m_iWip.getAndIncrement() == 0)
+			{
+				m_executor.execute(this);
+			}
+		}
+
+		/**
+		 * Runs the drain loop again after the given wait, the loop keeps
+		 * its place in {@link #m_iWip} meanwhile.
+		 */
+		protected void retry(long lWait)
+		{
+			m_retries.schedule(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					m_executor.execute(QueueSubscription.this);
+				}
+			}, lWait, TimeUnit.MILLISECONDS);
+		}
+
+		protected void fail(Throwable t)
+		{
+			if (!m_bCancelled)
+			{
+				m_bCancelled = true;
+				m_subscriber.onError(t);
+			}
+		}
+
+		@Override
+		public void cancel()
+		{
+			m_bCancelled = true;
+		}
+
+		@Override
+		public void run()
+		{
+			int iMissed = 1;
+
+			try
+			{
+				while (true)
+				{
+					if (m_error != null)
+					{
+						fail(m_error);
+						return;
+					}
+
+					while (!m_bCancelled && m_error == null && m_lDemand.get() > 0)
+					{
+						List<String> batch = takeBatch((int) Math.min(m_lDemand.get(), m_iMaxBatch));
+
+						if (batch == null)
+						{
+							retry(REDIS_PUBLISHER_ERROR_WAITTIME);
+							return;
+						}
+
+						if (batch.isEmpty())
+						{
+							retry(REDIS_PUBLISHER_IDLE_WAITTIME);
+							return;
+						}
+
+						if (!emit(batch))
+						{
+							return;
+						}
+					}
+
+					iMissed = m_iWip.addAndGet(-iMissed);
+
+					if (iMissed == 0)
+					{
+						return;
+					}
+				}
+			}
+			catch (Throwable t)
+			{
+				if (t instanceof InterruptedException)
+				{
+					Thread.currentThread().interrupt();
+				}
+
+				m_logger.warn("Subscription failed, cancelling it.", t);
+				fail(t);
+			}
+		}
+
+		/**
+		 * Delivers a popped batch, putting back what is left of it if the
+		 * subscription is cancelled meanwhile.
+		 *
+		 * @return false if the subscription was terminated
+		 */
+		protected boolean emit(List<String> batch)
+		{
+			for (int i = 0; i < batch.size(); i++)
+			{
+				if (m_bCancelled)
+				{
+					m_queue.addAll(batch.subList(i, batch.size()));
+					return true;
+				}
+
+				try
+				{
+					m_subscriber.onNext(batch.get(i));
+				}
+				catch (Throwable t)
+				{
+					m_logger.warn("Subscriber failed, cancelling its subscription.", t);
+					m_bCancelled = true;
+					m_queue.addAll(batch.subList(i + 1, batch.size()));
+					return false;
+				}
+
+				m_lDemand.decrementAndGet();
+			}
+
+			return true;
+		}
+
+		/**
+		 * Blocks for the first element then drains up to <code>iMax</code>.
+		 *
+		 * @return the batch, empty if the queue stayed empty or null if it failed
+		 */
+		protected List<String> takeBatch(int iMax) throws InterruptedException
+		{
+			List<String> batch = new ArrayList<String>(iMax);
+			String first;
+
+			try
+			{
+				first = m_queue.poll(REDIS_PUBLISHER_POLL_WAIT, TimeUnit.SECONDS);
+			}
+			catch (JedisException e)
+			{
+				m_logger.debug("Could not poll the queue.", e);
+				return null;
+			}
+
+			if (first == null)
+			{
+				return batch;
+			}
+
+			batch.add(first);
+
+			try
+			{
+				if (iMax > 1)
+				{
+					m_queue.drainTo(batch, iMax - 1);
+				}
+			}
+			catch (JedisException e)
+			{
+				// go on with what was taken so far
+				m_logger.debug("Could not drain the queue.", e);
+			}
+
+			return batch;
+		}
+	}
+}
@@ -0,0 +1,333 @@
+package jedistools;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Transaction;
+import redis.clients.jedis.exceptions.JedisException;
+
+import jedistools.JedisFactory.JWork;
+
+/**
+ * Buffers score increments for a {@link RedisSortedSet} locally and
+ * sends them to Redis as pipelined ZINCRBY batches. Increments to the
+ * same member are combined before being sent so a hot member costs
+ * one command per flush no matter how often it is incremented. Buffered
+ * increments are flushed at least every flush interval, when the number
+ * of pending members reaches the configured maximum, or on
+ * {@link RedisScoreBuffer#flush()} / {@link RedisScoreBuffer#close()}.
+ * Flushes run one at a time and each batch is sent in a MULTI/EXEC, so
+ * a batch is applied whole or not at all and put back on failure. A
+ * connection lost while the EXEC reply is on its way is the exception:
+ * the batch may have been applied and is sent again.
+ *
+ * @author Hisham Mardam-Bey
+ *
+ */
+public class RedisScoreBuffer
+{
+	protected static Logger m_logger = Logger.getLogger(RedisScoreBuffer.class.getName());
+
+	/**
+	 * Number of ZINCRBY commands sent per pipeline round trip.
+	 */
+	protected static int REDIS_FLUSH_BATCH_SIZE = 512;
+
+	/**
+	 * Number of distinct pending members after which increments
+	 * trigger a flush before the interval elapses.
+	 */
+	protected static int REDIS_MAX_PENDING_MEMBERS = 65536;
+
+	/**
+	 * Marks a delta that has been handed to a flush, incrementers
+	 * seeing it must start over with a fresh delta. This is a NaN
+	 * that {@link Double#doubleToLongBits(double)} never produces.
+	 */
+	private static final long RETIRED = 0x7ff0000000000001L;
+
+	protected RedisSortedSet m_set;
+
+	protected ConcurrentMap<String, AtomicLong> m_pending = new ConcurrentHashMap<String, AtomicLong>();
+
+	protected ScheduledExecutorService m_flusher;
+
+	/**
+	 * Held for the whole of a flush.
+	 */
+	private final Lock m_flushLock = new ReentrantLock();
+
+	/**
+	 * Creates a buffer for the given set that flushes at least every
+	 * <code>lFlushIntervalMs</code> milliseconds.
+	 *
+	 * @param set the set to increment scores in
+	 * @param lFlushIntervalMs the maximum time an increment stays buffered
+	 */
+	public RedisScoreBuffer(RedisSortedSet set, long lFlushIntervalMs)
+	{
+		m_set = set;
+		m_flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r, "RedisScoreBuffer-" + m_set.getFullKey());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+		m_flusher.scheduleWithFixedDelay(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					flush();
+				}
+				catch (Exception e)
+				{
+					m_logger.warn("Could not flush buffered increments for " + m_set.getFullKey(), e);
+				}
+			}
+		}, lFlushIntervalMs, lFlushIntervalMs, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Adds <code>dBy</code> to the buffered delta of the given member.
+	 *
+	 * @param strMember the member whose score to increment
+	 * @param dBy the amount to increment by
+	 */
+	public void increment(String strMember, double dBy)
+	{
+		buffer(strMember, dBy);
+
+		if (m_pending.size() >= REDIS_MAX_PENDING_MEMBERS)
+		{
+			try
+			{
+				flush();
+			}
+			catch (JedisException e)
+			{
+				// the increment stays buffered for the next flush
+				m_logger.warn("Could not flush buffered increments for " + m_set.getFullKey(), e);
+			}
+		}
+	}
+
+	protected void buffer(String strMember, double dBy)
+	{
+		while (true)
+		{
+			AtomicLong delta = m_pending.get(strMember);
+
+			if (delta == null)
+			{
+				AtomicLong fresh = new AtomicLong(Double.doubleToLongBits(0d));
+				delta = m_pending.putIfAbsent(strMember, fresh);
+
+				if (delta == null)
+				{
+					delta = fresh;
+				}
+			}
+
+			if (add(delta, dBy))
+			{
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Returns the score of the given member including increments that
+	 * have not been flushed yet (read-your-writes). Increments that are 
+	 * in the middle of being flushed can be missed, call 
+	 * {@link RedisScoreBuffer#flush()} first for a strict read.
+	 *
+	 * @param strMember the member to get the score for
+	 * @return the score or null if the member is neither in the set nor buffered
+	 */
+	public Double getScore(final String strMember)
+	{
+		Double score = m_set.withJedisDo(new JWork<Double>()
+		{
+			@Override
+			public Double work(Jedis j)
+			{
+				return j.zscore(m_set.getFullKey(), strMember);
+			}
+		});
+
+		AtomicLong delta = m_pending.get(strMember);
+
+		if (delta == null)
+		{
+			return score;
+		}
+
+		long bits = delta.get();
+		double dDelta = (bits == RETIRED) ? 0d : Double.longBitsToDouble(bits);
+
+		return (score == null) ? dDelta : score + dDelta;
+	}
+
+	/**
+	 * Sends every buffered increment to Redis, after any flush already 
+	 * running. Deltas that could not be sent are put back in the buffer, 
+	 * the flush stops at the first batch that fails and throws its 
+	 * failure.
+	 * 
+	 * @throws JedisException if a batch could not be sent
+	 */
+	public void flush()
+	{
+		m_flushLock.lock();
+		
+		try
+		{
+			flushLocked();
+		}
+		finally
+		{
+			m_flushLock.unlock();
+		}
+	}
+
+	protected void flushLocked()
+	{
+		final List<String> members = new ArrayList<String>();
+		final List<Double> deltas = new ArrayList<Double>();
+
+		for (Map.Entry<String, AtomicLong> e : m_pending.entrySet())
+		{
+			// unlink first so new increments go to a fresh delta, then
+			// retire this one so late incrementers move over as well
+			if (!m_pending.remove(e.getKey(), e.getValue()))
+			{
+				continue;
+			}
+
+			double dDelta = Double.longBitsToDouble(e.getValue().getAndSet(RETIRED));
+
+			if (dDelta != 0d)
+			{
+				members.add(e.getKey());
+				deltas.add(dDelta);
+			}
+		}
+
+		for (int iFrom = 0; iFrom < members.size(); iFrom += REDIS_FLUSH_BATCH_SIZE)
+		{
+			final int iStart = iFrom;
+			final int iEnd = Math.min(iFrom + REDIS_FLUSH_BATCH_SIZE, members.size());
+
+			try
+			{
+				m_set.withJedisDo(new JWork<Boolean>()
+				{
+					@Override
+					public Boolean work(Jedis j)
+					{
+						Transaction t = j.multi();
+
+						for (int i = iStart; i < iEnd; i++)
+						{
+							t.zincrby(m_set.getFullKey(), deltas.get(i), members.get(i));
+
+							if (m_set.getChangeChannel() != null)
+							{
+								t.publish(m_set.getChangeChannel(), RedisSortedSetMirror.incremented(deltas.get(i), members.get(i)));
+							}
+						}
+
+						t.exec();
+						return true;
+					}
+				});
+			}
+			catch (JedisException e)
+			{
+				// this batch and the ones after it were already taken out
+				// of the buffer, put them all back for the next flush
+				m_logger.warn("Could not flush " + (members.size() - iStart) + " increments for " + m_set.getFullKey() + ", keeping them buffered.", e);
+
+				for (int i = iStart; i < members.size(); i++)
+				{
+					buffer(members.get(i), deltas.get(i));
+				}
+
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Stops the periodic flush, waits for a flush that is running and
+	 * flushes what is left. If that fails the increments stay buffered, 
+	 * see {@link RedisScoreBuffer#getPendingCount()}, and can still be 
+	 * sent with {@link RedisScoreBuffer#flush()}.
+	 * 
+	 * @throws JedisException if the increments left could not be sent
+	 */
+	public void close()
+	{
+		m_flusher.shutdown();
+
+		try
+		{
+			m_flusher.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+
+		flush();
+	}
+
+	/**
+	 * @return the number of members with increments not sent yet
+	 */
+	public int getPendingCount()
+	{
+		return m_pending.size();
+	}
+
+	private static boolean add(AtomicLong delta, double dBy)
+	{
+		while (true)
+		{
+			long bits = delta.get();
+
+			if (bits == RETIRED)
+			{
+				return false;
+			}
+
+			long next = Double.doubleToLongBits(Double.longBitsToDouble(bits) + dBy);
+
+			if (delta.compareAndSet(bits, next))
+			{
+				return true;
+			}
+		}
+	}
+}
@@ -0,0 +1,439 @@
+package jedistools;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.Transaction;
+
+import jedistools.JedisFactory.JWork;
+
+/**
+ * A {@link RedisBlockingQueue} spread over several Redis lists (shards)
+ * so producers and consumers of one logical queue do not all contend on
+ * a single key. Producers pick a shard round robin, or by hash of a
+ * routing key to keep related elements in order, and consumers block on
+ * all shards at once with a multi key BRPOP whose key order rotates so
+ * no shard is favoured. Ordering is only kept within a shard.
+ * <p>
+ * The shards are not spread over {@link ShardedJedisFactory}'s nodes:
+ * every call runs on the node of the queue's key so a single BRPOP can
+ * wait on all of them, so the whole queue lives on one node. To spread a
+ * queue's load over nodes use several queues with different keys.
+ *
+ * @author Hisham Mardam-Bey
+ *
+ */
+public abstract class RedisShardedBlockingQueue extends RedisBlockingQueue
+{
+	/**
+	 * Default number of lists a queue is spread over.
+	 */
+	protected static int REDIS_QUEUE_SHARDS = 8;
+
+	private final AtomicInteger m_iNextProducer = new AtomicInteger();
+
+	private final AtomicInteger m_iNextConsumer = new AtomicInteger();
+
+	protected RedisShardedBlockingQueue()
+	{
+		super();
+	}
+
+	/**
+	 * @param client the client this object's calls run on, null for {@link JedisFactory}
+	 */
+	protected RedisShardedBlockingQueue(JedisClient client)
+	{
+		super(client);
+	}
+
+	/**
+	 * Returns the number of lists this queue is spread over. All producers
+	 * and consumers of a queue must agree on it.
+	 *
+	 * @return the number of shards
+	 */
+	protected int getShardCount()
+	{
+		return REDIS_QUEUE_SHARDS;
+	}
+
+	protected String getShardKey(int iShard)
+	{
+		return getFullKey() + ":" + iShard;
+	}
+
+	protected String[] getShardKeys()
+	{
+		String[] keys = new String[getShardCount()];
+
+		for (int i = 0; i < keys.length; i++)
+		{
+			keys[i] = getShardKey(i);
+		}
+
+		return keys;
+	}
+
+	/**
+	 * Returns all shard keys starting at the next consumer's shard.
+	 */
+	protected String[] getRotatedShardKeys()
+	{
+		int n = getShardCount();
+		int iStart = (m_iNextConsumer.getAndIncrement() & Integer.MAX_VALUE) % n;
+		String[] keys = new String[n];
+
+		for (int i = 0; i < n; i++)
+		{
+			keys[i] = getShardKey((iStart + i) % n);
+		}
+
+		return keys;
+	}
+
+	protected int nextShard()
+	{
+		return (m_iNextProducer.getAndIncrement() & Integer.MAX_VALUE) % getShardCount();
+	}
+
+	protected int shardFor(String strRoutingKey)
+	{
+		return (strRoutingKey.hashCode() & Integer.MAX_VALUE) % getShardCount();
+	}
+
+	@Override
+	public boolean add(final String e)
+	{
+		return addToShard(nextShard(), e);
+	}
+
+	/**
+	 * Adds the given element to the shard picked by the given routing key,
+	 * elements with the same routing key are taken in the order they were
+	 * added.
+	 *
+	 * @param e the element
+	 * @param strRoutingKey the routing key
+	 * @return true
+	 */
+	public boolean add(String e, String strRoutingKey)
+	{
+		return addToShard(shardFor(strRoutingKey), e);
+	}
+
+	protected boolean addToShard(final int iShard, final String e)
+	{
+		return withJedisDo(new JWork<Boolean>()
+		{
+			@Override
+			public Boolean work(Jedis j)
+			{
+				j.lpush(getShardKey(iShard), e);
+				return true;
+			}
+		});
+	}
+
+	@Override
+	public boolean addAll(final Collection<? extends String> c)
+	{
+		return withJedisDo(new JWork<Boolean>()
+		{
+			@Override
+			public Boolean work(Jedis j)
+			{
+				Pipeline p = j.pipelined();
+
+				for (String s : c)
+				{
+					p.lpush(getShardKey(nextShard()), s);
+				}
+
+				p.sync();
+				return true;
+			}
+		});
+	}
+
+	@Override
+	public String take() throws InterruptedException
+	{
+		return withJedisDo(new JWork<String>()
+		{
+			@Override
+			public String work(Jedis j)
+			{
+				List<String> ret = j.brpop(0, getRotatedShardKeys());
+
+				if (ret == null || ret.size() != 2)
+				{
+					return null;
+				}
+
+				return ret.get(1);
+			}
+		});
+	}
+
+	/**
+	 * Waits up to the given time for an element, rounded up to whole
+	 * seconds since BRPOP waits forever on a timeout of 0. Does not block
+	 * when the timeout is not positive.
+	 */
+	@Override
+	public String poll(final long timeout, final TimeUnit unit) throws InterruptedException
+	{
+		if (timeout <= 0)
+		{
+			return poll();
+		}
+
+		return withJedisDo(new JWork<String>()
+		{
+			@Override
+			public String work(Jedis j)
+			{
+				List<String> ret = j.brpop(toSeconds(timeout, unit), getRotatedShardKeys());
+
+				if (ret == null || ret.size() != 2)
+				{
+					return null;
+				}
+
+				return ret.get(1);
+			}
+		});
+	}
+
+	/**
+	 * Takes an element from the first non empty shard without blocking,
+	 * unlike {@link RedisBlockingQueue#poll()}.
+	 */
+	@Override
+	public String poll()
+	{
+		return withJedisDo(new JWork<String>()
+		{
+			@Override
+			public String work(Jedis j)
+			{
+				for (String strKey : getRotatedShardKeys())
+				{
+					String ret = j.rpop(strKey);
+
+					if (ret != null)
+					{
+						return ret;
+					}
+				}
+
+				return null;
+			}
+		});
+	}
+
+	@Override
+	public String peek()
+	{
+		return withJedisDo(new JWork<String>()
+		{
+			@Override
+			public String work(Jedis j)
+			{
+				for (String strKey : getShardKeys())
+				{
+					String ret = j.lindex(strKey, -1);
+
+					if (ret != null)
+					{
+						return ret;
+					}
+				}
+
+				return null;
+			}
+		});
+	}
+
+	@Override
+	public String element()
+	{
+		String ret = peek();
+
+		if (ret == null)
+		{
+			throw new NoSuchElementException("The Redis lists are either empty or an error occured.");
+		}
+
+		return ret;
+	}
+
+	@Override
+	public int size()
+	{
+		return withJedisDo(new JWork<Integer>()
+		{
+			@Override
+			public Integer work(Jedis j)
+			{
+				Pipeline p = j.pipelined();
+				List<Response<Long>> lens = new ArrayList<Response<Long>>(getShardCount());
+
+				for (String strKey : getShardKeys())
+				{
+					lens.add(p.llen(strKey));
+				}
+
+				p.sync();
+
+				int iSize = 0;
+
+				for (Response<Long> r : lens)
+				{
+					iSize += r.get().intValue();
+				}
+
+				return iSize;
+			}
+		});
+	}
+
+	@Override
+	public Iterator<String> iterator()
+	{
+		return withJedisDo(new JWork<Iterator<String>>()
+		{
+			@Override
+			public Iterator<String> work(Jedis j)
+			{
+				Pipeline p = j.pipelined();
+				List<Response<List<String>>> shards = new ArrayList<Response<List<String>>>(getShardCount());
+
+				for (String strKey : getShardKeys())
+				{
+					shards.add(p.lrange(strKey, 0, -1));
+				}
+
+				p.sync();
+
+				List<String> ret = new ArrayList<String>();
+
+				for (Response<List<String>> r : shards)
+				{
+					ret.addAll(r.get());
+				}
+
+				return ret.iterator();
+			}
+		});
+	}
+
+	@Override
+	public Object[] toArray()
+	{
+		List<String> ret = new ArrayList<String>();
+		Iterator<String> iter = iterator();
+
+		while (iter.hasNext())
+		{
+			ret.add(iter.next());
+		}
+
+		return ret.toArray();
+	}
+
+	@Override
+	public void clear()
+	{
+		withJedisDo(new JWork<Boolean>()
+		{
+			@Override
+			public Boolean work(Jedis j)
+			{
+				j.del(getShardKeys());
+				return true;
+			}
+		});
+	}
+
+	@Override
+	public boolean remove(final Object o)
+	{
+		return withJedisDo(new JWork<Boolean>()
+		{
+			@Override
+			public Boolean work(Jedis j)
+			{
+				for (String strKey : getShardKeys())
+				{
+					if (j.lrem(strKey, 1, o.toString()) == 1)
+					{
+						return true;
+					}
+				}
+
+				return false;
+			}
+		});
+	}
+
+	@Override
+	public int drainTo(Collection<? super String> c)
+	{
+		return drainTo(c, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public int drainTo(final Collection<? super String> c, final int maxElements)
+	{
+		if (c == null)
+		{
+			throw new NullPointerException("Specified collection can not be null.");
+		}
+
+		return withJedisDo(new JWork<Integer>()
+		{
+			@Override
+			public Integer work(Jedis j)
+			{
+				int iDrained = 0;
+
+				for (String strKey : getRotatedShardKeys())
+				{
+					int iLeft = maxElements - iDrained;
+
+					if (iLeft <= 0)
+					{
+						break;
+					}
+
+					// the oldest elements are at the tail of each list
+					Transaction t = j.multi();
+					Response<List<String>> resp = t.lrange(strKey, -iLeft, -1);
+					t.ltrim(strKey, 0, -iLeft - 1);
+					t.exec();
+
+					List<String> ret = resp.get();
+
+					for (int i = ret.size() - 1; i >= 0; i--)
+					{
+						c.add(ret.get(i));
+					}
+
+					iDrained += ret.size();
+				}
+
+				return iDrained;
+			}
+		});
+	}
+}
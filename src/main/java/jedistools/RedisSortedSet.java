@@ -1,19 +1,27 @@
 package jedistools;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.SortedSet;
-import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
 
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Response;
 import redis.clients.jedis.Transaction;
 import redis.clients.jedis.TransactionBlock;
 import redis.clients.jedis.Tuple;
+import redis.clients.jedis.ZParams.Aggregate;
 import redis.clients.jedis.exceptions.JedisException;
 
+import jedistools.ColumnarRange.ScoreVisitor;
 import jedistools.JedisFactory.JWork;
 
 import static jedistools.JedisFactory.*;
@@ -27,10 +35,41 @@ import static jedistools.JedisFactory.*;
  */
 public abstract class RedisSortedSet extends RedisBaseObject implements SortedSet<Tuple>
 {		
+	/**
+	 * Number of times {@link RedisSortedSet#replace(Collection)} tries to 
+	 * apply its diff when the set keeps being modified concurrently.
+	 */
+	protected static int REDIS_REPLACE_RETRY_COUNT = 8;
+	
+	protected RedisSortedSet()
+	{
+		super();
+	}
+	
+	/**
+	 * @param client the client this object's calls run on, null for {@link JedisFactory}
+	 */
+	protected RedisSortedSet(JedisClient client)
+	{
+		super(client);
+	}
+	
+	/**
+	 * Returns the pub/sub channel every change made through this object 
+	 * is published on so {@link RedisSortedSetMirror}s can follow the 
+	 * set, or null (the default) to not publish changes at all.
+	 * 
+	 * @return the channel name or null
+	 */
+	protected String getChangeChannel()
+	{
+		return null;
+	}
+	
 	@Override
 	public int size()
 	{
-		return withJedisDo(new JWork<Integer>() 
+		return withJedisReadShared(Arrays.asList("ZCARD"), new JWork<Integer>() 
 		{
 			@Override
 			public Integer work(Jedis j)
@@ -55,7 +94,7 @@ public abstract class RedisSortedSet extends RedisBaseObject implements SortedSe
 	@Override
 	public boolean contains(final Object key)
 	{
-		return withJedisDo(new JWork<Boolean>() 
+		return withJedisRead(new JWork<Boolean>() 
 		{
 			@Override
 			public Boolean work(Jedis j)
@@ -72,7 +111,7 @@ public abstract class RedisSortedSet extends RedisBaseObject implements SortedSe
 	@Override
 	public Iterator<Tuple> iterator()
 	{
-		return withJedisDo(new JWork<Iterator<Tuple>>() 
+		return withJedisRead(new JWork<Iterator<Tuple>>() 
 		{
 			@Override
 			public Iterator<Tuple> work(Jedis j)
@@ -89,7 +128,7 @@ public abstract class RedisSortedSet extends RedisBaseObject implements SortedSe
 	@Override
 	public Object[] toArray()
 	{
-		return withJedisDo(new JWork<Object[]>() 
+		return withJedisRead(new JWork<Object[]>() 
 		{
 			@Override
 			public Object[] work(Jedis j)
@@ -118,7 +157,16 @@ public abstract class RedisSortedSet extends RedisBaseObject implements SortedSe
 			@Override
 			public Boolean work(Jedis j)
 			{
-				j.zadd(getFullKey(), e.getScore(), e.getElement());
+				if (getChangeChannel() == null)
+				{
+					j.zadd(getFullKey(), e.getScore(), e.getElement());
+					return true;
+				}
+				
+				Transaction t = j.multi();
+				t.zadd(getFullKey(), e.getScore(), e.getElement());
+				t.publish(getChangeChannel(), RedisSortedSetMirror.upserted(e.getScore(), e.getElement()));
+				t.exec();
 				return true;
 			}			
 		});
@@ -140,7 +188,16 @@ public abstract class RedisSortedSet extends RedisBaseObject implements SortedSe
 			{
 				if (!(o instanceof String)) return false;
 				
-				j.zrem(getFullKey(), (String)o);
+				if (getChangeChannel() == null)
+				{
+					j.zrem(getFullKey(), (String)o);
+					return true;
+				}
+				
+				Transaction t = j.multi();
+				t.zrem(getFullKey(), (String)o);
+				t.publish(getChangeChannel(), RedisSortedSetMirror.removed((String)o));
+				t.exec();
 				return true;
 			}			
 		});
@@ -154,7 +211,7 @@ public abstract class RedisSortedSet extends RedisBaseObject implements SortedSe
 	@Override
 	public boolean containsAll(final Collection<?> c)
 	{
-		return withJedisDo(new JWork<Boolean>() 
+		return withJedisRead(new JWork<Boolean>() 
 		{
 			@Override
 			public Boolean work(Jedis j)
@@ -179,6 +236,11 @@ public abstract class RedisSortedSet extends RedisBaseObject implements SortedSe
 				{
 					Tuple tuple = (Tuple) o;
 					t.zadd(getFullKey(), tuple.getScore(), tuple.getElement());
+					
+					if (getChangeChannel() != null)
+					{
+						t.publish(getChangeChannel(), RedisSortedSetMirror.upserted(tuple.getScore(), tuple.getElement()));
+					}
 				}
 
 				t.exec();
@@ -188,39 +250,144 @@ public abstract class RedisSortedSet extends RedisBaseObject implements SortedSe
 	}
 
 	/**
-	 * Clears the set and retains the given {@link Tuple} {@link Collection}.
+	 * Makes the set hold exactly the given {@link Tuple} {@link Collection}. 
+	 * See {@link RedisSortedSet#replace(Collection)}.
 	 * 
-	 * @return true all the time (TODO: fix this)
+	 * @return true if the set changed
 	 */
 	@Override
 	public boolean retainAll(final Collection<?> c)
+	{
+		List<Tuple> tuples = new ArrayList<Tuple>(c.size());
+		
+		for (Object o : c)
+		{
+			tuples.add((Tuple) o);
+		}
+		
+		return replace(tuples);
+	}
+	
+	/**
+	 * Makes the set hold exactly the given {@link Tuple}s. Only the 
+	 * members that have to go are removed and only new members or 
+	 * members whose score changed are added, so readers never see 
+	 * an empty set and the amount written is proportional to the 
+	 * change. The diff is computed against a WATCHed snapshot and 
+	 * retried if the set is modified concurrently.
+	 * 
+	 * @param c the {@link Tuple}s the set should hold
+	 * @return true if the set changed
+	 * @throws JedisException if the set was modified concurrently on every
+	 *         one of {@link RedisSortedSet#REDIS_REPLACE_RETRY_COUNT} attempts
+	 */
+	public boolean replace(final Collection<? extends Tuple> c)
 	{
 		return withJedisDo(new JWork<Boolean>() 
 		{
 			@Override
 			public Boolean work(Jedis j)
-			{				
-				@SuppressWarnings("unused")
-				List<Object> ret = j.multi(new TransactionBlock()
-				{					
-					@Override
-					public void execute() throws JedisException
+			{
+				Map<String, Double> desired = new HashMap<String, Double>();
+				
+				for (Tuple t : c)
+				{
+					desired.put(t.getElement(), t.getScore());
+				}
+				
+				for (int i = 0; i < REDIS_REPLACE_RETRY_COUNT; i++)
+				{
+					j.watch(getFullKey());
+					boolean bWatching = true;
+					
+					try
 					{
-						del(getFullKey());
+						Set<Tuple> current = j.zrangeWithScores(getFullKey(), 0, -1);
+						List<String> removed = new ArrayList<String>();
+						Map<String, Double> added = new HashMap<String, Double>(desired);
 						
-						for (Object o : c)
+						for (Tuple t : current)
 						{
-							Tuple t = (Tuple) o;				
-							zadd(getFullKey(), t.getScore(), t.getElement());
+							Double score = desired.get(t.getElement());
+							
+							if (score == null)
+							{
+								removed.add(t.getElement());
+							}
+							else if (score.doubleValue() == t.getScore())
+							{
+								added.remove(t.getElement());
+							}
+						}
+						
+						if (removed.isEmpty() && added.isEmpty())
+						{
+							bWatching = false;
+							j.unwatch();
+							return false;
+						}
+						
+						Transaction t = j.multi();
+						
+						// EXEC drops the WATCH, an exception from here on discards the connection
+						bWatching = false;
+						
+						for (String s : removed)
+						{
+							t.zrem(getFullKey(), s);
+							
+							if (getChangeChannel() != null)
+							{
+								t.publish(getChangeChannel(), RedisSortedSetMirror.removed(s));
+							}
+						}
+						
+						for (Map.Entry<String, Double> e : added.entrySet())
+						{
+							t.zadd(getFullKey(), e.getValue(), e.getKey());
+							
+							if (getChangeChannel() != null)
+							{
+								t.publish(getChangeChannel(), RedisSortedSetMirror.upserted(e.getValue(), e.getKey()));
+							}
+						}
+						
+						// a null reply means the WATCHed key changed under us
+						if (t.exec() != null)
+						{
+							return true;
 						}
 					}
-				});
+					finally
+					{
+						if (bWatching)
+						{
+							unwatch(j);
+						}
+					}
+				}
 				
-				return true;
+				throw new JedisException("Could not replace " + getFullKey() + ", it kept being modified concurrently.");
 			}			
 		});
 	}
 
+	/**
+	 * Drops the WATCH of an attempt that threw before MULTI, without
+	 * hiding the exception.
+	 */
+	private static void unwatch(Jedis j)
+	{
+		try
+		{
+			j.unwatch();
+		}
+		catch (JedisException e)
+		{
+			// the connection is discarded anyway
+		}
+	}
+
 	/**
 	 * Removes the given {@link Collection} of {@link String}s from the set.
 	 * 
@@ -244,6 +411,11 @@ public abstract class RedisSortedSet extends RedisBaseObject implements SortedSe
 						{
 							String s = (String) o;					
 							zrem(getFullKey(), s);
+							
+							if (getChangeChannel() != null)
+							{
+								publish(getChangeChannel(), RedisSortedSetMirror.removed(s));
+							}
 						}
 					}
 				});
@@ -261,7 +433,16 @@ public abstract class RedisSortedSet extends RedisBaseObject implements SortedSe
 			@Override
 			public Object work(Jedis j)
 			{								
-				j.del(getFullKey());								
+				if (getChangeChannel() == null)
+				{
+					j.del(getFullKey());
+					return null;
+				}
+				
+				Transaction t = j.multi();
+				t.del(getFullKey());
+				t.publish(getChangeChannel(), RedisSortedSetMirror.CLEARED);
+				t.exec();
 				return null;
 			}			
 		});
@@ -277,66 +458,133 @@ public abstract class RedisSortedSet extends RedisBaseObject implements SortedSe
 	@Override
 	public SortedSet<Tuple> subSet(final Tuple fromElement, final Tuple toElement)
 	{
-		return withJedisDo(new JWork<SortedSet<Tuple>>() 
+		ColumnarRange res = rangeByScoreColumns(fromElement.getScore(), toElement.getScore());
+		
+		if (res == null) return null;
+		
+		SortedSet<Tuple> ret = res.toSortedSet();
+		// SortedSet.subSet() forbids the passed in toElement
+		// from being in the set
+		ret.remove(toElement);
+		
+		return ret;
+	}
+
+	@Override
+	public SortedSet<Tuple> headSet(final Tuple toElement)
+	{
+		ColumnarRange res = rangeByScoreColumns(Double.MIN_VALUE, toElement.getScore());
+		
+		if (res == null) return null;
+		
+		SortedSet<Tuple> ret = res.toSortedSet();
+		// SortedSet.headSet() forbids the passed in element
+		// from being in the set
+		ret.remove(toElement);
+		
+		return ret;
+	}
+
+	@Override
+	public SortedSet<Tuple> tailSet(final Tuple fromElement)
+	{
+		ColumnarRange res = rangeByScoreColumns(fromElement.getScore(), Double.MAX_VALUE);
+		
+		if (res == null) return null;
+		
+		return res.toSortedSet();
+	}
+	
+	/**
+	 * Returns the members ranked <code>iStart</code> to <code>iEnd</code> 
+	 * (inclusive, negative values count from the end) as a 
+	 * {@link ColumnarRange}. The raw reply is read straight into 
+	 * arrays, no intermediate {@link Tuple}s are built.
+	 * 
+	 * @param iStart the rank of the first member
+	 * @param iEnd the rank of the last member
+	 * @return the {@link ColumnarRange}
+	 */
+	public ColumnarRange rangeColumns(final int iStart, final int iEnd)
+	{
+		return withJedisReadShared(Arrays.asList("ZRANGE", iStart, iEnd), new JWork<ColumnarRange>() 
 		{
 			@Override
-			public SortedSet<Tuple> work(Jedis j)
-			{								
-				Set<Tuple> res = j.zrangeByScoreWithScores(getFullKey(), fromElement.getScore(), toElement.getScore());
-				// SortedSet.subSet() forbids the passed in toElement
-				// from being in the set
-				res.remove(toElement);
-				
-				TreeSet<Tuple> ret = new TreeSet<Tuple>();
-				ret.addAll(res);
-				
-				return ret;
+			public ColumnarRange work(Jedis j)
+			{
+				j.getClient().zrangeWithScores(getFullKey(), iStart, iEnd);
+				return ColumnarRange.fromReply(j.getClient().getBinaryMultiBulkReply());
 			}			
 		});
 	}
-
-	@Override
-	public SortedSet<Tuple> headSet(final Tuple toElement)
+	
+	/**
+	 * Returns the members scored <code>dMin</code> to <code>dMax</code> 
+	 * (inclusive) as a {@link ColumnarRange}.
+	 * 
+	 * @param dMin the lowest score
+	 * @param dMax the highest score
+	 * @return the {@link ColumnarRange}
+	 */
+	public ColumnarRange rangeByScoreColumns(final double dMin, final double dMax)
 	{
-		return withJedisDo(new JWork<SortedSet<Tuple>>() 
+		return withJedisReadShared(Arrays.asList("ZRANGEBYSCORE", dMin, dMax), new JWork<ColumnarRange>() 
 		{
 			@Override
-			public SortedSet<Tuple> work(Jedis j)
-			{								
-				Set<Tuple> res = j.zrangeByScoreWithScores(getFullKey(), Double.MIN_VALUE, toElement.getScore());
-				// SortedSet.headSet() forbids the passed in element
-				// from being in the set
-				res.remove(toElement);
-				
-				TreeSet<Tuple> ret = new TreeSet<Tuple>();
-				ret.addAll(res);
-				
-				return ret;
+			public ColumnarRange work(Jedis j)
+			{
+				j.getClient().zrangeByScoreWithScores(getFullKey(), dMin, dMax);
+				return ColumnarRange.fromReply(j.getClient().getBinaryMultiBulkReply());
 			}			
 		});
 	}
-
-	@Override
-	public SortedSet<Tuple> tailSet(final Tuple fromElement)
+	
+	/**
+	 * Returns at most <code>iCount</code> members scored <code>dMin</code> 
+	 * to <code>dMax</code> (inclusive), skipping the first <code>iOffset</code>, 
+	 * as a {@link ColumnarRange}.
+	 * 
+	 * @param dMin the lowest score
+	 * @param dMax the highest score
+	 * @param iOffset number of matching members to skip
+	 * @param iCount maximum number of members to return
+	 * @return the {@link ColumnarRange}
+	 */
+	public ColumnarRange rangeByScoreColumns(final double dMin, final double dMax, final int iOffset, final int iCount)
 	{
-		return withJedisDo(new JWork<SortedSet<Tuple>>() 
+		return withJedisReadShared(Arrays.asList("ZRANGEBYSCORE", dMin, dMax, iOffset, iCount), new JWork<ColumnarRange>() 
 		{
 			@Override
-			public SortedSet<Tuple> work(Jedis j)
-			{								
-				Set<Tuple> res = j.zrangeByScoreWithScores(getFullKey(), fromElement.getScore(), Double.MAX_VALUE);
-				TreeSet<Tuple> ret = new TreeSet<Tuple>();
-				ret.addAll(res);
-				
-				return ret;
+			public ColumnarRange work(Jedis j)
+			{
+				j.getClient().zrangeByScoreWithScores(getFullKey(), dMin, dMax, iOffset, iCount);
+				return ColumnarRange.fromReply(j.getClient().getBinaryMultiBulkReply());
 			}			
 		});
 	}
+	
+	/**
+	 * Runs the given {@link ScoreVisitor} on every member scored 
+	 * <code>dMin</code> to <code>dMax</code> (inclusive) in order.
+	 * 
+	 * @param dMin the lowest score
+	 * @param dMax the highest score
+	 * @param visitor the {@link ScoreVisitor} to run
+	 */
+	public void foreach(double dMin, double dMax, ScoreVisitor visitor)
+	{
+		ColumnarRange res = rangeByScoreColumns(dMin, dMax);
+		
+		if (res != null)
+		{
+			res.foreach(visitor);
+		}
+	}
 
 	@Override
 	public Tuple first()
 	{
-		return withJedisDo(new JWork<Tuple>() 
+		return withJedisReadShared(Arrays.asList("ZRANGE", 0, 0), new JWork<Tuple>() 
 		{
 			@Override
 			public Tuple work(Jedis j)
@@ -356,7 +604,7 @@ public abstract class RedisSortedSet extends RedisBaseObject implements SortedSe
 	@Override
 	public Tuple last()
 	{
-		return withJedisDo(new JWork<Tuple>() 
+		return withJedisReadShared(Arrays.asList("ZRANGE", -1, -1), new JWork<Tuple>() 
 		{
 			@Override
 			public Tuple work(Jedis j)
@@ -373,6 +621,145 @@ public abstract class RedisSortedSet extends RedisBaseObject implements SortedSe
 		});
 	}
 	
+	/**
+	 * Atomically increments the score of the given member, adding the 
+	 * member if it is not in the set yet.
+	 * 
+	 * @param strMember the member whose score to increment
+	 * @param dBy the amount to increment by
+	 * @return the new score
+	 */
+	public Double incrementScore(final String strMember, final double dBy)
+	{
+		return withJedisDo(new JWork<Double>() 
+		{
+			@Override
+			public Double work(Jedis j)
+			{
+				if (getChangeChannel() == null)
+				{
+					return j.zincrby(getFullKey(), dBy, strMember);
+				}
+				
+				Transaction t = j.multi();
+				Response<Double> score = t.zincrby(getFullKey(), dBy, strMember);
+				t.publish(getChangeChannel(), RedisSortedSetMirror.incremented(dBy, strMember));
+				t.exec();
+				return score.get();
+			}			
+		});
+	}
+	
+	/**
+	 * Returns a {@link RedisScoreBuffer} that combines increments to 
+	 * this set locally and flushes them at least every 
+	 * <code>lFlushIntervalMs</code> milliseconds. The caller must 
+	 * {@link RedisScoreBuffer#close()} it when done.
+	 * 
+	 * @param lFlushIntervalMs the maximum time an increment stays buffered
+	 * @return the {@link RedisScoreBuffer}
+	 */
+	public RedisScoreBuffer buffered(long lFlushIntervalMs)
+	{
+		return new RedisScoreBuffer(this, lFlushIntervalMs);
+	}
+	
+	/**
+	 * Returns a {@link RedisSortedSetMirror} of this set, loaded and 
+	 * following the set's change channel. The caller must 
+	 * {@link RedisSortedSetMirror#close()} it when done.
+	 * 
+	 * @return the {@link RedisSortedSetMirror}
+	 */
+	public RedisSortedSetMirror mirror()
+	{
+		if (getChangeChannel() == null)
+		{
+			throw new IllegalStateException(getClass().getName() + " does not publish its changes, override getChangeChannel() to mirror it.");
+		}
+		
+		return new RedisSortedSetMirror(this).start();
+	}
+	
+	/**
+	 * Returns a view holding the union of this set and the given sets. 
+	 * The union is computed on the server and cached for the given 
+	 * number of seconds.
+	 * 
+	 * @param iTtl number of seconds to cache the result for
+	 * @param others the sets to union with this one
+	 * @return the {@link RedisSortedSetView} holding the result
+	 */
+	public RedisSortedSetView union(int iTtl, RedisSortedSet... others)
+	{
+		return union(iTtl, null, null, others);
+	}
+	
+	/**
+	 * Returns a view holding the union of this set and the given sets 
+	 * with the given weights (this set first) and aggregate mode.
+	 * 
+	 * @param iTtl number of seconds to cache the result for
+	 * @param weights one score multiplier per set, or null
+	 * @param aggregate how to combine scores of common members, or null for SUM
+	 * @param others the sets to union with this one
+	 * @return the {@link RedisSortedSetView} holding the result
+	 */
+	public RedisSortedSetView union(int iTtl, int[] weights, Aggregate aggregate, RedisSortedSet... others)
+	{
+		return new RedisSortedSetView(RedisSortedSetView.Op.UNION, iTtl, weights, aggregate, withOthers(others)).maybeRefresh();
+	}
+	
+	/**
+	 * Returns a view holding the intersection of this set and the given 
+	 * sets. The intersection is computed on the server and cached for 
+	 * the given number of seconds.
+	 * 
+	 * @param iTtl number of seconds to cache the result for
+	 * @param others the sets to intersect with this one
+	 * @return the {@link RedisSortedSetView} holding the result
+	 */
+	public RedisSortedSetView intersect(int iTtl, RedisSortedSet... others)
+	{
+		return intersect(iTtl, null, null, others);
+	}
+	
+	/**
+	 * Returns a view holding the intersection of this set and the given 
+	 * sets with the given weights (this set first) and aggregate mode.
+	 * 
+	 * @param iTtl number of seconds to cache the result for
+	 * @param weights one score multiplier per set, or null
+	 * @param aggregate how to combine scores of common members, or null for SUM
+	 * @param others the sets to intersect with this one
+	 * @return the {@link RedisSortedSetView} holding the result
+	 */
+	public RedisSortedSetView intersect(int iTtl, int[] weights, Aggregate aggregate, RedisSortedSet... others)
+	{
+		return new RedisSortedSetView(RedisSortedSetView.Op.INTER, iTtl, weights, aggregate, withOthers(others)).maybeRefresh();
+	}
+	
+	/**
+	 * Returns a view holding the members of this set that are in none 
+	 * of the given sets, with the scores they have in this set.
+	 * 
+	 * @param iTtl number of seconds to cache the result for
+	 * @param others the sets to subtract from this one
+	 * @return the {@link RedisSortedSetView} holding the result
+	 */
+	public RedisSortedSetView diff(int iTtl, RedisSortedSet... others)
+	{
+		return new RedisSortedSetView(RedisSortedSetView.Op.DIFF, iTtl, null, null, withOthers(others)).maybeRefresh();
+	}
+	
+	private RedisSortedSet[] withOthers(RedisSortedSet... others)
+	{
+		RedisSortedSet[] sources = new RedisSortedSet[others.length + 1];
+		sources[0] = this;
+		System.arraycopy(others, 0, sources, 1, others.length);
+		return sources;
+	}
+	
 	/**
 	 * Iterates over all elements ({@link Tuple} objects) in the 
 	 * store in order of score in the main Redis sorted set and 
@@ -393,4 +780,140 @@ public abstract class RedisSortedSet extends RedisBaseObject implements SortedSe
 			if (!work.work(t)) return;			
 		}		
 	}
+	
+	/**
+	 * Asynchronous variant of {@link RedisSortedSet#rangeColumns(int, int)}, 
+	 * runs on the executor of {@link JedisFactory#getAsyncExecutor()}.
+	 */
+	public CompletableFuture<ColumnarRange> rangeAsync(final int iStart, final int iEnd)
+	{
+		return async(new Supplier<ColumnarRange>()
+		{
+			@Override
+			public ColumnarRange get()
+			{
+				return rangeColumns(iStart, iEnd);
+			}
+		});
+	}
+	
+	/**
+	 * Asynchronous variant of {@link RedisSortedSet#rangeByScoreColumns(double, double)}.
+	 */
+	public CompletableFuture<ColumnarRange> rangeByScoreAsync(final double dMin, final double dMax)
+	{
+		return async(new Supplier<ColumnarRange>()
+		{
+			@Override
+			public ColumnarRange get()
+			{
+				return rangeByScoreColumns(dMin, dMax);
+			}
+		});
+	}
+	
+	/**
+	 * Asynchronous variant of {@link RedisSortedSet#rangeByScoreColumns(double, double, int, int)}.
+	 */
+	public CompletableFuture<ColumnarRange> rangeByScoreAsync(final double dMin, final double dMax, final int iOffset, final int iCount)
+	{
+		return async(new Supplier<ColumnarRange>()
+		{
+			@Override
+			public ColumnarRange get()
+			{
+				return rangeByScoreColumns(dMin, dMax, iOffset, iCount);
+			}
+		});
+	}
+	
+	/**
+	 * Asynchronous variant of {@link RedisSortedSet#first()}.
+	 */
+	public CompletableFuture<Tuple> firstAsync()
+	{
+		return async(new Supplier<Tuple>()
+		{
+			@Override
+			public Tuple get()
+			{
+				return first();
+			}
+		});
+	}
+	
+	/**
+	 * Asynchronous variant of {@link RedisSortedSet#last()}.
+	 */
+	public CompletableFuture<Tuple> lastAsync()
+	{
+		return async(new Supplier<Tuple>()
+		{
+			@Override
+			public Tuple get()
+			{
+				return last();
+			}
+		});
+	}
+	
+	/**
+	 * Asynchronous variant of {@link RedisSortedSet#add(Tuple)}.
+	 */
+	public CompletableFuture<Boolean> addAsync(final Tuple e)
+	{
+		return async(new Supplier<Boolean>()
+		{
+			@Override
+			public Boolean get()
+			{
+				return add(e);
+			}
+		});
+	}
+	
+	/**
+	 * Asynchronous variant of {@link RedisSortedSet#remove(Object)}.
+	 */
+	public CompletableFuture<Boolean> removeAsync(final Object o)
+	{
+		return async(new Supplier<Boolean>()
+		{
+			@Override
+			public Boolean get()
+			{
+				return remove(o);
+			}
+		});
+	}
+	
+	/**
+	 * Asynchronous variant of {@link RedisSortedSet#incrementScore(String, double)}.
+	 */
+	public CompletableFuture<Double> incrementScoreAsync(final String strMember, final double dBy)
+	{
+		return async(new Supplier<Double>()
+		{
+			@Override
+			public Double get()
+			{
+				return incrementScore(strMember, dBy);
+			}
+		});
+	}
+	
+	/**
+	 * Asynchronous variant of {@link RedisSortedSet#size()}.
+	 */
+	public CompletableFuture<Integer> sizeAsync()
+	{
+		return async(new Supplier<Integer>()
+		{
+			@Override
+			public Integer get()
+			{
+				return size();
+			}
+		});
+	}
 }
@@ -0,0 +1,1034 @@
+package jedistools;
+
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPubSub;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.Transaction;
+import redis.clients.jedis.Tuple;
+import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.util.SafeEncoder;
+
+import jedistools.JedisFactory.JWork;
+
+/**
+ * A local, read-only copy of a {@link RedisSortedSet} kept off-heap in
+ * primitive arrays (scores, member offsets, member bytes and a hash
+ * index) so range and rank queries are answered without a round trip
+ * and without keeping a {@link Tuple} per member on the heap.
+ * <p>
+ * The mirror loads the whole set once and then follows the changes the
+ * set publishes on its {@link RedisSortedSet#getChangeChannel()}.
+ * Changes are batched and merged into a new snapshot every
+ * {@link RedisSortedSetMirror#REDIS_MIRROR_APPLY_INTERVAL} milliseconds,
+ * readers always see a complete snapshot. Pub/sub does not buffer
+ * messages for disconnected subscribers so the mirror reloads the set
+ * every time it (re)subscribes. The reload publishes a marker on the 
+ * channel in the same transaction that reads the set, changes queued 
+ * before the marker are already in the reloaded copy and are dropped.
+ * <p>
+ * The change feed runs on its own connection, not one borrowed from the
+ * pool, since it is held for as long as the mirror is open. Pub/sub is
+ * per node so it connects to the node the set's writes go to: the
+ * set's {@link JedisClient}, its {@link ShardedJedisFactory} node, or
+ * the master. Writers send every increment and its notification in one
+ * MULTI/EXEC so a reload marker never lands between the two.
+ *
+ * @author Hisham Mardam-Bey
+ *
+ */
+public class RedisSortedSetMirror
+{
+	protected static Logger m_logger = Logger.getLogger(RedisSortedSetMirror.class.getName());
+
+	/**
+	 * Number of milliseconds between merges of received changes.
+	 */
+	protected static int REDIS_MIRROR_APPLY_INTERVAL = 100;
+
+	/**
+	 * Number of milliseconds to wait before resubscribing after the
+	 * change feed connection is lost.
+	 */
+	protected static int REDIS_MIRROR_RESUBSCRIBE_WAITTIME = 1000;
+
+	/**
+	 * Change message telling mirrors the whole set was deleted.
+	 */
+	static final String CLEARED = "*";
+
+	static String upserted(double dScore, String strMember)
+	{
+		return "+" + dScore + " " + strMember;
+	}
+
+	static String incremented(double dBy, String strMember)
+	{
+		return "~" + dBy + " " + strMember;
+	}
+
+	static String removed(String strMember)
+	{
+		return "-" + strMember;
+	}
+
+	/**
+	 * Change messages starting with this are reload markers, see {@link #load(String)}.
+	 */
+	static final char MARKER = '#';
+
+	protected RedisSortedSet m_set;
+
+	protected volatile Snapshot m_snapshot = Snapshot.build(Collections.<Tuple>emptyList());
+
+	protected ConcurrentLinkedQueue<String> m_changes = new ConcurrentLinkedQueue<String>();
+
+	protected AtomicBoolean m_bReload = new AtomicBoolean(false);
+
+	protected volatile boolean m_bClosed = false;
+
+	protected volatile JedisPubSub m_pubsub;
+
+	/** the change feed's connection, not pooled */
+	protected volatile Jedis m_feed;
+
+	/** the marker the pending reload waits for, null if there is none */
+	protected String m_strMarker;
+
+	/** the reloaded copy, published once {@link #m_strMarker} comes through */
+	protected Snapshot m_reloaded;
+
+	/** the snapshot replaced last, its buffers are reused once no reader holds it */
+	protected Snapshot m_spare;
+
+	protected ScheduledExecutorService m_applier;
+
+	protected Thread m_subscriber;
+
+	public RedisSortedSetMirror(RedisSortedSet set)
+	{
+		m_set = set;
+	}
+
+	/**
+	 * Subscribes to the set's change channel, loads the set and starts
+	 * applying changes.
+	 *
+	 * @return this mirror
+	 */
+	public RedisSortedSetMirror start()
+	{
+		final String strName = "RedisSortedSetMirror-" + m_set.getFullKey();
+
+		m_applier = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r, strName);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+		m_applier.scheduleWithFixedDelay(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					apply();
+				}
+				catch (Exception e)
+				{
+					m_logger.warn("Could not apply changes to mirror of " + m_set.getFullKey() + ", reloading.", e);
+					m_bReload.set(true);
+				}
+			}
+		}, 0, REDIS_MIRROR_APPLY_INTERVAL, TimeUnit.MILLISECONDS);
+
+		m_subscriber = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				subscribe();
+			}
+		}, strName + "-feed");
+
+		m_subscriber.setDaemon(true);
+		m_subscriber.start();
+
+		return this;
+	}
+
+	/**
+	 * Stops following the set and releases the change feed connection.
+	 */
+	public void close()
+	{
+		m_bClosed = true;
+
+		JedisPubSub pubsub = m_pubsub;
+
+		if (pubsub != null && pubsub.isSubscribed())
+		{
+			pubsub.unsubscribe();
+		}
+
+		disconnect(m_feed);
+
+		if (m_applier != null)
+		{
+			m_applier.shutdown();
+		}
+	}
+
+	protected void subscribe()
+	{
+		while (!m_bClosed)
+		{
+			m_pubsub = new JedisPubSub()
+			{
+				@Override
+				public void onMessage(String channel, String message)
+				{
+					m_changes.add(message);
+				}
+
+				@Override
+				public void onSubscribe(String channel, int subscribedChannels)
+				{
+					// anything published while we were not subscribed is lost
+					m_bReload.set(true);
+				}
+
+				@Override
+				public void onPMessage(String pattern, String channel, String message) {}
+
+				@Override
+				public void onUnsubscribe(String channel, int subscribedChannels) {}
+
+				@Override
+				public void onPUnsubscribe(String pattern, int subscribedChannels) {}
+
+				@Override
+				public void onPSubscribe(String pattern, int subscribedChannels) {}
+			};
+
+			Jedis feed = connect();
+			m_feed = feed;
+
+			try
+			{
+				if (!m_bClosed)
+				{
+					feed.subscribe(m_pubsub, m_set.getChangeChannel());
+				}
+			}
+			catch (JedisException e)
+			{
+				m_logger.debug("Change feed of " + m_set.getFullKey() + " failed.", e);
+			}
+			finally
+			{
+				disconnect(feed);
+				m_feed = null;
+			}
+
+			if (!m_bClosed)
+			{
+				m_logger.info("Lost the change feed for " + m_set.getFullKey() + ", resubscribing.");
+				try { Thread.sleep(REDIS_MIRROR_RESUBSCRIBE_WAITTIME); } catch (InterruptedException e) { return; }
+			}
+		}
+	}
+
+	/**
+	 * @return a new connection to the Redis the set lives on
+	 */
+	protected Jedis connect()
+	{
+		JedisClient client = m_set.getClient();
+
+		if (client != null)
+		{
+			return new Jedis(client.getHost(), client.getPort());
+		}
+
+		String strNode = ShardedJedisFactory.getNodeName(m_set.getFullKey());
+
+		if (strNode != null)
+		{
+			int iSep = strNode.lastIndexOf(':');
+			return new Jedis(strNode.substring(0, iSep), Integer.parseInt(strNode.substring(iSep + 1)));
+		}
+
+		return new Jedis(JedisFactory.REDIS_HOST, JedisFactory.REDIS_PORT);
+	}
+
+	protected static void disconnect(Jedis j)
+	{
+		if (j == null)
+		{
+			return;
+		}
+
+		try
+		{
+			j.disconnect();
+		}
+		catch (Exception e)
+		{
+			m_logger.debug("Could not close the change feed connection.", e);
+		}
+	}
+
+	/**
+	 * Reloads the set if needed then merges the changes received so far
+	 * into a new snapshot.
+	 */
+	protected void apply()
+	{
+		if (m_bReload.getAndSet(false))
+		{
+			m_strMarker = MARKER + UUID.randomUUID().toString();
+			m_reloaded = load(m_strMarker);
+		}
+
+		String strMsg;
+
+		if (m_strMarker != null)
+		{
+			// everything queued ahead of the marker is in the reloaded copy
+			while ((strMsg = m_changes.poll()) != null)
+			{
+				if (strMsg.equals(m_strMarker))
+				{
+					m_spare = m_snapshot;
+					m_snapshot = m_reloaded;
+					m_reloaded = null;
+					m_strMarker = null;
+					break;
+				}
+			}
+
+			if (m_strMarker != null)
+			{
+				return;
+			}
+		}
+
+		if (m_changes.isEmpty())
+		{
+			return;
+		}
+
+		Snapshot base = m_snapshot;
+		Map<Member, Double> changes = new LinkedHashMap<Member, Double>();
+		Map<Member, Double> deltas = new LinkedHashMap<Member, Double>();
+
+		while ((strMsg = m_changes.poll()) != null)
+		{
+			if (strMsg.charAt(0) == MARKER)
+			{
+				// another mirror's reload
+				continue;
+			}
+
+			if (strMsg.equals(CLEARED))
+			{
+				base = Snapshot.build(Collections.<Tuple>emptyList());
+				changes.clear();
+				deltas.clear();
+				continue;
+			}
+
+			char op = strMsg.charAt(0);
+
+			if (op == '-')
+			{
+				Member m = new Member(SafeEncoder.encode(strMsg.substring(1)));
+				changes.put(m, null);
+				deltas.remove(m);
+				continue;
+			}
+
+			int iSpace = strMsg.indexOf(' ');
+			double dValue = Double.parseDouble(strMsg.substring(1, iSpace));
+			Member m = new Member(SafeEncoder.encode(strMsg.substring(iSpace + 1)));
+
+			if (op == '+')
+			{
+				changes.put(m, dValue);
+				deltas.remove(m);
+			}
+			else if (changes.containsKey(m))
+			{
+				Double current = changes.get(m);
+				changes.put(m, (current == null) ? dValue : current + dValue);
+			}
+			else
+			{
+				Double current = deltas.get(m);
+				deltas.put(m, (current == null) ? dValue : current + dValue);
+			}
+		}
+
+		// increments are relative to what the snapshot holds
+		for (Map.Entry<Member, Double> e : deltas.entrySet())
+		{
+			int i = base.indexOf(e.getKey().m_bytes);
+			changes.put(e.getKey(), (i < 0) ? e.getValue() : base.scoreAt(i) + e.getValue());
+		}
+
+		if (changes.isEmpty() && base == m_snapshot)
+		{
+			return;
+		}
+
+		Snapshot spare = m_spare;
+		Snapshot previous = m_snapshot;
+		m_snapshot = base.merge(changes, (spare != null && spare.m_pins.get() == 0) ? spare : null);
+		m_spare = previous;
+	}
+
+	/**
+	 * Reads the whole set and publishes <code>strMarker</code> on the 
+	 * change channel in one transaction, so the marker divides the 
+	 * changes the copy holds from the ones it does not.
+	 */
+	protected Snapshot load(final String strMarker)
+	{
+		Set<Tuple> tuples = m_set.withJedisDo(new JWork<Set<Tuple>>()
+		{
+			@Override
+			public Set<Tuple> work(Jedis j)
+			{
+				Transaction t = j.multi();
+				Response<Set<Tuple>> r = t.zrangeWithScores(m_set.getFullKey(), 0, -1);
+				t.publish(m_set.getChangeChannel(), strMarker);
+				t.exec();
+				return r.get();
+			}
+		});
+
+		if (tuples == null)
+		{
+			throw new IllegalStateException("Could not load " + m_set.getFullKey());
+		}
+
+		return Snapshot.build(tuples);
+	}
+
+	public int size()
+	{
+		return m_snapshot.m_iSize;
+	}
+
+	/**
+	 * Returns the current snapshot pinned so its buffers are not reused
+	 * until {@link Snapshot#release()} is called.
+	 */
+	protected Snapshot acquire()
+	{
+		while (true)
+		{
+			Snapshot s = m_snapshot;
+			s.m_pins.incrementAndGet();
+
+			if (s == m_snapshot)
+			{
+				return s;
+			}
+
+			// replaced in between, its buffers may already be reused
+			s.release();
+		}
+	}
+
+	public boolean isEmpty()
+	{
+		return size() == 0;
+	}
+
+	/**
+	 * @return the member with the lowest score or null if the set is empty
+	 */
+	public Tuple first()
+	{
+		Snapshot s = acquire();
+
+		try
+		{
+			return (s.m_iSize == 0) ? null : s.tupleAt(0);
+		}
+		finally
+		{
+			s.release();
+		}
+	}
+
+	/**
+	 * @return the member with the highest score or null if the set is empty
+	 */
+	public Tuple last()
+	{
+		Snapshot s = acquire();
+
+		try
+		{
+			return (s.m_iSize == 0) ? null : s.tupleAt(s.m_iSize - 1);
+		}
+		finally
+		{
+			s.release();
+		}
+	}
+
+	/**
+	 * Returns the 0 based rank of the given member (ZRANK).
+	 *
+	 * @param strMember the member to look up
+	 * @return the rank or null if the member is not in the set
+	 */
+	public Long rank(String strMember)
+	{
+		Snapshot s = acquire();
+
+		try
+		{
+			int i = s.indexOf(SafeEncoder.encode(strMember));
+			return (i < 0) ? null : Long.valueOf(i);
+		}
+		finally
+		{
+			s.release();
+		}
+	}
+
+	/**
+	 * Returns the score of the given member (ZSCORE).
+	 *
+	 * @param strMember the member to look up
+	 * @return the score or null if the member is not in the set
+	 */
+	public Double score(String strMember)
+	{
+		Snapshot s = acquire();
+
+		try
+		{
+			int i = s.indexOf(SafeEncoder.encode(strMember));
+			return (i < 0) ? null : Double.valueOf(s.scoreAt(i));
+		}
+		finally
+		{
+			s.release();
+		}
+	}
+
+	/**
+	 * @return the members scored strictly below <code>dToScore</code>
+	 */
+	public SortedSet<Tuple> headSet(double dToScore)
+	{
+		Snapshot s = acquire();
+
+		try
+		{
+			return s.range(0, s.lowerBound(dToScore));
+		}
+		finally
+		{
+			s.release();
+		}
+	}
+
+	/**
+	 * @return the members scored <code>dFromScore</code> or above
+	 */
+	public SortedSet<Tuple> tailSet(double dFromScore)
+	{
+		Snapshot s = acquire();
+
+		try
+		{
+			return s.range(s.lowerBound(dFromScore), s.m_iSize);
+		}
+		finally
+		{
+			s.release();
+		}
+	}
+
+	/**
+	 * @return the members scored from <code>dFromScore</code> (inclusive) to <code>dToScore</code> (exclusive)
+	 */
+	public SortedSet<Tuple> subSet(double dFromScore, double dToScore)
+	{
+		Snapshot s = acquire();
+
+		try
+		{
+			return s.range(s.lowerBound(dFromScore), s.lowerBound(dToScore));
+		}
+		finally
+		{
+			s.release();
+		}
+	}
+
+	/**
+	 * Returns the members scored from <code>dFromScore</code> (inclusive) 
+	 * to <code>dToScore</code> (exclusive) as a {@link ColumnarRange}, 
+	 * without building a {@link Tuple} per member.
+	 */
+	public ColumnarRange rangeColumns(double dFromScore, double dToScore)
+	{
+		Snapshot s = acquire();
+
+		try
+		{
+			int iFrom = s.lowerBound(dFromScore);
+			int iTo = Math.max(iFrom, s.lowerBound(dToScore));
+			byte[][] members = new byte[iTo - iFrom][];
+			double[] scores = new double[iTo - iFrom];
+
+			for (int i = iFrom; i < iTo; i++)
+			{
+				members[i - iFrom] = s.memberAt(i);
+				scores[i - iFrom] = s.scoreAt(i);
+			}
+
+			return new ColumnarRange(members, scores);
+		}
+		finally
+		{
+			s.release();
+		}
+	}
+
+	/**
+	 * A member name used as a hash key while merging changes.
+	 */
+	protected static class Member
+	{
+		final byte[] m_bytes;
+
+		Member(byte[] bytes)
+		{
+			m_bytes = bytes;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return Arrays.hashCode(m_bytes);
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			return (o instanceof Member) && Arrays.equals(m_bytes, ((Member) o).m_bytes);
+		}
+	}
+
+	/**
+	 * An immutable, off-heap copy of the set. Members are kept in Redis
+	 * order (score, then member bytes) so ranks are array indexes. Once
+	 * replaced and no longer pinned by a reader its buffers are reused
+	 * for a later snapshot.
+	 */
+	protected static class Snapshot
+	{
+		final int m_iSize;
+
+		/** readers currently using the buffers */
+		final AtomicInteger m_pins = new AtomicInteger();
+
+		/** the score of every member */
+		final DoubleBuffer m_scores;
+
+		/** start of every member in {@link #m_members}, plus the end of the last one */
+		final IntBuffer m_offsets;
+
+		/** the member bytes back to back */
+		final ByteBuffer m_members;
+
+		/** open addressing table of index + 1 hashed by member bytes, 0 is empty */
+		final IntBuffer m_index;
+
+		final int m_iMask;
+
+		private Snapshot(int iSize, DoubleBuffer scores, IntBuffer offsets, ByteBuffer members, IntBuffer index)
+		{
+			m_iSize = iSize;
+			m_scores = scores;
+			m_offsets = offsets;
+			m_members = members;
+
+			int iCapacity = 16;
+			while (iCapacity < iSize * 2) iCapacity <<= 1;
+
+			if (index != null && index.capacity() >= iCapacity && index.capacity() <= iCapacity * 4)
+			{
+				m_index = index;
+
+				for (int i = 0; i < index.capacity(); i++)
+				{
+					m_index.put(i, 0);
+				}
+			}
+			else
+			{
+				m_index = ByteBuffer.allocateDirect(iCapacity * 4).asIntBuffer();
+			}
+
+			m_iMask = m_index.capacity() - 1;
+
+			for (int i = 0; i < iSize; i++)
+			{
+				int h = hashAt(i) & m_iMask;
+				while (m_index.get(h) != 0) h = (h + 1) & m_iMask;
+				m_index.put(h, i + 1);
+			}
+		}
+
+		static Snapshot build(Collection<Tuple> tuples)
+		{
+			int iBytes = 0;
+
+			for (Tuple t : tuples)
+			{
+				iBytes += t.getBinaryElement().length;
+			}
+
+			Builder b = new Builder(tuples.size(), iBytes, null);
+
+			for (Tuple t : tuples)
+			{
+				b.add(t.getScore(), t.getBinaryElement());
+			}
+
+			return b.build();
+		}
+
+		void release()
+		{
+			m_pins.decrementAndGet();
+		}
+
+		double scoreAt(int i)
+		{
+			return m_scores.get(i);
+		}
+
+		byte[] memberAt(int i)
+		{
+			int iFrom = m_offsets.get(i);
+			byte[] bytes = new byte[m_offsets.get(i + 1) - iFrom];
+
+			for (int k = 0; k < bytes.length; k++)
+			{
+				bytes[k] = m_members.get(iFrom + k);
+			}
+
+			return bytes;
+		}
+
+		Tuple tupleAt(int i)
+		{
+			return new Tuple(memberAt(i), scoreAt(i));
+		}
+
+		SortedSet<Tuple> range(int iFrom, int iTo)
+		{
+			TreeSet<Tuple> ret = new TreeSet<Tuple>();
+
+			for (int i = iFrom; i < iTo; i++)
+			{
+				ret.add(tupleAt(i));
+			}
+
+			return ret;
+		}
+
+		/**
+		 * @return the index of the first member scored <code>dScore</code> or above
+		 */
+		int lowerBound(double dScore)
+		{
+			int lo = 0, hi = m_iSize;
+
+			while (lo < hi)
+			{
+				int mid = (lo + hi) >>> 1;
+
+				if (m_scores.get(mid) < dScore) lo = mid + 1;
+				else hi = mid;
+			}
+
+			return lo;
+		}
+
+		/**
+		 * @return the index of the given member or -1 if it is not there
+		 */
+		int indexOf(byte[] member)
+		{
+			int h = hash(member) & m_iMask;
+			int v;
+
+			while ((v = m_index.get(h)) != 0)
+			{
+				if (equalsAt(v - 1, member))
+				{
+					return v - 1;
+				}
+
+				h = (h + 1) & m_iMask;
+			}
+
+			return -1;
+		}
+
+		/**
+		 * Returns a new snapshot with the given changes applied, a null
+		 * score removes the member. The new snapshot is written into the
+		 * buffers of <code>reuse</code> where they are large enough.
+		 */
+		Snapshot merge(Map<Member, Double> changes, Snapshot reuse)
+		{
+			BitSet skip = new BitSet(m_iSize);
+			List<Object[]> inserts = new ArrayList<Object[]>();
+			int iBytes = m_offsets.get(m_iSize);
+
+			for (Map.Entry<Member, Double> e : changes.entrySet())
+			{
+				int i = indexOf(e.getKey().m_bytes);
+
+				if (i >= 0)
+				{
+					skip.set(i);
+				}
+
+				if (e.getValue() != null)
+				{
+					inserts.add(new Object[] { e.getValue(), e.getKey().m_bytes });
+					iBytes += e.getKey().m_bytes.length;
+				}
+			}
+
+			Collections.sort(inserts, new Comparator<Object[]>()
+			{
+				@Override
+				public int compare(Object[] a, Object[] b)
+				{
+					int c = Double.compare((Double) a[0], (Double) b[0]);
+					return (c != 0) ? c : compareBytes((byte[]) a[1], (byte[]) b[1]);
+				}
+			});
+
+			Builder b = new Builder(m_iSize + inserts.size(), iBytes, reuse);
+			int i = 0, k = 0;
+
+			while (i < m_iSize || k < inserts.size())
+			{
+				if (i < m_iSize && skip.get(i))
+				{
+					i++;
+					continue;
+				}
+
+				if (k < inserts.size() && (i >= m_iSize || compareAt(i, (Double) inserts.get(k)[0], (byte[]) inserts.get(k)[1]) > 0))
+				{
+					b.add((Double) inserts.get(k)[0], (byte[]) inserts.get(k)[1]);
+					k++;
+				}
+				else
+				{
+					b.copy(this, i);
+					i++;
+				}
+			}
+
+			return b.build();
+		}
+
+		private int compareAt(int i, double dScore, byte[] member)
+		{
+			int c = Double.compare(m_scores.get(i), dScore);
+
+			if (c != 0)
+			{
+				return c;
+			}
+
+			int iFrom = m_offsets.get(i);
+			int iLen = m_offsets.get(i + 1) - iFrom;
+			int n = Math.min(iLen, member.length);
+
+			for (int k = 0; k < n; k++)
+			{
+				int d = (m_members.get(iFrom + k) & 0xff) - (member[k] & 0xff);
+				if (d != 0) return d;
+			}
+
+			return iLen - member.length;
+		}
+
+		private boolean equalsAt(int i, byte[] member)
+		{
+			int iFrom = m_offsets.get(i);
+
+			if (m_offsets.get(i + 1) - iFrom != member.length)
+			{
+				return false;
+			}
+
+			for (int k = 0; k < member.length; k++)
+			{
+				if (m_members.get(iFrom + k) != member[k]) return false;
+			}
+
+			return true;
+		}
+
+		private int hashAt(int i)
+		{
+			int h = 0x811c9dc5;
+
+			for (int k = m_offsets.get(i); k < m_offsets.get(i + 1); k++)
+			{
+				h = (h ^ (m_members.get(k) & 0xff)) * 0x01000193;
+			}
+
+			return h;
+		}
+
+		private static int hash(byte[] member)
+		{
+			int h = 0x811c9dc5;
+
+			for (byte b : member)
+			{
+				h = (h ^ (b & 0xff)) * 0x01000193;
+			}
+
+			return h;
+		}
+
+		private static int compareBytes(byte[] a, byte[] b)
+		{
+			int n = Math.min(a.length, b.length);
+
+			for (int k = 0; k < n; k++)
+			{
+				int d = (a[k] & 0xff) - (b[k] & 0xff);
+				if (d != 0) return d;
+			}
+
+			return a.length - b.length;
+		}
+	}
+
+	/**
+	 * Appends members in order into direct buffers, the ones of a retired
+	 * snapshot if they are large enough or new ones with some room to grow.
+	 */
+	protected static class Builder
+	{
+		final DoubleBuffer m_scores;
+		final IntBuffer m_offsets;
+		final ByteBuffer m_members;
+		final IntBuffer m_index;
+		int m_iSize = 0;
+
+		Builder(int iMaxSize, int iMaxBytes, Snapshot reuse)
+		{
+			if (reuse != null && reuse.m_scores.capacity() >= iMaxSize && reuse.m_offsets.capacity() >= iMaxSize + 1)
+			{
+				m_scores = reuse.m_scores;
+				m_offsets = reuse.m_offsets;
+			}
+			else
+			{
+				int iCapacity = iMaxSize + (iMaxSize >> 3) + 16;
+				m_scores = ByteBuffer.allocateDirect(iCapacity * 8).asDoubleBuffer();
+				m_offsets = ByteBuffer.allocateDirect((iCapacity + 1) * 4).asIntBuffer();
+			}
+
+			if (reuse != null && reuse.m_members.capacity() >= iMaxBytes)
+			{
+				m_members = reuse.m_members;
+			}
+			else
+			{
+				m_members = ByteBuffer.allocateDirect(iMaxBytes + (iMaxBytes >> 3) + 256);
+			}
+
+			m_index = (reuse == null) ? null : reuse.m_index;
+			m_offsets.put(0, 0);
+		}
+
+		void add(double dScore, byte[] member)
+		{
+			int iFrom = m_offsets.get(m_iSize);
+			m_scores.put(m_iSize, dScore);
+
+			for (int k = 0; k < member.length; k++)
+			{
+				m_members.put(iFrom + k, member[k]);
+			}
+
+			m_offsets.put(++m_iSize, iFrom + member.length);
+		}
+
+		void copy(Snapshot s, int i)
+		{
+			int iFrom = m_offsets.get(m_iSize);
+			int iSrc = s.m_offsets.get(i);
+			int iLen = s.m_offsets.get(i + 1) - iSrc;
+			m_scores.put(m_iSize, s.m_scores.get(i));
+
+			for (int k = 0; k < iLen; k++)
+			{
+				m_members.put(iFrom + k, s.m_members.get(iSrc + k));
+			}
+
+			m_offsets.put(++m_iSize, iFrom + iLen);
+		}
+
+		Snapshot build()
+		{
+			return new Snapshot(m_iSize, m_scores, m_offsets, m_members, m_index);
+		}
+	}
+}
@@ -0,0 +1,293 @@
+package jedistools;
+
+import java.util.Set;
+import java.util.UUID;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Transaction;
+import redis.clients.jedis.ZParams;
+import redis.clients.jedis.ZParams.Aggregate;
+
+import jedistools.JedisFactory.JWork;
+
+/**
+ * A {@link RedisSortedSet} whose contents are the result of a union,
+ * intersection or difference of other sorted sets. The result is
+ * computed on the Redis server into its own key (which expires after
+ * the given TTL) so the source sets never travel over the wire. Reads
+ * against the view hit the cached result until it expires or until
+ * {@link RedisSortedSetView#refresh()} is called. An empty result is
+ * cached as well, by a marker key with the same TTL.
+ * <p>
+ * With {@link ShardedJedisFactory} the sources must share a hash tag
+ * so they live on the same node.
+ *
+ * @author Hisham Mardam-Bey
+ *
+ */
+public class RedisSortedSetView extends RedisSortedSet
+{
+	/**
+	 * Number of seconds the scratch keys of a refresh live, so a client
+	 * dying halfway through a refresh does not leak them.
+	 */
+	protected static int REDIS_VIEW_SCRATCH_TTL = 60;
+
+	/**
+	 * The set operations a view can be built from.
+	 */
+	public enum Op
+	{
+		UNION, INTER, DIFF
+	}
+
+	protected Op m_op;
+
+	protected RedisSortedSet[] m_sources;
+
+	protected int[] m_weights;
+
+	protected Aggregate m_aggregate;
+
+	protected int m_iTtl;
+
+	protected String m_strKey;
+
+	/**
+	 * Creates a view over the given sources. Nothing is computed
+	 * until {@link RedisSortedSetView#maybeRefresh()} or
+	 * {@link RedisSortedSetView#refresh()} is called.
+	 *
+	 * @param op the set operation to perform
+	 * @param iTtl number of seconds the computed result is kept around for
+	 * @param weights score multipliers, one per source, or null (ignored for {@link Op#DIFF})
+	 * @param aggregate how scores of common members are combined, or null for SUM (ignored for {@link Op#DIFF})
+	 * @param sources the sets to operate on, the first set is the one others are subtracted from for {@link Op#DIFF}
+	 */
+	public RedisSortedSetView(Op op, int iTtl, int[] weights, Aggregate aggregate, RedisSortedSet... sources)
+	{
+		if (sources == null || sources.length == 0)
+		{
+			throw new IllegalArgumentException("A view needs at least one source set.");
+		}
+
+		if (weights != null && weights.length != sources.length)
+		{
+			throw new IllegalArgumentException("Expected " + sources.length + " weights but got " + weights.length + ".");
+		}
+
+		m_op = op;
+		m_iTtl = iTtl;
+		m_weights = weights;
+		m_aggregate = aggregate;
+		m_sources = sources;
+
+		// the view is computed where its sources live
+		m_client = sources[0].getClient();
+
+		// the key is derived from the operation and its inputs so identical
+		// views built by different callers share the same cached result, it
+		// is tagged like the first source to live on the sources' node
+		StringBuilder sb = new StringBuilder("view:{")
+			.append(ShardedJedisFactory.getKeyTag(sources[0].getFullKey()))
+			.append("}:").append(op.name().toLowerCase());
+
+		if (op != Op.DIFF && weights != null)
+		{
+			sb.append(":w");
+			for (int w : weights) sb.append(",").append(w);
+		}
+
+		if (op != Op.DIFF && aggregate != null)
+		{
+			sb.append(":").append(aggregate.name().toLowerCase());
+		}
+
+		for (RedisSortedSet s : sources)
+		{
+			sb.append(":").append(s.getFullKey());
+		}
+
+		m_strKey = sb.toString();
+	}
+
+	@Override
+	protected String getKey()
+	{
+		return m_strKey;
+	}
+
+	/**
+	 * Computes the view only if there is no cached result on the server.
+	 *
+	 * @return this view
+	 */
+	public RedisSortedSetView maybeRefresh()
+	{
+		Boolean exists = withJedisDo(new JWork<Boolean>()
+		{
+			@Override
+			public Boolean work(Jedis j)
+			{
+				return j.exists(getFullKey()) || j.exists(getEmptyKey());
+			}
+		});
+
+		if (exists == null || !exists)
+		{
+			refresh();
+		}
+
+		return this;
+	}
+
+	/**
+	 * Set instead of the view's key while the result is empty, Redis
+	 * does not keep empty sorted sets.
+	 */
+	protected String getEmptyKey()
+	{
+		return getFullKey() + ":empty";
+	}
+
+	/**
+	 * Returns a scratch key of its own for one refresh, on the view's
+	 * node, so concurrent refreshers never build into the same key.
+	 */
+	protected String getScratchKey(String strPurpose)
+	{
+		return getFullKey() + ":" + strPurpose + ":" + UUID.randomUUID();
+	}
+
+	/**
+	 * (Re)computes the view on the server. The result is built in a
+	 * scratch key unique to this refresh and renamed over the view's key
+	 * so readers never observe a partially built view.
+	 *
+	 * @return this view
+	 */
+	public RedisSortedSetView refresh()
+	{
+		withJedisDo(new JWork<Boolean>()
+		{
+			@Override
+			public Boolean work(Jedis j)
+			{
+				String strBuild = getScratchKey("build");
+				String[] keys = new String[m_sources.length];
+
+				for (int i = 0; i < m_sources.length; i++)
+				{
+					keys[i] = m_sources[i].getFullKey();
+				}
+
+				if (m_op == Op.DIFF)
+				{
+					buildDiff(j, strBuild, keys);
+				}
+				else
+				{
+					Transaction t = j.multi();
+
+					if (m_op == Op.UNION)
+					{
+						t.zunionstore(strBuild, getParams(), keys);
+					}
+					else
+					{
+						t.zinterstore(strBuild, getParams(), keys);
+					}
+
+					t.expire(strBuild, REDIS_VIEW_SCRATCH_TTL);
+					t.exec();
+				}
+
+				publish(j, strBuild);
+				return true;
+			}
+		});
+
+		return this;
+	}
+
+	/**
+	 * Redis has no server side sorted set difference so we copy the first
+	 * set and remove the members it shares with the rest. Only the names
+	 * of the common members are brought back to the client, never the
+	 * full sets.
+	 */
+	protected void buildDiff(Jedis j, String strBuild, String[] keys)
+	{
+		Transaction t = j.multi();
+		t.zunionstore(strBuild, keys[0]);
+		t.expire(strBuild, REDIS_VIEW_SCRATCH_TTL);
+
+		if (keys.length == 1)
+		{
+			t.exec();
+			return;
+		}
+
+		String strCommon = getScratchKey("common");
+		String[] others = new String[keys.length - 1];
+		System.arraycopy(keys, 1, others, 0, others.length);
+
+		t.zunionstore(strCommon, others);
+		t.zinterstore(strCommon, strBuild, strCommon);
+		t.expire(strCommon, REDIS_VIEW_SCRATCH_TTL);
+		t.exec();
+
+		Set<String> common = j.zrange(strCommon, 0, -1);
+
+		t = j.multi();
+		for (String s : common)
+		{
+			t.zrem(strBuild, s);
+		}
+		t.del(strCommon);
+		t.exec();
+	}
+
+	/**
+	 * Atomically replaces the view's key with the freshly built one and
+	 * sets its TTL. An empty result removes the view's key and sets the
+	 * empty marker with the TTL instead.
+	 */
+	protected void publish(Jedis j, String strBuild)
+	{
+		boolean bEmpty = j.zcard(strBuild) == 0;
+		Transaction t = j.multi();
+
+		if (bEmpty)
+		{
+			t.del(getFullKey(), strBuild);
+			t.set(getEmptyKey(), "1");
+			t.expire(getEmptyKey(), m_iTtl);
+		}
+		else
+		{
+			t.rename(strBuild, getFullKey());
+			t.expire(getFullKey(), m_iTtl);
+			t.del(getEmptyKey());
+		}
+
+		t.exec();
+	}
+
+	protected ZParams getParams()
+	{
+		ZParams params = new ZParams();
+
+		if (m_weights != null)
+		{
+			params.weights(m_weights);
+		}
+
+		if (m_aggregate != null)
+		{
+			params.aggregate(m_aggregate);
+		}
+
+		return params;
+	}
+}
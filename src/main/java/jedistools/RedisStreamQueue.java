@@ -0,0 +1,979 @@
+package jedistools;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.Transaction;
+import redis.clients.jedis.exceptions.JedisException;
+
+import jedistools.JedisFactory.JWork;
+import jedistools.JedisFactory.Work;
+
+/**
+ * A log of elements consumed through consumer groups, modelled after
+ * Redis streams (XADD / XREADGROUP / XACK / XCLAIM). Every group sees
+ * every element appended after it was created, consumers of the same
+ * group share the group's elements, and every delivered element stays
+ * pending for its consumer until acknowledged so it can be claimed by
+ * another consumer if the first one dies.
+ * <p>
+ * The log is a sorted set of <code>id:element</code> scored by id
+ * (trimmed by rank to {@link RedisStreamQueue#getMaxLen()}), each group
+ * has a list of ids still to be delivered, each consumer a list of ids
+ * it holds, and each group a sorted set of <code>consumer|id</code>
+ * scored by delivery time to find idle pending elements. Ids move from
+ * the group list to the consumer list with (B)RPOPLPUSH so an element
+ * is never lost between delivery and acknowledgement. Non-blocking reads
+ * record the delivery time in the same transaction as the move. A 
+ * consumer that dies between a blocking move and recording its delivery
+ * time leaves an id in its list with no idle entry,
+ * {@link RedisStreamQueue#claimIdle(long, int)} finds those too.
+ * <p>
+ * The {@link BlockingQueue} methods acknowledge what they return
+ * straight away, use {@link RedisStreamQueue#read(int, int)} and
+ * {@link RedisStreamQueue#ack(Collection)} or
+ * {@link RedisStreamQueue#consume(int, int, Work)} for at least once
+ * processing.
+ *
+ * @author Hisham Mardam-Bey
+ *
+ */
+public abstract class RedisStreamQueue extends RedisBaseObject implements BlockingQueue<String>
+{
+	/**
+	 * An element of the log along with its id.
+	 */
+	public static class Entry
+	{
+		protected final long m_lId;
+
+		protected final String m_strValue;
+
+		public Entry(long lId, String strValue)
+		{
+			m_lId = lId;
+			m_strValue = strValue;
+		}
+
+		public long getId()
+		{
+			return m_lId;
+		}
+
+		public String getValue()
+		{
+			return m_strValue;
+		}
+
+		@Override
+		public String toString()
+		{
+			return m_lId + ":" + m_strValue;
+		}
+	}
+
+	/**
+	 * Number of times to try a watched transaction (creating a group, 
+	 * appending, claiming) while other clients keep changing its keys.
+	 */
+	protected static int REDIS_WATCH_RETRY_COUNT = 16;
+
+	protected String m_strGroup;
+
+	protected String m_strConsumer;
+
+	/**
+	 * Creates a queue reading as the given consumer of the given group.
+	 * Elements are only handed to groups registered with
+	 * {@link RedisStreamQueue#createGroup(boolean)}.
+	 *
+	 * @param strGroup the consumer group
+	 * @param strConsumer the name of this consumer within the group
+	 */
+	public RedisStreamQueue(String strGroup, String strConsumer)
+	{
+		this(null, strGroup, strConsumer);
+	}
+
+	/**
+	 * Same as {@link RedisStreamQueue#RedisStreamQueue(String, String)} on
+	 * the given client.
+	 *
+	 * @param client the client this object's calls run on, null for {@link JedisFactory}
+	 * @param strGroup the consumer group
+	 * @param strConsumer the name of this consumer within the group
+	 */
+	public RedisStreamQueue(JedisClient client, String strGroup, String strConsumer)
+	{
+		super(client);
+		m_strGroup = strGroup;
+		m_strConsumer = strConsumer;
+	}
+
+	/**
+	 * Maximum number of elements kept in the log, older ones are trimmed
+	 * on append. 0 (the default) keeps everything.
+	 *
+	 * @return the maximum length of the log
+	 */
+	protected int getMaxLen()
+	{
+		return 0;
+	}
+
+	protected String getSeqKey()
+	{
+		return getFullKey() + ":seq";
+	}
+
+	protected String getGroupsKey()
+	{
+		return getFullKey() + ":groups";
+	}
+
+	protected String getGroupKey(String strGroup)
+	{
+		return getFullKey() + ":g:" + strGroup;
+	}
+
+	protected String getPendingKey(String strConsumer)
+	{
+		return getGroupKey(m_strGroup) + ":c:" + strConsumer;
+	}
+
+	protected String getIdleKey()
+	{
+		return getGroupKey(m_strGroup) + ":idle";
+	}
+
+	protected String getConsumersKey(String strGroup)
+	{
+		return getGroupKey(strGroup) + ":consumers";
+	}
+
+	/**
+	 * Registers this queue's group. A new group only sees elements
+	 * appended from now on, unless <code>bFromStart</code> is set in
+	 * which case everything still in the log is delivered to it too. The
+	 * replay and the registration happen in one transaction so every
+	 * element reaches the group exactly once.
+	 *
+	 * @param bFromStart whether to replay the log into the group
+	 * @return true if the group was created, false if it already existed
+	 */
+	public boolean createGroup(final boolean bFromStart)
+	{
+		return withJedisDo(new JWork<Boolean>()
+		{
+			@Override
+			public Boolean work(Jedis j)
+			{
+				if (!bFromStart)
+				{
+					return j.sadd(getGroupsKey(), m_strGroup) == 1;
+				}
+
+				for (int i = 0; i < REDIS_WATCH_RETRY_COUNT; i++)
+				{
+					j.watch(getGroupsKey(), getFullKey());
+
+					if (j.sismember(getGroupsKey(), m_strGroup))
+					{
+						j.unwatch();
+						return false;
+					}
+
+					Set<String> log = j.zrange(getFullKey(), 0, -1);
+					Transaction t = j.multi();
+					t.sadd(getGroupsKey(), m_strGroup);
+
+					for (String s : log)
+					{
+						t.lpush(getGroupKey(m_strGroup), idOf(s));
+					}
+
+					if (t.exec() != null)
+					{
+						return true;
+					}
+				}
+
+				throw new JedisException("Could not create group " + m_strGroup + " of " + getFullKey() + ", the log kept changing.");
+			}
+		});
+	}
+
+	/**
+	 * Appends the given elements to the log and hands them to every group
+	 * in four round trips. The groups are watched so a group created in 
+	 * between is not skipped, the append starts over if one is, up to 
+	 * {@link RedisStreamQueue#REDIS_WATCH_RETRY_COUNT} times.
+	 *
+	 * @param c the elements to append
+	 * @return the id of the last element appended
+	 */
+	public Long append(final Collection<? extends String> c)
+	{
+		return withJedisDo(new JWork<Long>()
+		{
+			@Override
+			public Long work(Jedis j)
+			{
+				for (int i = 0; i < REDIS_WATCH_RETRY_COUNT; i++)
+				{
+					j.watch(getGroupsKey());
+					Pipeline p = j.pipelined();
+					Response<Long> last = p.incrBy(getSeqKey(), c.size());
+					Response<Set<String>> groups = p.smembers(getGroupsKey());
+					p.sync();
+
+					long lId = last.get() - c.size();
+					Transaction t = j.multi();
+
+					for (String s : c)
+					{
+						t.zadd(getFullKey(), ++lId, lId + ":" + s);
+
+						for (String g : groups.get())
+						{
+							t.lpush(getGroupKey(g), String.valueOf(lId));
+						}
+					}
+
+					if (getMaxLen() > 0)
+					{
+						t.zremrangeByRank(getFullKey(), 0, -getMaxLen() - 1);
+					}
+
+					// the ids of an aborted attempt are simply never used
+					if (t.exec() != null)
+					{
+						return lId;
+					}
+				}
+
+				throw new JedisException("Could not append to " + getFullKey() + ", groups kept being created.");
+			}
+		});
+	}
+
+	/**
+	 * Delivers up to <code>iMax</code> elements of the group to this
+	 * consumer. The elements stay pending until acknowledged with
+	 * {@link RedisStreamQueue#ack(Collection)}.
+	 *
+	 * @param iMax the maximum number of elements to read
+	 * @param iWaitSeconds seconds to wait for the first element, 0 does not wait
+	 * @return the elements, possibly none
+	 */
+	public List<Entry> read(final int iMax, final int iWaitSeconds)
+	{
+		List<Entry> ret = withJedisDo(new JWork<List<Entry>>()
+		{
+			@Override
+			public List<Entry> work(Jedis j)
+			{
+				List<String> ids = new ArrayList<String>(iMax);
+				int iLeft = iMax;
+
+				// registered first so claimIdle() sees what this consumer holds
+				if (iWaitSeconds > 0)
+				{
+					j.sadd(getConsumersKey(m_strGroup), m_strConsumer);
+					String first = j.brpoplpush(getGroupKey(m_strGroup), getPendingKey(m_strConsumer), iWaitSeconds);
+
+					if (first == null)
+					{
+						return Collections.emptyList();
+					}
+
+					ids.add(first);
+					iLeft--;
+				}
+
+				if (iLeft > 0)
+				{
+					ids.addAll(claim(j, iLeft));
+				}
+
+				return deliver(j, ids);
+			}
+		});
+
+		return (ret == null) ? Collections.<Entry>emptyList() : ret;
+	}
+
+	/**
+	 * Moves up to <code>iMax</code> ids from the group to this consumer
+	 * and records their delivery time in the same transaction, starting 
+	 * over if another consumer took from the group in between, up to 
+	 * {@link RedisStreamQueue#REDIS_WATCH_RETRY_COUNT} times.
+	 *
+	 * @return the ids moved, oldest first
+	 */
+	protected List<String> claim(Jedis j, int iMax)
+	{
+		for (int i = 0; i < REDIS_WATCH_RETRY_COUNT; i++)
+		{
+			j.watch(getGroupKey(m_strGroup));
+			List<String> ids = j.lrange(getGroupKey(m_strGroup), -iMax, -1);
+
+			if (ids.isEmpty())
+			{
+				j.unwatch();
+				return ids;
+			}
+
+			long lNow = System.currentTimeMillis();
+			Transaction t = j.multi();
+			t.sadd(getConsumersKey(m_strGroup), m_strConsumer);
+
+			for (String id : ids)
+			{
+				t.rpoplpush(getGroupKey(m_strGroup), getPendingKey(m_strConsumer));
+				t.zadd(getIdleKey(), lNow, m_strConsumer + "|" + id);
+			}
+
+			if (t.exec() != null)
+			{
+				Collections.reverse(ids);
+				return ids;
+			}
+		}
+
+		throw new JedisException("Could not read from group " + m_strGroup + " of " + getFullKey() + ", other consumers kept taking from it.");
+	}
+
+	/**
+	 * Marks the given ids as delivered to this consumer now and fetches
+	 * their elements. Ids already trimmed from the log are acknowledged
+	 * and skipped.
+	 */
+	protected List<Entry> deliver(Jedis j, List<String> ids)
+	{
+		if (ids.isEmpty())
+		{
+			return Collections.emptyList();
+		}
+
+		long lNow = System.currentTimeMillis();
+		Pipeline p = j.pipelined();
+		List<Response<Set<String>>> values = new ArrayList<Response<Set<String>>>(ids.size());
+		p.sadd(getConsumersKey(m_strGroup), m_strConsumer);
+
+		for (String id : ids)
+		{
+			p.zadd(getIdleKey(), lNow, m_strConsumer + "|" + id);
+			values.add(p.zrangeByScore(getFullKey(), Double.parseDouble(id), Double.parseDouble(id)));
+		}
+
+		p.sync();
+
+		List<Entry> ret = new ArrayList<Entry>(ids.size());
+		List<Long> trimmed = new ArrayList<Long>();
+
+		for (int i = 0; i < ids.size(); i++)
+		{
+			Set<String> v = values.get(i).get();
+			long lId = Long.parseLong(ids.get(i));
+
+			if (v == null || v.isEmpty())
+			{
+				trimmed.add(lId);
+			}
+			else
+			{
+				String s = v.iterator().next();
+				ret.add(new Entry(lId, s.substring(s.indexOf(':') + 1)));
+			}
+		}
+
+		if (!trimmed.isEmpty())
+		{
+			ack(j, trimmed);
+		}
+
+		return ret;
+	}
+
+	/**
+	 * Acknowledges the given ids, removing them from this consumer's
+	 * pending elements, in one round trip.
+	 *
+	 * @param ids the ids to acknowledge
+	 */
+	public void ack(final Collection<Long> ids)
+	{
+		withJedisDo(new JWork<Boolean>()
+		{
+			@Override
+			public Boolean work(Jedis j)
+			{
+				ack(j, ids);
+				return true;
+			}
+		});
+	}
+
+	protected void ack(Jedis j, Collection<Long> ids)
+	{
+		Transaction t = j.multi();
+
+		for (Long id : ids)
+		{
+			t.lrem(getPendingKey(m_strConsumer), 1, String.valueOf(id));
+			t.zrem(getIdleKey(), m_strConsumer + "|" + id);
+		}
+
+		t.exec();
+	}
+
+	/**
+	 * Takes over up to <code>iMax</code> elements of the group that have
+	 * been pending with any consumer for at least <code>lMinIdleMs</code>
+	 * milliseconds and delivers them to this consumer. Only the idle 
+	 * entries past the cutoff are read, at most <code>iMax</code> of 
+	 * them. Pending ids that were never given a delivery time (their 
+	 * consumer died right after moving them) are given the current time, 
+	 * so they are claimed <code>lMinIdleMs</code> after they are first 
+	 * found, see {@link RedisStreamQueue#recordUntracked(Jedis, int)}.
+	 *
+	 * @param lMinIdleMs the minimum time since delivery
+	 * @param iMax the maximum number of elements to claim
+	 * @return the claimed elements
+	 */
+	public List<Entry> claimIdle(final long lMinIdleMs, final int iMax)
+	{
+		List<Entry> ret = withJedisDo(new JWork<List<Entry>>()
+		{
+			@Override
+			public List<Entry> work(Jedis j)
+			{
+				recordUntracked(j, iMax);
+
+				j.watch(getIdleKey());
+				Set<String> idle = j.zrangeByScore(getIdleKey(), Double.NEGATIVE_INFINITY, System.currentTimeMillis() - lMinIdleMs, 0, iMax);
+
+				if (idle == null || idle.isEmpty())
+				{
+					j.unwatch();
+					return Collections.emptyList();
+				}
+
+				List<String> ids = new ArrayList<String>(idle.size());
+				Transaction t = j.multi();
+
+				for (String s : idle)
+				{
+					int iSep = s.lastIndexOf('|');
+					String id = s.substring(iSep + 1);
+
+					t.lrem(getPendingKey(s.substring(0, iSep)), 1, id);
+					t.lpush(getPendingKey(m_strConsumer), id);
+					t.zrem(getIdleKey(), s);
+					ids.add(id);
+				}
+
+				// somebody else claimed or acknowledged in the meantime
+				if (t.exec() == null)
+				{
+					return Collections.emptyList();
+				}
+
+				return deliver(j, ids);
+			}
+		});
+
+		return (ret == null) ? Collections.<Entry>emptyList() : ret;
+	}
+
+	/**
+	 * Gives the ids pending without a delivery time the current time. 
+	 * Such an id was moved by a blocking read whose consumer died before 
+	 * recording it, and since every move pushes onto the head of the 
+	 * consumer's list and a dead consumer moves nothing after it, only 
+	 * the first <code>iMax</code> ids of every list are checked, in two 
+	 * pipelined round trips. The lists are watched so an id acknowledged 
+	 * in the meantime does not get an entry back.
+	 */
+	protected void recordUntracked(Jedis j, int iMax)
+	{
+		List<String> consumers = new ArrayList<String>(j.smembers(getConsumersKey(m_strGroup)));
+
+		if (consumers.isEmpty() || iMax <= 0)
+		{
+			return;
+		}
+
+		String[] keys = new String[consumers.size()];
+
+		for (int i = 0; i < keys.length; i++)
+		{
+			keys[i] = getPendingKey(consumers.get(i));
+		}
+
+		j.watch(keys);
+		Pipeline p = j.pipelined();
+		List<Response<List<String>>> heads = new ArrayList<Response<List<String>>>(keys.length);
+
+		for (String key : keys)
+		{
+			heads.add(p.lrange(key, 0, iMax - 1));
+		}
+
+		p.sync();
+
+		p = j.pipelined();
+		List<String> members = new ArrayList<String>();
+		// ZRANK rather than ZSCORE, a missing score can not be read from a pipeline
+		List<Response<Long>> ranks = new ArrayList<Response<Long>>();
+
+		for (int i = 0; i < keys.length; i++)
+		{
+			for (String id : heads.get(i).get())
+			{
+				String member = consumers.get(i) + "|" + id;
+				members.add(member);
+				ranks.add(p.zrank(getIdleKey(), member));
+			}
+		}
+
+		p.sync();
+
+		List<String> untracked = new ArrayList<String>();
+
+		for (int i = 0; i < members.size(); i++)
+		{
+			if (ranks.get(i).get() == null) untracked.add(members.get(i));
+		}
+
+		if (untracked.isEmpty())
+		{
+			j.unwatch();
+			return;
+		}
+
+		long lNow = System.currentTimeMillis();
+		Transaction t = j.multi();
+
+		for (String member : untracked)
+		{
+			t.zadd(getIdleKey(), lNow, member);
+		}
+
+		// an aborted attempt is picked up by the next claimIdle()
+		t.exec();
+	}
+
+	/**
+	 * Returns the elements this consumer holds without having
+	 * acknowledged them, e.g. to resume after a restart.
+	 *
+	 * @return the pending elements
+	 */
+	public List<Entry> pending()
+	{
+		List<Entry> ret = withJedisDo(new JWork<List<Entry>>()
+		{
+			@Override
+			public List<Entry> work(Jedis j)
+			{
+				List<String> ids = j.lrange(getPendingKey(m_strConsumer), 0, -1);
+				Collections.reverse(ids);
+				return deliver(j, ids);
+			}
+		});
+
+		return (ret == null) ? Collections.<Entry>emptyList() : ret;
+	}
+
+	/**
+	 * Returns up to <code>iMax</code> elements of the log with an id
+	 * greater than <code>lAfterId</code>, regardless of groups.
+	 *
+	 * @param lAfterId the id to read after, 0 reads from the start
+	 * @param iMax the maximum number of elements to return
+	 * @return the elements
+	 */
+	public List<Entry> replay(final long lAfterId, final int iMax)
+	{
+		return withJedisDo(new JWork<List<Entry>>()
+		{
+			@Override
+			public List<Entry> work(Jedis j)
+			{
+				List<Entry> ret = new ArrayList<Entry>();
+
+				for (String s : j.zrangeByScore(getFullKey(), lAfterId + 1, Double.POSITIVE_INFINITY, 0, iMax))
+				{
+					ret.add(new Entry(Long.parseLong(idOf(s)), s.substring(s.indexOf(':') + 1)));
+				}
+
+				return ret;
+			}
+		});
+	}
+
+	/**
+	 * Reads batches of up to <code>iMax</code> elements and hands them to
+	 * the given {@link Work}. A batch is acknowledged when the work returns
+	 * <code>true</code> and left pending (to be claimed) otherwise. Stops
+	 * once a read comes back empty.
+	 *
+	 * @param iMax the maximum batch size
+	 * @param iWaitSeconds seconds to wait for each batch
+	 * @param work the {@link Work} to run on every batch
+	 * @return the number of elements acknowledged
+	 */
+	public int consume(int iMax, int iWaitSeconds, Work<Boolean, List<Entry>> work)
+	{
+		int iAcked = 0;
+
+		while (true)
+		{
+			List<Entry> batch = read(iMax, iWaitSeconds);
+
+			if (batch.isEmpty())
+			{
+				return iAcked;
+			}
+
+			if (work.work(batch))
+			{
+				List<Long> ids = new ArrayList<Long>(batch.size());
+
+				for (Entry e : batch)
+				{
+					ids.add(e.getId());
+				}
+
+				ack(ids);
+				iAcked += ids.size();
+			}
+		}
+	}
+
+	private static String idOf(String strMember)
+	{
+		return strMember.substring(0, strMember.indexOf(':'));
+	}
+
+	private List<String> readAndAck(int iMax, int iWaitSeconds)
+	{
+		List<Entry> batch = read(iMax, iWaitSeconds);
+		List<String> ret = new ArrayList<String>(batch.size());
+		List<Long> ids = new ArrayList<Long>(batch.size());
+
+		for (Entry e : batch)
+		{
+			ret.add(e.getValue());
+			ids.add(e.getId());
+		}
+
+		if (!ids.isEmpty())
+		{
+			ack(ids);
+		}
+
+		return ret;
+	}
+
+	@Override
+	public boolean add(String e)
+	{
+		return append(Collections.singletonList(e)) != null;
+	}
+
+	@Override
+	public boolean addAll(Collection<? extends String> c)
+	{
+		return !c.isEmpty() && append(c) != null;
+	}
+
+	@Override
+	public boolean offer(String e)
+	{
+		return add(e);
+	}
+
+	@Override
+	public boolean offer(String e, long timeout, TimeUnit unit) throws InterruptedException
+	{
+		return add(e);
+	}
+
+	@Override
+	public void put(String e) throws InterruptedException
+	{
+		add(e);
+	}
+
+	@Override
+	public String take() throws InterruptedException
+	{
+		while (true)
+		{
+			List<String> ret = readAndAck(1, 1);
+
+			if (!ret.isEmpty())
+			{
+				return ret.get(0);
+			}
+
+			if (Thread.interrupted())
+			{
+				throw new InterruptedException();
+			}
+		}
+	}
+
+	@Override
+	public String poll(long timeout, TimeUnit unit) throws InterruptedException
+	{
+		int iWait = (int) Math.max(1, TimeUnit.SECONDS.convert(timeout, unit));
+		List<String> ret = readAndAck(1, iWait);
+		return ret.isEmpty() ? null : ret.get(0);
+	}
+
+	@Override
+	public String poll()
+	{
+		List<String> ret = readAndAck(1, 0);
+		return ret.isEmpty() ? null : ret.get(0);
+	}
+
+	@Override
+	public String remove()
+	{
+		String ret = poll();
+
+		if (ret == null)
+		{
+			throw new NoSuchElementException("The group has no undelivered elements or an error occured.");
+		}
+
+		return ret;
+	}
+
+	@Override
+	public String peek()
+	{
+		return withJedisDo(new JWork<String>()
+		{
+			@Override
+			public String work(Jedis j)
+			{
+				String id = j.lindex(getGroupKey(m_strGroup), -1);
+
+				if (id == null)
+				{
+					return null;
+				}
+
+				Set<String> v = j.zrangeByScore(getFullKey(), Double.parseDouble(id), Double.parseDouble(id));
+
+				if (v == null || v.isEmpty())
+				{
+					return null;
+				}
+
+				String s = v.iterator().next();
+				return s.substring(s.indexOf(':') + 1);
+			}
+		});
+	}
+
+	@Override
+	public String element()
+	{
+		String ret = peek();
+
+		if (ret == null)
+		{
+			throw new NoSuchElementException("The group has no undelivered elements or an error occured.");
+		}
+
+		return ret;
+	}
+
+	/**
+	 * @return the number of elements not yet delivered to this queue's group
+	 */
+	@Override
+	public int size()
+	{
+		return withJedisDo(new JWork<Integer>()
+		{
+			@Override
+			public Integer work(Jedis j)
+			{
+				return j.llen(getGroupKey(m_strGroup)).intValue();
+			}
+		});
+	}
+
+	@Override
+	public boolean isEmpty()
+	{
+		return size() == 0;
+	}
+
+	@Override
+	public int remainingCapacity()
+	{
+		return Integer.MAX_VALUE;
+	}
+
+	@Override
+	public int drainTo(Collection<? super String> c)
+	{
+		return drainTo(c, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public int drainTo(Collection<? super String> c, int maxElements)
+	{
+		if (c == null)
+		{
+			throw new NullPointerException("Specified collection can not be null.");
+		}
+
+		int iMax = Math.min(maxElements, size());
+
+		if (iMax <= 0)
+		{
+			return 0;
+		}
+
+		List<String> ret = readAndAck(iMax, 0);
+		c.addAll(ret);
+		return ret.size();
+	}
+
+	/**
+	 * Iterates over the log (not the group) from the start.
+	 */
+	@Override
+	public Iterator<String> iterator()
+	{
+		List<String> ret = new ArrayList<String>();
+
+		for (Entry e : replay(0, -1))
+		{
+			ret.add(e.getValue());
+		}
+
+		return ret.iterator();
+	}
+
+	@Override
+	public Object[] toArray()
+	{
+		List<String> ret = new ArrayList<String>();
+		Iterator<String> iter = iterator();
+
+		while (iter.hasNext())
+		{
+			ret.add(iter.next());
+		}
+
+		return ret.toArray();
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public <T> T[] toArray(T[] a)
+	{
+		return (T[]) toArray();
+	}
+
+	/**
+	 * Deletes the log, its sequence and every group's keys.
+	 */
+	@Override
+	public void clear()
+	{
+		withJedisDo(new JWork<Boolean>()
+		{
+			@Override
+			public Boolean work(Jedis j)
+			{
+				List<String> keys = new ArrayList<String>();
+				keys.add(getFullKey());
+				keys.add(getSeqKey());
+				keys.add(getGroupsKey());
+
+				for (String g : j.smembers(getGroupsKey()))
+				{
+					keys.add(getGroupKey(g));
+					keys.add(getGroupKey(g) + ":idle");
+					keys.add(getConsumersKey(g));
+
+					for (String c : j.smembers(getConsumersKey(g)))
+					{
+						keys.add(getGroupKey(g) + ":c:" + c);
+					}
+				}
+				j.del(keys.toArray(new String[keys.size()]));
+				return true;
+			}
+		});
+	}
+
+	@Override
+	public boolean remove(Object o)
+	{
+		throw new UnsupportedOperationException("Can not remove an element from a " +
+				this.getClass().getName() + ", acknowledge it instead.");
+	}
+
+	/**
+	 * Checks the log (not the group), like {@link RedisStreamQueue#iterator()}.
+	 */
+	@Override
+	public boolean contains(Object o)
+	{
+		return containsAll(Collections.singleton(o));
+	}
+
+	@Override
+	public boolean removeAll(Collection<?> c)
+	{
+		throw new UnsupportedOperationException("Can not remove elements from a " +
+				this.getClass().getName() + ", acknowledge them instead.");
+	}
+
+	@Override
+	public boolean retainAll(Collection<?> c)
+	{
+		throw new UnsupportedOperationException("Can not remove elements from a " +
+				this.getClass().getName() + ", acknowledge them instead.");
+	}
+
+	/**
+	 * Checks the log (not the group), like {@link RedisStreamQueue#iterator()}.
+	 */
+	@Override
+	public boolean containsAll(Collection<?> c)
+	{
+		List<String> log = new ArrayList<String>();
+		Iterator<String> iter = iterator();
+
+		while (iter.hasNext())
+		{
+			log.add(iter.next());
+		}
+
+		return log.containsAll(c);
+	}
+}
@@ -0,0 +1,303 @@
+package jedistools;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+
+import org.apache.log4j.Logger;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.util.Hashing;
+import redis.clients.util.ShardInfo;
+import redis.clients.util.Sharded;
+
+import jedistools.JedisFactory.JWork;
+
+/**
+ * Spreads the {@link RedisBaseObject}s over several Redis nodes by a
+ * consistent hash of their full keys, every node having its own
+ * connection pool. Once nodes are set with
+ * {@link ShardedJedisFactory#setNodes(String...)} every call of
+ * {@link JedisFactory#withJedisDo(String, JWork)}, and so every call
+ * the collections make, goes to the node owning the object's key.
+ * <p>
+ * The ring places every node at 160 points per unit of weight, named
+ * after the node's address, so adding or removing a node only moves
+ * the keys of the ring segments it takes over or gives up. A key
+ * containing a hash tag, such as <code>{42}:inbox</code>, is hashed on
+ * the tag alone so related objects can be kept on the same node, which
+ * operations spanning several objects (views, unions, ...) need.
+ * <p>
+ * All the keys an object derives from its own (scratch, sequence or
+ * signal keys) live on the node of the object's key.
+ *
+ * @author Hisham Mardam-Bey
+ *
+ */
+public class ShardedJedisFactory
+{
+	protected static Logger m_logger = Logger.getLogger(ShardedJedisFactory.class.getName());
+
+	/**
+	 * Weight of a node given without one.
+	 */
+	protected static int REDIS_NODE_DEFAULT_WEIGHT = Sharded.DEFAULT_WEIGHT;
+
+	/**
+	 * A node on the ring and its connection pool.
+	 */
+	protected static class Node extends ShardInfo<JedisPool>
+	{
+		protected final String m_strHost;
+
+		protected final int m_iPort;
+
+		protected final String m_strName;
+
+		protected JedisPool m_pool;
+
+		protected Node(String strHost, int iPort, int iWeight)
+		{
+			super(iWeight);
+			m_strHost = strHost;
+			m_iPort = iPort;
+			m_strName = strHost + ":" + iPort;
+		}
+
+		@Override
+		protected JedisPool createResource()
+		{
+			if (m_pool == null)
+			{
+				m_pool = JedisFactory.createPool(m_strHost, m_iPort);
+				JedisFactory.getPoolMetrics().poolCreated(getPoolName(), m_pool);
+			}
+
+			return m_pool;
+		}
+
+		@Override
+		public String getName()
+		{
+			return m_strName;
+		}
+
+		protected String getPoolName()
+		{
+			return "shard:" + m_strName;
+		}
+	}
+
+	/**
+	 * The ring, null while sharding is off.
+	 */
+	protected static volatile Sharded<JedisPool, Node> m_ring;
+
+	/**
+	 * The nodes on the ring by name.
+	 */
+	protected static Map<String, Node> m_nodes = new HashMap<String, Node>();
+
+	private static Object objSync = new Object();
+
+	/**
+	 *  Prevent direct access to the constructor
+	 */
+	private ShardedJedisFactory()
+	{
+		super();
+	}
+
+	/**
+	 * Sets the nodes to shard over, each given as <code>host:port</code>
+	 * or <code>host:port:weight</code>. Pools of nodes that stay are kept,
+	 * pools of nodes that go are destroyed. Setting no nodes turns sharding
+	 * off and sends everything back to {@link JedisFactory}'s pool.
+	 *
+	 * @param nodes the nodes
+	 */
+	public static void setNodes(String... nodes)
+	{
+		synchronized (objSync)
+		{
+			Map<String, Node> next = new HashMap<String, Node>();
+			List<Node> ring = new ArrayList<Node>();
+
+			for (String strNode : nodes)
+			{
+				Node n = parse(strNode);
+				Node old = m_nodes.get(n.getName());
+
+				// keep the pool of a node that stays with the same weight
+				if (old != null && old.getWeight() == n.getWeight())
+				{
+					n = old;
+				}
+
+				next.put(n.getName(), n);
+				ring.add(n);
+			}
+
+			List<Node> gone = new ArrayList<Node>();
+
+			for (Node n : m_nodes.values())
+			{
+				if (next.get(n.getName()) != n)
+				{
+					gone.add(n);
+				}
+			}
+
+			m_ring = ring.isEmpty() ? null : new Sharded<JedisPool, Node>(ring, Hashing.MURMUR_HASH, Sharded.DEFAULT_KEY_TAG_PATTERN);
+			m_nodes = next;
+
+			for (Node n : gone)
+			{
+				if (n.m_pool != null)
+				{
+					JedisFactory.destroyPool(n.getPoolName(), n.m_pool);
+				}
+			}
+
+			m_logger.info("Sharding over " + next.keySet());
+		}
+	}
+
+	/**
+	 * Adds a node to the ring, only the keys of the ring segments it takes
+	 * over move to it.
+	 *
+	 * @param strNode the node as <code>host:port[:weight]</code>
+	 */
+	public static void addNode(String strNode)
+	{
+		synchronized (objSync)
+		{
+			List<String> nodes = getNodes();
+			nodes.add(strNode);
+			setNodes(nodes.toArray(new String[]{}));
+		}
+	}
+
+	/**
+	 * Removes a node from the ring, its keys move to the other nodes.
+	 *
+	 * @param strNode the node as <code>host:port</code>
+	 */
+	public static void removeNode(String strNode)
+	{
+		synchronized (objSync)
+		{
+			List<String> nodes = getNodes();
+			String strName = parse(strNode).getName();
+
+			for (int i = 0; i < nodes.size(); i++)
+			{
+				if (parse(nodes.get(i)).getName().equals(strName))
+				{
+					nodes.remove(i);
+					break;
+				}
+			}
+
+			setNodes(nodes.toArray(new String[]{}));
+		}
+	}
+
+	/**
+	 * @return the nodes on the ring as <code>host:port:weight</code>
+	 */
+	public static List<String> getNodes()
+	{
+		synchronized (objSync)
+		{
+			List<String> ret = new ArrayList<String>();
+
+			for (Node n : m_nodes.values())
+			{
+				ret.add(n.getName() + ":" + n.getWeight());
+			}
+
+			return ret;
+		}
+	}
+
+	protected static Node parse(String strNode)
+	{
+		String[] parts = strNode.split(":");
+
+		if (parts.length < 2 || parts.length > 3)
+		{
+			throw new IllegalArgumentException("Expected host:port[:weight] but got " + strNode);
+		}
+
+		int iWeight = (parts.length == 3) ? Integer.parseInt(parts[2]) : REDIS_NODE_DEFAULT_WEIGHT;
+		return new Node(parts[0], Integer.parseInt(parts[1]), iWeight);
+	}
+
+	/**
+	 * @return true if nodes were set
+	 */
+	public static boolean isSharded()
+	{
+		return m_ring != null;
+	}
+
+	/**
+	 * Returns the name of the node owning the given key.
+	 *
+	 * @param strKey the key
+	 * @return the node as <code>host:port</code> or null if sharding is off
+	 */
+	public static String getNodeName(String strKey)
+	{
+		Sharded<JedisPool, Node> ring = m_ring;
+		return (ring == null) ? null : ring.getShardInfo(strKey).getName();
+	}
+
+	/**
+	 * Returns the part of the key that is hashed, the hash tag if the
+	 * key has one or the whole key otherwise.
+	 *
+	 * @param strKey the key
+	 * @return the hashed part
+	 */
+	public static String getKeyTag(String strKey)
+	{
+		Matcher m = Sharded.DEFAULT_KEY_TAG_PATTERN.matcher(strKey);
+		return m.find() ? m.group(1) : strKey;
+	}
+
+	/**
+	 * Runs the given {@link JWork} on a connection to the node owning the
+	 * given key. Like {@link JedisFactory#withJedisDo(JWork)} the connection
+	 * is always handed back and failures are thrown.
+	 *
+	 * @param strKey the key the work is about
+	 * @param work the work to run
+	 * @return the result of the work
+	 */
+	public static <T> T withJedisDo(String strKey, JWork<T> work)
+	{
+		Sharded<JedisPool, Node> ring = m_ring;
+
+		if (ring == null)
+		{
+			return JedisFactory.withMasterDo(strKey, work);
+		}
+
+		Node node = ring.getShardInfo(strKey);
+		return JedisFactory.runAndRelease(JedisFactory.borrow(node.getPoolName(), node.m_pool), strKey, work);
+	}
+
+	/**
+	 * Turns sharding off and destroys all node pools.
+	 */
+	public static void shutdown()
+	{
+		setNodes();
+	}
+}
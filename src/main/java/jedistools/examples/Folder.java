@@ -15,7 +15,8 @@ public class Folder extends RedisSortedSet
 	{
 		m_strName = strName;
 		m_lProfileId = lProfileId;
-		m_strKey = m_lProfileId + ":" + m_strName;
+		// tagged by profile so a profile's folders share a node when sharded
+		m_strKey = "{" + m_lProfileId + "}:" + m_strName;
 	}
 	
 	public Conversation getConversation(String strId)		
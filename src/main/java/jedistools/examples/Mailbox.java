@@ -1,7 +1,22 @@
 package jedistools.examples;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import jedistools.RedisBatch;
+import jedistools.RedisBatch.Deferred;
+import jedistools.RedisSortedSet;
+import redis.clients.jedis.Tuple;
+import redis.clients.jedis.ZParams.Aggregate;
+
 public class Mailbox
 {
+	/**
+	 * Number of seconds the merged "all mail" view is cached for.
+	 */
+	protected static int ALL_MAIL_TTL = 30;
+	
 	protected Folder m_inbox;
 	protected Folder m_sentbox;
 	protected Long m_lProfileId;
@@ -22,6 +37,47 @@ public class Mailbox
 	{
 		return m_sentbox;
 	}
+	
+	/**
+	 * Returns the inbox and sentbox merged on the server, a conversation 
+	 * found in both folders is kept with its most recent timestamp.
+	 */
+	public RedisSortedSet getAllMail()
+	{
+		return m_inbox.union(ALL_MAIL_TTL, null, Aggregate.MAX, m_sentbox);
+	}
+	
+	/**
+	 * Loads the most recent conversations of the given folder and their 
+	 * messages in two round trips, one for the folder and one for all 
+	 * the conversations.
+	 * 
+	 * @param folder the folder to load
+	 * @param iMax the maximum number of conversations to load
+	 * @return the messages of every conversation, in folder order
+	 */
+	public Map<Long, Set<Tuple>> loadConversations(Folder folder, int iMax)
+	{
+		RedisBatch batch = new RedisBatch();
+		Deferred<Set<Tuple>> ids = batch.range(folder, -iMax, -1);
+		batch.execute();
+		
+		Map<Long, Deferred<Set<Tuple>>> msgs = new LinkedHashMap<Long, Deferred<Set<Tuple>>>();
+		
+		for (Tuple t : ids.get())
+		{
+			msgs.put(Long.valueOf(t.getElement()), batch.range(folder.getConversation(t.getElement()), 0, -1));
+		}
+		
+		batch.execute();
+		
+		Map<Long, Set<Tuple>> ret = new LinkedHashMap<Long, Set<Tuple>>();
+		
+		for (Map.Entry<Long, Deferred<Set<Tuple>>> e : msgs.entrySet())
+		{
+			ret.put(e.getKey(), e.getValue().get());
+		}
+		
+		return ret;
+	}
 }
-
-
@@ -0,0 +1,130 @@
+package jedistools.examples;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import jedistools.JedisFactory;
+import jedistools.LatencyHistogram;
+import jedistools.RedisMap;
+
+/**
+ * Runs increasing numbers of concurrent callers against one
+ * {@link RedisMap}, each on its own virtual thread when the JVM has them
+ * and on a platform thread otherwise, and prints throughput and latency
+ * percentiles per level. All callers share the 32 connections of
+ * {@link JedisFactory}'s pool, so throughput should stay flat as callers
+ * are added while latency grows with the wait for a connection.
+ * <pre>
+ * java jedistools.examples.VirtualThreadBenchmark [calls per caller] [callers...]
+ * </pre>
+ *
+ * @author Hisham Mardam-Bey
+ *
+ */
+public class VirtualThreadBenchmark
+{
+	protected static final RedisMap m_map = new RedisMap()
+	{
+		@Override
+		protected String getKey()
+		{
+			return "bench:vt";
+		}
+	};
+
+	protected static ExecutorService createExecutor(int iCallers)
+	{
+		try
+		{
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		}
+		catch (Exception e)
+		{
+			return Executors.newFixedThreadPool(iCallers);
+		}
+	}
+
+	protected static void run(int iCallers, final int iCalls) throws InterruptedException
+	{
+		final LatencyHistogram latencies = new LatencyHistogram();
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(iCallers);
+		ExecutorService executor = createExecutor(iCallers);
+
+		for (int i = 0; i < iCallers; i++)
+		{
+			final String strField = "f" + (i % 64);
+
+			executor.execute(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						start.await();
+
+						for (int c = 0; c < iCalls; c++)
+						{
+							long lStart = System.nanoTime();
+							m_map.get(strField);
+							latencies.record(System.nanoTime() - lStart);
+						}
+					}
+					catch (Exception e)
+					{
+						e.printStackTrace();
+					}
+					finally
+					{
+						done.countDown();
+					}
+				}
+			});
+		}
+
+		long lStart = System.nanoTime();
+		start.countDown();
+		done.await();
+		long lNanos = System.nanoTime() - lStart;
+		executor.shutdown();
+
+		System.out.println(String.format("callers=%6d calls=%9d ops/s=%9.0f p50=%6dus p99=%7dus p999=%7dus max=%7dus",
+			iCallers, latencies.getCount(), latencies.getCount() * 1e9 / lNanos,
+			TimeUnit.NANOSECONDS.toMicros(latencies.getPercentile(0.5)),
+			TimeUnit.NANOSECONDS.toMicros(latencies.getPercentile(0.99)),
+			TimeUnit.NANOSECONDS.toMicros(latencies.getPercentile(0.999)),
+			TimeUnit.NANOSECONDS.toMicros(latencies.getMax())));
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		int iCalls = (args.length > 0) ? Integer.parseInt(args[0]) : 200;
+		int[] callers = new int[]{ 10, 100, 1000, 5000, 10000 };
+
+		if (args.length > 1)
+		{
+			callers = new int[args.length - 1];
+
+			for (int i = 1; i < args.length; i++)
+			{
+				callers[i - 1] = Integer.parseInt(args[i]);
+			}
+		}
+
+		for (int i = 0; i < 64; i++)
+		{
+			m_map.put("f" + i, "value" + i);
+		}
+
+		// warm up the pool and the JIT
+		run(32, iCalls);
+
+		for (int iCallers : callers)
+		{
+			run(iCallers, iCalls);
+		}
+	}
+}
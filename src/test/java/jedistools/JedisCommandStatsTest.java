@@ -0,0 +1,134 @@
+package jedistools;
+
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.TestCase;
+
+import redis.clients.jedis.Jedis;
+
+import jedistools.JedisFactory.JWork;
+
+/**
+ * @author Hisham Mardam-Bey
+ *
+ */
+public class JedisCommandStatsTest extends TestCase
+{
+	protected static final JWork<String> WORK = new JWork<String>()
+	{
+		@Override
+		public String work(Jedis j)
+		{
+			return null;
+		}
+	};
+
+	public void testPrefixIsMatchedWithoutBuildingIt()
+	{
+		String[] keys = { "rs:0:conv:12", "rs:0:conv:", "abc", "", "12", "a1b22c", "-", null };
+
+		for (String k : keys)
+		{
+			String strPrefix = JedisCommandStats.keyPrefix(k);
+
+			assertEquals(strPrefix.hashCode(), JedisCommandStats.prefixHash(k));
+			assertTrue(JedisCommandStats.hasPrefix(k, strPrefix));
+		}
+
+		assertFalse(JedisCommandStats.hasPrefix("rs:0:conv:12", "rs:#:conv:"));
+		assertFalse(JedisCommandStats.hasPrefix("rs:0:conv", "rs:#:conv:#"));
+		assertFalse(JedisCommandStats.hasPrefix("rs:0:map:1", "rs:#:conv:#"));
+		assertFalse(JedisCommandStats.hasPrefix(null, "rs:#"));
+	}
+
+	/**
+	 * Calls of one site alternating between prefixes that share a cache
+	 * slot are each counted under their own prefix.
+	 */
+	public void testSharedCacheSlotsKeepTagsApart()
+	{
+		JedisCommandStats stats = new JedisCommandStats();
+
+		for (int i = 0; i < 10; i++)
+		{
+			for (int k = 0; k < 40; k++)
+			{
+				stats.record(WORK, "key" + (char) ('a' + k % 26) + (char) ('a' + k / 26), 1000, null);
+			}
+		}
+
+		assertEquals(40, stats.getHistograms().size());
+
+		for (LatencyHistogram h : stats.getHistograms().values())
+		{
+			assertEquals(10, h.getCount());
+		}
+	}
+
+	/**
+	 * Concurrent new tags never take the number of tracked tags past the
+	 * cap, the rest is counted under <code>other</code>.
+	 */
+	public void testTagCapHoldsUnderConcurrency() throws Exception
+	{
+		int iMaxTags = JedisCommandStats.REDIS_MAX_COMMAND_TAGS;
+		JedisCommandStats.REDIS_MAX_COMMAND_TAGS = 8;
+
+		try
+		{
+			final JedisCommandStats stats = new JedisCommandStats();
+			final CountDownLatch start = new CountDownLatch(1);
+			Thread[] threads = new Thread[8];
+
+			for (int t = 0; t < threads.length; t++)
+			{
+				final int iThread = t;
+
+				threads[t] = new Thread(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						try
+						{
+							start.await();
+						}
+						catch (InterruptedException e)
+						{
+							return;
+						}
+
+						for (int i = 0; i < 200; i++)
+						{
+							stats.record(WORK, "t" + iThread + ":" + (char) ('a' + i % 20), 1000, null);
+						}
+					}
+				});
+
+				threads[t].start();
+			}
+
+			start.countDown();
+
+			for (Thread t : threads)
+			{
+				t.join();
+			}
+
+			long lCount = 0;
+
+			for (LatencyHistogram h : stats.getHistograms().values())
+			{
+				lCount += h.getCount();
+			}
+
+			assertEquals(9, stats.getHistograms().size());
+			assertTrue(stats.getHistograms().containsKey("other"));
+			assertEquals(8 * 200, lCount);
+		}
+		finally
+		{
+			JedisCommandStats.REDIS_MAX_COMMAND_TAGS = iMaxTags;
+		}
+	}
+}
@@ -0,0 +1,264 @@
+package jedistools;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.apache.commons.pool.impl.GenericObjectPool;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+import jedistools.JedisFactory.JWork;
+
+/**
+ * @author Hisham Mardam-Bey
+ *
+ */
+public class JedisFactoryTest extends RedisStandInTestCase
+{
+	/**
+	 * An error reply in the middle of a pipeline leaves the replies after
+	 * it unread, the connection must not be handed to the next caller.
+	 */
+	public void testFailedPipelineDoesNotPoisonTheConnection()
+	{
+		GenericObjectPool.Config config = JedisFactory.createPoolConfig();
+		config.maxActive = 1;
+		config.minIdle = 0;
+		config.maxIdle = 1;
+		config.testOnBorrow = false;
+
+		JedisClient client = new JedisClient("poison", m_redis.getHost(), m_redis.getPort(), config);
+
+		try
+		{
+			client.withJedisDo(new JWork<List<Object>>()
+			{
+				@Override
+				public List<Object> work(Jedis j)
+				{
+					Pipeline p = j.pipelined();
+					p.set("k", "v");
+					p.hget("k", "f");
+					p.set("k", "stale");
+					return p.syncAndReturnAll();
+				}
+			});
+
+			fail("The pipeline should have failed on the WRONGTYPE reply.");
+		}
+		catch (JedisDataException e)
+		{
+			// expected
+		}
+
+		String ret = client.withJedisDo(new JWork<String>()
+		{
+			@Override
+			public String work(Jedis j)
+			{
+				return j.hget("h", "f");
+			}
+		});
+
+		assertNull(ret);
+		client.shutdown();
+	}
+
+	/**
+	 * A connection keeps its birth time across borrows and loses it
+	 * once discarded.
+	 */
+	public void testConnectionBirthOutlivesBorrows() throws Exception
+	{
+		GenericObjectPool.Config config = JedisFactory.createPoolConfig();
+		config.maxActive = 1;
+		config.minIdle = 0;
+		config.maxIdle = 1;
+
+		JedisClient client = new JedisClient("birth", m_redis.getHost(), m_redis.getPort(), config);
+		Jedis j = JedisFactory.borrow(client.getPoolName(), client.getPool());
+		JedisFactory.ConnectionKey key = new JedisFactory.ConnectionKey(j, null);
+		Long lBirth = JedisFactory.m_connectionBirth.get(key);
+
+		assertNotNull(lBirth);
+		JedisFactory.release(j, false);
+		Thread.sleep(5);
+
+		assertSame(j, JedisFactory.borrow(client.getPoolName(), client.getPool()));
+		assertEquals(lBirth, JedisFactory.m_connectionBirth.get(key));
+
+		JedisFactory.release(j, true);
+		assertFalse(JedisFactory.m_connectionBirth.containsKey(key));
+		client.shutdown();
+	}
+
+	/**
+	 * The first attempt of a hedged read runs on the caller's thread,
+	 * when it is stuck the hedge answers and the stuck connection is
+	 * dropped rather than handed to the next caller.
+	 */
+	public void testHedgeAnswersForAStuckRead()
+	{
+		int iMinSamples = JedisFactory.REDIS_HEDGE_MIN_SAMPLES;
+		JedisFactory.REDIS_HEDGE_MIN_SAMPLES = 20;
+		JedisFactory.m_readLatencies.clear();
+		JedisFactory.setHedgeReads(true);
+
+		try
+		{
+			JedisFactory.withJedisDo(new JWork<String>()
+			{
+				@Override
+				public String work(Jedis j)
+				{
+					return j.set("k", "v");
+				}
+			});
+
+			for (int i = 0; i < 30; i++)
+			{
+				assertEquals("v", JedisFactory.withJedisRead("k", false, new CallerRead(false)));
+			}
+
+			long lHedgesWon = JedisFactory.getHedgeWinCount();
+			long lStart = System.nanoTime();
+
+			assertEquals("v", JedisFactory.withJedisRead("k", false, new CallerRead(true)));
+			assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lStart) < 2000);
+			assertEquals(lHedgesWon + 1, JedisFactory.getHedgeWinCount());
+
+			for (int i = 0; i < 5; i++)
+			{
+				assertEquals("v", JedisFactory.withJedisRead("k", false, new CallerRead(false)));
+			}
+		}
+		finally
+		{
+			JedisFactory.setHedgeReads(false);
+			JedisFactory.REDIS_HEDGE_MIN_SAMPLES = iMinSamples;
+		}
+	}
+
+	/**
+	 * The hedging delay comes from the last full window of reads, it
+	 * follows a change in latency without going back to no samples.
+	 */
+	public void testHedgeDelayFollowsTheLastWindow()
+	{
+		int iWindow = JedisFactory.REDIS_HEDGE_WINDOW;
+		JedisFactory.REDIS_HEDGE_WINDOW = 200;
+
+		try
+		{
+			JedisFactory.ReadLatencies latencies = new JedisFactory.ReadLatencies();
+			assertEquals(-1, latencies.getHedgeDelay());
+
+			for (int i = 0; i < 200; i++)
+			{
+				latencies.record(TimeUnit.MILLISECONDS.toNanos(10));
+			}
+
+			long lSlow = latencies.getHedgeDelay();
+			assertTrue(lSlow >= TimeUnit.MILLISECONDS.toNanos(8));
+
+			for (int i = 0; i < 150; i++)
+			{
+				latencies.record(TimeUnit.MILLISECONDS.toNanos(1));
+			}
+
+			assertEquals(lSlow, latencies.getHedgeDelay());
+
+			for (int i = 0; i < 50; i++)
+			{
+				latencies.record(TimeUnit.MILLISECONDS.toNanos(1));
+			}
+
+			assertTrue(latencies.getHedgeDelay() < TimeUnit.MILLISECONDS.toNanos(2));
+		}
+		finally
+		{
+			JedisFactory.REDIS_HEDGE_WINDOW = iWindow;
+		}
+	}
+
+	/**
+	 * Async calls keep the caller's deadline and master scope.
+	 */
+	public void testAsyncKeepsTheCallersScopes() throws Exception
+	{
+		CompletableFuture<Boolean> master = JedisFactory.fromMaster(new Supplier<CompletableFuture<Boolean>>()
+		{
+			@Override
+			public CompletableFuture<Boolean> get()
+			{
+				return JedisFactory.async(new Supplier<Boolean>()
+				{
+					@Override
+					public Boolean get()
+					{
+						return JedisFactory.isReadingFromMaster();
+					}
+				});
+			}
+		});
+
+		CompletableFuture<Long> deadline = JedisFactory.withDeadline(10000, new Supplier<CompletableFuture<Long>>()
+		{
+			@Override
+			public CompletableFuture<Long> get()
+			{
+				return JedisFactory.async(new Supplier<Long>()
+				{
+					@Override
+					public Long get()
+					{
+						return JedisFactory.remainingMillis();
+					}
+				});
+			}
+		});
+
+		assertTrue(master.get());
+		assertTrue(deadline.get() > 0);
+		assertFalse(JedisFactory.async(new Supplier<Boolean>()
+		{
+			@Override
+			public Boolean get()
+			{
+				return JedisFactory.isReadingFromMaster();
+			}
+		}).get());
+	}
+
+	/**
+	 * Reads key "k", blocking on an empty list instead when asked to be
+	 * slow and running on the thread that created it.
+	 */
+	protected static class CallerRead implements JWork<String>
+	{
+		protected final Thread m_caller = Thread.currentThread();
+
+		protected final boolean m_bSlow;
+
+		public CallerRead(boolean bSlow)
+		{
+			m_bSlow = bSlow;
+		}
+
+		@Override
+		public String work(Jedis j)
+		{
+			if (m_bSlow && Thread.currentThread() == m_caller)
+			{
+				j.blpop(5, "never");
+				return "stuck";
+			}
+
+			return j.get("k");
+		}
+	}
+}
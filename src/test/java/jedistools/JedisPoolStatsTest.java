@@ -0,0 +1,54 @@
+package jedistools;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+
+import redis.clients.jedis.Jedis;
+
+import jedistools.JedisFactory.JWork;
+
+/**
+ * @author Hisham Mardam-Bey
+ *
+ */
+public class JedisPoolStatsTest extends RedisStandInTestCase
+{
+	protected static final JWork<String> PING = new JWork<String>()
+	{
+		@Override
+		public String work(Jedis j)
+		{
+			return j.ping();
+		}
+	};
+
+	/**
+	 * A short lived client's pool stats and MBean go away with it, even
+	 * when a connection is handed back after the shutdown.
+	 */
+	public void testShutdownClientLeavesNoStatsBehind() throws Exception
+	{
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		JedisPoolStats stats = (JedisPoolStats) JedisFactory.getPoolMetrics();
+		JedisClient client = new JedisClient("short-lived", m_redis.getHost(), m_redis.getPort(), JedisFactory.createPoolConfig());
+		String strPool = client.getPoolName();
+
+		assertEquals("PONG", client.withJedisDo(PING));
+		assertTrue(stats.m_pools.containsKey(strPool));
+		assertTrue(server.isRegistered(JedisPoolStats.objectName(strPool)));
+
+		Jedis out = JedisFactory.borrow(strPool, client.getPool());
+		client.shutdown();
+		JedisFactory.release(out, false);
+
+		assertFalse(stats.m_pools.containsKey(strPool));
+		assertFalse(server.isRegistered(JedisPoolStats.objectName(strPool)));
+
+		// used again it is a new pool with new stats
+		assertEquals("PONG", client.withJedisDo(PING));
+		assertTrue(stats.m_pools.containsKey(strPool));
+		client.shutdown();
+		assertFalse(stats.m_pools.containsKey(strPool));
+	}
+}
@@ -0,0 +1,196 @@
+package jedistools;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * @author Hisham Mardam-Bey
+ *
+ */
+public class PinnedJedisFactoryTest extends RedisStandInTestCase
+{
+	protected int m_iMaxActive;
+
+	protected int m_iMinIdle;
+
+	protected int m_iMaxWait;
+
+	protected int m_iValidateInterval;
+
+	protected RedisMap m_map;
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		m_iMaxActive = JedisFactory.REDIS_POOL_MAX_ACTIVE;
+		m_iMinIdle = JedisFactory.REDIS_POOL_MIN_IDLE;
+		m_iMaxWait = JedisFactory.REDIS_POOL_MAX_WAIT;
+		m_iValidateInterval = PinnedJedisFactory.REDIS_PIN_VALIDATE_INTERVAL;
+
+		JedisFactory.REDIS_POOL_MAX_ACTIVE = 4;
+		JedisFactory.REDIS_POOL_MIN_IDLE = 0;
+		JedisFactory.REDIS_POOL_MAX_WAIT = 5000;
+		PinnedJedisFactory.REDIS_PIN_VALIDATE_INTERVAL = 200;
+
+		super.setUp();
+
+		m_map = new RedisMap()
+		{
+			@Override
+			protected String getKey()
+			{
+				return "pinned";
+			}
+		};
+
+		m_map.put("k", "v");
+	}
+
+	@Override
+	protected void tearDown() throws Exception
+	{
+		PinnedJedisFactory.setPinThreads(false);
+		JedisFactory.REDIS_POOL_MAX_ACTIVE = m_iMaxActive;
+		JedisFactory.REDIS_POOL_MIN_IDLE = m_iMinIdle;
+		JedisFactory.REDIS_POOL_MAX_WAIT = m_iMaxWait;
+		PinnedJedisFactory.REDIS_PIN_VALIDATE_INTERVAL = m_iValidateInterval;
+
+		super.tearDown();
+	}
+
+	protected static void awaitPinned(int iCount) throws InterruptedException
+	{
+		long lEnd = System.currentTimeMillis() + 10000;
+
+		while (PinnedJedisFactory.getPinnedCount() != iCount && System.currentTimeMillis() < lEnd)
+		{
+			Thread.sleep(20);
+		}
+
+		assertEquals(iCount, PinnedJedisFactory.getPinnedCount());
+	}
+
+	/**
+	 * Far more async calls than connections go through while threads are
+	 * pinned, the async executor's threads do not keep connections.
+	 */
+	public void testAsyncCallsDoNotPin() throws Exception
+	{
+		PinnedJedisFactory.setPinThreads(true);
+
+		List<CompletableFuture<String>> calls = new ArrayList<CompletableFuture<String>>();
+
+		for (int i = 0; i < 64; i++)
+		{
+			calls.add(m_map.getAsync("k"));
+		}
+
+		for (CompletableFuture<String> call : calls)
+		{
+			assertEquals("v", call.get(10, TimeUnit.SECONDS));
+		}
+
+		assertEquals(0, PinnedJedisFactory.getPinnedCount());
+	}
+
+	public void testOptedInThreadKeepsItsConnection() throws Exception
+	{
+		PinnedJedisFactory.setPinThreads(true);
+
+		final CountDownLatch pinned = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(1);
+
+		Thread t = PinnedJedisFactory.pinning(Executors.defaultThreadFactory()).newThread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				m_map.get("k");
+				m_map.get("k");
+				pinned.countDown();
+
+				try
+				{
+					done.await();
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+
+		t.start();
+		assertTrue(pinned.await(10, TimeUnit.SECONDS));
+		assertEquals(1, PinnedJedisFactory.getPinnedCount());
+
+		// this thread did not opt in
+		m_map.get("k");
+		assertEquals(1, PinnedJedisFactory.getPinnedCount());
+
+		done.countDown();
+		t.join();
+		awaitPinned(0);
+	}
+
+	public void testScopedPinIsReleased() throws Exception
+	{
+		String ret = PinnedJedisFactory.withPinnedConnection(new Supplier<String>()
+		{
+			@Override
+			public String get()
+			{
+				assertEquals(1, PinnedJedisFactory.getPinnedCount());
+				m_map.get("k");
+
+				return m_map.get("k");
+			}
+		});
+
+		assertEquals("v", ret);
+		assertEquals(0, PinnedJedisFactory.getPinnedCount());
+	}
+
+	/**
+	 * A scope ending while its connection is being validated does not
+	 * wait for the PING, the validator releases the connection after.
+	 */
+	public void testScopeEndingDuringValidation() throws Exception
+	{
+		final long[] ended = new long[1];
+
+		PinnedJedisFactory.withPinnedConnection(new Supplier<Boolean>()
+		{
+			@Override
+			public Boolean get()
+			{
+				m_map.get("k");
+				m_redis.setLatency(500000);
+
+				try
+				{
+					// idle long enough for the validator to PING it
+					Thread.sleep(700);
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+				}
+
+				ended[0] = System.nanoTime();
+				return true;
+			}
+		});
+
+		long lEndMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - ended[0]);
+		m_redis.setLatency(0);
+
+		assertTrue("waited " + lEndMs + "ms", lEndMs < 250);
+		awaitPinned(0);
+	}
+}
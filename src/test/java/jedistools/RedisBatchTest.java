@@ -0,0 +1,161 @@
+package jedistools;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Tuple;
+
+import jedistools.RedisBatch.Deferred;
+
+/**
+ * @author Hisham Mardam-Bey
+ *
+ */
+public class RedisBatchTest extends RedisStandInTestCase
+{
+	protected RedisStandIn m_other;
+
+	protected String m_strMaster;
+
+	protected String m_strOther;
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+
+		m_other = new RedisStandIn().start();
+		m_strMaster = m_redis.getHost() + ":" + m_redis.getPort();
+		m_strOther = m_other.getHost() + ":" + m_other.getPort();
+		ShardedJedisFactory.setNodes(m_strMaster, m_strOther);
+	}
+
+	@Override
+	protected void tearDown() throws Exception
+	{
+		ShardedJedisFactory.shutdown();
+		m_other.stop();
+		super.tearDown();
+	}
+
+	/**
+	 * @return a map whose key lives on the given node
+	 */
+	protected static RedisMap mapOn(String strNode)
+	{
+		for (int i = 0; ; i++)
+		{
+			final String strKey = "batched" + i;
+
+			RedisMap map = new RedisMap()
+			{
+				@Override
+				protected String getKey()
+				{
+					return strKey;
+				}
+			};
+
+			if (strNode.equals(ShardedJedisFactory.getNodeName(map.getFullKey())))
+			{
+				return map;
+			}
+		}
+	}
+
+	/**
+	 * @return a sorted set whose key lives on the given node
+	 */
+	protected static RedisSortedSet setOn(String strNode)
+	{
+		for (int i = 0; ; i++)
+		{
+			final String strKey = "scores" + i;
+
+			RedisSortedSet set = new RedisSortedSet()
+			{
+				@Override
+				protected String getKey()
+				{
+					return strKey;
+				}
+
+				@Override
+				protected String getChangeChannel()
+				{
+					return getFullKey() + ":changes";
+				}
+			};
+
+			if (strNode.equals(ShardedJedisFactory.getNodeName(set.getFullKey())))
+			{
+				return set;
+			}
+		}
+	}
+
+	/**
+	 * A batch spanning shards sends every call to the node owning its
+	 * key, pipelined and transacted calls alike.
+	 */
+	public void testCallsGoToTheirShards()
+	{
+		RedisMap a = mapOn(m_strMaster);
+		RedisMap b = mapOn(m_strOther);
+		RedisSortedSet s = setOn(m_strOther);
+		s.add(new Tuple("m", 1d));
+
+		RedisBatch batch = new RedisBatch();
+		batch.put(a, "f", "on-master");
+		batch.put(b, "f", "on-other");
+		Deferred<Double> score = batch.incrementScore(s, "m", 2);
+		Deferred<String> fromA = batch.get(a, "f");
+		Deferred<String> fromB = batch.get(b, "f");
+
+		assertTrue(batch.execute());
+		assertEquals("on-master", fromA.get());
+		assertEquals("on-other", fromB.get());
+		assertEquals(3d, score.get());
+
+		Jedis master = new Jedis(m_redis.getHost(), m_redis.getPort());
+		Jedis other = new Jedis(m_other.getHost(), m_other.getPort());
+
+		try
+		{
+			assertEquals("on-master", master.hget(a.getFullKey(), "f"));
+			assertFalse(master.exists(b.getFullKey()));
+			assertFalse(master.exists(s.getFullKey()));
+			assertEquals("on-other", other.hget(b.getFullKey(), "f"));
+			assertFalse(other.exists(a.getFullKey()));
+			assertEquals(3d, other.zscore(s.getFullKey(), "m"));
+		}
+		finally
+		{
+			master.disconnect();
+			other.disconnect();
+		}
+	}
+
+	/**
+	 * A shard failing its part of a batch fails the batch, the calls on
+	 * the other shards still complete.
+	 */
+	public void testFailingShardOnlyFailsItsCalls()
+	{
+		RedisMap a = mapOn(m_strMaster);
+		RedisMap b = mapOn(m_strOther);
+
+		m_other.setInjectedCommands("HSET");
+		m_other.setErrorRate(1);
+
+		RedisBatch batch = new RedisBatch();
+		Deferred<Long> toA = batch.put(a, "f", "v");
+		Deferred<Long> toB = batch.put(b, "f", "v");
+
+		assertFalse(batch.execute());
+		assertTrue(toA.isDone());
+		assertFalse(toB.isDone());
+		assertEquals("v", a.get("f"));
+
+		m_other.setErrorRate(0);
+		assertNull(b.get("f"));
+	}
+}
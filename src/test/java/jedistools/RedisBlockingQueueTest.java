@@ -0,0 +1,80 @@
+package jedistools;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * @author Hisham Mardam-Bey
+ *
+ */
+public class RedisBlockingQueueTest extends RedisStandInTestCase
+{
+	protected RedisBlockingQueue m_queue;
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+
+		m_queue = new RedisBlockingQueue()
+		{
+			@Override
+			protected String getKey()
+			{
+				return "queue";
+			}
+		};
+
+		for (int i = 0; i < 5; i++)
+		{
+			m_queue.add("e" + i);
+		}
+	}
+
+	public void testDrainToZeroOrLessTakesNothing()
+	{
+		List<String> c = new ArrayList<String>();
+
+		assertEquals(0, m_queue.drainTo(c, 0));
+		assertEquals(0, m_queue.drainTo(c, -3));
+		assertTrue(c.isEmpty());
+		assertEquals(5, m_queue.size());
+	}
+
+	public void testDrainToTakesOldestFirst()
+	{
+		List<String> c = new ArrayList<String>();
+
+		assertEquals(2, m_queue.drainTo(c, 2));
+		assertEquals(Arrays.asList("e0", "e1"), c);
+		assertEquals(3, m_queue.drainTo(c, 10));
+		assertEquals(Arrays.asList("e0", "e1", "e2", "e3", "e4"), c);
+		assertEquals(0, m_queue.size());
+	}
+
+	public void testDrainToNullTouchesNothing()
+	{
+		try
+		{
+			m_queue.drainTo(null, 2);
+			fail("A null collection should be rejected.");
+		}
+		catch (NullPointerException e)
+		{
+			// expected
+		}
+
+		try
+		{
+			m_queue.drainTo(null);
+			fail("A null collection should be rejected.");
+		}
+		catch (NullPointerException e)
+		{
+			// expected
+		}
+
+		assertEquals(5, m_queue.size());
+	}
+}
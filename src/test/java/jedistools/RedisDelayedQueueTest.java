@@ -0,0 +1,122 @@
+package jedistools;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Hisham Mardam-Bey
+ *
+ */
+public class RedisDelayedQueueTest extends RedisStandInTestCase
+{
+	protected RedisDelayedQueue queue()
+	{
+		return new RedisDelayedQueue()
+		{
+			@Override
+			protected String getKey()
+			{
+				return "delayed";
+			}
+		};
+	}
+
+	/**
+	 * Promoters racing each other, and producers scheduling meanwhile,
+	 * move every due element exactly once.
+	 */
+	public void testConcurrentPromotersMoveEachElementOnce() throws Exception
+	{
+		final RedisDelayedQueue queue = queue();
+		final int iElements = 2000;
+		long lPast = System.currentTimeMillis() - 1000;
+
+		for (int i = 0; i < iElements; i++)
+		{
+			queue.putAt("e" + i, lPast);
+		}
+
+		final CountDownLatch start = new CountDownLatch(1);
+		List<Thread> threads = new ArrayList<Thread>();
+
+		for (int i = 0; i < 8; i++)
+		{
+			Thread t = new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						start.await();
+					}
+					catch (InterruptedException e)
+					{
+						return;
+					}
+
+					for (int k = 0; k < 20; k++)
+					{
+						queue().promoteDue();
+						queue().putDelayed("later", 1, TimeUnit.HOURS);
+					}
+				}
+			});
+
+			t.start();
+			threads.add(t);
+		}
+
+		start.countDown();
+
+		for (Thread t : threads)
+		{
+			t.join();
+		}
+
+		queue.promoteDue();
+
+		List<String> drained = new ArrayList<String>();
+		queue.drainTo(drained);
+
+		Set<String> unique = new HashSet<String>(drained);
+		assertEquals(iElements, drained.size());
+		assertEquals(iElements, unique.size());
+		assertEquals(8 * 20, queue.delayedSize());
+	}
+
+	public void testNonBlockingCallsPromote()
+	{
+		RedisDelayedQueue queue = queue();
+		long lPast = System.currentTimeMillis() - 1000;
+
+		queue.putAt("a", lPast);
+		assertEquals("a", queue.peek());
+
+		queue.putAt("b", lPast);
+		assertEquals("a", queue.poll());
+		assertEquals("b", queue.poll());
+		assertNull(queue.poll());
+
+		queue.putAt("c", lPast);
+		queue.putDelayed("d", 1, TimeUnit.HOURS);
+
+		List<String> drained = new ArrayList<String>();
+		assertEquals(1, queue.drainTo(drained, 10));
+		assertEquals("c", drained.get(0));
+		assertEquals(1, queue.delayedSize());
+	}
+
+	public void testPollWithTimeoutReturnsDueElement() throws InterruptedException
+	{
+		RedisDelayedQueue queue = queue();
+
+		queue.putDelayed("soon", 300, TimeUnit.MILLISECONDS);
+		assertNull(queue.poll(0, TimeUnit.SECONDS));
+		assertEquals("soon", queue.poll(3, TimeUnit.SECONDS));
+	}
+}
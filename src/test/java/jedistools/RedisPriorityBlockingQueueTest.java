@@ -0,0 +1,95 @@
+package jedistools;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Hisham Mardam-Bey
+ *
+ */
+public class RedisPriorityBlockingQueueTest extends RedisStandInTestCase
+{
+	protected RedisPriorityBlockingQueue m_queue;
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+
+		m_queue = new RedisPriorityBlockingQueue()
+		{
+			@Override
+			protected String getKey()
+			{
+				return "prio";
+			}
+		};
+
+		for (int i = 0; i < 5; i++)
+		{
+			m_queue.add("e" + i);
+		}
+	}
+
+	/**
+	 * A timed poll waits no longer than its timeout rounded up to a
+	 * second, however long the signal wait is, and not at all for 0.
+	 */
+	public void testTimedPollWaitsForTheTimeLeft() throws Exception
+	{
+		int iMaxWait = RedisPriorityBlockingQueue.REDIS_PRIORITY_MAX_WAIT;
+		RedisPriorityBlockingQueue.REDIS_PRIORITY_MAX_WAIT = 5;
+
+		try
+		{
+			m_queue.clear();
+
+			long lStart = System.nanoTime();
+			assertNull(m_queue.poll(0, TimeUnit.SECONDS));
+			assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lStart) < 500);
+
+			lStart = System.nanoTime();
+			assertNull(m_queue.poll(1200, TimeUnit.MILLISECONDS));
+			long lMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lStart);
+			assertTrue(lMillis >= 1200);
+			assertTrue(lMillis < 3000);
+		}
+		finally
+		{
+			RedisPriorityBlockingQueue.REDIS_PRIORITY_MAX_WAIT = iMaxWait;
+		}
+	}
+
+	public void testDrainToZeroTakesNothing()
+	{
+		List<String> c = new ArrayList<String>();
+
+		assertEquals(0, m_queue.drainTo(c, 0));
+		assertEquals(0, m_queue.drainTo(c, -1));
+		assertTrue(c.isEmpty());
+		assertEquals(5, m_queue.size());
+	}
+
+	public void testDrainToTakesAtMostMaxElements()
+	{
+		List<String> c = new ArrayList<String>();
+
+		assertEquals(2, m_queue.drainTo(c, 2));
+		assertEquals(Arrays.asList("e0", "e1"), c);
+		assertEquals(3, m_queue.size());
+		assertEquals(3, m_queue.drainTo(c));
+		assertTrue(m_queue.isEmpty());
+	}
+
+	public void testBulkMethods()
+	{
+		assertTrue(m_queue.containsAll(Arrays.asList("e1", "e3")));
+		assertTrue(m_queue.removeAll(Arrays.asList("e1")));
+		assertFalse(m_queue.contains("e1"));
+		assertTrue(m_queue.retainAll(Arrays.asList("e3")));
+		assertEquals(1, m_queue.size());
+		assertFalse(m_queue.retainAll(Arrays.asList("e3")));
+	}
+}
@@ -0,0 +1,140 @@
+package jedistools;
+
+import redis.clients.jedis.Tuple;
+import redis.clients.jedis.exceptions.JedisException;
+
+/**
+ * @author Hisham Mardam-Bey
+ *
+ */
+public class RedisScoreBufferTest extends RedisStandInTestCase
+{
+	protected int m_iBatchSize;
+
+	protected RedisSortedSet m_set;
+
+	protected RedisScoreBuffer m_buffer;
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+
+		m_iBatchSize = RedisScoreBuffer.REDIS_FLUSH_BATCH_SIZE;
+		RedisScoreBuffer.REDIS_FLUSH_BATCH_SIZE = 2;
+
+		m_set = new RedisSortedSet()
+		{
+			@Override
+			protected String getKey()
+			{
+				return "scores";
+			}
+		};
+	}
+
+	@Override
+	protected void tearDown() throws Exception
+	{
+		m_redis.setDisconnectRate(0);
+		m_redis.setLatency(0);
+
+		if (m_buffer != null)
+		{
+			m_buffer.close();
+		}
+
+		RedisScoreBuffer.REDIS_FLUSH_BATCH_SIZE = m_iBatchSize;
+
+		super.tearDown();
+	}
+
+	/**
+	 * A flush that fails keeps the deltas of the failed batch and of
+	 * every batch after it, and says so.
+	 */
+	public void testFailedFlushKeepsDeltasBuffered()
+	{
+		m_buffer = new RedisScoreBuffer(m_set, 3600000);
+
+		for (int i = 0; i < 5; i++)
+		{
+			m_buffer.increment("m" + i, i + 1);
+			m_buffer.increment("m" + i, 1);
+		}
+
+		m_redis.setInjectedCommands("EXEC");
+		m_redis.setDisconnectRate(1.0);
+
+		try
+		{
+			m_buffer.flush();
+			fail("The flush should have failed.");
+		}
+		catch (JedisException e)
+		{
+			// expected
+		}
+
+		m_redis.setDisconnectRate(0);
+		assertEquals(0, m_set.size());
+		assertEquals(5, m_buffer.getPendingCount());
+		m_buffer.flush();
+
+		assertEquals(5, m_set.size());
+		assertEquals(0, m_buffer.getPendingCount());
+
+		for (Tuple t : m_set)
+		{
+			int i = Integer.parseInt(t.getElement().substring(1));
+			assertEquals(i + 2d, t.getScore());
+		}
+	}
+
+	/**
+	 * A flush returns only once increments the background flusher
+	 * already took out of the buffer are in Redis.
+	 */
+	public void testFlushWaitsForTheBackgroundFlush() throws InterruptedException
+	{
+		m_buffer = new RedisScoreBuffer(m_set, 50);
+		m_redis.setLatency(300000);
+
+		m_buffer.increment("m", 3);
+
+		// the background flush took the delta and waits for Redis
+		Thread.sleep(150);
+		m_buffer.flush();
+		m_redis.setLatency(0);
+
+		assertEquals(3d, m_buffer.getScore("m"));
+		assertEquals(3d, m_set.first().getScore());
+	}
+
+	public void testCloseReportsUnsentIncrements()
+	{
+		m_buffer = new RedisScoreBuffer(m_set, 3600000);
+		m_buffer.increment("m", 1);
+
+		m_redis.setInjectedCommands("EXEC");
+		m_redis.setDisconnectRate(1.0);
+
+		RedisScoreBuffer buffer = m_buffer;
+		m_buffer = null;
+
+		try
+		{
+			buffer.close();
+			fail("The close should have failed.");
+		}
+		catch (JedisException e)
+		{
+			// expected
+		}
+
+		assertEquals(1, buffer.getPendingCount());
+		m_redis.setDisconnectRate(0);
+		buffer.flush();
+		assertEquals(1d, m_set.first().getScore());
+	}
+}
@@ -0,0 +1,78 @@
+package jedistools;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Hisham Mardam-Bey
+ *
+ */
+public class RedisShardedBlockingQueueTest extends RedisStandInTestCase
+{
+	protected RedisShardedBlockingQueue m_queue;
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+
+		m_queue = new RedisShardedBlockingQueue()
+		{
+			@Override
+			protected String getKey()
+			{
+				return "sharded";
+			}
+		};
+	}
+
+	/**
+	 * BRPOP waits forever on a timeout of 0, sub-second timeouts must be
+	 * rounded up instead of truncated.
+	 */
+	public void testSubSecondPollTimesOut() throws Exception
+	{
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+
+		try
+		{
+			Future<String> poll = executor.submit(new Callable<String>()
+			{
+				@Override
+				public String call() throws Exception
+				{
+					return m_queue.poll(200, TimeUnit.MILLISECONDS);
+				}
+			});
+
+			assertNull(poll.get(5, TimeUnit.SECONDS));
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+
+		assertNull(m_queue.poll(0, TimeUnit.SECONDS));
+
+		m_queue.add("e");
+		assertEquals("e", m_queue.poll(200, TimeUnit.MILLISECONDS));
+	}
+
+	public void testDrainToZeroTakesNothing()
+	{
+		m_queue.add("a");
+		m_queue.add("b");
+
+		List<String> c = new ArrayList<String>();
+
+		assertEquals(0, m_queue.drainTo(c, 0));
+		assertEquals(2, m_queue.size());
+		assertEquals(2, m_queue.drainTo(c, 5));
+		assertEquals(0, m_queue.size());
+	}
+}
@@ -0,0 +1,153 @@
+package jedistools;
+
+import java.util.Random;
+
+import redis.clients.jedis.Tuple;
+
+/**
+ * @author Hisham Mardam-Bey
+ *
+ */
+public class RedisSortedSetMirrorTest extends RedisStandInTestCase
+{
+	protected RedisStandIn m_other;
+
+	protected RedisSortedSetMirror m_mirror;
+
+	protected static RedisSortedSet set(final String strKey)
+	{
+		return new RedisSortedSet()
+		{
+			@Override
+			protected String getKey()
+			{
+				return strKey;
+			}
+
+			@Override
+			protected String getChangeChannel()
+			{
+				return getFullKey() + ":changes";
+			}
+		};
+	}
+
+	@Override
+	protected void tearDown() throws Exception
+	{
+		if (m_mirror != null)
+		{
+			m_mirror.close();
+		}
+
+		if (m_other != null)
+		{
+			ShardedJedisFactory.shutdown();
+			m_other.stop();
+		}
+
+		super.tearDown();
+	}
+
+	/**
+	 * Waits for the mirror to match the set, false if it did not in time.
+	 */
+	protected static boolean converged(RedisSortedSetMirror mirror, RedisSortedSet set) throws InterruptedException
+	{
+		long lEnd = System.currentTimeMillis() + 10000;
+
+		while (System.currentTimeMillis() < lEnd)
+		{
+			boolean bSame = mirror.size() == set.size();
+
+			for (Tuple t : set)
+			{
+				Double score = mirror.score(t.getElement());
+				bSame &= score != null && score == t.getScore();
+			}
+
+			if (bSame)
+			{
+				return true;
+			}
+
+			Thread.sleep(50);
+		}
+
+		return false;
+	}
+
+	/**
+	 * Pub/sub is per node, a mirror of a set on a shard other than the
+	 * master must follow the changes published on that shard.
+	 */
+	public void testFollowsChangesOnTheSetsShard() throws Exception
+	{
+		m_other = new RedisStandIn().start();
+		String strOther = m_other.getHost() + ":" + m_other.getPort();
+		ShardedJedisFactory.setNodes(m_redis.getHost() + ":" + m_redis.getPort(), strOther);
+
+		RedisSortedSet set = null;
+
+		for (int i = 0; set == null; i++)
+		{
+			RedisSortedSet candidate = set("mirrored" + i);
+
+			if (strOther.equals(ShardedJedisFactory.getNodeName(candidate.getFullKey())))
+			{
+				set = candidate;
+			}
+		}
+
+		set.add(new Tuple("a", 1d));
+		m_mirror = new RedisSortedSetMirror(set).start();
+		assertTrue(converged(m_mirror, set));
+
+		for (int i = 0; i < 10; i++)
+		{
+			set.add(new Tuple("m" + i, i + 1d));
+		}
+
+		set.incrementScore("a", 5);
+		assertTrue(converged(m_mirror, set));
+		assertEquals(6d, m_mirror.score("a"));
+	}
+
+	/**
+	 * Batched increments reach the mirror exactly once while it reloads,
+	 * their notifications are in the same transaction.
+	 */
+	public void testBatchedIncrementsSurviveReloads() throws Exception
+	{
+		RedisSortedSet set = set("batched");
+		Random random = new Random(42);
+
+		for (int i = 0; i < 20; i++)
+		{
+			set.add(new Tuple("m" + i, 1d));
+		}
+
+		m_mirror = new RedisSortedSetMirror(set).start();
+		assertTrue(converged(m_mirror, set));
+
+		for (int iRound = 0; iRound < 30; iRound++)
+		{
+			RedisBatch batch = new RedisBatch();
+
+			for (int i = 0; i < 20; i++)
+			{
+				batch.incrementScore(set, "m" + random.nextInt(20), 1);
+			}
+
+			batch.execute();
+
+			if (iRound % 5 == 0)
+			{
+				// drops the change feed, the mirror resubscribes and reloads
+				m_redis.disconnectAll();
+			}
+		}
+
+		assertTrue(converged(m_mirror, set));
+	}
+}
@@ -0,0 +1,158 @@
+package jedistools;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Tuple;
+
+import jedistools.RedisSortedSetView.Op;
+
+/**
+ * @author Hisham Mardam-Bey
+ *
+ */
+public class RedisSortedSetViewTest extends RedisStandInTestCase
+{
+	protected RedisSortedSet m_a;
+
+	protected RedisSortedSet m_b;
+
+	protected Jedis m_jedis;
+
+	protected static RedisSortedSet set(final String strKey)
+	{
+		return new RedisSortedSet()
+		{
+			@Override
+			protected String getKey()
+			{
+				return strKey;
+			}
+		};
+	}
+
+	protected static List<String> members(RedisSortedSet set)
+	{
+		List<String> ret = new ArrayList<String>();
+
+		for (Tuple t : set)
+		{
+			ret.add(t.getElement());
+		}
+
+		Collections.sort(ret);
+		return ret;
+	}
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+
+		m_a = set("a");
+		m_b = set("b");
+		m_jedis = new Jedis(m_redis.getHost(), m_redis.getPort());
+
+		for (int i = 0; i < 4; i++)
+		{
+			m_a.add(new Tuple("m" + i, i + 1d));
+			m_b.add(new Tuple("m" + (i + 2), i + 1d));
+		}
+	}
+
+	@Override
+	protected void tearDown() throws Exception
+	{
+		m_jedis.disconnect();
+		super.tearDown();
+	}
+
+	public void testRefreshComputesAndExpires()
+	{
+		RedisSortedSetView union = new RedisSortedSetView(Op.UNION, 30, null, null, m_a, m_b).maybeRefresh();
+		RedisSortedSetView diff = new RedisSortedSetView(Op.DIFF, 30, null, null, m_a, m_b).maybeRefresh();
+
+		assertEquals(6, union.size());
+		assertEquals(4d, m_jedis.zscore(union.getFullKey(), "m2"));
+		assertEquals(2, diff.size());
+		assertTrue(m_jedis.ttl(union.getFullKey()) > 0);
+		assertTrue(m_jedis.ttl(union.getFullKey()) <= 30);
+
+		// cached until refreshed
+		m_a.add(new Tuple("m9", 9d));
+		assertEquals(6, union.maybeRefresh().size());
+		assertEquals(7, union.refresh().size());
+
+		assertTrue(m_jedis.keys("*:build:*").isEmpty());
+		assertTrue(m_jedis.keys("*:common:*").isEmpty());
+	}
+
+	/**
+	 * An empty result is cached like any other instead of being
+	 * recomputed on every call.
+	 */
+	public void testEmptyResultIsCached()
+	{
+		RedisSortedSetView inter = new RedisSortedSetView(Op.INTER, 30, null, null, m_a, set("none")).maybeRefresh();
+
+		assertEquals(0, inter.size());
+		assertTrue(m_jedis.ttl(inter.getEmptyKey()) > 0);
+
+		set("none").add(new Tuple("m0", 1d));
+		assertEquals(0, inter.maybeRefresh().size());
+		assertEquals(1, inter.refresh().size());
+		assertFalse(m_jedis.exists(inter.getEmptyKey()));
+	}
+
+	/**
+	 * Refreshers racing each other, e.g. every node of an application
+	 * when the TTL expires, each build into their own scratch key.
+	 */
+	public void testConcurrentRefreshes() throws InterruptedException
+	{
+		final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+		List<Thread> threads = new ArrayList<Thread>();
+
+		for (int i = 0; i < 8; i++)
+		{
+			Thread t = new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						for (int k = 0; k < 20; k++)
+						{
+							new RedisSortedSetView(Op.DIFF, 30, null, null, m_a, m_b).refresh();
+						}
+					}
+					catch (Throwable e)
+					{
+						errors.add(e);
+					}
+				}
+			});
+
+			t.start();
+			threads.add(t);
+		}
+
+		for (Thread t : threads)
+		{
+			t.join();
+		}
+
+		assertEquals(Collections.emptyList(), errors);
+
+		RedisSortedSetView diff = new RedisSortedSetView(Op.DIFF, 30, null, null, m_a, m_b);
+		List<String> expected = new ArrayList<String>();
+		expected.add("m0");
+		expected.add("m1");
+		assertEquals(expected, members(diff));
+		assertTrue(m_jedis.keys("*:build:*").isEmpty());
+		assertTrue(m_jedis.keys("*:common:*").isEmpty());
+	}
+}
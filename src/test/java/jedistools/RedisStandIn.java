@@ -0,0 +1,1415 @@
+package jedistools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import jedistools.RedisStandInData.Failure;
+import jedistools.RedisStandInData.Status;
+
+/**
+ * An in-process stand-in for Redis speaking RESP over NIO, so the
+ * collections can be exercised and load tested without a Redis server.
+ * It implements the hash, list, set, sorted set, blocking pop, MULTI /
+ * EXEC / WATCH, pub/sub and pipelining subset the collections use (see
+ * {@link RedisStandInData}), and EVAL for scripts registered with
+ * {@link RedisStandIn#registerScript(String, Script)} since there is no
+ * Lua interpreter.
+ * <pre>
+ * RedisStandIn redis = new RedisStandIn().start();
+ * JedisFactory.setMaster(redis.getHost(), redis.getPort());
+ * redis.setLatency(200);
+ * redis.setJitter(2000);
+ * </pre>
+ * Like Redis, commands run one at a time on a single I/O thread. Every
+ * reply can be delayed by a fixed latency plus a random jitter, replies
+ * of a connection keep their order so pipelines see the delay once per
+ * batch. Commands can fail with an error reply or by dropping the
+ * connection at a given rate, all connections can be dropped at once,
+ * and the server can be paused so calls time out. The failures and the
+ * jitter come from a seeded {@link Random} so a single threaded run
+ * replays identically.
+ *
+ * @author Hisham Mardam-Bey
+ *
+ */
+public class RedisStandIn
+{
+	protected static Logger m_logger = Logger.getLogger(RedisStandIn.class.getName());
+
+	/**
+	 * A script run by EVAL and EVALSHA in place of its Lua source.
+	 */
+	public interface Script
+	{
+		/**
+		 * Runs the script, on the server's I/O thread and so atomically.
+		 *
+		 * @param data the keyspace, see {@link RedisStandInData#execute(String...)}
+		 * @param keys the keys given to EVAL
+		 * @param args the arguments given to EVAL
+		 * @return the reply, see {@link RedisStandInData}
+		 */
+		public Object eval(RedisStandInData data, List<String> keys, List<String> args);
+	}
+
+	/**
+	 * A client connection.
+	 */
+	protected static class Client
+	{
+		protected final SocketChannel m_channel;
+
+		protected SelectionKey m_key;
+
+		protected byte[] m_in = new byte[16 * 1024];
+
+		protected int m_iInLength = 0;
+
+		protected int m_iInPos = 0;
+
+		/**
+		 * Replies waiting for their due time, in order.
+		 */
+		protected final ArrayDeque<Reply> m_out = new ArrayDeque<Reply>();
+
+		protected long m_lLastDue = 0;
+
+		/**
+		 * The commands queued since MULTI, null outside a transaction.
+		 */
+		protected List<List<String>> m_multi;
+
+		protected Map<String, Long> m_watched;
+
+		/**
+		 * The blocking pop this client waits on, null if not blocked.
+		 */
+		protected List<String> m_blockedOn;
+
+		protected long m_lBlockedUntil;
+
+		protected final Set<String> m_channels = new LinkedHashSet<String>();
+
+		protected final Set<String> m_patterns = new LinkedHashSet<String>();
+
+		protected boolean m_bClosing = false;
+
+		protected Client(SocketChannel channel)
+		{
+			m_channel = channel;
+		}
+
+		protected int subscriptions()
+		{
+			return m_channels.size() + m_patterns.size();
+		}
+	}
+
+	protected static class Reply
+	{
+		protected final long m_lDue;
+
+		protected final ByteBuffer m_buffer;
+
+		protected Reply(long lDue, ByteBuffer buffer)
+		{
+			m_lDue = lDue;
+			m_buffer = buffer;
+		}
+	}
+
+	protected static final Set<String> BLOCKING = new HashSet<String>(Arrays.asList("BLPOP", "BRPOP", "BRPOPLPUSH"));
+
+	protected static final Set<String> SUBSCRIBED_ONLY = new HashSet<String>(Arrays.asList("SUBSCRIBE", "UNSUBSCRIBE", "PSUBSCRIBE", "PUNSUBSCRIBE", "PING", "QUIT"));
+
+	protected final int m_iRequestedPort;
+
+	protected final RedisStandInData m_data = new RedisStandInData();
+
+	protected final Map<String, Script> m_scripts = new HashMap<String, Script>();
+
+	protected final Set<String> m_loadedScripts = new HashSet<String>();
+
+	protected final Set<Client> m_clients = new LinkedHashSet<Client>();
+
+	protected final Set<Client> m_blocked = new LinkedHashSet<Client>();
+
+	protected final Map<String, Set<Client>> m_channels = new HashMap<String, Set<Client>>();
+
+	protected final Map<String, Set<Client>> m_patterns = new LinkedHashMap<String, Set<Client>>();
+
+	protected final ConcurrentLinkedQueue<Runnable> m_tasks = new ConcurrentLinkedQueue<Runnable>();
+
+	protected final AtomicLong m_lCommands = new AtomicLong();
+
+	protected Selector m_selector;
+
+	protected ServerSocketChannel m_server;
+
+	protected Thread m_thread;
+
+	protected volatile boolean m_bRunning = false;
+
+	protected volatile long m_lLatencyNanos = 0;
+
+	protected volatile long m_lJitterNanos = 0;
+
+	protected volatile double m_dErrorRate = 0;
+
+	protected volatile double m_dDisconnectRate = 0;
+
+	protected volatile Set<String> m_injected = new HashSet<String>();
+
+	protected volatile boolean m_bPaused = false;
+
+	protected Random m_random = new Random(0);
+
+	/**
+	 * Creates a stand-in listening on a free port once started.
+	 */
+	public RedisStandIn()
+	{
+		this(0);
+	}
+
+	/**
+	 * @param iPort the port to listen on once started, 0 for a free one
+	 */
+	public RedisStandIn(int iPort)
+	{
+		m_iRequestedPort = iPort;
+	}
+
+	/**
+	 * Starts listening on localhost.
+	 *
+	 * @return this stand-in
+	 */
+	public RedisStandIn start() throws IOException
+	{
+		m_selector = Selector.open();
+		m_server = ServerSocketChannel.open();
+		m_server.bind(new InetSocketAddress("127.0.0.1", m_iRequestedPort));
+		m_server.configureBlocking(false);
+		m_server.register(m_selector, SelectionKey.OP_ACCEPT);
+		m_bRunning = true;
+
+		m_thread = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				loop();
+			}
+		}, "RedisStandIn-" + getPort());
+
+		m_thread.setDaemon(true);
+		m_thread.start();
+
+		return this;
+	}
+
+	/**
+	 * Closes every connection and stops listening.
+	 */
+	public void stop()
+	{
+		m_bRunning = false;
+
+		if (m_selector != null)
+		{
+			m_selector.wakeup();
+		}
+
+		if (m_thread != null)
+		{
+			try
+			{
+				m_thread.join(5000);
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	public String getHost()
+	{
+		return "127.0.0.1";
+	}
+
+	public int getPort()
+	{
+		return m_server.socket().getLocalPort();
+	}
+
+	/**
+	 * Delays every reply by the given number of microseconds.
+	 */
+	public void setLatency(long lMicros)
+	{
+		m_lLatencyNanos = TimeUnit.MICROSECONDS.toNanos(lMicros);
+	}
+
+	/**
+	 * Delays every reply by up to the given number of microseconds more,
+	 * uniformly at random, on top of {@link RedisStandIn#setLatency(long)}.
+	 */
+	public void setJitter(long lMicros)
+	{
+		m_lJitterNanos = TimeUnit.MICROSECONDS.toNanos(lMicros);
+	}
+
+	/**
+	 * Fails the given fraction of commands with an error reply, without
+	 * running them.
+	 */
+	public void setErrorRate(double dRate)
+	{
+		m_dErrorRate = dRate;
+	}
+
+	/**
+	 * Drops the connection instead of running the given fraction of
+	 * commands.
+	 */
+	public void setDisconnectRate(double dRate)
+	{
+		m_dDisconnectRate = dRate;
+	}
+
+	/**
+	 * Restricts the injected errors and disconnects to the given
+	 * commands, all commands when none are given.
+	 */
+	public void setInjectedCommands(String... commands)
+	{
+		Set<String> injected = new HashSet<String>();
+
+		for (String strCommand : commands)
+		{
+			injected.add(strCommand.toUpperCase());
+		}
+
+		m_injected = injected;
+	}
+
+	/**
+	 * Stops running commands, or resumes. Commands sent while paused run
+	 * once resumed, so callers time out in between.
+	 */
+	public void setPaused(final boolean bPaused)
+	{
+		m_bPaused = bPaused;
+
+		if (!bPaused)
+		{
+			submit(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					for (Client c : new ArrayList<Client>(m_clients))
+					{
+						process(c);
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Reseeds the random numbers behind the jitter and the injected failures.
+	 */
+	public void setSeed(final long lSeed)
+	{
+		submit(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				m_random = new Random(lSeed);
+			}
+		});
+	}
+
+	/**
+	 * Drops every client connection, as a restarting server would.
+	 */
+	public void disconnectAll()
+	{
+		call(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				for (Client c : new ArrayList<Client>(m_clients))
+				{
+					close(c);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Registers the Java implementation of a Lua script, run by EVAL with
+	 * the same source or by EVALSHA with its SHA1.
+	 *
+	 * @param strSource the Lua source the client sends
+	 * @param script what to run instead
+	 */
+	public void registerScript(final String strSource, final Script script)
+	{
+		call(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				m_scripts.put(strSource, script);
+				m_scripts.put(sha1(strSource), script);
+			}
+		});
+	}
+
+	/**
+	 * Runs a command directly on the keyspace, bypassing latency and
+	 * failure injection, e.g. to check or seed state from a test.
+	 *
+	 * @param argv the command name and its arguments
+	 * @return the reply, see {@link RedisStandInData}
+	 */
+	public Object execute(final String... argv)
+	{
+		final Object[] ret = new Object[1];
+
+		call(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				ret[0] = m_data.execute(argv);
+				serveBlocked();
+			}
+		});
+
+		return ret[0];
+	}
+
+	/**
+	 * @return the number of commands run so far
+	 */
+	public long getCommandCount()
+	{
+		return m_lCommands.get();
+	}
+
+	/**
+	 * @return the number of connected clients
+	 */
+	public int getClientCount()
+	{
+		final int[] ret = new int[1];
+
+		call(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				ret[0] = m_clients.size();
+			}
+		});
+
+		return ret[0];
+	}
+
+	protected void submit(Runnable task)
+	{
+		m_tasks.add(task);
+
+		if (m_selector != null)
+		{
+			m_selector.wakeup();
+		}
+	}
+
+	/**
+	 * Runs the task on the I/O thread and waits for it.
+	 */
+	protected void call(final Runnable task)
+	{
+		if (!m_bRunning || Thread.currentThread() == m_thread)
+		{
+			task.run();
+			return;
+		}
+
+		final CompletableFuture<Void> done = new CompletableFuture<Void>();
+
+		submit(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					task.run();
+					done.complete(null);
+				}
+				catch (RuntimeException e)
+				{
+					done.completeExceptionally(e);
+				}
+			}
+		});
+
+		try
+		{
+			done.get();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		catch (ExecutionException e)
+		{
+			throw (RuntimeException) e.getCause();
+		}
+	}
+
+	protected void loop()
+	{
+		try
+		{
+			while (m_bRunning)
+			{
+				long lWait = nextWakeup() - System.nanoTime();
+
+				if (lWait <= 0)
+				{
+					m_selector.selectNow();
+				}
+				else
+				{
+					m_selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(lWait)));
+				}
+
+				Runnable task;
+
+				while ((task = m_tasks.poll()) != null)
+				{
+					task.run();
+				}
+
+				Iterator<SelectionKey> keys = m_selector.selectedKeys().iterator();
+
+				while (keys.hasNext())
+				{
+					SelectionKey key = keys.next();
+					keys.remove();
+
+					if (!key.isValid())
+					{
+						continue;
+					}
+
+					if (key.isAcceptable())
+					{
+						accept();
+					}
+					else if (key.isReadable())
+					{
+						read((Client) key.attachment());
+					}
+				}
+
+				expireBlocked();
+
+				for (Client c : new ArrayList<Client>(m_clients))
+				{
+					flush(c);
+				}
+			}
+		}
+		catch (Exception e)
+		{
+			m_logger.error("Stand-in I/O loop failed, stopping.", e);
+		}
+		finally
+		{
+			for (Client c : new ArrayList<Client>(m_clients))
+			{
+				close(c);
+			}
+
+			try
+			{
+				m_server.close();
+				m_selector.close();
+			}
+			catch (IOException e)
+			{
+				m_logger.debug("Could not close the stand-in's socket.", e);
+			}
+
+			m_bRunning = false;
+		}
+	}
+
+	/**
+	 * @return when the next reply is due or blocked client times out
+	 */
+	protected long nextWakeup()
+	{
+		long lNext = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+
+		for (Client c : m_clients)
+		{
+			Reply r = c.m_out.peek();
+
+			if (r != null)
+			{
+				lNext = Math.min(lNext, r.m_lDue);
+			}
+		}
+
+		for (Client c : m_blocked)
+		{
+			lNext = Math.min(lNext, c.m_lBlockedUntil);
+		}
+
+		return lNext;
+	}
+
+	protected void accept() throws IOException
+	{
+		SocketChannel channel = m_server.accept();
+
+		if (channel == null)
+		{
+			return;
+		}
+
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+
+		Client c = new Client(channel);
+		c.m_key = channel.register(m_selector, SelectionKey.OP_READ, c);
+		m_clients.add(c);
+	}
+
+	protected void read(Client c)
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(16 * 1024);
+		int iRead;
+
+		try
+		{
+			iRead = c.m_channel.read(buffer);
+		}
+		catch (IOException e)
+		{
+			iRead = -1;
+		}
+
+		if (iRead < 0)
+		{
+			close(c);
+			return;
+		}
+
+		if (c.m_iInLength + iRead > c.m_in.length)
+		{
+			c.m_in = Arrays.copyOf(c.m_in, Math.max(c.m_in.length * 2, c.m_iInLength + iRead));
+		}
+
+		buffer.flip();
+		buffer.get(c.m_in, c.m_iInLength, iRead);
+		c.m_iInLength += iRead;
+
+		process(c);
+	}
+
+	/**
+	 * Runs the commands the client sent, until it blocks or its input
+	 * ends in an incomplete command.
+	 */
+	protected void process(Client c)
+	{
+		while (!m_bPaused && c.m_blockedOn == null && !c.m_bClosing && m_clients.contains(c))
+		{
+			List<String> argv;
+
+			try
+			{
+				argv = parse(c);
+			}
+			catch (IllegalArgumentException e)
+			{
+				reply(c, new Failure("ERR Protocol error: " + e.getMessage()));
+				c.m_bClosing = true;
+				break;
+			}
+
+			if (argv == null)
+			{
+				break;
+			}
+
+			if (argv.isEmpty())
+			{
+				continue;
+			}
+
+			try
+			{
+				dispatch(c, argv);
+			}
+			catch (RuntimeException e)
+			{
+				m_logger.warn("Stand-in failed to run " + argv.get(0) + ".", e);
+				reply(c, new Failure("ERR " + e));
+			}
+		}
+
+		// keep what is left of an incomplete command
+		if (c.m_iInPos > 0)
+		{
+			System.arraycopy(c.m_in, c.m_iInPos, c.m_in, 0, c.m_iInLength - c.m_iInPos);
+			c.m_iInLength -= c.m_iInPos;
+			c.m_iInPos = 0;
+		}
+	}
+
+	/**
+	 * Parses a multi bulk or inline command.
+	 *
+	 * @return the command or null if it did not fully arrive yet
+	 */
+	protected static List<String> parse(Client c)
+	{
+		int iPos = c.m_iInPos;
+		int iEol = findEol(c, iPos);
+
+		if (iEol < 0)
+		{
+			return null;
+		}
+
+		if (c.m_in[iPos] != '*')
+		{
+			String strLine = new String(c.m_in, iPos, iEol - iPos, StandardCharsets.ISO_8859_1).trim();
+			c.m_iInPos = iEol + 2;
+
+			return strLine.isEmpty() ? new ArrayList<String>() : new ArrayList<String>(Arrays.asList(strLine.split("\\s+")));
+		}
+
+		int iCount = parseInt(c, iPos + 1, iEol);
+		List<String> argv = new ArrayList<String>(Math.max(0, iCount));
+		iPos = iEol + 2;
+
+		for (int i = 0; i < iCount; i++)
+		{
+			iEol = findEol(c, iPos);
+
+			if (iEol < 0)
+			{
+				return null;
+			}
+
+			if (c.m_in[iPos] != '$')
+			{
+				throw new IllegalArgumentException("expected '$', got '" + (char) c.m_in[iPos] + "'");
+			}
+
+			int iLength = parseInt(c, iPos + 1, iEol);
+			iPos = iEol + 2;
+
+			if (iLength < 0)
+			{
+				throw new IllegalArgumentException("invalid bulk length");
+			}
+
+			if (c.m_iInLength < iPos + iLength + 2)
+			{
+				return null;
+			}
+
+			argv.add(new String(c.m_in, iPos, iLength, StandardCharsets.ISO_8859_1));
+			iPos += iLength + 2;
+		}
+
+		c.m_iInPos = iPos;
+
+		return argv;
+	}
+
+	protected static int findEol(Client c, int iFrom)
+	{
+		for (int i = iFrom; i < c.m_iInLength - 1; i++)
+		{
+			if (c.m_in[i] == '\r' && c.m_in[i + 1] == '\n')
+			{
+				return i;
+			}
+		}
+
+		return -1;
+	}
+
+	protected static int parseInt(Client c, int iFrom, int iTo)
+	{
+		try
+		{
+			return Integer.parseInt(new String(c.m_in, iFrom, iTo - iFrom, StandardCharsets.ISO_8859_1));
+		}
+		catch (NumberFormatException e)
+		{
+			throw new IllegalArgumentException("invalid length");
+		}
+	}
+
+	protected void dispatch(Client c, List<String> argv)
+	{
+		String strCommand = argv.get(0).toUpperCase();
+		m_lCommands.incrementAndGet();
+
+		if (c.m_multi != null && !strCommand.equals("EXEC") && !strCommand.equals("DISCARD") && !strCommand.equals("MULTI") && !strCommand.equals("WATCH"))
+		{
+			c.m_multi.add(argv);
+			reply(c, new Status("QUEUED"));
+			return;
+		}
+
+		if (c.subscriptions() > 0 && !SUBSCRIBED_ONLY.contains(strCommand))
+		{
+			reply(c, new Failure("ERR only (P)SUBSCRIBE / (P)UNSUBSCRIBE / PING / QUIT allowed in this context"));
+			return;
+		}
+
+		if (m_injected.isEmpty() || m_injected.contains(strCommand))
+		{
+			if (m_dDisconnectRate > 0 && m_random.nextDouble() < m_dDisconnectRate)
+			{
+				close(c);
+				return;
+			}
+
+			if (m_dErrorRate > 0 && m_random.nextDouble() < m_dErrorRate)
+			{
+				reply(c, new Failure("ERR injected failure"));
+				return;
+			}
+		}
+
+		long lVersion = m_data.getVersion();
+
+		switch (strCommand)
+		{
+			case "QUIT":
+				reply(c, RedisStandInData.OK);
+				c.m_bClosing = true;
+				break;
+
+			case "MULTI":
+				if (c.m_multi != null)
+				{
+					reply(c, new Failure("ERR MULTI calls can not be nested"));
+					break;
+				}
+
+				c.m_multi = new ArrayList<List<String>>();
+				reply(c, RedisStandInData.OK);
+				break;
+
+			case "EXEC":
+				exec(c);
+				break;
+
+			case "DISCARD":
+				if (c.m_multi == null)
+				{
+					reply(c, new Failure("ERR DISCARD without MULTI"));
+					break;
+				}
+
+				c.m_multi = null;
+				c.m_watched = null;
+				reply(c, RedisStandInData.OK);
+				break;
+
+			case "WATCH":
+				if (c.m_multi != null)
+				{
+					reply(c, new Failure("ERR WATCH inside MULTI is not allowed"));
+					break;
+				}
+
+				if (c.m_watched == null)
+				{
+					c.m_watched = new HashMap<String, Long>();
+				}
+
+				for (String strKey : argv.subList(1, argv.size()))
+				{
+					c.m_watched.put(strKey, m_data.getVersion(strKey));
+				}
+
+				reply(c, RedisStandInData.OK);
+				break;
+
+			case "UNWATCH":
+				c.m_watched = null;
+				reply(c, RedisStandInData.OK);
+				break;
+
+			case "SUBSCRIBE":
+			case "PSUBSCRIBE":
+				subscribe(c, argv, strCommand.equals("PSUBSCRIBE"));
+				break;
+
+			case "UNSUBSCRIBE":
+			case "PUNSUBSCRIBE":
+				unsubscribe(c, argv, strCommand.equals("PUNSUBSCRIBE"));
+				break;
+
+			case "PING":
+				if (c.subscriptions() > 0)
+				{
+					reply(c, Arrays.asList("pong", (argv.size() > 1) ? argv.get(1) : ""));
+					break;
+				}
+
+				reply(c, execute(argv));
+				break;
+
+			default:
+				Object ret = execute(argv);
+
+				if (ret == RedisStandInData.NIL_ARRAY && BLOCKING.contains(strCommand))
+				{
+					block(c, argv);
+					break;
+				}
+
+				reply(c, ret);
+		}
+
+		if (m_data.getVersion() != lVersion)
+		{
+			serveBlocked();
+		}
+	}
+
+	/**
+	 * Runs a command that may appear inside a transaction.
+	 */
+	protected Object execute(List<String> argv)
+	{
+		String strCommand = argv.get(0).toUpperCase();
+
+		switch (strCommand)
+		{
+			case "PUBLISH":
+				return (argv.size() != 3) ? RedisStandInData.arity(strCommand) : publish(argv.get(1), argv.get(2));
+
+			case "EVAL":
+			case "EVALSHA":
+				return eval(argv);
+
+			case "SCRIPT":
+				return script(argv);
+
+			case "MULTI":
+			case "WATCH":
+			case "SUBSCRIBE":
+			case "PSUBSCRIBE":
+				return new Failure("ERR " + strCommand + " is not allowed here");
+
+			default:
+				return m_data.execute(argv);
+		}
+	}
+
+	protected void exec(Client c)
+	{
+		if (c.m_multi == null)
+		{
+			reply(c, new Failure("ERR EXEC without MULTI"));
+			return;
+		}
+
+		List<List<String>> queued = c.m_multi;
+		Map<String, Long> watched = c.m_watched;
+		c.m_multi = null;
+		c.m_watched = null;
+
+		if (watched != null)
+		{
+			for (Map.Entry<String, Long> e : watched.entrySet())
+			{
+				if (m_data.getVersion(e.getKey()) != e.getValue())
+				{
+					reply(c, RedisStandInData.NIL_ARRAY);
+					return;
+				}
+			}
+		}
+
+		List<Object> ret = new ArrayList<Object>(queued.size());
+
+		for (List<String> argv : queued)
+		{
+			ret.add(execute(argv));
+		}
+
+		reply(c, ret);
+	}
+
+	protected Object eval(List<String> argv)
+	{
+		if (argv.size() < 3)
+		{
+			return RedisStandInData.arity(argv.get(0));
+		}
+
+		int iKeys;
+
+		try
+		{
+			iKeys = Integer.parseInt(argv.get(2));
+		}
+		catch (NumberFormatException e)
+		{
+			return new Failure("ERR value is not an integer or out of range");
+		}
+
+		if (iKeys < 0 || iKeys > argv.size() - 3)
+		{
+			return new Failure("ERR Number of keys can't be greater than number of args");
+		}
+
+		boolean bSha = argv.get(0).equalsIgnoreCase("EVALSHA");
+		Script script = m_scripts.get(bSha ? argv.get(1).toLowerCase() : argv.get(1));
+
+		if (script == null || (bSha && !m_loadedScripts.contains(argv.get(1).toLowerCase())))
+		{
+			return bSha ? new Failure("NOSCRIPT No matching script. Please use EVAL.") : new Failure("ERR no stand-in registered for this script");
+		}
+
+		if (!bSha)
+		{
+			m_loadedScripts.add(sha1(argv.get(1)));
+		}
+
+		List<String> keys = new ArrayList<String>(argv.subList(3, 3 + iKeys));
+		List<String> args = new ArrayList<String>(argv.subList(3 + iKeys, argv.size()));
+
+		try
+		{
+			return script.eval(m_data, keys, args);
+		}
+		catch (RuntimeException e)
+		{
+			return new Failure("ERR Error running script: " + e);
+		}
+	}
+
+	protected Object script(List<String> argv)
+	{
+		String strSub = (argv.size() > 1) ? argv.get(1).toUpperCase() : "";
+
+		switch (strSub)
+		{
+			case "LOAD":
+				if (argv.size() != 3)
+				{
+					return RedisStandInData.arity("SCRIPT");
+				}
+
+				String strSha = sha1(argv.get(2));
+				m_loadedScripts.add(strSha);
+
+				return strSha;
+
+			case "EXISTS":
+				List<Long> ret = new ArrayList<Long>();
+
+				for (String strSha1 : argv.subList(2, argv.size()))
+				{
+					ret.add(m_loadedScripts.contains(strSha1.toLowerCase()) ? 1L : 0L);
+				}
+
+				return ret;
+
+			case "FLUSH":
+				m_loadedScripts.clear();
+				return RedisStandInData.OK;
+
+			default:
+				return new Failure("ERR Unknown SCRIPT subcommand");
+		}
+	}
+
+	protected static String sha1(String strSource)
+	{
+		try
+		{
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(strSource.getBytes(StandardCharsets.ISO_8859_1));
+			StringBuilder sb = new StringBuilder();
+
+			for (byte b : digest)
+			{
+				sb.append(String.format("%02x", b & 0xff));
+			}
+
+			return sb.toString();
+		}
+		catch (Exception e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+
+	// blocking pops
+
+	protected void block(Client c, List<String> argv)
+	{
+		long lTimeout;
+
+		try
+		{
+			lTimeout = Long.parseLong(argv.get(argv.size() - 1));
+		}
+		catch (NumberFormatException e)
+		{
+			reply(c, new Failure("ERR timeout is not an integer or out of range"));
+			return;
+		}
+
+		c.m_blockedOn = argv;
+		c.m_lBlockedUntil = (lTimeout == 0) ? Long.MAX_VALUE : System.nanoTime() + TimeUnit.SECONDS.toNanos(lTimeout);
+		m_blocked.add(c);
+	}
+
+	protected void unblock(Client c, Object ret)
+	{
+		m_blocked.remove(c);
+		c.m_blockedOn = null;
+		reply(c, ret);
+		process(c);
+	}
+
+	/**
+	 * Retries the pops of the blocked clients, longest waiting first.
+	 */
+	protected void serveBlocked()
+	{
+		boolean bServed = true;
+
+		while (bServed && !m_blocked.isEmpty())
+		{
+			bServed = false;
+
+			for (Client c : new ArrayList<Client>(m_blocked))
+			{
+				if (c.m_blockedOn == null)
+				{
+					continue;
+				}
+
+				Object ret = m_data.execute(c.m_blockedOn);
+
+				if (ret != RedisStandInData.NIL_ARRAY)
+				{
+					unblock(c, ret);
+					bServed = true;
+				}
+			}
+		}
+	}
+
+	protected void expireBlocked()
+	{
+		long lNow = System.nanoTime();
+
+		for (Client c : new ArrayList<Client>(m_blocked))
+		{
+			if (c.m_lBlockedUntil <= lNow)
+			{
+				unblock(c, RedisStandInData.NIL_ARRAY);
+			}
+		}
+	}
+
+	// pub/sub
+
+	protected void subscribe(Client c, List<String> argv, boolean bPattern)
+	{
+		if (argv.size() < 2)
+		{
+			reply(c, RedisStandInData.arity(argv.get(0)));
+			return;
+		}
+
+		Map<String, Set<Client>> subscribers = bPattern ? m_patterns : m_channels;
+		Set<String> mine = bPattern ? c.m_patterns : c.m_channels;
+
+		for (String strChannel : argv.subList(1, argv.size()))
+		{
+			Set<Client> clients = subscribers.get(strChannel);
+
+			if (clients == null)
+			{
+				clients = new LinkedHashSet<Client>();
+				subscribers.put(strChannel, clients);
+			}
+
+			clients.add(c);
+			mine.add(strChannel);
+			reply(c, Arrays.asList(bPattern ? "psubscribe" : "subscribe", strChannel, (long) c.subscriptions()));
+		}
+	}
+
+	protected void unsubscribe(Client c, List<String> argv, boolean bPattern)
+	{
+		Map<String, Set<Client>> subscribers = bPattern ? m_patterns : m_channels;
+		Set<String> mine = bPattern ? c.m_patterns : c.m_channels;
+		String strKind = bPattern ? "punsubscribe" : "unsubscribe";
+		List<String> channels = (argv.size() > 1) ? argv.subList(1, argv.size()) : new ArrayList<String>(mine);
+
+		if (channels.isEmpty())
+		{
+			reply(c, Arrays.asList(strKind, null, 0L));
+			return;
+		}
+
+		for (String strChannel : channels)
+		{
+			Set<Client> clients = subscribers.get(strChannel);
+
+			if (clients != null)
+			{
+				clients.remove(c);
+
+				if (clients.isEmpty())
+				{
+					subscribers.remove(strChannel);
+				}
+			}
+
+			mine.remove(strChannel);
+			reply(c, Arrays.asList(strKind, strChannel, (long) c.subscriptions()));
+		}
+	}
+
+	protected Long publish(String strChannel, String strMessage)
+	{
+		long lReceivers = 0;
+		Set<Client> clients = m_channels.get(strChannel);
+
+		if (clients != null)
+		{
+			for (Client c : clients)
+			{
+				reply(c, Arrays.asList("message", strChannel, strMessage));
+				lReceivers++;
+			}
+		}
+
+		for (Map.Entry<String, Set<Client>> e : m_patterns.entrySet())
+		{
+			if (RedisStandInData.globMatch(e.getKey(), strChannel))
+			{
+				for (Client c : e.getValue())
+				{
+					reply(c, Arrays.asList("pmessage", e.getKey(), strChannel, strMessage));
+					lReceivers++;
+				}
+			}
+		}
+
+		return lReceivers;
+	}
+
+	// replies
+
+	/**
+	 * Queues a reply, due after the injected latency and never before the
+	 * client's previous reply.
+	 */
+	protected void reply(Client c, Object ret)
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		encode(out, ret);
+
+		long lDelay = m_lLatencyNanos;
+
+		if (m_lJitterNanos > 0)
+		{
+			lDelay += (long) (m_random.nextDouble() * m_lJitterNanos);
+		}
+
+		long lDue = Math.max(System.nanoTime() + lDelay, c.m_lLastDue);
+		c.m_lLastDue = lDue;
+		c.m_out.add(new Reply(lDue, ByteBuffer.wrap(out.toByteArray())));
+
+		if (lDelay == 0)
+		{
+			flush(c);
+		}
+	}
+
+	protected static void encode(ByteArrayOutputStream out, Object ret)
+	{
+		if (ret == null)
+		{
+			write(out, "$-1\r\n");
+		}
+		else if (ret == RedisStandInData.NIL_ARRAY)
+		{
+			write(out, "*-1\r\n");
+		}
+		else if (ret instanceof Status)
+		{
+			write(out, "+" + ret + "\r\n");
+		}
+		else if (ret instanceof Failure)
+		{
+			write(out, "-" + ret + "\r\n");
+		}
+		else if (ret instanceof Long || ret instanceof Integer)
+		{
+			write(out, ":" + ret + "\r\n");
+		}
+		else if (ret instanceof List)
+		{
+			List<?> list = (List<?>) ret;
+			write(out, "*" + list.size() + "\r\n");
+
+			for (Object o : list)
+			{
+				encode(out, o);
+			}
+		}
+		else
+		{
+			String str = ret.toString();
+			write(out, "$" + str.length() + "\r\n" + str + "\r\n");
+		}
+	}
+
+	protected static void write(ByteArrayOutputStream out, String str)
+	{
+		byte[] bytes = str.getBytes(StandardCharsets.ISO_8859_1);
+		out.write(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * Writes the client's due replies, waiting for the socket if it is full.
+	 */
+	protected void flush(Client c)
+	{
+		if (!m_clients.contains(c))
+		{
+			return;
+		}
+
+		long lNow = System.nanoTime();
+
+		try
+		{
+			while (!c.m_out.isEmpty() && c.m_out.peek().m_lDue <= lNow)
+			{
+				ByteBuffer buffer = c.m_out.peek().m_buffer;
+				c.m_channel.write(buffer);
+
+				if (buffer.hasRemaining())
+				{
+					c.m_key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+					return;
+				}
+
+				c.m_out.poll();
+			}
+
+			c.m_key.interestOps(SelectionKey.OP_READ);
+
+			if (c.m_bClosing && c.m_out.isEmpty())
+			{
+				close(c);
+			}
+		}
+		catch (IOException e)
+		{
+			close(c);
+		}
+	}
+
+	protected void close(Client c)
+	{
+		if (!m_clients.remove(c))
+		{
+			return;
+		}
+
+		m_blocked.remove(c);
+
+		for (String strChannel : c.m_channels)
+		{
+			Set<Client> clients = m_channels.get(strChannel);
+
+			if (clients != null)
+			{
+				clients.remove(c);
+			}
+		}
+
+		for (String strPattern : c.m_patterns)
+		{
+			Set<Client> clients = m_patterns.get(strPattern);
+
+			if (clients != null)
+			{
+				clients.remove(c);
+			}
+		}
+
+		try
+		{
+			c.m_key.cancel();
+			c.m_channel.close();
+		}
+		catch (IOException e)
+		{
+			m_logger.debug("Could not close a stand-in client.", e);
+		}
+	}
+}
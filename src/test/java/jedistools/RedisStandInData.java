@@ -0,0 +1,1453 @@
+package jedistools;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+/**
+ * The keyspace of a {@link RedisStandIn}: strings, hashes, lists, sets
+ * and sorted sets with the commands the collections use on them. Keys and
+ * values are kept as ISO-8859-1 strings so they round trip any bytes.
+ * <p>
+ * Replies are returned as plain objects: a {@link String} is a bulk
+ * reply (null for nil), a {@link Long} an integer, a {@link List} a multi
+ * bulk, {@link RedisStandInData#NIL_ARRAY} a nil multi bulk and
+ * {@link Status} and {@link Failure} status and error replies. Not
+ * thread safe, the server only touches it from its I/O thread.
+ *
+ * @author Hisham Mardam-Bey
+ *
+ */
+public class RedisStandInData
+{
+	public static final Object NIL_ARRAY = new Object();
+
+	public static final Status OK = new Status("OK");
+
+	/**
+	 * A status reply, such as <code>+OK</code>.
+	 */
+	public static class Status
+	{
+		public final String m_strStatus;
+
+		public Status(String strStatus)
+		{
+			m_strStatus = strStatus;
+		}
+
+		@Override
+		public String toString()
+		{
+			return m_strStatus;
+		}
+	}
+
+	/**
+	 * An error reply, the message starts with its kind (ERR, WRONGTYPE...).
+	 */
+	public static class Failure
+	{
+		public final String m_strMessage;
+
+		public Failure(String strMessage)
+		{
+			m_strMessage = strMessage;
+		}
+
+		@Override
+		public String toString()
+		{
+			return m_strMessage;
+		}
+	}
+
+	/**
+	 * Aborts a command with an error reply.
+	 */
+	protected static class CommandException extends RuntimeException
+	{
+		private static final long serialVersionUID = 1L;
+
+		public CommandException(String message)
+		{
+			super(message);
+		}
+	}
+
+	protected static final String WRONGTYPE = "WRONGTYPE Operation against a key holding the wrong kind of value";
+
+	protected static final String NOT_INTEGER = "ERR value is not an integer or out of range";
+
+	protected static final String NOT_FLOAT = "ERR value is not a valid float";
+
+	protected static final String SYNTAX = "ERR syntax error";
+
+	/**
+	 * A sorted set, members ordered by score then by member.
+	 */
+	protected static class ZSet
+	{
+		protected final Map<String, Double> m_scores = new HashMap<String, Double>();
+
+		protected final TreeSet<String> m_sorted = new TreeSet<String>(new Comparator<String>()
+		{
+			@Override
+			public int compare(String o1, String o2)
+			{
+				int i = Double.compare(m_scores.get(o1), m_scores.get(o2));
+				return (i != 0) ? i : o1.compareTo(o2);
+			}
+		});
+
+		/**
+		 * @return true if the member is new
+		 */
+		protected boolean put(String strMember, double dScore)
+		{
+			boolean bNew = !remove(strMember);
+			m_scores.put(strMember, dScore);
+			m_sorted.add(strMember);
+
+			return bNew;
+		}
+
+		protected boolean remove(String strMember)
+		{
+			if (!m_scores.containsKey(strMember))
+			{
+				return false;
+			}
+
+			m_sorted.remove(strMember);
+			m_scores.remove(strMember);
+
+			return true;
+		}
+
+		protected int size()
+		{
+			return m_scores.size();
+		}
+
+		protected List<String> members()
+		{
+			return new ArrayList<String>(m_sorted);
+		}
+	}
+
+	protected final Map<String, Object> m_keys = new HashMap<String, Object>();
+
+	protected final Map<String, Long> m_expires = new HashMap<String, Long>();
+
+	/**
+	 * Version of the keyspace when each key was last written, for WATCH.
+	 */
+	protected final Map<String, Long> m_versions = new HashMap<String, Long>();
+
+	protected long m_lVersion = 0;
+
+	/**
+	 * @return the version of the keyspace, bumped by every write
+	 */
+	public long getVersion()
+	{
+		return m_lVersion;
+	}
+
+	/**
+	 * @return the version of the keyspace when the key was last written
+	 */
+	public long getVersion(String strKey)
+	{
+		get(strKey);
+		Long l = m_versions.get(strKey);
+
+		return (l == null) ? 0 : l;
+	}
+
+	protected void touch(String strKey)
+	{
+		m_versions.put(strKey, ++m_lVersion);
+	}
+
+	/**
+	 * @return the value of the key, null if it does not exist or expired
+	 */
+	protected Object get(String strKey)
+	{
+		Long lExpires = m_expires.get(strKey);
+
+		if (lExpires != null && lExpires <= System.currentTimeMillis())
+		{
+			m_expires.remove(strKey);
+			m_keys.remove(strKey);
+			touch(strKey);
+		}
+
+		return m_keys.get(strKey);
+	}
+
+	protected void delete(String strKey)
+	{
+		m_keys.remove(strKey);
+		m_expires.remove(strKey);
+		touch(strKey);
+	}
+
+	/**
+	 * Deletes the key if its collection emptied.
+	 */
+	protected void cleanup(String strKey, int iSize)
+	{
+		if (iSize == 0)
+		{
+			delete(strKey);
+		}
+	}
+
+	protected <T> T lookup(String strKey, Class<T> type, T created)
+	{
+		Object value = get(strKey);
+
+		if (value == null)
+		{
+			if (created != null)
+			{
+				m_keys.put(strKey, created);
+			}
+
+			return created;
+		}
+
+		if (!type.isInstance(value))
+		{
+			throw new CommandException(WRONGTYPE);
+		}
+
+		return type.cast(value);
+	}
+
+	protected String string(String strKey)
+	{
+		return lookup(strKey, String.class, null);
+	}
+
+	@SuppressWarnings("unchecked")
+	protected LinkedHashMap<String, String> hash(String strKey, boolean bCreate)
+	{
+		return lookup(strKey, LinkedHashMap.class, bCreate ? new LinkedHashMap<String, String>() : null);
+	}
+
+	@SuppressWarnings("unchecked")
+	protected LinkedList<String> list(String strKey, boolean bCreate)
+	{
+		return lookup(strKey, LinkedList.class, bCreate ? new LinkedList<String>() : null);
+	}
+
+	@SuppressWarnings("unchecked")
+	protected LinkedHashSet<String> set(String strKey, boolean bCreate)
+	{
+		return lookup(strKey, LinkedHashSet.class, bCreate ? new LinkedHashSet<String>() : null);
+	}
+
+	protected ZSet zset(String strKey, boolean bCreate)
+	{
+		return lookup(strKey, ZSet.class, bCreate ? new ZSet() : null);
+	}
+
+	/**
+	 * Runs a command.
+	 *
+	 * @param argv the command name and its arguments
+	 * @return the reply
+	 */
+	public Object execute(String... argv)
+	{
+		List<String> args = new ArrayList<String>(argv.length);
+		Collections.addAll(args, argv);
+
+		return execute(args);
+	}
+
+	/**
+	 * Runs a command.
+	 *
+	 * @param argv the command name and its arguments
+	 * @return the reply
+	 */
+	public Object execute(List<String> argv)
+	{
+		String strCommand = argv.get(0).toUpperCase();
+
+		try
+		{
+			return dispatch(strCommand, argv);
+		}
+		catch (CommandException e)
+		{
+			return new Failure(e.getMessage());
+		}
+		catch (IndexOutOfBoundsException e)
+		{
+			return arity(strCommand);
+		}
+	}
+
+	protected static Failure arity(String strCommand)
+	{
+		return new Failure("ERR wrong number of arguments for '" + strCommand.toLowerCase() + "' command");
+	}
+
+	protected Object dispatch(String c, List<String> a)
+	{
+		switch (c)
+		{
+			case "PING": return (a.size() > 1) ? a.get(1) : new Status("PONG");
+			case "ECHO": return a.get(1);
+			case "SELECT":
+			case "AUTH": a.get(1); return OK;
+			case "INFO": return "# Server\r\nredis_version:2.6.0\r\nredis_mode:standalone\r\n# Keyspace\r\ndb0:keys=" + m_keys.size() + "\r\n";
+			case "DBSIZE": return (long) m_keys.size();
+			case "FLUSHDB":
+			case "FLUSHALL": flush(); return OK;
+
+			case "DEL": return del(a);
+			case "EXISTS": return exists(a);
+			case "EXPIRE": return expire(a.get(1), parseLong(a.get(2)) * 1000);
+			case "PEXPIRE": return expire(a.get(1), parseLong(a.get(2)));
+			case "PERSIST": return (get(a.get(1)) != null && m_expires.remove(a.get(1)) != null) ? 1L : 0L;
+			case "TTL": return ttl(a.get(1), 1000);
+			case "PTTL": return ttl(a.get(1), 1);
+			case "RENAME": return rename(a.get(1), a.get(2));
+			case "TYPE": return new Status(type(a.get(1)));
+			case "KEYS": return keys(a.get(1));
+
+			case "GET": return string(a.get(1));
+			case "SET": return set(a);
+			case "SETNX": return (get(a.get(1)) == null) ? setString(a.get(1), a.get(2), 1L) : 0L;
+			case "MGET": return mget(a);
+			case "INCR": return incrBy(a.get(1), 1);
+			case "DECR": return incrBy(a.get(1), -1);
+			case "INCRBY": return incrBy(a.get(1), parseLong(a.get(2)));
+			case "DECRBY": return incrBy(a.get(1), -parseLong(a.get(2)));
+
+			case "HSET": return hset(a);
+			case "HSETNX": return hsetnx(a.get(1), a.get(2), a.get(3));
+			case "HMSET": hset(a); return OK;
+			case "HGET": return hget(a.get(1), a.get(2));
+			case "HMGET": return hmget(a);
+			case "HDEL": return hdel(a);
+			case "HEXISTS": return (hget(a.get(1), a.get(2)) != null) ? 1L : 0L;
+			case "HLEN": return (long) size(hash(a.get(1), false));
+			case "HKEYS": return hkeys(a.get(1));
+			case "HVALS": return hvals(a.get(1));
+			case "HGETALL": return hgetAll(a.get(1));
+			case "HINCRBY": return hincrBy(a.get(1), a.get(2), parseLong(a.get(3)));
+
+			case "LPUSH": return push(a, true);
+			case "RPUSH": return push(a, false);
+			case "LPOP": return pop(a.get(1), true);
+			case "RPOP": return pop(a.get(1), false);
+			case "LLEN": return (long) size(list(a.get(1), false));
+			case "LRANGE": return lrange(a.get(1), parseLong(a.get(2)), parseLong(a.get(3)));
+			case "LINDEX": return lindex(a.get(1), parseLong(a.get(2)));
+			case "LSET": return lset(a.get(1), parseLong(a.get(2)), a.get(3));
+			case "LREM": return lrem(a.get(1), parseLong(a.get(2)), a.get(3));
+			case "LTRIM": return ltrim(a.get(1), parseLong(a.get(2)), parseLong(a.get(3)));
+			case "RPOPLPUSH": return rpoplpush(a.get(1), a.get(2));
+			case "BLPOP": return bpop(a, true);
+			case "BRPOP": return bpop(a, false);
+			case "BRPOPLPUSH": parseLong(a.get(3)); return nilArray(rpoplpush(a.get(1), a.get(2)));
+
+			case "SADD": return sadd(a);
+			case "SREM": return srem(a);
+			case "SMEMBERS": return smembers(a.get(1));
+			case "SCARD": return (long) size(set(a.get(1), false));
+			case "SISMEMBER": return sismember(a.get(1), a.get(2));
+
+			case "ZADD": return zadd(a);
+			case "ZREM": return zrem(a);
+			case "ZCARD": return (long) size(zset(a.get(1), false));
+			case "ZSCORE": return zscore(a.get(1), a.get(2));
+			case "ZINCRBY": return zincrby(a.get(1), parseDouble(a.get(2)), a.get(3));
+			case "ZRANK": return zrank(a.get(1), a.get(2), false);
+			case "ZREVRANK": return zrank(a.get(1), a.get(2), true);
+			case "ZRANGE": return zrange(a, false);
+			case "ZREVRANGE": return zrange(a, true);
+			case "ZRANGEBYSCORE": return zrangeByScore(a, false);
+			case "ZREVRANGEBYSCORE": return zrangeByScore(a, true);
+			case "ZCOUNT": return zcount(a.get(1), a.get(2), a.get(3));
+			case "ZREMRANGEBYRANK": return zremrangeByRank(a.get(1), parseLong(a.get(2)), parseLong(a.get(3)));
+			case "ZREMRANGEBYSCORE": return zremrangeByScore(a.get(1), a.get(2), a.get(3));
+			case "ZUNIONSTORE": return zstore(a, true);
+			case "ZINTERSTORE": return zstore(a, false);
+
+			default: return new Failure("ERR unknown command '" + a.get(0) + "'");
+		}
+	}
+
+	protected static int size(Map<?, ?> m)
+	{
+		return (m == null) ? 0 : m.size();
+	}
+
+	protected static int size(java.util.Collection<?> c)
+	{
+		return (c == null) ? 0 : c.size();
+	}
+
+	protected static int size(ZSet z)
+	{
+		return (z == null) ? 0 : z.size();
+	}
+
+	protected static Object nilArray(Object ret)
+	{
+		return (ret == null) ? NIL_ARRAY : ret;
+	}
+
+	protected static long parseLong(String str)
+	{
+		try
+		{
+			return Long.parseLong(str);
+		}
+		catch (NumberFormatException e)
+		{
+			throw new CommandException(NOT_INTEGER);
+		}
+	}
+
+	protected static double parseDouble(String str)
+	{
+		String s = str.toLowerCase();
+
+		if (s.equals("inf") || s.equals("+inf") || s.equals("infinity") || s.equals("+infinity")) return Double.POSITIVE_INFINITY;
+		if (s.equals("-inf") || s.equals("-infinity")) return Double.NEGATIVE_INFINITY;
+
+		try
+		{
+			double d = Double.parseDouble(str);
+
+			if (Double.isNaN(d))
+			{
+				throw new CommandException(NOT_FLOAT);
+			}
+
+			return d;
+		}
+		catch (NumberFormatException e)
+		{
+			throw new CommandException(NOT_FLOAT);
+		}
+	}
+
+	public static String formatScore(double d)
+	{
+		if (Double.isInfinite(d))
+		{
+			return (d > 0) ? "inf" : "-inf";
+		}
+
+		if (d == Math.rint(d) && Math.abs(d) < 1e17)
+		{
+			return Long.toString((long) d);
+		}
+
+		return Double.toString(d);
+	}
+
+	/**
+	 * @return whether the string matches the glob style pattern
+	 */
+	public static boolean globMatch(String strPattern, String str)
+	{
+		StringBuilder sb = new StringBuilder();
+
+		for (int i = 0; i < strPattern.length(); i++)
+		{
+			char c = strPattern.charAt(i);
+
+			switch (c)
+			{
+				case '*': sb.append(".*"); break;
+				case '?': sb.append('.'); break;
+				case '[':
+				case ']': sb.append(c); break;
+				case '\\':
+					if (i + 1 < strPattern.length())
+					{
+						sb.append(Pattern.quote(String.valueOf(strPattern.charAt(++i))));
+					}
+					break;
+				default: sb.append(Pattern.quote(String.valueOf(c)));
+			}
+		}
+
+		return Pattern.compile(sb.toString(), Pattern.DOTALL).matcher(str).matches();
+	}
+
+	/**
+	 * @return [start, end) of an inclusive Redis range over the given length
+	 */
+	protected static int[] range(long lStart, long lEnd, int iLength)
+	{
+		if (lStart < 0) lStart += iLength;
+		if (lEnd < 0) lEnd += iLength;
+		if (lStart < 0) lStart = 0;
+		if (lEnd >= iLength) lEnd = iLength - 1;
+
+		if (lStart > lEnd || lStart >= iLength)
+		{
+			return new int[]{ 0, 0 };
+		}
+
+		return new int[]{ (int) lStart, (int) lEnd + 1 };
+	}
+
+	protected void flush()
+	{
+		for (String strKey : new ArrayList<String>(m_keys.keySet()))
+		{
+			delete(strKey);
+		}
+	}
+
+	// keys
+
+	protected Long del(List<String> a)
+	{
+		long l = 0;
+
+		for (String strKey : a.subList(1, Math.max(2, a.size())))
+		{
+			if (get(strKey) != null)
+			{
+				delete(strKey);
+				l++;
+			}
+		}
+
+		return l;
+	}
+
+	protected Long exists(List<String> a)
+	{
+		long l = 0;
+
+		for (String strKey : a.subList(1, Math.max(2, a.size())))
+		{
+			if (get(strKey) != null) l++;
+		}
+
+		return l;
+	}
+
+	protected Long expire(String strKey, long lMillis)
+	{
+		if (get(strKey) == null)
+		{
+			return 0L;
+		}
+
+		if (lMillis <= 0)
+		{
+			delete(strKey);
+			return 1L;
+		}
+
+		m_expires.put(strKey, System.currentTimeMillis() + lMillis);
+		touch(strKey);
+
+		return 1L;
+	}
+
+	protected Long ttl(String strKey, long lUnit)
+	{
+		if (get(strKey) == null)
+		{
+			return -2L;
+		}
+
+		Long lExpires = m_expires.get(strKey);
+
+		if (lExpires == null)
+		{
+			return -1L;
+		}
+
+		return Math.max(0, lExpires - System.currentTimeMillis() + lUnit - 1) / lUnit;
+	}
+
+	protected Object rename(String strFrom, String strTo)
+	{
+		Object value = get(strFrom);
+
+		if (value == null)
+		{
+			return new Failure("ERR no such key");
+		}
+
+		Long lExpires = m_expires.get(strFrom);
+		delete(strFrom);
+		delete(strTo);
+		m_keys.put(strTo, value);
+
+		if (lExpires != null)
+		{
+			m_expires.put(strTo, lExpires);
+		}
+
+		return OK;
+	}
+
+	protected String type(String strKey)
+	{
+		Object value = get(strKey);
+
+		if (value == null) return "none";
+		if (value instanceof String) return "string";
+		if (value instanceof LinkedHashMap) return "hash";
+		if (value instanceof LinkedList) return "list";
+		if (value instanceof LinkedHashSet) return "set";
+		return "zset";
+	}
+
+	protected List<String> keys(String strPattern)
+	{
+		List<String> ret = new ArrayList<String>();
+
+		for (String strKey : new ArrayList<String>(m_keys.keySet()))
+		{
+			if (get(strKey) != null && globMatch(strPattern, strKey))
+			{
+				ret.add(strKey);
+			}
+		}
+
+		return ret;
+	}
+
+	// strings
+
+	protected Object setString(String strKey, String strValue, Object ret)
+	{
+		m_keys.put(strKey, strValue);
+		m_expires.remove(strKey);
+		touch(strKey);
+
+		return ret;
+	}
+
+	protected Object set(List<String> a)
+	{
+		String strKey = a.get(1);
+		String strValue = a.get(2);
+		long lMillis = 0;
+		boolean bNx = false;
+		boolean bXx = false;
+
+		for (int i = 3; i < a.size(); i++)
+		{
+			String strOpt = a.get(i).toUpperCase();
+
+			if (strOpt.equals("NX")) bNx = true;
+			else if (strOpt.equals("XX")) bXx = true;
+			else if (strOpt.equals("EX")) lMillis = parseLong(a.get(++i)) * 1000;
+			else if (strOpt.equals("PX")) lMillis = parseLong(a.get(++i));
+			else throw new CommandException(SYNTAX);
+		}
+
+		boolean bExists = get(strKey) != null;
+
+		if ((bNx && bExists) || (bXx && !bExists))
+		{
+			return null;
+		}
+
+		setString(strKey, strValue, OK);
+
+		if (lMillis > 0)
+		{
+			m_expires.put(strKey, System.currentTimeMillis() + lMillis);
+		}
+
+		return OK;
+	}
+
+	protected List<String> mget(List<String> a)
+	{
+		List<String> ret = new ArrayList<String>();
+
+		for (String strKey : a.subList(1, Math.max(2, a.size())))
+		{
+			Object value = get(strKey);
+			ret.add((value instanceof String) ? (String) value : null);
+		}
+
+		return ret;
+	}
+
+	protected Long incrBy(String strKey, long lBy)
+	{
+		String strValue = string(strKey);
+		long l = (strValue == null) ? 0 : parseLong(strValue);
+		l += lBy;
+
+		Long lExpires = m_expires.get(strKey);
+		setString(strKey, Long.toString(l), null);
+
+		if (lExpires != null)
+		{
+			m_expires.put(strKey, lExpires);
+		}
+
+		return l;
+	}
+
+	// hashes
+
+	protected Long hset(List<String> a)
+	{
+		if (a.size() < 4 || a.size() % 2 != 0)
+		{
+			throw new CommandException(arity(a.get(0)).m_strMessage);
+		}
+
+		LinkedHashMap<String, String> h = hash(a.get(1), true);
+		long l = 0;
+
+		for (int i = 2; i < a.size(); i += 2)
+		{
+			if (h.put(a.get(i), a.get(i + 1)) == null) l++;
+		}
+
+		touch(a.get(1));
+
+		return l;
+	}
+
+	protected Long hsetnx(String strKey, String strField, String strValue)
+	{
+		LinkedHashMap<String, String> h = hash(strKey, true);
+
+		if (h.containsKey(strField))
+		{
+			return 0L;
+		}
+
+		h.put(strField, strValue);
+		touch(strKey);
+
+		return 1L;
+	}
+
+	protected String hget(String strKey, String strField)
+	{
+		LinkedHashMap<String, String> h = hash(strKey, false);
+		return (h == null) ? null : h.get(strField);
+	}
+
+	protected List<String> hmget(List<String> a)
+	{
+		List<String> ret = new ArrayList<String>();
+		LinkedHashMap<String, String> h = hash(a.get(1), false);
+
+		for (String strField : a.subList(2, Math.max(3, a.size())))
+		{
+			ret.add((h == null) ? null : h.get(strField));
+		}
+
+		return ret;
+	}
+
+	protected Long hdel(List<String> a)
+	{
+		LinkedHashMap<String, String> h = hash(a.get(1), false);
+		long l = 0;
+
+		for (String strField : a.subList(2, Math.max(3, a.size())))
+		{
+			if (h != null && h.remove(strField) != null) l++;
+		}
+
+		if (l > 0)
+		{
+			touch(a.get(1));
+			cleanup(a.get(1), h.size());
+		}
+
+		return l;
+	}
+
+	protected List<String> hkeys(String strKey)
+	{
+		LinkedHashMap<String, String> h = hash(strKey, false);
+		return (h == null) ? new ArrayList<String>() : new ArrayList<String>(h.keySet());
+	}
+
+	protected List<String> hvals(String strKey)
+	{
+		LinkedHashMap<String, String> h = hash(strKey, false);
+		return (h == null) ? new ArrayList<String>() : new ArrayList<String>(h.values());
+	}
+
+	protected List<String> hgetAll(String strKey)
+	{
+		List<String> ret = new ArrayList<String>();
+		LinkedHashMap<String, String> h = hash(strKey, false);
+
+		if (h != null)
+		{
+			for (Map.Entry<String, String> e : h.entrySet())
+			{
+				ret.add(e.getKey());
+				ret.add(e.getValue());
+			}
+		}
+
+		return ret;
+	}
+
+	protected Long hincrBy(String strKey, String strField, long lBy)
+	{
+		LinkedHashMap<String, String> h = hash(strKey, true);
+		String strValue = h.get(strField);
+		long l = ((strValue == null) ? 0 : parseLong(strValue)) + lBy;
+		h.put(strField, Long.toString(l));
+		touch(strKey);
+
+		return l;
+	}
+
+	// lists
+
+	protected Long push(List<String> a, boolean bLeft)
+	{
+		a.get(2);
+		LinkedList<String> l = list(a.get(1), true);
+
+		for (String strValue : a.subList(2, a.size()))
+		{
+			if (bLeft) l.addFirst(strValue);
+			else l.addLast(strValue);
+		}
+
+		touch(a.get(1));
+
+		return (long) l.size();
+	}
+
+	protected String pop(String strKey, boolean bLeft)
+	{
+		LinkedList<String> l = list(strKey, false);
+
+		if (l == null)
+		{
+			return null;
+		}
+
+		String ret = bLeft ? l.removeFirst() : l.removeLast();
+		touch(strKey);
+		cleanup(strKey, l.size());
+
+		return ret;
+	}
+
+	/**
+	 * The non blocking part of BLPOP and BRPOP, the server blocks the
+	 * client when this returns {@link RedisStandInData#NIL_ARRAY}.
+	 */
+	protected Object bpop(List<String> a, boolean bLeft)
+	{
+		a.get(2);
+		parseLong(a.get(a.size() - 1));
+
+		for (String strKey : a.subList(1, a.size() - 1))
+		{
+			String strValue = pop(strKey, bLeft);
+
+			if (strValue != null)
+			{
+				List<String> ret = new ArrayList<String>();
+				ret.add(strKey);
+				ret.add(strValue);
+
+				return ret;
+			}
+		}
+
+		return NIL_ARRAY;
+	}
+
+	protected List<String> lrange(String strKey, long lStart, long lEnd)
+	{
+		LinkedList<String> l = list(strKey, false);
+
+		if (l == null)
+		{
+			return new ArrayList<String>();
+		}
+
+		int[] r = range(lStart, lEnd, l.size());
+
+		return new ArrayList<String>(l.subList(r[0], r[1]));
+	}
+
+	protected String lindex(String strKey, long lIndex)
+	{
+		LinkedList<String> l = list(strKey, false);
+
+		if (l == null)
+		{
+			return null;
+		}
+
+		if (lIndex < 0) lIndex += l.size();
+
+		return (lIndex < 0 || lIndex >= l.size()) ? null : l.get((int) lIndex);
+	}
+
+	protected Object lset(String strKey, long lIndex, String strValue)
+	{
+		LinkedList<String> l = list(strKey, false);
+
+		if (l == null)
+		{
+			return new Failure("ERR no such key");
+		}
+
+		if (lIndex < 0) lIndex += l.size();
+
+		if (lIndex < 0 || lIndex >= l.size())
+		{
+			return new Failure("ERR index out of range");
+		}
+
+		l.set((int) lIndex, strValue);
+		touch(strKey);
+
+		return OK;
+	}
+
+	protected Long lrem(String strKey, long lCount, String strValue)
+	{
+		LinkedList<String> l = list(strKey, false);
+
+		if (l == null)
+		{
+			return 0L;
+		}
+
+		long lRemoved = 0;
+		Iterator<String> iter = (lCount < 0) ? l.descendingIterator() : l.iterator();
+
+		while (iter.hasNext() && (lCount == 0 || lRemoved < Math.abs(lCount)))
+		{
+			if (iter.next().equals(strValue))
+			{
+				iter.remove();
+				lRemoved++;
+			}
+		}
+
+		if (lRemoved > 0)
+		{
+			touch(strKey);
+			cleanup(strKey, l.size());
+		}
+
+		return lRemoved;
+	}
+
+	protected Status ltrim(String strKey, long lStart, long lEnd)
+	{
+		LinkedList<String> l = list(strKey, false);
+
+		if (l == null)
+		{
+			return OK;
+		}
+
+		int[] r = range(lStart, lEnd, l.size());
+		LinkedList<String> kept = new LinkedList<String>(l.subList(r[0], r[1]));
+		l.clear();
+		l.addAll(kept);
+		touch(strKey);
+		cleanup(strKey, l.size());
+
+		return OK;
+	}
+
+	protected String rpoplpush(String strFrom, String strTo)
+	{
+		LinkedList<String> from = list(strFrom, false);
+
+		if (from == null)
+		{
+			return null;
+		}
+
+		// fails before popping if the destination has the wrong type
+		list(strTo, false);
+
+		String strValue = pop(strFrom, false);
+		list(strTo, true).addFirst(strValue);
+		touch(strTo);
+
+		return strValue;
+	}
+
+	// sets
+
+	protected Long sadd(List<String> a)
+	{
+		a.get(2);
+		LinkedHashSet<String> s = set(a.get(1), true);
+		long l = 0;
+
+		for (String strMember : a.subList(2, a.size()))
+		{
+			if (s.add(strMember)) l++;
+		}
+
+		touch(a.get(1));
+
+		return l;
+	}
+
+	protected Long srem(List<String> a)
+	{
+		LinkedHashSet<String> s = set(a.get(1), false);
+		long l = 0;
+
+		for (String strMember : a.subList(2, Math.max(3, a.size())))
+		{
+			if (s != null && s.remove(strMember)) l++;
+		}
+
+		if (l > 0)
+		{
+			touch(a.get(1));
+			cleanup(a.get(1), s.size());
+		}
+
+		return l;
+	}
+
+	protected List<String> smembers(String strKey)
+	{
+		LinkedHashSet<String> s = set(strKey, false);
+		return (s == null) ? new ArrayList<String>() : new ArrayList<String>(s);
+	}
+
+	protected Long sismember(String strKey, String strMember)
+	{
+		LinkedHashSet<String> s = set(strKey, false);
+		return (s != null && s.contains(strMember)) ? 1L : 0L;
+	}
+
+	// sorted sets
+
+	protected Long zadd(List<String> a)
+	{
+		if (a.size() < 4 || a.size() % 2 != 0)
+		{
+			throw new CommandException(SYNTAX);
+		}
+
+		for (int i = 2; i < a.size(); i += 2)
+		{
+			parseDouble(a.get(i));
+		}
+
+		ZSet z = zset(a.get(1), true);
+		long l = 0;
+
+		for (int i = 2; i < a.size(); i += 2)
+		{
+			if (z.put(a.get(i + 1), parseDouble(a.get(i)))) l++;
+		}
+
+		touch(a.get(1));
+
+		return l;
+	}
+
+	protected Long zrem(List<String> a)
+	{
+		ZSet z = zset(a.get(1), false);
+		long l = 0;
+
+		for (String strMember : a.subList(2, Math.max(3, a.size())))
+		{
+			if (z != null && z.remove(strMember)) l++;
+		}
+
+		if (l > 0)
+		{
+			touch(a.get(1));
+			cleanup(a.get(1), z.size());
+		}
+
+		return l;
+	}
+
+	protected String zscore(String strKey, String strMember)
+	{
+		ZSet z = zset(strKey, false);
+		Double d = (z == null) ? null : z.m_scores.get(strMember);
+
+		return (d == null) ? null : formatScore(d);
+	}
+
+	protected String zincrby(String strKey, double dBy, String strMember)
+	{
+		ZSet z = zset(strKey, true);
+		Double d = z.m_scores.get(strMember);
+		double dScore = ((d == null) ? 0 : d) + dBy;
+		z.put(strMember, dScore);
+		touch(strKey);
+
+		return formatScore(dScore);
+	}
+
+	protected Long zrank(String strKey, String strMember, boolean bReverse)
+	{
+		ZSet z = zset(strKey, false);
+
+		if (z == null || !z.m_scores.containsKey(strMember))
+		{
+			return null;
+		}
+
+		long l = z.m_sorted.headSet(strMember).size();
+
+		return bReverse ? z.size() - 1 - l : l;
+	}
+
+	protected List<String> withScores(ZSet z, List<String> members, boolean bScores)
+	{
+		if (!bScores)
+		{
+			return members;
+		}
+
+		List<String> ret = new ArrayList<String>(members.size() * 2);
+
+		for (String strMember : members)
+		{
+			ret.add(strMember);
+			ret.add(formatScore(z.m_scores.get(strMember)));
+		}
+
+		return ret;
+	}
+
+	protected List<String> zrange(List<String> a, boolean bReverse)
+	{
+		long lStart = parseLong(a.get(2));
+		long lEnd = parseLong(a.get(3));
+		boolean bScores = a.size() > 4 && a.get(4).equalsIgnoreCase("WITHSCORES");
+
+		if (a.size() > (bScores ? 5 : 4))
+		{
+			throw new CommandException(SYNTAX);
+		}
+
+		ZSet z = zset(a.get(1), false);
+
+		if (z == null)
+		{
+			return new ArrayList<String>();
+		}
+
+		List<String> members = z.members();
+
+		if (bReverse)
+		{
+			Collections.reverse(members);
+		}
+
+		int[] r = range(lStart, lEnd, members.size());
+
+		return withScores(z, new ArrayList<String>(members.subList(r[0], r[1])), bScores);
+	}
+
+	/**
+	 * A score bound, exclusive when prefixed by <code>(</code>.
+	 */
+	protected static boolean inBound(double dScore, String strBound, boolean bMin)
+	{
+		boolean bExclusive = strBound.startsWith("(");
+		double d = parseDouble(bExclusive ? strBound.substring(1) : strBound);
+
+		if (bMin)
+		{
+			return bExclusive ? dScore > d : dScore >= d;
+		}
+
+		return bExclusive ? dScore < d : dScore <= d;
+	}
+
+	protected List<String> byScore(ZSet z, String strMin, String strMax)
+	{
+		List<String> ret = new ArrayList<String>();
+
+		// validates the bounds even when the set is empty
+		inBound(0, strMin, true);
+		inBound(0, strMax, false);
+
+		if (z == null)
+		{
+			return ret;
+		}
+
+		for (String strMember : z.m_sorted)
+		{
+			double d = z.m_scores.get(strMember);
+
+			if (!inBound(d, strMax, false))
+			{
+				break;
+			}
+
+			if (inBound(d, strMin, true))
+			{
+				ret.add(strMember);
+			}
+		}
+
+		return ret;
+	}
+
+	protected List<String> zrangeByScore(List<String> a, boolean bReverse)
+	{
+		String strMin = bReverse ? a.get(3) : a.get(2);
+		String strMax = bReverse ? a.get(2) : a.get(3);
+		boolean bScores = false;
+		long lOffset = 0;
+		long lCount = -1;
+
+		for (int i = 4; i < a.size(); i++)
+		{
+			String strOpt = a.get(i).toUpperCase();
+
+			if (strOpt.equals("WITHSCORES"))
+			{
+				bScores = true;
+			}
+			else if (strOpt.equals("LIMIT") && i + 2 < a.size())
+			{
+				lOffset = parseLong(a.get(++i));
+				lCount = parseLong(a.get(++i));
+			}
+			else
+			{
+				throw new CommandException(SYNTAX);
+			}
+		}
+
+		ZSet z = zset(a.get(1), false);
+		List<String> members = byScore(z, strMin, strMax);
+
+		if (bReverse)
+		{
+			Collections.reverse(members);
+		}
+
+		if (lOffset < 0 || lOffset >= members.size())
+		{
+			return new ArrayList<String>();
+		}
+
+		int iEnd = (lCount < 0) ? members.size() : (int) Math.min(members.size(), lOffset + lCount);
+
+		return withScores(z, new ArrayList<String>(members.subList((int) lOffset, iEnd)), bScores);
+	}
+
+	protected Long zcount(String strKey, String strMin, String strMax)
+	{
+		return (long) byScore(zset(strKey, false), strMin, strMax).size();
+	}
+
+	protected Long zremrangeByRank(String strKey, long lStart, long lEnd)
+	{
+		ZSet z = zset(strKey, false);
+
+		if (z == null)
+		{
+			return 0L;
+		}
+
+		List<String> members = z.members();
+		int[] r = range(lStart, lEnd, members.size());
+
+		return zremAll(strKey, z, members.subList(r[0], r[1]));
+	}
+
+	protected Long zremrangeByScore(String strKey, String strMin, String strMax)
+	{
+		ZSet z = zset(strKey, false);
+		return zremAll(strKey, z, byScore(z, strMin, strMax));
+	}
+
+	protected Long zremAll(String strKey, ZSet z, List<String> members)
+	{
+		if (members.isEmpty())
+		{
+			return 0L;
+		}
+
+		for (String strMember : new ArrayList<String>(members))
+		{
+			z.remove(strMember);
+		}
+
+		touch(strKey);
+		cleanup(strKey, z.size());
+
+		return (long) members.size();
+	}
+
+	/**
+	 * ZUNIONSTORE and ZINTERSTORE, plain sets count as scores of 1.
+	 */
+	protected Long zstore(List<String> a, boolean bUnion)
+	{
+		String strDest = a.get(1);
+		int iKeys = (int) parseLong(a.get(2));
+
+		if (iKeys < 1 || a.size() < 3 + iKeys)
+		{
+			throw new CommandException("ERR at least 1 input key is needed for ZUNIONSTORE/ZINTERSTORE");
+		}
+
+		double[] weights = new double[iKeys];
+		String strAggregate = "SUM";
+
+		for (int i = 0; i < iKeys; i++)
+		{
+			weights[i] = 1;
+		}
+
+		for (int i = 3 + iKeys; i < a.size(); i++)
+		{
+			String strOpt = a.get(i).toUpperCase();
+
+			if (strOpt.equals("WEIGHTS") && i + iKeys < a.size())
+			{
+				for (int w = 0; w < iKeys; w++)
+				{
+					weights[w] = parseDouble(a.get(++i));
+				}
+			}
+			else if (strOpt.equals("AGGREGATE") && i + 1 < a.size())
+			{
+				strAggregate = a.get(++i).toUpperCase();
+
+				if (!strAggregate.equals("SUM") && !strAggregate.equals("MIN") && !strAggregate.equals("MAX"))
+				{
+					throw new CommandException(SYNTAX);
+				}
+			}
+			else
+			{
+				throw new CommandException(SYNTAX);
+			}
+		}
+
+		Map<String, Double> result = null;
+
+		for (int i = 0; i < iKeys; i++)
+		{
+			Map<String, Double> source = scores(a.get(3 + i));
+			Map<String, Double> next = new LinkedHashMap<String, Double>();
+
+			for (Map.Entry<String, Double> e : source.entrySet())
+			{
+				double dScore = e.getValue() * weights[i];
+				Double dPrevious = (result == null) ? null : result.get(e.getKey());
+
+				if (dPrevious == null && result != null && !bUnion)
+				{
+					continue;
+				}
+
+				next.put(e.getKey(), (dPrevious == null) ? dScore : aggregate(strAggregate, dPrevious, dScore));
+			}
+
+			if (bUnion && result != null)
+			{
+				for (Map.Entry<String, Double> e : result.entrySet())
+				{
+					if (!next.containsKey(e.getKey()))
+					{
+						next.put(e.getKey(), e.getValue());
+					}
+				}
+			}
+
+			result = next;
+		}
+
+		delete(strDest);
+
+		if (!result.isEmpty())
+		{
+			ZSet z = zset(strDest, true);
+
+			for (Map.Entry<String, Double> e : result.entrySet())
+			{
+				z.put(e.getKey(), e.getValue());
+			}
+		}
+
+		return (long) result.size();
+	}
+
+	protected Map<String, Double> scores(String strKey)
+	{
+		Object value = get(strKey);
+		Map<String, Double> ret = new LinkedHashMap<String, Double>();
+
+		if (value instanceof ZSet)
+		{
+			ret.putAll(((ZSet) value).m_scores);
+		}
+		else if (value instanceof LinkedHashSet)
+		{
+			for (Object o : (LinkedHashSet<?>) value)
+			{
+				ret.put((String) o, 1.0);
+			}
+		}
+		else if (value != null)
+		{
+			throw new CommandException(WRONGTYPE);
+		}
+
+		return ret;
+	}
+
+	protected static double aggregate(String strAggregate, double d1, double d2)
+	{
+		if (strAggregate.equals("MIN")) return Math.min(d1, d2);
+		if (strAggregate.equals("MAX")) return Math.max(d1, d2);
+
+		double d = d1 + d2;
+
+		// inf + -inf is 0 in Redis
+		return Double.isNaN(d) ? 0 : d;
+	}
+}
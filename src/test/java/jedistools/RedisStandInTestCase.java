@@ -0,0 +1,29 @@
+package jedistools;
+
+import junit.framework.TestCase;
+
+/**
+ * Base class for tests that run against a fresh {@link RedisStandIn},
+ * started before each test with {@link JedisFactory}'s master pointed
+ * at it.
+ *
+ * @author Hisham Mardam-Bey
+ *
+ */
+public abstract class RedisStandInTestCase extends TestCase
+{
+	protected RedisStandIn m_redis;
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		m_redis = new RedisStandIn().start();
+		JedisFactory.setMaster(m_redis.getHost(), m_redis.getPort());
+	}
+
+	@Override
+	protected void tearDown() throws Exception
+	{
+		m_redis.stop();
+	}
+}
@@ -0,0 +1,106 @@
+package jedistools;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import redis.clients.jedis.Jedis;
+
+import jedistools.RedisStreamQueue.Entry;
+
+/**
+ * @author Hisham Mardam-Bey
+ *
+ */
+public class RedisStreamQueueTest extends RedisStandInTestCase
+{
+	protected RedisStreamQueue consumer(String strConsumer)
+	{
+		return new RedisStreamQueue("group", strConsumer)
+		{
+			@Override
+			protected String getKey()
+			{
+				return "stream";
+			}
+		};
+	}
+
+	protected static List<String> values(List<Entry> entries)
+	{
+		List<String> ret = new ArrayList<String>();
+
+		for (Entry e : entries)
+		{
+			ret.add(e.getValue());
+		}
+
+		return ret;
+	}
+
+	/**
+	 * Elements a consumer read but never acknowledged are handed to
+	 * another consumer, acknowledged ones are not.
+	 */
+	public void testUnacknowledgedElementsAreRedelivered()
+	{
+		RedisStreamQueue a = consumer("a");
+		RedisStreamQueue b = consumer("b");
+
+		a.createGroup(true);
+		a.append(Arrays.asList("x", "y", "z"));
+
+		List<Entry> read = a.read(3, 0);
+		assertEquals(Arrays.asList("x", "y", "z"), values(read));
+		a.ack(Arrays.asList(read.get(1).getId()));
+
+		List<Entry> claimed = b.claimIdle(0, 10);
+		assertEquals(Arrays.asList("x", "z"), values(claimed));
+		assertTrue(a.pending().isEmpty());
+		assertEquals(2, b.pending().size());
+	}
+
+	/**
+	 * An id moved to a consumer's pending list without its delivery time
+	 * being recorded, e.g. because the consumer died in between, is still
+	 * redelivered.
+	 */
+	public void testUntrackedPendingElementsAreRedelivered()
+	{
+		RedisStreamQueue a = consumer("a");
+		RedisStreamQueue b = consumer("b");
+
+		a.append(Arrays.asList("x", "y"));
+		assertTrue(a.createGroup(true));
+
+		Jedis j = new Jedis(m_redis.getHost(), m_redis.getPort());
+		j.sadd(a.getConsumersKey("group"), "a");
+		j.rpoplpush(a.getGroupKey("group"), a.getPendingKey("a"));
+		j.disconnect();
+
+		assertEquals(Arrays.asList("x"), values(b.claimIdle(0, 10)));
+		assertEquals(Arrays.asList("y"), values(b.read(5, 0)));
+	}
+
+	/**
+	 * Only elements idle for long enough are claimed, at most as many as
+	 * asked for per call.
+	 */
+	public void testClaimIdleIsBoundedByTheCutoffAndTheLimit()
+	{
+		RedisStreamQueue a = consumer("a");
+		RedisStreamQueue b = consumer("b");
+
+		a.createGroup(true);
+		a.append(Arrays.asList("v", "w", "x", "y", "z"));
+		assertEquals(5, a.read(5, 0).size());
+
+		assertTrue(b.claimIdle(60000, 10).isEmpty());
+		assertEquals(Arrays.asList("v", "w"), values(b.claimIdle(0, 2)));
+		assertEquals(3, a.pending().size());
+
+		// b's own elements are idle past a cutoff of 0 too
+		assertEquals(5, b.claimIdle(0, 10).size());
+		assertTrue(a.pending().isEmpty());
+	}
+}